@@ -32,15 +32,17 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 import java.awt.Color;
-import java.util.Arrays;
-import java.util.Date;
+import java.awt.Rectangle;
 import java.util.prefs.Preferences;
 
 import mmcorej.CMMCore;
 import mmcorej.StrVector;
+import mmcorej.TaggedImage;
 
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
+import org.micromanager.utils.FocusSweep;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.PropertyItem;
 
@@ -64,6 +66,8 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
    private static final String KEY_NUM_SECOND = "2nd step number";
    private static final String KEY_THRES    = "Threshold";
    private static final String KEY_CROP_SIZE = "Crop ratio";
+   private static final String KEY_STREAM = "Stream Z sweep";
+   private static final String[] YESNO = {"Yes", "No"};
    private static final String KEY_CHANNEL = "Channel";
    private static final String NOCHANNEL = "";
    //private static final String AF_SETTINGS_NODE = "micro-manager/extensions/autofocus";
@@ -80,6 +84,7 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
    public double THRES = 0.02;
    public double CROP_SIZE = 0.2; 
    public String CHANNEL="";
+   public String STREAM = "No"; // stream the Z sweeps with a sequence acquisition
 
    private double indx = 0; //snapshot show new window iff indx = 1 
 
@@ -110,6 +115,7 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
       createProperty(KEY_THRES, Double.toString(THRES));
       createProperty(KEY_CROP_SIZE, Double.toString(CROP_SIZE));
       createProperty(KEY_CHANNEL, CHANNEL);
+      createProperty(KEY_STREAM, STREAM, YESNO);
       
       loadSettings();
    }
@@ -123,6 +129,7 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
          THRES = Double.parseDouble(getPropertyValue(KEY_THRES));
          CROP_SIZE = Double.parseDouble(getPropertyValue(KEY_CROP_SIZE));
          CHANNEL = getPropertyValue(KEY_CHANNEL);
+         STREAM = getPropertyValue(KEY_STREAM);
       
       } catch (NumberFormatException e) {
          // TODO Auto-generated catch block
@@ -198,74 +205,27 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
          curDist = core_.getPosition(core_.getFocusDevice());
          baseDist = curDist-SIZE_FIRST*NUM_FIRST;
          core_.setPosition(core_.getFocusDevice(),baseDist);
-         core_.waitForDevice(core_.getFocusDevice());
-         delay_time(300);
+         FocusSweep.waitForFocus(core_, 300);
 
          IJ.log(" Before rough search: " +String.valueOf(curDist));
 
 
          //Rough search
-         for(int i = 0; i < 2*NUM_FIRST+1; i++ ){
-            tPrev = System.currentTimeMillis();
-
-            core_.setPosition(core_.getFocusDevice(),baseDist+i*SIZE_FIRST);
-            core_.waitForDevice(core_.getFocusDevice());
-
-
-            curDist = core_.getPosition(core_.getFocusDevice());
-            // indx =1;
-            snapSingleImage();
-            // indx =0;    
-
-
-
-            curSh = sharpNess(ipCurrent_);
-
-            if(curSh > bestSh){
-               bestSh = curSh;
-               bestDist = curDist;
-            } 
-            else if (bestSh - curSh > THRES*bestSh && bestDist < 5000) {
-               break;
-            }
-            tcur = System.currentTimeMillis()-tPrev;
-
-            //===IJ.log(String.valueOf(curDist)+" "+String.valueOf(curSh)+" " +String.valueOf(tcur));	
-         }
+         FocusSweep.run(core_, positions(baseDist, SIZE_FIRST, 2*NUM_FIRST+1),
+                 STREAM.equals("Yes"), new SharpestPosition());
 
 
          //===IJ.log("BEST_DIST_FIRST"+String.valueOf(bestDist)+" BEST_SH_FIRST"+String.valueOf(bestSh));
 
          baseDist = bestDist-SIZE_SECOND*NUM_SECOND;
          core_.setPosition(core_.getFocusDevice(),baseDist);
-         delay_time(100);
+         FocusSweep.waitForFocus(core_, 100);
 
          bestSh = 0;
 
          //Fine search
-         for(int i = 0; i < 2*NUM_SECOND+1; i++ ){
-            tPrev = System.currentTimeMillis();
-            core_.setPosition(core_.getFocusDevice(),baseDist+i*SIZE_SECOND);
-            core_.waitForDevice(core_.getFocusDevice());
-
-            curDist = core_.getPosition(core_.getFocusDevice());
-            // indx =1;
-            snapSingleImage();
-            // indx =0;    
-
-            curSh = sharpNess(ipCurrent_);
-
-            if(curSh > bestSh){
-               bestSh = curSh;
-               bestDist = curDist;
-            } 
-            else if (bestSh - curSh > THRES*bestSh && bestDist < 5000){
-               break;
-            }
-            tcur = System.currentTimeMillis()-tPrev;
-
-            //===IJ.log(String.valueOf(curDist)+" "+String.valueOf(curSh)+" "+String.valueOf(tcur));
-         }
+         FocusSweep.run(core_, positions(baseDist, SIZE_SECOND, 2*NUM_SECOND+1),
+                 STREAM.equals("Yes"), new SharpestPosition());
 
 
          IJ.log("BEST_DIST_SECOND"+String.valueOf(bestDist)+" BEST_SH_SECOND"+String.valueOf(bestSh));
@@ -304,116 +264,48 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
       return true;
    }
 
-   //waiting    
-   private void delay_time(double delay){
-      Date date = new Date();
-      long sec = date.getTime();
-      while(date.getTime()<sec+delay){
-         date = new Date();
+   //focus positions of a sweep
+   private static double[] positions(double start, double step, int number){
+      double[] zs = new double[number];
+      for (int i = 0; i < number; i++) {
+         zs[i] = start + i*step;
       }
+      return zs;
    }
 
-   /*calculate the sharpness of a given image (in "impro").*/
-   private double sharpNessp(ImageProcessor impro){
-
-
-      int width =  (int)(CROP_SIZE*core_.getImageWidth());
-      int height = (int)(CROP_SIZE*core_.getImageHeight());
-      int ow = (int)(((1-CROP_SIZE)/2)*core_.getImageWidth());
-      int oh = (int)(((1-CROP_SIZE)/2)*core_.getImageHeight());
-
-      double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      double[] windo = new double[9];
-
-      /*Apply 3x3 median filter to reduce noise*/
-      for (int i=0; i<width; i++){
-         for (int j=0; j<height; j++){
-
-            windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-            windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-            windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-            windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-            windo[4] = (double)impro.getPixel(ow+i,oh+j);
-            windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-            windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-            windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-            windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-
-            medPix[i][j] = median(windo);
-         } 
-      }
-
-      /*Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp*/
-
-      for (int k=1; k<width-1; k++){
-         for (int l=1; l<height-1; l++){
-
-            sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
+   /*keeps the sharpest position of a sweep, and stops the sweep once the
+     sharpness has dropped by more than THRES relative to the best one*/
+   private class SharpestPosition implements FocusSweep.ImageHandler {
+      public boolean handle(int index, double z, TaggedImage image) {
+         curDist = z;
+         curSh = sharpNess(image.pix);
 
+         if(curSh > bestSh){
+            bestSh = curSh;
+            bestDist = curDist;
          } 
+         else if (bestSh - curSh > THRES*bestSh && bestDist < 5000){
+            return false;
+         }
+         //===IJ.log(String.valueOf(curDist)+" "+String.valueOf(curSh));
+         return true;
       }
-      return sharpNess;
    }
 
-
-   /*calculate the sharpness of a given image (in "impro").*/
-   private double sharpNess(ImageProcessor impro){
-
+   /*calculate the sharpness of a given image (in "impro"): 3x3 median filter 
+     to reduce noise, followed by edge detection using a 3x3 filter: 
+     [2 1 0; 1 0 -1; 0 -1 -2]. Then sum the squares of all pixel values. 
+     Ideally, the sum is large if most edges are sharp*/
+   private double sharpNess(Object pixels){
 
       int width =  (int)(CROP_SIZE*core_.getImageWidth());
       int height = (int)(CROP_SIZE*core_.getImageHeight());
       int ow = (int)(((1-CROP_SIZE)/2)*core_.getImageWidth());
       int oh = (int)(((1-CROP_SIZE)/2)*core_.getImageHeight());
 
-      // double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      //double[] windo = new double[9];
-
-      /*Apply 3x3 median filter to reduce noise*/
-
-      /*   for (int i=0; i<width; i++){
-         for (int j=0; j<height; j++){
-
-	    windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-	    windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-            windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-            windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-            windo[4] = (double)impro.getPixel(ow+i,oh+j);
-            windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-            windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-            windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-            windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-
-            medPix[i][j] = median(windo);
-         } 
-	 }*/        
-
-      //tPrev = System.currentTimeMillis();     
-
-      impro.medianFilter();
-      int[] ken = {2, 1, 0, 1, 0, -1, 0, -1, -2};
-      impro.convolve3x3(ken);
-      for (int i=0; i<width; i++){
-         for (int j=0; j<height; j++){
-
-            sharpNess = sharpNess + Math.pow(impro.getPixel(ow+i,oh+j),2);
-         } 
-      }
-
-      // tcur = System.currentTimeMillis()-tPrev;
-
-      /*Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp*/
-
-      /*  for (int k=1; k<width-1; k++){
-         for (int l=1; l<height-1; l++){
-
-	     sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
-
-         } 
-	 }*/
-
-      return sharpNess;
+      return FocusMetrics.score(FocusMetrics.MEDIANGRADIENT, pixels, 
+              (int) core_.getImageWidth(), (int) core_.getImageHeight(), 
+              new Rectangle(ow, oh, width, height));
    }
 
 
@@ -441,13 +333,6 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
       return implus;
    }
 
-   private double median(double[] arr){ 
-      double [] newArray = Arrays.copyOf(arr, arr.length);
-      Arrays.sort(newArray);
-      int middle = newArray.length/2;
-      return (newArray.length%2 == 1) ? newArray[middle] : (newArray[middle-1] + newArray[middle]) / 2.0;
-   }
-
    public double fullFocus() {
       run("silent");
       return 0;
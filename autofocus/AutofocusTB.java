@@ -7,18 +7,20 @@ import ij.process.ShortProcessor;
 
 import java.awt.Color;
 import java.util.prefs.Preferences;
-import java.util.Date;
 import java.lang.System;
 import java.awt.Rectangle;
 
 import mmcorej.MMCoreJ;
 import mmcorej.StrVector;
+import mmcorej.TaggedImage;
 
 import org.micromanager.api.Autofocus;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.acquisition.AcquisitionData;
 import org.micromanager.utils.AutofocusManager;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
+import org.micromanager.utils.FocusSweep;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.PropertyItem;
 
@@ -42,6 +44,8 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
    private final static String KEY_CROP_SIZE = "Crop ratio";
    private final static String KEY_CHANNEL1 = "Channel-1";
    private final static String KEY_CHANNEL2 = "Channel-2";
+   private final static String KEY_STREAM = "Stream Z sweep";
+   private final static String[] YESNO = {"Yes", "No"};
    private static final String NOCHANNEL = "";
    private final static String AF_SETTINGS_NODE = "micro-manager/extensions/autofocus";
    private static final String AF_DEVICE_NAME = "JAF(TB)";
@@ -83,6 +87,10 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
     *  Description of the Field
     */
    public String CHANNEL2 = "DAPI";
+   /**
+    *  Stream the Z sweeps with a sequence acquisition ("Yes" or "No")
+    */
+   public String STREAM = "No";
 
    private double indx = 0;
    //snapshot show new window iff indx = 1
@@ -120,6 +128,7 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
       createProperty(KEY_CROP_SIZE, Double.toString(CROP_SIZE));
       createProperty(KEY_CHANNEL1, CHANNEL1);
       createProperty(KEY_CHANNEL2, CHANNEL2);
+      createProperty(KEY_STREAM, STREAM, YESNO);
 
       loadSettings();
    }
@@ -134,6 +143,7 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
          CROP_SIZE = Double.parseDouble(getPropertyValue(KEY_CROP_SIZE));
          CHANNEL1 = getPropertyValue(KEY_CHANNEL1);
          CHANNEL2 = getPropertyValue(KEY_CHANNEL2);
+         STREAM = getPropertyValue(KEY_STREAM);
 
       } catch (NumberFormatException e) {
          // TODO Auto-generated catch block
@@ -206,8 +216,7 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
          curDist = core_.getPosition(core_.getFocusDevice());
          baseDist = curDist - SIZE_FIRST * NUM_FIRST;
          core_.setPosition(core_.getFocusDevice(), baseDist);
-         core_.waitForDevice(core_.getFocusDevice());
-         delay_time(100);
+         FocusSweep.waitForFocus(core_, 100);
 
          //core_.setShutterOpen(true);
          //core_.setAutoShutter(false);
@@ -215,36 +224,14 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
          IJ.log("Before rough search: " + String.valueOf(curDist));
 
          //Rough search
-         for (int i = 0; i < 2 * NUM_FIRST + 1; i++) {
-            tPrev = System.currentTimeMillis();
-
-            core_.setPosition(core_.getFocusDevice(), baseDist + i * SIZE_FIRST);
-            core_.waitForDevice(core_.getFocusDevice());
-
-            curDist = core_.getPosition(core_.getFocusDevice());
-            // indx =1;
-            snapSingleImage();
-            // indx =0;
-
-
-            curSh = sharpNess(ipCurrent_);
-
-            if (curSh > bestSh) {
-               bestSh = curSh;
-               bestDist = curDist;
-            } else if (bestSh - curSh > THRES * bestSh) {
-               break;
-            }
-            tcur = System.currentTimeMillis() - tPrev;
-
-            //===IJ.write(String.valueOf(curDist)+" "+String.valueOf(curSh)+" " +String.valueOf(tcur));
-         }
+         FocusSweep.run(core_, positions(baseDist, SIZE_FIRST, 2 * NUM_FIRST + 1),
+               STREAM.equals("Yes"), new SharpestPosition());
 
          //===IJ.write("BEST_DIST_FIRST"+String.valueOf(bestDist)+" BEST_SH_FIRST"+String.valueOf(bestSh));
 
          baseDist = bestDist - SIZE_SECOND * NUM_SECOND;
          core_.setPosition(core_.getFocusDevice(), baseDist);
-         delay_time(100);
+         FocusSweep.waitForFocus(core_, 100);
 
          bestSh = 0;
 
@@ -255,28 +242,8 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
             core_.waitForDevice(core_.getShutterDevice());
          }
          //Fine search
-         for (int i = 0; i < 2 * NUM_SECOND + 1; i++) {
-            tPrev = System.currentTimeMillis();
-            core_.setPosition(core_.getFocusDevice(), baseDist + i * SIZE_SECOND);
-            core_.waitForDevice(core_.getFocusDevice());
-
-            curDist = core_.getPosition(core_.getFocusDevice());
-            // indx =1;
-            snapSingleImage();
-            // indx =0;
-
-            curSh = sharpNess(ipCurrent_);
-
-            if (curSh > bestSh) {
-               bestSh = curSh;
-               bestDist = curDist;
-            } else if (bestSh - curSh > THRES * bestSh) {
-               break;
-            }
-            tcur = System.currentTimeMillis() - tPrev;
-
-            //===IJ.write(String.valueOf(curDist)+" "+String.valueOf(curSh)+" "+String.valueOf(tcur));
-         }
+         FocusSweep.run(core_, positions(baseDist, SIZE_SECOND, 2 * NUM_SECOND + 1),
+               STREAM.equals("Yes"), new SharpestPosition());
 
          IJ.log("BEST_DIST_SECOND= " + String.valueOf(bestDist) + " BEST_SH_SECOND= " + String.valueOf(bestSh));
 
@@ -320,150 +287,66 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
    }
 
 
-   //waiting
    /**
-    *  Description of the Method
+    *  Focus positions of a sweep
     *
-    *@param  delay  Description of the Parameter
+    *@param  start   first position
+    *@param  step    step size
+    *@param  number  number of positions
+    *@return         positions
     */
-   private void delay_time(double delay) {
-      Date date = new Date();
-      long sec = date.getTime();
-      while (date.getTime() < sec + delay) {
-         date = new Date();
+   private static double[] positions(double start, double step, int number) {
+      double[] zs = new double[number];
+      for (int i = 0; i < number; i++) {
+         zs[i] = start + i * step;
       }
+      return zs;
    }
 
 
-
-   /*
-    *  calculate the sharpness of a given image (in "impro").
-    */
    /**
-    *  Description of the Method
-    *
-    *@param  impro  Description of the Parameter
-    *@return        Description of the Return Value
+    *  Keeps the sharpest position of a sweep, and stops the sweep once the
+    *  sharpness has dropped by more than THRES relative to the best one
     */
-   private double sharpNessp(ImageProcessor impro) {
-
-      int width = (int) (CROP_SIZE * core_.getImageWidth());
-      int height = (int) (CROP_SIZE * core_.getImageHeight());
-      int ow = (int) (((1 - CROP_SIZE) / 2) * core_.getImageWidth());
-      int oh = (int) (((1 - CROP_SIZE) / 2) * core_.getImageHeight());
-
-      double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      double[] windo = new double[9];
-
-      /*
-       *  Apply 3x3 median filter to reduce noise
-       */
-      for (int i = 1; i < width - 1; i++) {
-         for (int j = 1; j < height - 1; j++) {
-
-            windo[0] = (double) impro.getPixel(ow + i - 1, oh + j - 1);
-            windo[1] = (double) impro.getPixel(ow + i, oh + j - 1);
-            windo[2] = (double) impro.getPixel(ow + i + 1, oh + j - 1);
-            windo[3] = (double) impro.getPixel(ow + i - 1, oh + j);
-            windo[4] = (double) impro.getPixel(ow + i, oh + j);
-            windo[5] = (double) impro.getPixel(ow + i + 1, oh + j);
-            windo[6] = (double) impro.getPixel(ow + i - 1, oh + j + 1);
-            windo[7] = (double) impro.getPixel(ow + i, oh + j + 1);
-            windo[8] = (double) impro.getPixel(ow + i + 1, oh + j + 1);
-
-            medPix[i][j] = findMed(windo);
-         }
-      }
-
-      /*
-       *  Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp
-       */
-      double edgehoriz;
-      double edvevert;
-      for (int k = 1; k < width - 1; k++) {
-         for (int l = 1; l < height - 1; l++) {
-            edgehoriz = Math.pow((-2 * medPix[k - 1][l] - medPix[k - 1][l - 1] - medPix[k - 1][l + 1] + medPix[k + 1][l - 1] + medPix[k + 1][l + 1] + 2 * medPix[k + 1][l]), 2);
-            edvevert = Math.pow((-2 * medPix[k][l - 1] - medPix[k - 1][l - 1] - medPix[k + 1][l - 1] + medPix[k - 1][l + 1] + medPix[k + 1][l + 1] + 2 * medPix[k][l + 1]), 2);
-            sharpNess += (edgehoriz + edvevert);
-            //sharpNess = sharpNess + Math.pow((-2 * medPix[k - 1][l - 1] - medPix[k][l - 1] - medPix[k - 1][l] + medPix[k + 1][l] + medPix[k][l + 1] + 2 * medPix[k + 1][l + 1]), 2);
-
+   private class SharpestPosition implements FocusSweep.ImageHandler {
+      public boolean handle(int index, double z, TaggedImage image) {
+         curDist = z;
+         curSh = sharpNess(image.pix);
+
+         if (curSh > bestSh) {
+            bestSh = curSh;
+            bestDist = curDist;
+         } else if (bestSh - curSh > THRES * bestSh) {
+            return false;
          }
+         //===IJ.write(String.valueOf(curDist)+" "+String.valueOf(curSh));
+         return true;
       }
-      return sharpNess;
    }
 
 
+
    /*
     *  calculate the sharpness of a given image (in "impro").
     */
    /**
-    *  Description of the Method
+    *  Median filter and edge detection of the center of the image, 
+    *  then sum all pixel values. Ideally, the sum is large if most edges 
+    *  are sharp
     *
-    *@param  impro  Description of the Parameter
-    *@return        Description of the Return Value
+    *@param  pixels  image pixels
+    *@return         sharpness
     */
-   private double sharpNess(ImageProcessor impro) {
+   private double sharpNess(Object pixels) {
 
       int width = (int) (CROP_SIZE * core_.getImageWidth());
       int height = (int) (CROP_SIZE * core_.getImageHeight());
       int sx = (int) (core_.getImageWidth() - width) / 2;
       int sy = (int) (core_.getImageHeight() - height) / 2;
-      //int ow = (int) (((1 - CROP_SIZE) / 2) * core_.getImageWidth());
-      //int oh = (int) (((1 - CROP_SIZE) / 2) * core_.getImageHeight());
-
-      // double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      //double[] windo = new double[9];
-
-      /*
-       *  Apply 3x3 median filter to reduce noise
-       */
-      /*
-       *  for (int i=0; i<width; i++){
-       *  for (int j=0; j<height; j++){
-       *  windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-       *  windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-       *  windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-       *  windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-       *  windo[4] = (double)impro.getPixel(ow+i,oh+j);
-       *  windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-       *  windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-       *  windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-       *  windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-       *  medPix[i][j] = findMed(windo);
-       *  }
-       *  }
-       */
-      //tPrev = System.currentTimeMillis();
-
-      impro.setRoi(new Rectangle(sx, sy, width, height));
-      impro.crop();
-      impro.medianFilter();
-      impro.findEdges();
-
-      //int[] ken = {2, 1, 0, 1, 0, -1, 0, -1, -2};
-      //impro.convolve3x3(ken);
-
-      for (int i = 0; i < width; i++) {
-         for (int j = 0; j < height; j++) {
-            sharpNess += impro.getPixelValue(i, j);
-         }
-      }
 
-      // tcur = System.currentTimeMillis()-tPrev;
-
-      /*
-       *  Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp
-       */
-      /*
-       *  for (int k=1; k<width-1; k++){
-       *  for (int l=1; l<height-1; l++){
-       *  sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
-       *  }
-       *  }
-       */
-      return sharpNess;
+      return FocusMetrics.score(FocusMetrics.MEDIANEDGES, pixels,
+              (int) core_.getImageWidth(), (int) core_.getImageHeight(),
+              new Rectangle(sx, sy, width, height));
    }
 
 
@@ -497,32 +380,6 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
    }
 
 
-   /**
-    *  Description of the Method
-    *
-    *@param  arr  Description of the Parameter
-    *@return      Description of the Return Value
-    */
-   private double findMed(double[] arr) {
-      double tmp;
-      boolean sorted = false;
-      int i = 0;
-      while (!sorted) {
-         sorted = true;
-         for (int j = 0; j < 8 - i; j++) {
-            if (arr[j + 1] < arr[j]) {
-               sorted = false;
-               tmp = arr[j];
-               arr[j] = arr[j + 1];
-               arr[j + 1] = tmp;
-            }
-         }
-         i++;
-      }
-      return arr[5];
-   }
-
-
    /**
     *  Description of the Method
     *
@@ -26,11 +26,16 @@
 
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
@@ -45,6 +50,8 @@ import org.apache.commons.math3.optim.univariate.UnivariateObjectiveFunction;
 import org.json.JSONException;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.AutofocusBase;
+import org.micromanager.utils.FocusMetrics;
+import org.micromanager.utils.FocusSweep;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
@@ -53,6 +60,7 @@ import org.micromanager.utils.MathFunctions;
 import org.micromanager.utils.NumberUtils;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.TextUtils;
+import org.micromanager.utils.ThreadUtils;
 
 public class OughtaFocus extends AutofocusBase implements org.micromanager.api.Autofocus {
 
@@ -65,6 +73,17 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private static final String EXPOSURE = "Exposure";
    private static final String SHOW_IMAGES = "ShowImages";
    private static final String SCORING_METHOD = "Maximize";
+   private static final String SEARCH_ALGORITHM = "SearchAlgorithm";
+   private static final String HARDWARE_SEQUENCING = "HardwareSequencing";
+   private static final String BRENT = "Brent";
+   private static final String COARSE_TO_FINE = "CoarseToFine";
+   private static final String searchAlgorithms[] = {BRENT, COARSE_TO_FINE};
+   // number of positions in the first sweep of the coarse to fine search
+   private static final int COARSE_STEPS = 11;
+   // a sweep is stopped when the score drops below this fraction of the 
+   // best score so far, at EARLY_STOP_COUNT positions in a row
+   private static final double EARLY_STOP_FRACTION = 0.8;
+   private static final int EARLY_STOP_COUNT = 2;
    private static final String showValues[] = {"Yes", "No"};
    private final static String scoringMethods[] = {"Edges", "StdDev", "Mean", "NormalizedVariance", "SharpEdges", "Redondo", "Volath", "Volath5"};
    private double searchRange = 10;
@@ -74,11 +93,17 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double exposure = 100;
    private String show = "No";
    private String scoringMethod = "Edges";
+   private String searchAlgorithm = BRENT;
+   private String hardwareSequencing = "Yes";
    private int imageCount_;
    private long startTimeMs_;
    private double startZUm_;
    private boolean liveModeOn_;
    private boolean settingsLoaded_ = false;
+   // time spent in each phase of the current autofocus run
+   private long tMove_;
+   private long tAcquire_;
+   private long tScore_;
 
    public OughtaFocus() {
       super();
@@ -88,6 +113,8 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       createProperty(EXPOSURE, NumberUtils.doubleToDisplayString(exposure));
       createProperty(SHOW_IMAGES, show, showValues);
       createProperty(SCORING_METHOD, scoringMethod, scoringMethods);
+      createProperty(SEARCH_ALGORITHM, searchAlgorithm, searchAlgorithms);
+      createProperty(HARDWARE_SEQUENCING, hardwareSequencing, showValues);
       imageCount_ = 0;
    }
 
@@ -101,6 +128,8 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          exposure = NumberUtils.displayStringToDouble(getPropertyValue(EXPOSURE));
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         searchAlgorithm = getPropertyValue(SEARCH_ALGORITHM);
+         hardwareSequencing = getPropertyValue(HARDWARE_SEQUENCING);
 
       } catch (MMException ex) {
          ReportingUtils.logError(ex);
@@ -143,7 +172,12 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          double oldExposure = core.getExposure();
          core.setExposure(exposure);
 
-         double z = runAutofocusAlgorithm();
+         double z;
+         if (searchAlgorithm.equals(COARSE_TO_FINE)) {
+            z = runCoarseToFine();
+         } else {
+            z = runAutofocusAlgorithm();
+         }
 
          if (cropFactor < 1.0) {
             app_.setROI(oldROI);
@@ -172,6 +206,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       });
       BrentOptimizer brentOptimizer = new BrentOptimizer(tolerance,1e-11);
       imageCount_ = 0;
+      resetTiming();
 
       CMMCore core = app_.getMMCore();
       double z = core.getPosition(core.getFocusDevice());
@@ -182,9 +217,224 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
             ", z=" + TextUtils.FMT2.format(zResult) +
             ", dz=" + TextUtils.FMT2.format(zResult - startZUm_) +
             ", t=" + (System.currentTimeMillis() - startTimeMs_));
+      logTiming();
       return zResult;
    }
 
+   private void resetTiming() {
+      tMove_ = 0;
+      tAcquire_ = 0;
+      tScore_ = 0;
+      FocusMetrics.resetTiming();
+   }
+
+   private void logTiming() {
+      ReportingUtils.logMessage("OughtaFocus timing: move=" + tMove_
+              + ", acquire=" + tAcquire_ + ", score=" + tScore_
+              + ", total=" + (System.currentTimeMillis() - startTimeMs_)
+              + " ms; scoring: " + FocusMetrics.getTimingReport());
+   }
+
+   /**
+    * Sweeps through the search range with COARSE_STEPS positions, then
+    * sweeps around the best position with ever smaller steps, until the step
+    * size is below the tolerance.  Images are scored in the background while
+    * the stage moves to the next position and the next image is acquired.
+    * 
+    * @return z position with the highest score
+    */
+   private double runCoarseToFine() throws Exception {
+      imageCount_ = 0;
+      resetTiming();
+      CMMCore core = app_.getMMCore();
+      startZUm_ = core.getPosition(core.getFocusDevice());
+      final double minZ = startZUm_ - searchRange / 2;
+      final double maxZ = startZUm_ + searchRange / 2;
+      Executor scorer = ThreadUtils.newSerialExecutor();
+      double center = startZUm_;
+      double step = searchRange / (COARSE_STEPS - 1);
+      double range = searchRange;
+      double bestZ = startZUm_;
+      int nrSweeps = 0;
+      while (true) {
+         List<Double> positions = new ArrayList<Double>();
+         for (double z = Math.max(center - range / 2, minZ);
+                 z <= Math.min(center + range / 2, maxZ) + step / 1000;
+                 z += step) {
+            positions.add(z);
+         }
+         double[] zs = new double[positions.size()];
+         for (int i = 0; i < zs.length; i++) {
+            zs[i] = positions.get(i);
+         }
+         double[] scores = sweep(zs, scorer);
+         nrSweeps++;
+         int best = -1;
+         for (int i = 0; i < scores.length; i++) {
+            if (!Double.isNaN(scores[i]) && (best < 0 || scores[i] > scores[best])) {
+               best = i;
+            }
+         }
+         if (best >= 0) {
+            bestZ = zs[best];
+         }
+         if (step <= tolerance) {
+            break;
+         }
+         center = bestZ;
+         range = 2 * step;
+         step = Math.max(step / 4, tolerance);
+      }
+      ReportingUtils.logMessage("OughtaFocus Sweeps: " + nrSweeps
+              + ", images=" + imageCount_
+              + ", z=" + TextUtils.FMT2.format(bestZ)
+              + ", dz=" + TextUtils.FMT2.format(bestZ - startZUm_)
+              + ", t=" + (System.currentTimeMillis() - startTimeMs_));
+      logTiming();
+      return bestZ;
+   }
+
+   /**
+    * Acquires and scores images at the given positions.  Uses the stage's 
+    * hardware sequencing when possible.  Stops early when the scores have 
+    * clearly gone down after a maximum.
+    * 
+    * @return scores, NaN for positions that were skipped
+    */
+   private double[] sweep(double[] zs, final Executor scorer) throws Exception {
+      CMMCore core = app_.getMMCore();
+      final List<Future<Double>> futures = new ArrayList<Future<Double>>();
+      final EarlyStop earlyStop = new EarlyStop(futures);
+      if (!liveModeOn_ && hardwareSequencing.equals("Yes")
+              && FocusSweep.canStream(core, zs.length)) {
+         long start = System.currentTimeMillis();
+         FocusSweep.runStreamed(core, zs, new FocusSweep.ImageHandler() {
+
+            public boolean handle(int index, double z, TaggedImage image)
+                    throws Exception {
+               futures.add(score(scorer, image, z));
+               showImage(image);
+               return !earlyStop.check();
+            }
+         });
+         tAcquire_ += System.currentTimeMillis() - start;
+      } else {
+         for (int i = 0; i < zs.length && !earlyStop.check(); i++) {
+            long start = System.currentTimeMillis();
+            setZPosition(zs[i]);
+            tMove_ += System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            futures.add(score(scorer, acquireImage(), zs[i]));
+            tAcquire_ += System.currentTimeMillis() - start;
+         }
+      }
+
+      double[] scores = new double[zs.length];
+      java.util.Arrays.fill(scores, Double.NaN);
+      for (int i = 0; i < futures.size(); i++) {
+         scores[i] = futures.get(i).get();
+      }
+      return scores;
+   }
+
+   /**
+    * Hands an image to the scorer, which scores images one at a time, in
+    * the order in which they were acquired
+    */
+   private Future<Double> score(Executor scorer, TaggedImage image, double z) {
+      FutureTask<Double> score = new FutureTask<Double>(new ScoreTask(image, z));
+      scorer.execute(score);
+      return score;
+   }
+
+   /**
+    * Keeps track of the scores that are ready, to stop a sweep once it has 
+    * passed the maximum
+    */
+   private static class EarlyStop {
+      private final List<Future<Double>> futures_;
+      private int checked_ = 0;
+      private int nrBelow_ = 0;
+      private double best_ = Double.NEGATIVE_INFINITY;
+
+      EarlyStop(List<Future<Double>> futures) {
+         futures_ = futures;
+      }
+
+      boolean check() throws Exception {
+         while (checked_ < futures_.size() && futures_.get(checked_).isDone()) {
+            double score = futures_.get(checked_).get();
+            checked_++;
+            if (score > best_) {
+               best_ = score;
+               nrBelow_ = 0;
+            } else if (score < best_ - (1 - EARLY_STOP_FRACTION) * Math.abs(best_)) {
+               nrBelow_++;
+            } else {
+               nrBelow_ = 0;
+            }
+         }
+         return nrBelow_ >= EARLY_STOP_COUNT;
+      }
+   }
+
+   /**
+    * Scores an image, in the background
+    */
+   private class ScoreTask implements Callable<Double> {
+      private final TaggedImage img_;
+      private final double z_;
+
+      ScoreTask(TaggedImage img, double z) {
+         img_ = img;
+         z_ = z;
+      }
+
+      public Double call() throws Exception {
+         long start = System.currentTimeMillis();
+         double score = computeScore(getMonochromePixels(img_),
+                 MDUtils.getWidth(img_.tags), MDUtils.getHeight(img_.tags));
+         long tC = System.currentTimeMillis() - start;
+         tScore_ += tC;
+         ReportingUtils.logMessage("OughtaFocus: image=" + imageCount_++
+                 + ", t=" + (System.currentTimeMillis() - startTimeMs_)
+                 + ", z=" + TextUtils.FMT2.format(z_)
+                 + ", score=" + TextUtils.FMT2.format(score)
+                 + ", Tc=" + tC);
+         return score;
+      }
+   }
+
+   /**
+    * Snaps an image at the current position (or takes the last one from
+    * the running live mode), and displays it if requested
+    */
+   private TaggedImage acquireImage() throws Exception {
+      CMMCore core = app_.getMMCore();
+      if (liveModeOn_) {
+         return core.getLastTaggedImage();
+      }
+      core.waitForDevice(core.getCameraDevice());
+      core.snapImage();
+      TaggedImage img = core.getTaggedImage();
+      showImage(img);
+      return img;
+   }
+
+   /**
+    * Displays an image of a sweep if requested
+    */
+   private void showImage(final TaggedImage img) {
+      if (show.contentEquals("Yes")) {
+         SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+               app_.displayImage(img);
+            }
+         });
+      }
+   }
+
    private void setZPosition(double z) throws Exception {
       CMMCore core = app_.getMMCore();
       String focusDevice = core.getFocusDevice();
@@ -253,9 +503,12 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
             }
          }
          long tI = System.currentTimeMillis() - start - tZ;
-         ImageProcessor proc = makeMonochromeProcessor(core, getMonochromePixels(img));
-         double score = computeScore(proc);
+         double score = computeScore(getMonochromePixels(img), 
+                 MDUtils.getWidth(img.tags), MDUtils.getHeight(img.tags));
          long tC = System.currentTimeMillis() - start - tZ - tI;
+         tMove_ += tZ;
+         tAcquire_ += tI;
+         tScore_ += tC;
          ReportingUtils.logMessage("OughtaFocus: image=" + imageCount_++
                  + ", t=" + (System.currentTimeMillis() - startTimeMs_)
                  + ", z=" + TextUtils.FMT2.format(z)
@@ -291,8 +544,8 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          if (show.contentEquals("Yes")) {
             app_.displayImage(img);
          }
-         ImageProcessor proc = ImageUtils.makeProcessor(core, img);
-         score = computeScore(proc);
+         score = computeScore(getMonochromePixels(img), 
+                 MDUtils.getWidth(img.tags), MDUtils.getHeight(img.tags));
          ReportingUtils.logMessage("OughtaFocus: z=" + TextUtils.FMT2.format(z)
                  + ", score=" + TextUtils.FMT2.format(score));
       } catch (Exception e) {
@@ -305,142 +558,8 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       throw new UnsupportedOperationException("Not supported yet.");
    }
 
-   private double computeEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.findEdges();
-      double meanEdge = proc.getStatistics().mean;
-
-      return meanEdge / meanIntensity;
-   }
-
-   private double computeSharpEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.sharpen();
-      proc1.findEdges();
-      double meanEdge = proc.getStatistics().mean;
-
-      return meanEdge / meanIntensity;
-   }
-
-   private double computeMean(ImageProcessor proc) {
-      return proc.getStatistics().mean;
-   }
-
-   private double computeNormalizedStdDev(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return stats.stdDev / stats.mean;
-   }
-
-   private double computeNormalizedVariance(ImageProcessor proc) {
-      ImageStatistics stats = proc.getStatistics();
-      return (stats.stdDev * stats.stdDev) / stats.mean;
-   }
-
-   
-   // this is NOT a traditional Laplace filter; the "center" weight is
-   // actually the bottom-center cell of the 3x3 matrix.  AFAICT it's a
-   // typo in the source paper, but works better than the traditional
-   // Laplace filter.
-   //
-   // Redondo R, Bueno G, Valdiviezo J et al.  "Autofocus evaluation for
-   // brightfield microscopy pathology", J Biomed Opt 17(3) 036008 (2012)
-   //
-   // from
-   //
-   // Russel M, Douglas T.  "Evaluation of autofocus algorithms for
-   // tuberculosis microscopy". Proc 29th International Conference of the
-   // IEEE EMBS, Lyon, 3489-3492 (22-26 Aug 2007)
-   private double computeRedondo(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 1; j < h - 1; ++j) {
-            double p = proc.getPixel(i - 1, j)
-                    + proc.getPixel(i + 1, j)
-                    + proc.getPixel(i, j - 1)
-                    + proc.getPixel(i, j + 1)
-                    - 4 * (proc.getPixel(i - 1, j));
-            sum += (p * p);
-         }
-      }
-
-      return sum;
-   }
-
-   // Volath's 1D autocorrelation
-   // Volath  D., "The influence of the scene parameters and of noise on
-   // the behavior of automatic focusing algorithms,"
-   // J. Microsc. 151, (2), 133 –146 (1988).
-   private double computeVolath(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum1 = 0.0;
-      double sum2 = 0.0;
-
-      for (int i = 1; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum1 += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      for (int i = 0; i < w - 2; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum2 += proc.getPixel(i, j) * proc.getPixel(i + 2, j);
-         }
-      }
-
-      return (sum1 - sum2);
-   }
-
-   // Volath 5 - smooths out high-frequency (suppresses noise)
-   // Volath  D., "The influence of the scene parameters and of noise on
-   // the behavior of automatic focusing algorithms,"
-   // J. Microsc. 151, (2), 133 –146 (1988).
-   private double computeVolath5(ImageProcessor proc) {
-      int h = proc.getHeight();
-      int w = proc.getWidth();
-      double sum = 0.0;
-
-      for (int i = 0; i < w - 1; ++i) {
-         for (int j = 0; j < h; ++j) {
-            sum += proc.getPixel(i, j) * proc.getPixel(i + 1, j);
-         }
-      }
-
-      ImageStatistics stats = proc.getStatistics();
-
-      sum -= ((w - 1) * h * stats.mean * stats.mean);
-      return sum;
-   }
-
-   private double computeScore(ImageProcessor proc) {
-      if (scoringMethod.contentEquals("Mean")) {
-         return computeMean(proc);
-      } else if (scoringMethod.contentEquals("StdDev")) {
-         return computeNormalizedStdDev(proc);
-      } else if (scoringMethod.contentEquals("NormalizedVariance")) {
-         return computeNormalizedVariance(proc);
-      } else if (scoringMethod.contentEquals("Edges")) {
-         return computeEdges(proc);
-      } else if (scoringMethod.contentEquals("SharpEdges")) {
-         return computeSharpEdges(proc);
-      } else if (scoringMethod.contentEquals("Redondo")) {
-         return computeRedondo(proc);
-      } else if (scoringMethod.contentEquals("Volath")) {
-         return computeVolath(proc);
-      } else if (scoringMethod.contentEquals("Volath5")) {
-         return computeVolath5(proc);
-      } else {
-         return 0;
-      }
+   private double computeScore(Object pixels, int width, int height) {
+      return FocusMetrics.score(scoringMethod, pixels, width, height, null);
    }
 
    public void setApp(ScriptInterface app) {
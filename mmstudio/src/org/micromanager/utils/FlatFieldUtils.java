@@ -0,0 +1,144 @@
+package org.micromanager.utils;
+
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Flat-field correction and background (dark frame) subtraction on primitive
+ * pixel arrays, used by the image processor plugins.
+ *
+ * Flat fields are stored as gain maps (the factor each pixel is multiplied
+ * with), backgrounds as offset maps (the value subtracted from each pixel).
+ * Both corrections are done in a single pass over the image, split over
+ * bands of rows that are processed in parallel.
+ *
+ * @author nico
+ */
+public class FlatFieldUtils {
+   // images smaller than this are not worth splitting over threads
+   private static final int MINPIXELSPERTHREAD = 256 * 1024;
+
+   /**
+    * Calculates the gain map for a flat-field image
+    *
+    * @param flatField - flat-field image
+    * @param normalize - when true, the gain map will be normalized so that
+    * the mean of the flat field maps to 1; otherwise the flat field is scaled
+    * so that maxValue maps to 1
+    * @param maxValue - highest possible value in the flat field, only used
+    * when normalize is false
+    * @return gain map, one value per pixel
+    */
+   public static float[] gainMap(ImageProcessor flatField, boolean normalize,
+           float maxValue) {
+      float scale = maxValue;
+      if (normalize) {
+         ImageStatistics stats = ImageStatistics.getStatistics(flatField,
+                 ImageStatistics.MEAN, null);
+         scale = (float) stats.mean;
+      }
+      int length = flatField.getWidth() * flatField.getHeight();
+      float[] gain = new float[length];
+      for (int i = 0; i < length; i++) {
+         gain[i] = scale / flatField.getf(i);
+      }
+      return gain;
+   }
+
+   /**
+    * @param background - background (dark) image
+    * @return offset map, one value per pixel
+    */
+   public static float[] offsetMap(ImageProcessor background) {
+      int length = background.getWidth() * background.getHeight();
+      float[] offset = new float[length];
+      for (int i = 0; i < length; i++) {
+         offset[i] = background.getf(i);
+      }
+      return offset;
+   }
+
+   /**
+    * Subtracts the offset map (clipping at zero) and multiplies with the gain
+    * map, in one pass.
+    *
+    * @param src - byte[] or short[] pixels
+    * @param dest - array of the same type and size as src that will receive
+    * the result, can be src itself to correct in place
+    * @param gain - gain map, or null for no flat-field correction
+    * @param offset - offset map, or null for no background subtraction
+    * @param width - image width
+    * @param height - image height
+    * 
+    * Images are always corrected completely, also when the calling thread is
+    * interrupted, since a half corrected image can not be told from a good
+    * one.  The interrupt status is kept.
+    */
+   public static void correct(final Object src, final Object dest,
+           final float[] gain, final float[] offset, final int width,
+           int height) {
+      int nrThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+              width * height / MINPIXELSPERTHREAD);
+      if (nrThreads <= 1) {
+         correctRows(src, dest, gain, offset, width, 0, height);
+         return;
+      }
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nrThreads);
+      for (int t = 0; t < nrThreads; t++) {
+         final int startRow = height * t / nrThreads;
+         final int endRow = height * (t + 1) / nrThreads;
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               correctRows(src, dest, gain, offset, width, startRow, endRow);
+               return null;
+            }
+         });
+      }
+      try {
+         ThreadUtils.invokeAllUninterruptibly(tasks);
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+
+   private static void correctRows(Object src, Object dest, float[] gain,
+           float[] offset, int width, int startRow, int endRow) {
+      int start = startRow * width;
+      int end = endRow * width;
+      if (src instanceof byte[]) {
+         byte[] in = (byte[]) src;
+         byte[] out = (byte[]) dest;
+         for (int i = start; i < end; i++) {
+            float value = in[i] & 0xff;
+            if (offset != null) {
+               value = Math.max(0.0f, value - offset[i]);
+            }
+            if (gain != null) {
+               value *= gain[i];
+            }
+            out[i] = (byte) Math.min(255, (int) (value + 0.5f));
+         }
+      } else if (src instanceof short[]) {
+         short[] in = (short[]) src;
+         short[] out = (short[]) dest;
+         for (int i = start; i < end; i++) {
+            float value = in[i] & 0xffff;
+            if (offset != null) {
+               value = Math.max(0.0f, value - offset[i]);
+            }
+            if (gain != null) {
+               value *= gain[i];
+            }
+            out[i] = (short) Math.min(65535, (int) (value + 0.5f));
+         }
+      } else {
+         throw new IllegalArgumentException(
+                 "Only 8 and 16 bit images can be flatfield corrected");
+      }
+   }
+}
@@ -0,0 +1,386 @@
+package org.micromanager.utils;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Focus scores, shared by the autofocus plugins.
+ *
+ * All scores are calculated on the raw (8 or 16 bit) pixel arrays, within a
+ * region of interest.  The region is treated as an image of its own: 3x3
+ * filters replicate the pixels at its edges, as ImageJ does at the edges
+ * of an image.  Sums are accumulated in integers, and the work can be split
+ * over bands of rows that are processed in parallel.
+ *
+ * The time spent on each scoring method is recorded, so that methods can be
+ * compared by speed (see getTimingReport()).
+ *
+ * @author nico
+ */
+public class FocusMetrics {
+   // mean of the Sobel edge map, divided by the mean intensity
+   public static final String EDGES = "Edges";
+   // standard deviation, divided by the mean
+   public static final String STDDEV = "StdDev";
+   public static final String MEAN = "Mean";
+   // variance, divided by the mean
+   public static final String NORMALIZEDVARIANCE = "NormalizedVariance";
+   // as EDGES, after sharpening the image
+   public static final String SHARPEDGES = "SharpEdges";
+   // sum of squares of a Laplace-like filter (Redondo et al., 2012)
+   public static final String REDONDO = "Redondo";
+   // Volath's 1D autocorrelation (Volath, 1988)
+   public static final String VOLATH = "Volath";
+   // Volath's autocorrelation with suppression of high frequencies
+   public static final String VOLATH5 = "Volath5";
+   // sum of squares of a diagonal gradient of the median-filtered image
+   public static final String MEDIANGRADIENT = "MedianGradient";
+   // sum of the Sobel edge map of the median-filtered image
+   public static final String MEDIANEDGES = "MedianEdges";
+   public static final String[] METHODS = {EDGES, STDDEV, MEAN,
+      NORMALIZEDVARIANCE, SHARPEDGES, REDONDO, VOLATH, VOLATH5,
+      MEDIANGRADIENT, MEDIANEDGES};
+
+   // bands with fewer rows are not worth handing to a thread
+   private static final int MINROWSPERTHREAD = 64;
+   private static final int SOBEL = 0;
+   private static final int SHARPEN = 1;
+   private static final int MEDIAN = 2;
+   private static final int GRADIENT = 3;
+
+   // method name -> {number of calls, total time in ns}
+   private static final Map<String, long[]> timing_ =
+           new LinkedHashMap<String, long[]>();
+
+   /**
+    * Work on the rows start (inclusive) to end (exclusive), returning sums
+    */
+   private interface RowTask {
+      long[] run(int start, int end);
+   }
+
+   /**
+    * Calculates a focus score
+    *
+    * @param method - one of METHODS
+    * @param pixels - byte[] or short[] pixels of the image
+    * @param width - width of the image
+    * @param height - height of the image
+    * @param roi - region used to calculate the score, null for the whole image
+    * @param nrThreads - maximum number of threads to use
+    * @return focus score, higher is better focused, 0 for an unknown method
+    */
+   public static double score(String method, Object pixels, int width,
+           int height, Rectangle roi, int nrThreads) {
+      long start = System.nanoTime();
+      Rectangle r = new Rectangle(0, 0, width, height);
+      if (roi != null) {
+         r = r.intersection(roi);
+      }
+      final int w = Math.max(r.width, 0);
+      final int h = Math.max(r.height, 0);
+      final int[] img = toInt(pixels, width, r);
+      final int max = pixels instanceof byte[] ? 255 : 65535;
+      double result;
+
+      if (method.equals(MEAN)) {
+         result = mean(img, nrThreads);
+      } else if (method.equals(STDDEV) || method.equals(NORMALIZEDVARIANCE)) {
+         long[] sums = reduce(h, nrThreads, new RowTask() {
+            @Override
+            public long[] run(int start, int end) {
+               long sum = 0;
+               long sumSq = 0;
+               for (int i = start * w; i < end * w; i++) {
+                  sum += img[i];
+                  sumSq += (long) img[i] * img[i];
+               }
+               return new long[] {sum, sumSq};
+            }
+         });
+         double n = img.length;
+         double mean = sums[0] / n;
+         // sample variance, as reported by ImageJ
+         double variance = (sums[1] - sums[0] * mean) / (n - 1);
+         if (method.equals(STDDEV)) {
+            result = Math.sqrt(variance) / mean;
+         } else {
+            result = variance / mean;
+         }
+      } else if (method.equals(EDGES)) {
+         int[] edges = filter(img, w, h, SOBEL, max, nrThreads);
+         result = mean(edges, nrThreads) / mean(img, nrThreads);
+      } else if (method.equals(SHARPEDGES)) {
+         int[] sharpened = filter(img, w, h, SHARPEN, max, nrThreads);
+         int[] edges = filter(sharpened, w, h, SOBEL, max, nrThreads);
+         result = mean(edges, nrThreads) / mean(img, nrThreads);
+      } else if (method.equals(REDONDO)) {
+         // the "center" weight is at the left of the center pixel.  This
+         // looks like a typo in the paper, but works better than the
+         // traditional Laplace filter
+         result = reduce(h, nrThreads, new RowTask() {
+            @Override
+            public long[] run(int start, int end) {
+               long sum = 0;
+               for (int y = Math.max(start, 1); y < Math.min(end, h - 1); y++) {
+                  for (int i = y * w + 1; i < y * w + w - 1; i++) {
+                     long p = img[i + 1] + img[i - w] + img[i + w]
+                             - 3 * img[i - 1];
+                     sum += p * p;
+                  }
+               }
+               return new long[] {sum};
+            }
+         })[0];
+      } else if (method.equals(VOLATH)) {
+         result = reduce(h, nrThreads, new RowTask() {
+            @Override
+            public long[] run(int start, int end) {
+               long sum = 0;
+               for (int y = start; y < end; y++) {
+                  for (int i = y * w + 1; i < y * w + w - 1; i++) {
+                     sum += (long) img[i] * img[i + 1];
+                  }
+                  for (int i = y * w; i < y * w + w - 2; i++) {
+                     sum -= (long) img[i] * img[i + 2];
+                  }
+               }
+               return new long[] {sum};
+            }
+         })[0];
+      } else if (method.equals(VOLATH5)) {
+         long sum = reduce(h, nrThreads, new RowTask() {
+            @Override
+            public long[] run(int start, int end) {
+               long sum = 0;
+               for (int y = start; y < end; y++) {
+                  for (int i = y * w; i < y * w + w - 1; i++) {
+                     sum += (long) img[i] * img[i + 1];
+                  }
+               }
+               return new long[] {sum};
+            }
+         })[0];
+         double mean = mean(img, nrThreads);
+         result = sum - (w - 1) * h * mean * mean;
+      } else if (method.equals(MEDIANGRADIENT)) {
+         int[] median = filter(img, w, h, MEDIAN, max, nrThreads);
+         final int[] gradient = filter(median, w, h, GRADIENT, max, nrThreads);
+         result = reduce(h, nrThreads, new RowTask() {
+            @Override
+            public long[] run(int start, int end) {
+               long sum = 0;
+               for (int i = start * w; i < end * w; i++) {
+                  sum += (long) gradient[i] * gradient[i];
+               }
+               return new long[] {sum};
+            }
+         })[0];
+      } else if (method.equals(MEDIANEDGES)) {
+         int[] median = filter(img, w, h, MEDIAN, max, nrThreads);
+         int[] edges = filter(median, w, h, SOBEL, max, nrThreads);
+         result = sum(edges, nrThreads);
+      } else {
+         // unknown methods score every image the same, as OughtaFocus did
+         return 0;
+      }
+
+      synchronized (timing_) {
+         long[] t = timing_.get(method);
+         if (t == null) {
+            t = new long[2];
+            timing_.put(method, t);
+         }
+         t[0]++;
+         t[1] += System.nanoTime() - start;
+      }
+      return result;
+   }
+
+   /**
+    * Calculates a focus score, using all processors
+    */
+   public static double score(String method, Object pixels, int width,
+           int height, Rectangle roi) {
+      return score(method, pixels, width, height, roi,
+              Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @return average time (in ms) per call for each scoring method that was
+    * used since the last reset
+    */
+   public static String getTimingReport() {
+      StringBuilder sb = new StringBuilder();
+      synchronized (timing_) {
+         for (Map.Entry<String, long[]> entry : timing_.entrySet()) {
+            if (sb.length() > 0) {
+               sb.append(", ");
+            }
+            sb.append(entry.getKey()).append("=").append(
+                    TextUtils.FMT2.format(entry.getValue()[1] / 1.0e6
+                    / entry.getValue()[0])).append(" ms");
+         }
+      }
+      return sb.toString();
+   }
+
+   public static void resetTiming() {
+      synchronized (timing_) {
+         timing_.clear();
+      }
+   }
+
+   /**
+    * Copies the region of interest into an int array
+    */
+   private static int[] toInt(Object pixels, int width, Rectangle r) {
+      int[] result = new int[Math.max(r.width, 0) * Math.max(r.height, 0)];
+      int i = 0;
+      if (pixels instanceof byte[]) {
+         byte[] pix = (byte[]) pixels;
+         for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = y * width + r.x; x < y * width + r.x + r.width; x++) {
+               result[i++] = pix[x] & 0xff;
+            }
+         }
+      } else if (pixels instanceof short[]) {
+         short[] pix = (short[]) pixels;
+         for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = y * width + r.x; x < y * width + r.x + r.width; x++) {
+               result[i++] = pix[x] & 0xffff;
+            }
+         }
+      } else {
+         throw new IllegalArgumentException(
+                 "Focus scores need 8 or 16 bit grayscale images");
+      }
+      return result;
+   }
+
+   private static long sum(final int[] img, int nrThreads) {
+      return reduce(img.length, nrThreads, new RowTask() {
+         @Override
+         public long[] run(int start, int end) {
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+               sum += img[i];
+            }
+            return new long[] {sum};
+         }
+      })[0];
+   }
+
+   private static double mean(int[] img, int nrThreads) {
+      return (double) sum(img, nrThreads) / img.length;
+   }
+
+   /**
+    * 3x3 filter, replicating the pixels at the edges of the image and
+    * clipping the results to the range 0 - max
+    */
+   private static int[] filter(final int[] src, final int w, final int h,
+           final int type, final int max, int nrThreads) {
+      final int[] dest = new int[src.length];
+      reduce(h, nrThreads, new RowTask() {
+         @Override
+         public long[] run(int start, int end) {
+            int[] window = new int[9];
+            for (int y = start; y < end; y++) {
+               int up = Math.max(y - 1, 0) * w;
+               int row = y * w;
+               int down = Math.min(y + 1, h - 1) * w;
+               for (int x = 0; x < w; x++) {
+                  int left = Math.max(x - 1, 0);
+                  int right = Math.min(x + 1, w - 1);
+                  int p1 = src[up + left], p2 = src[up + x], p3 = src[up + right];
+                  int p4 = src[row + left], p5 = src[row + x], p6 = src[row + right];
+                  int p7 = src[down + left], p8 = src[down + x], p9 = src[down + right];
+                  int value;
+                  if (type == SOBEL) {
+                     double sum1 = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
+                     double sum2 = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
+                     value = (int) (Math.sqrt(sum1 * sum1 + sum2 * sum2) + 0.5);
+                  } else if (type == SHARPEN) {
+                     int sum = 12 * p5 - p1 - p2 - p3 - p4 - p6 - p7 - p8 - p9;
+                     value = (sum + 2) / 4;
+                  } else if (type == GRADIENT) {
+                     value = 2 * p1 + p2 + p4 - p6 - p8 - 2 * p9;
+                  } else {
+                     window[0] = p1; window[1] = p2; window[2] = p3;
+                     window[3] = p4; window[4] = p5; window[5] = p6;
+                     window[6] = p7; window[7] = p8; window[8] = p9;
+                     value = median9(window);
+                  }
+                  dest[row + x] = value < 0 ? 0 : (value > max ? max : value);
+               }
+            }
+            return new long[0];
+         }
+      });
+      return dest;
+   }
+
+   /**
+    * Median of 9 values by partial selection sort (the array is modified)
+    */
+   private static int median9(int[] v) {
+      for (int i = 0; i <= 4; i++) {
+         int min = i;
+         for (int j = i + 1; j < 9; j++) {
+            if (v[j] < v[min]) {
+               min = j;
+            }
+         }
+         int t = v[i];
+         v[i] = v[min];
+         v[min] = t;
+      }
+      return v[4];
+   }
+
+   /**
+    * Splits the range 0 to n in bands, runs the task on each of them (in
+    * parallel when worthwhile), and adds up their results
+    */
+   private static long[] reduce(int n, int nrThreads, final RowTask task) {
+      int nrBands = Math.min(nrThreads, n / MINROWSPERTHREAD);
+      if (nrBands <= 1) {
+         return task.run(0, n);
+      }
+      List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>(nrBands);
+      for (int b = 0; b < nrBands; b++) {
+         final int start = (int) ((long) n * b / nrBands);
+         final int end = (int) ((long) n * (b + 1) / nrBands);
+         tasks.add(new Callable<long[]>() {
+            @Override
+            public long[] call() {
+               return task.run(start, end);
+            }
+         });
+      }
+      long[] result = null;
+      try {
+         for (long[] partial : ThreadUtils.invokeAll(tasks)) {
+            if (result == null) {
+               result = partial;
+            } else {
+               for (int i = 0; i < result.length; i++) {
+                  result[i] += partial[i];
+               }
+            }
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return task.run(0, n);
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
+      return result;
+   }
+}
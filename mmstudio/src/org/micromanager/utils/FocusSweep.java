@@ -0,0 +1,231 @@
+package org.micromanager.utils;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import mmcorej.CMMCore;
+import mmcorej.DoubleVector;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.TaggedImageQueue;
+
+/**
+ * Z sweeps for the autofocus plugins.
+ *
+ * A sweep acquires one image at each of a list of focus positions, and hands
+ * the images to an ImageHandler in order.  Sweeps are either done with
+ * discrete moves and snaps, or streamed: the positions are loaded in the
+ * focus stage as a hardware sequence, and the images are acquired with a
+ * sequence acquisition, so that the sweep runs at camera speed.
+ *
+ * Waits use Thread.sleep, core.waitForDevice or a blocking queue, never busy
+ * loops.
+ *
+ * @author nico
+ */
+public class FocusSweep {
+
+   /**
+    * Receives the images of a sweep
+    */
+   public interface ImageHandler {
+      /**
+       * @param index - index of the position in the sweep
+       * @param z - position of the focus stage
+       * @param image - image, with its metadata
+       * @return false to stop the sweep
+       */
+      boolean handle(int index, double z, TaggedImage image) throws Exception;
+   }
+
+   /**
+    * Waits until the focus stage is no longer busy, then for the given
+    * settling time
+    *
+    * @param core - MMCore
+    * @param settleMs - extra time to wait, in ms
+    */
+   public static void waitForFocus(CMMCore core, long settleMs) throws Exception {
+      core.waitForDevice(core.getFocusDevice());
+      if (settleMs > 0) {
+         Thread.sleep(settleMs);
+      }
+   }
+
+   /**
+    * @return true when the focus stage can run a hardware sequence of
+    * nrPositions positions
+    */
+   public static boolean canStream(CMMCore core, int nrPositions) {
+      try {
+         String focus = core.getFocusDevice();
+         return nrPositions > 1 && core.isStageSequenceable(focus)
+                 && nrPositions <= core.getStageSequenceMaxLength(focus);
+      } catch (Exception ex) {
+         return false;
+      }
+   }
+
+   /**
+    * Acquires images at the given positions.  The focus stage is left at
+    * an undefined position.
+    *
+    * @param core - MMCore
+    * @param zs - focus positions, in order
+    * @param stream - stream the sweep when the stage can be sequenced,
+    * otherwise move and snap at each position
+    * @param handler - receives the images
+    * @return number of images handed to the handler
+    */
+   public static int run(CMMCore core, double[] zs, boolean stream,
+           ImageHandler handler) throws Exception {
+      if (stream && canStream(core, zs.length)) {
+         return runStreamed(core, zs, handler);
+      }
+      if (stream) {
+         ReportingUtils.logMessage("Focus stage can not run a sequence of "
+                 + zs.length + " positions, snapping images instead");
+      }
+      String focus = core.getFocusDevice();
+      for (int i = 0; i < zs.length; i++) {
+         core.setPosition(focus, zs[i]);
+         core.waitForDevice(focus);
+         double z = core.getPosition(focus);
+         core.snapImage();
+         if (!handler.handle(i, z, core.getTaggedImage())) {
+            return i + 1;
+         }
+      }
+      return zs.length;
+   }
+
+   /**
+    * Acquires images at the given positions with a hardware sequence of the
+    * focus stage and a sequence acquisition.  Callers check canStream first.
+    * A reader thread moves the images from the circular buffer to a queue,
+    * on which the calling thread waits, so that the handler runs while the
+    * next images arrive.
+    *
+    * @param core - MMCore
+    * @param zs - focus positions, in order
+    * @param handler - receives the images
+    * @return number of images handed to the handler
+    * @throws Exception also when no image arrives within 10 s plus the
+    * exposure time
+    */
+   public static int runStreamed(CMMCore core, double[] zs,
+           ImageHandler handler) throws Exception {
+      String focus = core.getFocusDevice();
+      core.setPosition(focus, zs[0]);
+      core.waitForDevice(focus);
+      DoubleVector sequence = new DoubleVector();
+      for (double z : zs) {
+         sequence.add(z);
+      }
+      core.loadStageSequence(focus, sequence);
+      core.startStageSequence(focus);
+      long timeoutMs = 10000 + (long) core.getExposure();
+      TaggedImageQueue images = new TaggedImageQueue();
+      FutureTask<Object> reader = null;
+      int count = 0;
+      try {
+         core.startSequenceAcquisition(zs.length, 0, true);
+         reader = new FutureTask<Object>(new SequenceReader(core, zs.length,
+                 images));
+         new Thread(reader, "Focus sweep reader").start();
+         while (count < zs.length) {
+            TaggedImage image = images.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (image == null) {
+               throw new Exception(
+                       "Camera did not send image within a reasonable time");
+            }
+            if (TaggedImageQueue.isPoison(image)) {
+               break;
+            }
+            if (!handler.handle(count, zs[count], image)) {
+               return count + 1;
+            }
+            count++;
+         }
+         try {
+            reader.get();
+         } catch (ExecutionException ex) {
+            throw (Exception) ex.getCause();
+         }
+      } finally {
+         if (reader != null) {
+            reader.cancel(true);
+            awaitReader(reader);
+         }
+         if (core.isSequenceRunning()) {
+            core.stopSequenceAcquisition();
+         }
+         core.stopStageSequence(focus);
+      }
+      return count;
+   }
+
+   /**
+    * Waits for the reader to stop using the core, also when the calling
+    * thread is interrupted, whose interrupt status is then restored
+    */
+   private static void awaitReader(FutureTask<Object> reader) {
+      boolean interrupted = false;
+      while (true) {
+         try {
+            reader.get();
+            break;
+         } catch (InterruptedException ex) {
+            interrupted = true;
+         } catch (Exception ex) {
+            // cancelled or failed, failures were handled by the sweep
+            break;
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Moves the images of a running sequence acquisition from the circular
+    * buffer to a queue, followed by TaggedImageQueue.POISON.  MMCore can not
+    * wait for images, so the reader sleeps for half an exposure whenever the
+    * circular buffer is empty.
+    */
+   private static class SequenceReader implements Callable<Object> {
+      private final CMMCore core_;
+      private final int nrImages_;
+      private final BlockingQueue<TaggedImage> images_;
+
+      SequenceReader(CMMCore core, int nrImages,
+              BlockingQueue<TaggedImage> images) {
+         core_ = core;
+         nrImages_ = nrImages;
+         images_ = images;
+      }
+
+      @Override
+      public Object call() throws Exception {
+         try {
+            long waitMs = Math.max(1, (long) (core_.getExposure() / 2));
+            int count = 0;
+            while (count < nrImages_) {
+               if (core_.getRemainingImageCount() > 0) {
+                  images_.put(core_.popNextTaggedImage());
+                  count++;
+               } else if (core_.isSequenceRunning()) {
+                  Thread.sleep(waitMs);
+               } else if (core_.getRemainingImageCount() == 0) {
+                  break;
+               }
+            }
+         } finally {
+            // the queue is unbounded, so this does not block
+            images_.add(TaggedImageQueue.POISON);
+         }
+         return null;
+      }
+   }
+}
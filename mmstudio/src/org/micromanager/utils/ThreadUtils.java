@@ -0,0 +1,225 @@
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One pool of worker threads for the parallel image processing of
+ * Micro-Manager and its plugins, so that they do not each keep a pool with a
+ * thread per processor.
+ *
+ * Work is split over the pool with invokeAll, or with parallelFor for loops
+ * over a range, both of which can also be called from tasks that run on the
+ * pool.  Work that has to be done in order, off the calling thread, goes to
+ * a serial executor, which runs its tasks one at a time on the pool.
+ *
+ * @author nico
+ */
+public class ThreadUtils {
+   private static ExecutorService executor_;
+
+   /**
+    * Returns the pool of daemon threads, one per processor
+    * @return executor
+    */
+   public static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(),
+                 new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "Micro-Manager worker");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return executor_;
+   }
+
+   /**
+    * Runs the tasks on the pool and waits for all of them to finish.  The
+    * calling thread runs the tasks that no worker has started yet, so that
+    * calls from tasks on the pool can not deadlock when all workers wait.
+    * All tasks are started before this method waits for any of them, so a
+    * failing task does not stop the others, and tasks that are running on
+    * the pool when the calling thread is interrupted run to their end.
+    *
+    * @param tasks - work to be done
+    * @return results of the tasks, in order
+    * @throws InterruptedException when the calling thread is interrupted
+    * @throws ExecutionException when a task threw, with the exception of the
+    *    first task (in order) that failed as its cause
+    */
+   public static <T> List<T> invokeAll(Collection<? extends Callable<T>> tasks)
+           throws InterruptedException, ExecutionException {
+      List<FutureTask<T>> futures = start(tasks);
+      List<T> results = new ArrayList<T>(futures.size());
+      for (FutureTask<T> future : futures) {
+         results.add(future.get());
+      }
+      return results;
+   }
+
+   /**
+    * Runs the tasks like invokeAll, but always lets all of them finish, also
+    * when the calling thread is interrupted; the interrupt status is then
+    * restored on return.  For tasks that write their results in place, where
+    * giving up half way would leave data that can not be told from good data.
+    *
+    * @param tasks - work to be done
+    * @return results of the tasks, in order
+    * @throws ExecutionException when a task threw, with the exception of the
+    *    first task (in order) that failed as its cause
+    */
+   public static <T> List<T> invokeAllUninterruptibly(
+           Collection<? extends Callable<T>> tasks) throws ExecutionException {
+      List<FutureTask<T>> futures = start(tasks);
+      boolean interrupted = false;
+      try {
+         List<T> results = new ArrayList<T>(futures.size());
+         for (FutureTask<T> future : futures) {
+            while (true) {
+               try {
+                  results.add(future.get());
+                  break;
+               } catch (InterruptedException ex) {
+                  interrupted = true;
+               }
+            }
+         }
+         return results;
+      } finally {
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Hands all but the first task to the pool, and runs those that no worker
+    * took yet on the calling thread
+    */
+   private static <T> List<FutureTask<T>> start(
+           Collection<? extends Callable<T>> tasks) {
+      List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+      for (Callable<T> task : tasks) {
+         futures.add(new FutureTask<T>(task));
+      }
+      ExecutorService executor = getExecutor();
+      for (int i = 1; i < futures.size(); i++) {
+         executor.execute(futures.get(i));
+      }
+      // FutureTask.run does nothing for tasks that were started elsewhere
+      for (FutureTask<T> future : futures) {
+         future.run();
+      }
+      return futures;
+   }
+
+   /**
+    * Work on the range start (inclusive) to end (exclusive)
+    */
+   public interface RangeTask {
+      public void run(int start, int end);
+   }
+
+   /**
+    * Splits the range 0 to n into contiguous chunks, one per processor, and 
+    * runs these with invokeAll.  Runs on the calling thread when n is 
+    * smaller than twice minChunk, or when there is only one processor.
+    * Meant for loops over arrays, whose 
+    * callers have no use for the checked exceptions of invokeAll.
+    *
+    * @param n - size of the range
+    * @param minChunk - smallest range worth handing to a thread
+    * @param task - work to be done
+    * @throws RuntimeException when the calling thread is interrupted while
+    *    it waits for the pool, with the interrupt status set again.  Unchecked exceptions
+    *    and errors thrown by the task are re-thrown as they are.
+    */
+   public static void parallelFor(int n, int minChunk, final RangeTask task) {
+      int nrChunks = Math.min(Runtime.getRuntime().availableProcessors(),
+              n / Math.max(1, minChunk));
+      if (nrChunks <= 1) {
+         task.run(0, n);
+         return;
+      }
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nrChunks);
+      for (int c = 0; c < nrChunks; c++) {
+         final int start = (int) ((long) n * c / nrChunks);
+         final int end = (int) ((long) n * (c + 1) / nrChunks);
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               task.run(start, end);
+               return null;
+            }
+         });
+      }
+      try {
+         invokeAll(tasks);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while waiting for tasks", ex);
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof Error) {
+            throw (Error) ex.getCause();
+         }
+         if (ex.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ex.getCause();
+         }
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+
+   /**
+    * Returns an executor that runs its tasks one at a time, in the order in
+    * which they were handed to it, on the pool.  Tasks should catch their
+    * own exceptions.
+    * @return executor
+    */
+   public static Executor newSerialExecutor() {
+      return new SerialExecutor();
+   }
+
+   private static class SerialExecutor implements Executor {
+      private final Queue<Runnable> tasks_ = new LinkedList<Runnable>();
+      private Runnable active_ = null;
+
+      @Override
+      public synchronized void execute(final Runnable task) {
+         tasks_.add(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  task.run();
+               } finally {
+                  scheduleNext();
+               }
+            }
+         });
+         if (active_ == null) {
+            scheduleNext();
+         }
+      }
+
+      private synchronized void scheduleNext() {
+         active_ = tasks_.poll();
+         if (active_ != null) {
+            getExecutor().execute(active_);
+         }
+      }
+   }
+}
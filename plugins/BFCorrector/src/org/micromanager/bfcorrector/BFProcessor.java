@@ -10,14 +10,11 @@
 package org.micromanager.bfcorrector;
 
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.FlatFieldUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -27,13 +24,12 @@ import org.micromanager.utils.ReportingUtils;
  * @author nico
  */
 class BFProcessor extends DataProcessor<TaggedImage> {
-   private ImagePlus flatField_;
-   private ImageStatistics flatFieldStats_;
    private int flatFieldWidth_;
    private int flatFieldHeight_;
-   private int flatFieldType_;
-   private float[] normalizedFlatField_;
-   private ImagePlus background_;
+   private float[] flatFieldGain_;
+   private int backgroundWidth_;
+   private int backgroundHeight_;
+   private float[] background_;
    
    
    /**
@@ -42,33 +38,26 @@ class BFProcessor extends DataProcessor<TaggedImage> {
     * 
     * @param flatField ImagePlus object representing the flatfield image 
     */
-   public void setFlatField(ImagePlus flatField) {
-      flatField_ = flatField;
-      
+   public synchronized void setFlatField(ImagePlus flatField) {
       if (flatField != null) {
-         flatFieldStats_ = ImageStatistics.getStatistics(flatField.getProcessor(),
-                 ImageStatistics.MEAN + ImageStatistics.MIN_MAX, null);
-         flatFieldWidth_ = flatField_.getWidth();
-         flatFieldHeight_ = flatField_.getHeight();
-         flatFieldType_ = flatField_.getType();
-         normalizedFlatField_ = new float[flatFieldWidth_ * flatFieldHeight_];
-         float mean = (float) flatFieldStats_.mean;
-         for (int x = 0; x < flatFieldWidth_; x++) {
-            for (int y = 0; y < flatFieldHeight_; y++) {
-               int index = (y * flatFieldWidth_) + x;
-               normalizedFlatField_[index] =  
-                       flatField.getProcessor().getf(index) / mean;
-            }
-         }
-         
+         flatFieldWidth_ = flatField.getWidth();
+         flatFieldHeight_ = flatField.getHeight();
+         flatFieldGain_ = FlatFieldUtils.gainMap(flatField.getProcessor(), 
+                 true, 1.0f);
       } else {
-         flatField_ = null;
+         flatFieldGain_ = null;
       }
       
    }
    
-   public void setBackground(ImagePlus background){
-      background_ = background;
+   public synchronized void setBackground(ImagePlus background){
+      if (background != null) {
+         backgroundWidth_ = background.getWidth();
+         backgroundHeight_ = background.getHeight();
+         background_ = FlatFieldUtils.offsetMap(background.getProcessor());
+      } else {
+         background_ = null;
+      }
    }
    
    
@@ -125,56 +114,33 @@ class BFProcessor extends DataProcessor<TaggedImage> {
          return nextImage;
       }
       
-      JSONObject newTags = nextImage.tags;
-      
-      // subtract background
-      if (background_ != null) {
-         ImageProcessor differenceProcessor =
-                 ImageUtils.subtractImageProcessors(ImageUtils.makeProcessor(nextImage),
-                 background_.getProcessor());        
-         nextImage = new TaggedImage(differenceProcessor.getPixels(), newTags);
-      }
-      
-      
-      if (flatField_ == null) {
-         return nextImage;
+      float[] flatFieldGain;
+      float[] background;
+      synchronized (this) {
+         flatFieldGain = flatFieldGain_;
+         background = background_;
+         // do not calculate if image size differs
+         if (flatFieldGain != null && 
+                 (width != flatFieldWidth_ || height != flatFieldHeight_)) {
+            ReportingUtils.logError("FlatField dimensions do not match image dimensions");
+            flatFieldGain = null;
+         }
+         if (background != null && 
+                 (width != backgroundWidth_ || height != backgroundHeight_)) {
+            ReportingUtils.logError("Background dimensions do not match image dimensions");
+            background = null;
+         }
       }
       
-      // do not calculate if image size differs
-      if (width != flatFieldWidth_ || height != flatFieldHeight_) {
-         ReportingUtils.logError("FlatField dimensions do not match image dimensions");
+      if (flatFieldGain == null && background == null) {
          return nextImage;
       }
       
+      // subtract background and flatfield in one pass, in place
+      FlatFieldUtils.correct(nextImage.pix, nextImage.pix, flatFieldGain,
+              background, width, height);
       
-      TaggedImage newImage = null;
-      
-      if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) nextImage.pix;
-         for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-               int index = (y * flatFieldWidth_) + x;
-               newPixels[index] = (byte) ( (float) oldPixels[index] 
-                       / normalizedFlatField_[index]);
-            }
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-      } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) nextImage.pix;
-         for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-               int index = (y * flatFieldWidth_) + x;
-               float oldPixel = (float)((int)(oldPixels[index]) & 0x0000ffff);
-               newPixels[index] = (short)(oldPixel / normalizedFlatField_[index] + 0.5f);
-            }
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-      }
-      
-
-      return newImage;
+      return nextImage;
    }
    
 }
@@ -27,12 +27,12 @@
  
 package edu.valelab.GaussianFit;
 
-import ags.utils.KdTree;
-import ags.utils.KdTree.Entry;
+import edu.valelab.GaussianFit.utils.PointKdTree;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +45,7 @@ import org.apache.commons.math.linear.QRDecompositionImpl;
 import org.apache.commons.math.linear.RealMatrix;
 import org.apache.commons.math.linear.RealVector;
 import org.apache.commons.math.linear.ArrayRealVector;
+import org.micromanager.utils.ThreadUtils;
 
 
 
@@ -60,6 +61,17 @@ public class CoordinateMapper {
    final public static int AFFINE = 2;
    final public static int NONRFEFLECTIVESIMILARITY = 3;
    
+   // number of control points used to transform a point with LWM
+   final private static int NRNEIGHBORS = 20;
+   
+   // flat copies of the LWM data, in kd-tree order
+   final private int[] xExp_;
+   final private int[] yExp_;
+   final private double[] cpR_;
+   final private double[] coeffX_;
+   final private double[] coeffY_;
+   private volatile LookupGrid grid_;
+   
    private int method_ = LWM;
 
    public static class PointMap extends HashMap<Point2D.Double, Point2D.Double> {}
@@ -94,32 +106,52 @@ public class CoordinateMapper {
       return exponents;
    }
 
-   public static class EnhancedKDTree extends KdTree.SqrEuclid {
+   /**
+    * Spatial index of the control points.  Wraps a packed kd-tree, and can
+    * be queried from multiple threads at once.
+    */
+   public static class EnhancedKDTree {
       final Point2D.Double[] points_;
+      final PointKdTree tree_;
 
-      
-      @SuppressWarnings("unchecked")
       EnhancedKDTree(Point2D.Double[] points) {
-         super(2, Integer.MAX_VALUE);
          points_ = points;
-         for (int i = 0; i < points.length; ++i) {
-            final Point2D.Double point = points[i];
-            addPoint(new double[]{point.x, point.y}, i);
-         }
+         tree_ = new PointKdTree(Arrays.asList(points));
+      }
+
+      /**
+       * Finds the indices (into the array used to build this tree) of the
+       * nearest points
+       * @param testPoint - query point
+       * @param size - number of points requested
+       * @param indices - receives the indices, nearest point first
+       * @param distances2 - receives the squared distances
+       * @return number of points found
+       */
+      public int nearestNeighbor(Point2D.Double testPoint, int size, 
+              int[] indices, double[] distances2) {
+         return tree_.kNearest(testPoint.x, testPoint.y, size, indices, distances2);
       }
 
+      /**
+       * @param ordered - when true, the list is sorted from the furthest to
+       * the nearest point
+       */
       public List<Point2D.Double> nearestNeighbor(Point2D.Double testPoint,
               int size, boolean ordered) {
-         @SuppressWarnings("unchecked")
-         List<Entry<Integer>> neighbors = super.nearestNeighbor(
-                 new double[] {testPoint.x, testPoint.y}, size, ordered);
-         List<Point2D.Double> neighborList = new ArrayList<Point2D.Double>();
-         for (int i=0; i<neighbors.size(); ++i) {
-            neighborList.add(points_[neighbors.get(i).value]);
+         int[] indices = new int[size];
+         int nr = nearestNeighbor(testPoint, size, indices, new double[size]);
+         List<Point2D.Double> neighborList = new ArrayList<Point2D.Double>(nr);
+         for (int i = nr - 1; i >= 0; i--) {
+            neighborList.add(points_[indices[i]]);
          }
          return neighborList;
       }
       
+      public Point2D.Double getPoint(int index) {
+         return points_[index];
+      }
+      
    }
 
    public static PointMap selectPoints(PointMap points, List<Point2D.Double> srcPoints) {
@@ -140,14 +172,27 @@ public class CoordinateMapper {
               int order, PointMap pointMap) {
          point = srcPoint;
          ExponentPairs exponentPairs = polynomialExponents(order);
-         List<Point2D.Double> neighbors = kdTree.nearestNeighbor(srcPoint,
-                 exponentPairs.size(), true);
-         Rnormalized = neighbors.get(0).distance(srcPoint);
+         int[] indices = new int[exponentPairs.size()];
+         double[] distances2 = new double[exponentPairs.size()];
+         int nr = kdTree.nearestNeighbor(srcPoint, exponentPairs.size(),
+                 indices, distances2);
+         List<Point2D.Double> neighbors = new ArrayList<Point2D.Double>(nr);
+         for (int i = 0; i < nr; i++) {
+            neighbors.add(kdTree.getPoint(indices[i]));
+         }
+         // radius of influence is the distance to the furthest neighbor
+         Rnormalized = Math.sqrt(distances2[nr - 1]);
          polynomialCoefficients = fitPolynomial(exponentPairs, selectPoints(pointMap, neighbors));
       }
    }
 
-   public static class ControlPoints extends HashMap<Point2D.Double, ControlPoint> {}
+   /**
+    * Control points, both by source point and in the order of the points
+    * of the kd-tree
+    */
+   public static class ControlPoints extends HashMap<Point2D.Double, ControlPoint> {
+      ControlPoint[] byIndex_;
+   }
 
    public static double[] powerTerms(double x, double y,
            final ExponentPairs exponentPairs) {
@@ -183,29 +228,48 @@ public class CoordinateMapper {
 
    public static double evaluatePolynomial(double x, double y, double[] coeffs,
            ExponentPairs exponentPairs) {
+      final double[] terms = powerTerms(x, y, exponentPairs);
       double result = 0;
       for (int i=0;i<coeffs.length;++i) {
-           result += coeffs[i] * powerTerms(x, y, exponentPairs)[i];
+           result += coeffs[i] * terms[i];
       }
       return result;
    }
 
-   public static ControlPoints createControlPoints(EnhancedKDTree kdTree, int order,
-           PointMap pointMap) {
+   /**
+    * Fits the local polynomials of all control points, in parallel
+    */
+   public static ControlPoints createControlPoints(final EnhancedKDTree kdTree, 
+           final int order, final PointMap pointMap) {
+      final ControlPoint[] byIndex = new ControlPoint[kdTree.points_.length];
+      ThreadUtils.parallelFor(byIndex.length, 16, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+               byIndex[i] = new ControlPoint(kdTree, kdTree.getPoint(i), 
+                       order, pointMap);
+            }
+         }
+      });
       final ControlPoints controlPointMap = new ControlPoints();
-      for (Point2D.Double srcPoint:pointMap.keySet()) {
-         controlPointMap.put(srcPoint, new ControlPoint(kdTree, srcPoint, order, pointMap));
+      for (ControlPoint controlPoint : byIndex) {
+         controlPointMap.put(controlPoint.point, controlPoint);
       }
+      controlPointMap.byIndex_ = byIndex;
       return controlPointMap;
    }
 
    public static Point2D.Double computeTransformation(EnhancedKDTree kdTree, Point2D.Double testPoint, ControlPoints controlPoints, ExponentPairs exponentPairs) {
-      final List<Point2D.Double> neighbors = kdTree.nearestNeighbor(testPoint, 20, false);
+      final int[] neighbors = new int[NRNEIGHBORS];
+      final int nr = kdTree.nearestNeighbor(testPoint, neighbors.length, 
+              neighbors, new double[neighbors.length]);
       double sumWeights = 0;
       double sumWeightedPolyX = 0;
       double sumWeightedPolyY = 0;
-      for (Point2D.Double srcPoint:neighbors) {
-         final ControlPoint controlPoint = controlPoints.get(srcPoint);
+      for (int i = 0; i < nr; i++) {
+         final ControlPoint controlPoint = controlPoints.byIndex_ != null ?
+                 controlPoints.byIndex_[neighbors[i]] : 
+                 controlPoints.get(kdTree.getPoint(neighbors[i]));
          final double r = testPoint.distance(controlPoint.point) / controlPoint.Rnormalized;
          final double weight = weightFunction(r);
          if (weight > 0) {
@@ -325,8 +389,14 @@ public class CoordinateMapper {
    /*** General methods ***/
    
    public Point2D.Double transform(Point2D.Double srcTestPoint) {
-      if (method_ == LWM)
-         return computeTransformation(kdTree_, srcTestPoint, controlPoints_, exponentPairs_);
+      if (method_ == LWM) {
+         double[] result = new double[2];
+         LookupGrid grid = grid_;
+         if (grid == null || !grid.interpolate(srcTestPoint.x, srcTestPoint.y, result)) {
+            lwm(srcTestPoint.x, srcTestPoint.y, new LWMScratch(), result);
+         }
+         return new Point2D.Double(result[0], result[1]);
+      }
       if (method_ == AFFINE ) {
          try {
             return (Point2D.Double) af_.transform(srcTestPoint, null);
@@ -348,6 +418,197 @@ public class CoordinateMapper {
       method_ = method;
    }
    
+   /**
+    * Transforms many points at once, in parallel.  
+    * 
+    * For LWM, the polynomial terms of each point are calculated once and 
+    * used for all neighboring control points, whose coefficients are read 
+    * from flat arrays.  When a lookup grid was created (see 
+    * createLookupGrid), points inside the grid are interpolated instead.
+    * 
+    * @param x - x coordinates of the source points
+    * @param y - y coordinates of the source points
+    * @param xOut - receives the transformed x coordinates (can be x)
+    * @param yOut - receives the transformed y coordinates (can be y)
+    */
+   public void transform(final double[] x, final double[] y, 
+           final double[] xOut, final double[] yOut) {
+      final int method = method_;
+      final LookupGrid grid = grid_;
+      ThreadUtils.parallelFor(x.length, 4096, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            if (method == AFFINE || method == NONRFEFLECTIVESIMILARITY) {
+               AffineTransform af = method == AFFINE ? af_ : rbAf_;
+               for (int i = start; i < end; i++) {
+                  double[] p = {x[i], y[i]};
+                  af.transform(p, 0, p, 0, 1);
+                  xOut[i] = p[0];
+                  yOut[i] = p[1];
+               }
+               return;
+            }
+            LWMScratch scratch = new LWMScratch();
+            double[] result = new double[2];
+            for (int i = start; i < end; i++) {
+               if (grid == null || !grid.interpolate(x[i], y[i], result)) {
+                  lwm(x[i], y[i], scratch, result);
+               }
+               xOut[i] = result[0];
+               yOut[i] = result[1];
+            }
+         }
+      });
+   }
+   
+   /**
+    * Evaluates the LWM transform on a regular grid (in parallel), after 
+    * which LWM transforms of points within the grid are approximated by 
+    * bilinear interpolation between the grid points.  
+    * The error depends on the spacing of the grid relative to the 
+    * density of control points.
+    * 
+    * @param minX - left edge of the area to cover
+    * @param minY - top edge of the area to cover
+    * @param maxX - right edge of the area to cover
+    * @param maxY - bottom edge of the area to cover
+    * @param spacing - distance between grid points
+    */
+   public void createLookupGrid(double minX, double minY, double maxX, 
+           double maxY, double spacing) {
+      final int nx = (int) Math.ceil((maxX - minX) / spacing) + 1;
+      final int ny = (int) Math.ceil((maxY - minY) / spacing) + 1;
+      final LookupGrid grid = new LookupGrid(minX, minY, spacing, nx, ny);
+      ThreadUtils.parallelFor(ny, 1, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            LWMScratch scratch = new LWMScratch();
+            double[] result = new double[2];
+            for (int j = start; j < end; j++) {
+               for (int i = 0; i < nx; i++) {
+                  lwm(grid.minX_ + i * grid.spacing_, grid.minY_ + j * grid.spacing_, 
+                          scratch, result);
+                  grid.x_[j * nx + i] = result[0];
+                  grid.y_[j * nx + i] = result[1];
+               }
+            }
+         }
+      });
+      grid_ = grid;
+   }
+   
+   /**
+    * Removes the lookup grid, LWM transforms will be exact again
+    */
+   public void clearLookupGrid() {
+      grid_ = null;
+   }
+   
+   /**
+    * Transformed coordinates at regularly spaced points
+    */
+   private static class LookupGrid {
+      final double minX_;
+      final double minY_;
+      final double spacing_;
+      final int nx_;
+      final int ny_;
+      final double[] x_;
+      final double[] y_;
+      
+      LookupGrid(double minX, double minY, double spacing, int nx, int ny) {
+         minX_ = minX;
+         minY_ = minY;
+         spacing_ = spacing;
+         nx_ = nx;
+         ny_ = ny;
+         x_ = new double[nx * ny];
+         y_ = new double[nx * ny];
+      }
+      
+      /**
+       * @return false when the point is outside of the grid, or any of the
+       * surrounding grid points could not be transformed
+       */
+      boolean interpolate(double x, double y, double[] result) {
+         double gx = (x - minX_) / spacing_;
+         double gy = (y - minY_) / spacing_;
+         if (!(gx >= 0 && gy >= 0 && gx <= nx_ - 1 && gy <= ny_ - 1)) {
+            return false;
+         }
+         int i = Math.min((int) gx, nx_ - 2);
+         int j = Math.min((int) gy, ny_ - 2);
+         if (i < 0 || j < 0) {
+            return false;
+         }
+         double fx = gx - i;
+         double fy = gy - j;
+         int index = j * nx_ + i;
+         result[0] = bilinear(x_, index, fx, fy);
+         result[1] = bilinear(y_, index, fx, fy);
+         return !Double.isNaN(result[0]) && !Double.isNaN(result[1]);
+      }
+      
+      private double bilinear(double[] v, int index, double fx, double fy) {
+         double top = v[index] + fx * (v[index + 1] - v[index]);
+         double bottom = v[index + nx_] + fx * (v[index + nx_ + 1] - v[index + nx_]);
+         return top + fy * (bottom - top);
+      }
+   }
+   
+   /**
+    * Per-thread buffers for the LWM kernel
+    */
+   private class LWMScratch {
+      final int[] neighbors = new int[NRNEIGHBORS];
+      final double[] distances2 = new double[NRNEIGHBORS];
+      final double[] terms = new double[xExp_.length];
+      final double[] xPow = new double[order_ + 1];
+      final double[] yPow = new double[order_ + 1];
+   }
+   
+   /**
+    * LWM transform of a single point, using the flat control point arrays.
+    * Returns NaN when the point is outside of the range of all its 
+    * neighboring control points.
+    */
+   private void lwm(double x, double y, LWMScratch s, double[] result) {
+      final int nrTerms = xExp_.length;
+      final int nr = kdTree_.tree_.kNearest(x, y, NRNEIGHBORS, s.neighbors, 
+              s.distances2);
+      // polynomial terms of this point, shared by all control points
+      s.xPow[0] = 1.0;
+      s.yPow[0] = 1.0;
+      for (int k = 1; k <= order_; k++) {
+         s.xPow[k] = s.xPow[k - 1] * x;
+         s.yPow[k] = s.yPow[k - 1] * y;
+      }
+      for (int t = 0; t < nrTerms; t++) {
+         s.terms[t] = s.xPow[xExp_[t]] * s.yPow[yExp_[t]];
+      }
+      double sumWeights = 0;
+      double sumWeightedPolyX = 0;
+      double sumWeightedPolyY = 0;
+      for (int n = 0; n < nr; n++) {
+         final int cp = s.neighbors[n];
+         final double weight = weightFunction(Math.sqrt(s.distances2[n]) / cpR_[cp]);
+         if (weight > 0) {
+            double polyX = 0;
+            double polyY = 0;
+            final int offset = cp * nrTerms;
+            for (int t = 0; t < nrTerms; t++) {
+               polyX += coeffX_[offset + t] * s.terms[t];
+               polyY += coeffY_[offset + t] * s.terms[t];
+            }
+            sumWeights += weight;
+            sumWeightedPolyX += weight * polyX;
+            sumWeightedPolyY += weight * polyY;
+         }
+      }
+      result[0] = sumWeightedPolyX / sumWeights;
+      result[1] = sumWeightedPolyY / sumWeights;
+   }
+   
 
 
    /**
@@ -368,6 +629,27 @@ public class CoordinateMapper {
       kdTree_ = new EnhancedKDTree(keyArray);
       controlPoints_ = createControlPoints(kdTree_, order_, pointMap_);
       
+      // flat copies of exponents and control points for the batch transform
+      final int nrTerms = exponentPairs_.size();
+      xExp_ = new int[nrTerms];
+      yExp_ = new int[nrTerms];
+      for (int t = 0; t < nrTerms; t++) {
+         xExp_[t] = exponentPairs_.get(t).xExponent;
+         yExp_[t] = exponentPairs_.get(t).yExponent;
+      }
+      final int nrCps = controlPoints_.byIndex_.length;
+      cpR_ = new double[nrCps];
+      coeffX_ = new double[nrCps * nrTerms];
+      coeffY_ = new double[nrCps * nrTerms];
+      for (int cp = 0; cp < nrCps; cp++) {
+         ControlPoint controlPoint = controlPoints_.byIndex_[cp];
+         cpR_[cp] = controlPoint.Rnormalized;
+         System.arraycopy(controlPoint.polynomialCoefficients.polyX, 0, 
+                 coeffX_, cp * nrTerms, nrTerms);
+         System.arraycopy(controlPoint.polynomialCoefficients.polyY, 0, 
+                 coeffY_, cp * nrTerms, nrTerms);
+      }
+      
       // Set up Affine transform
       af_ = generateAffineTransformFromPointPairs(pointMap);
       
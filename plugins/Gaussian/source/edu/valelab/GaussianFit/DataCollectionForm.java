@@ -67,6 +67,7 @@ import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumnModel;
 import org.apache.commons.math.stat.StatUtils;
 import org.jfree.data.xy.XYSeries;
+import org.micromanager.utils.ThreadUtils;
 
 
 /**
@@ -137,10 +138,12 @@ public class DataCollectionForm extends javax.swing.JFrame {
    
    /**
     * Method to allow scripts to tune the jitter corrector
-    * @param jm 
+    * @param jm - 0: all groups in memory, 1: correlate with the first group,
+    *             2: redundant cross-correlation between each group
+    *             and the 8 groups before it
     */
    public void setJitterMethod(int jm) {
-      if (jm == 0 || jm == 1)
+      if (jm == 0 || jm == 1 || jm == 2)
          jitterMethod_ = jm;
    }
    /**
@@ -1889,18 +1892,21 @@ public class DataCollectionForm extends javax.swing.JFrame {
                   }
 
                   // Find matching points in the two ArrayLists
-                  Iterator it2 = gsCh1.iterator();
                   try {
                      NearestPoint2D np = new NearestPoint2D(xyPointsCh2,
                              NumberUtils.displayStringToDouble(pairsMaxDistanceField_.getText()));
 
-                     while (it2.hasNext()) {
-                        GaussianSpotData gs = (GaussianSpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           GsSpotPair pair = new GsSpotPair(gs, pCh1, pCh2);
-                           //spotPairs.add(pair);
+                     ArrayList<Point2D.Double> xyPointsCh1 = 
+                             new ArrayList<Point2D.Double>(gsCh1.size());
+                     for (GaussianSpotData gs : gsCh1) {
+                        xyPointsCh1.add(new Point2D.Double(gs.getXCenter(), gs.getYCenter()));
+                     }
+                     int[] matches = np.findKDWSE(xyPointsCh1);
+                     for (int m = 0; m < matches.length; m++) {
+                        if (matches[m] >= 0) {
+                           GsSpotPair pair = new GsSpotPair(gsCh1.get(m), 
+                                   xyPointsCh1.get(m), 
+                                   (Point2D.Double) xyPointsCh2.get(matches[m]).clone());
                            spotPairsByFrame.get(frame - 1).add(pair);
                         }
                      }
@@ -1921,28 +1927,43 @@ public class DataCollectionForm extends javax.swing.JFrame {
                   npsp.add(new NearestPointGsSpotPair(spotPairsByFrame.get(frame - 1), maxDistance));
                }
 
-               ArrayList<ArrayList<GsSpotPair>> tracks = new ArrayList<ArrayList<GsSpotPair>>();
-
-               Iterator<GsSpotPair> iSpotPairs = spotPairsByFrame.get(0).iterator();
-               int i = 0;
-               while (iSpotPairs.hasNext()) {
-                  ij.IJ.showProgress(i++, nrSpotPairsInFrame1);
-                  GsSpotPair spotPair = iSpotPairs.next();
-                  // for now, we only start tracks at frame number 1
-                  if (spotPair.getGSD().getFrame() == 1) {
-                     ArrayList<GsSpotPair> track = new ArrayList<GsSpotPair>();
-                     track.add(spotPair);
-                     int frame = 2;
-                     while (frame <= rowData_.get(row).nrFrames_) {
-
-                        GsSpotPair newSpotPair = npsp.get(frame - 1).findKDWSE(
-                                new Point2D.Double(spotPair.getfp().getX(), spotPair.getfp().getY()));
-                        if (newSpotPair != null) {
-                           spotPair = newSpotPair;
+               // tracks are independent of each other, build them in parallel
+               final List<GsSpotPair> startPairs = spotPairsByFrame.get(0);
+               final ArrayList<NearestPointGsSpotPair> fNpsp = npsp;
+               final int nrFrames = rowData_.get(row).nrFrames_;
+               final List<ArrayList<GsSpotPair>> trackArray = 
+                       new ArrayList<ArrayList<GsSpotPair>>(startPairs.size());
+               for (int t = 0; t < startPairs.size(); t++) {
+                  trackArray.add(null);
+               }
+               ThreadUtils.parallelFor(startPairs.size(), 64, new ThreadUtils.RangeTask() {
+                  @Override
+                  public void run(int start, int end) {
+                     for (int t = start; t < end; t++) {
+                        GsSpotPair spotPair = startPairs.get(t);
+                        // for now, we only start tracks at frame number 1
+                        if (spotPair.getGSD().getFrame() == 1) {
+                           ArrayList<GsSpotPair> track = new ArrayList<GsSpotPair>();
                            track.add(spotPair);
+                           int frame = 2;
+                           while (frame <= nrFrames) {
+
+                              GsSpotPair newSpotPair = fNpsp.get(frame - 1).findKDWSE(
+                                      new Point2D.Double(spotPair.getfp().getX(), spotPair.getfp().getY()));
+                              if (newSpotPair != null) {
+                                 spotPair = newSpotPair;
+                                 track.add(spotPair);
+                              }
+                              frame++;
+                           }
+                           trackArray.set(t, track);
                         }
-                        frame++;
                      }
+                  }
+               });
+               ArrayList<ArrayList<GsSpotPair>> tracks = new ArrayList<ArrayList<GsSpotPair>>();
+               for (ArrayList<GsSpotPair> track : trackArray) {
+                  if (track != null) {
                      tracks.add(track);
                   }
                }
@@ -2181,7 +2202,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
                if (jitterMethod_ == 0)
                   unJitter(rowData_.get(row));
                else
-                  new DriftCorrector().unJitter(rowData_.get(row), jitterMaxFrames_, jitterMaxSpots_);
+                  new DriftCorrector().unJitter(rowData_.get(row), jitterMaxFrames_, 
+                          jitterMaxSpots_, jitterMethod_ == 2);
             }
          };
          (new Thread(doWorkRunnable)).start();
@@ -3731,33 +3753,47 @@ public void run() {
          @Override
          public void run() {
 
+            // transform all spots of channel 1 in one batch
+            int nrCh1 = 0;
+            for (GaussianSpotData gs : rowData.spotList_) {
+               if (gs.getChannel() == 1) {
+                  nrCh1++;
+               }
+            }
+            double[] x = new double[nrCh1];
+            double[] y = new double[nrCh1];
+            int i = 0;
+            for (GaussianSpotData gs : rowData.spotList_) {
+               if (gs.getChannel() == 1) {
+                  x[i] = gs.getXCenter();
+                  y[i] = gs.getYCenter();
+                  i++;
+               }
+            }
+            ij.IJ.showStatus("Executing color correction...");
+            try {
+               c2t_.transform(x, y, x, y);
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+               semaphore_.release();
+               return;
+            }
+
             List<GaussianSpotData> correctedData =
                     Collections.synchronizedList(new ArrayList<GaussianSpotData>());
-            Iterator it = rowData.spotList_.iterator();
-            int frameNr = 0;
-            while (it.hasNext()) {
-               GaussianSpotData gs = (GaussianSpotData) it.next();
-               if (gs.getFrame() != frameNr) {
-                  frameNr = gs.getFrame();
-                  ij.IJ.showStatus("Executing color correction...");
-                  ij.IJ.showProgress(frameNr, rowData.nrFrames_);
-               }
+            i = 0;
+            for (GaussianSpotData gs : rowData.spotList_) {
                if (gs.getChannel() == 1) {
-                  Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                  try {
-                     Point2D.Double corPoint = c2t_.transform(point);
-                     GaussianSpotData gsn = new GaussianSpotData(gs);
-                     gsn.setXCenter(corPoint.x);
-                     gsn.setYCenter(corPoint.y);
-                     correctedData.add(gsn);
-                  } catch (Exception ex) {
-                     ReportingUtils.logError(ex);
-                  }
+                  GaussianSpotData gsn = new GaussianSpotData(gs);
+                  gsn.setXCenter(x[i]);
+                  gsn.setYCenter(y[i]);
+                  correctedData.add(gsn);
+                  i++;
                } else if (gs.getChannel() == 2) {
                   correctedData.add(gs);
                }
-
             }
+            ij.IJ.showProgress(1.0);
 
             // Add transformed data to data overview window
             addSpotData(rowData.name_ + "-CC-" + referenceName_.getText() + "-"
@@ -7,13 +7,19 @@ package edu.valelab.GaussianFit;
 import edu.valelab.GaussianFit.DataCollectionForm.Coordinates;
 import edu.valelab.GaussianFit.utils.RowData;
 import ij.process.ByteProcessor;
+import ij.process.FHT;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import javax.swing.JOptionPane;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.math.linear.SingularMatrixException;
+import org.micromanager.utils.ThreadUtils;
 
 /**
  *
@@ -21,6 +27,9 @@ import javax.swing.JOptionPane;
  */
 public class DriftCorrector {
 
+   // groups that are correlated with each group in redundant cross-correlation
+   private static final int MAX_PAIR_DISTANCE = 8;
+
    // storage of stage movement data
    class StageMovementData {
 
@@ -34,6 +43,25 @@ public class DriftCorrector {
    }
 
    public void unJitter(final RowData rowData, int maxFrames, int maxSpots) {
+      unJitter(rowData, maxFrames, maxSpots, false);
+   }
+
+   /**
+    * Estimates drift by cross-correlating scatter plots of groups of frames.
+    * 
+    * Images are zero-padded as needed, so that any image size can be used.
+    * Groups are rendered and correlated in parallel.
+    * 
+    * @param rowData - dataset to be corrected
+    * @param maxFrames - maximum number of frames combined in one group
+    * @param maxSpots - maximum number of spots combined in one group
+    * @param redundant - when true, correlates each group with the 
+    *    MAX_PAIR_DISTANCE groups before it and calculates the drift of each group as the least squares solution 
+    *    of all pairwise shifts (redundant cross-correlation).  Otherwise, 
+    *    each group is correlated with the first one only.
+    */
+   public void unJitter(final RowData rowData, int maxFrames, int maxSpots,
+           boolean redundant) {
 
       // TODO: instead of a fixed number of frames, go for a certain number of spots
       // Number of frames could be limited as well
@@ -53,132 +81,58 @@ public class DriftCorrector {
          mag += 1;
       }
 
-      int width = mag * rowData.width_;
-      int height = mag * rowData.height_;
-
-      int size = width * height;
-
-
-      // TODO: add 0 padding to deal with aberrant image sizes
-      if ((width != height) || ((width & (width - 1)) != 0)) {
-         JOptionPane.showMessageDialog(DataCollectionForm.getInstance(),
-                 "Magnified image is not a square with a size that is a power of 2");
-         ij.IJ.showStatus(" ");
-         return;
-      }
+      final int width = mag * rowData.width_;
+      final int height = mag * rowData.height_;
 
       // TODO: what if we should go through nrSlices instead of nrFrames?
       boolean useSlices = false;
-      //int nrOfTests = rowData.nrFrames_ / framesToCombine;
       if (rowData.nrFrames_ <= 1) {
          useSlices = true;
       }
       final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
 
-      /*
-      nrOfTests = rowData.nrSlices_ / framesToCombine;
-      if (rowData.nrSlices_ % framesToCombine > 0) {
-      nrOfTests++;
-      }
-      } else {
-      if (rowData.nrFrames_ % framesToCombine > 0) {
-      nrOfTests++;
-      }
-      }
-      
-       */
-
-
-      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
-
-      double factor = (double) mag / rowData.pixelSizeNm_;
-           
-      // Assemble the reference image (the first one)
-      ImageProcessor ipRef = new ByteProcessor(width, height);
-      byte[] pixelsRef = new byte[width * height];
-      ipRef.setPixels(pixelsRef);
+      final double factor = (double) mag / rowData.pixelSizeNm_;
 
       if (rowData.frameIndexSpotList_ == null) {
          rowData.index();
       }
-      int spotNr = 0;
-      int frameNr = 0;
-      while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
-         if (frameSpots != null) {
-            for (GaussianSpotData spot : frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int index = (y * width) + x;
-               if (index < size && index > 0) {
-                  if (pixelsRef[index] != -1) {
-                     pixelsRef[index] += 1;
-                  }
-               }
-               spotNr++;
-            }
-         }
-         frameNr++;
-      }
-
-      JitterDetector jd = new JitterDetector(ipRef);
-
-      Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-      jd.getJitter(ipRef, fp);
-
-      
-      // Assemble images for all subsequent frames and calculate cross-correlation with the first image
-      Point2D.Double com = new Point2D.Double(0.0, 0.0);
-      ImageProcessor ipTest = new ByteProcessor(width, height);
-      byte[] pixelsTest = new byte[width * height];
-      ipTest.setPixels(pixelsTest);
-
-      int estimatedNrTests = 1;
-      int testNr = 1;
 
+      // divide the frames in groups, the first group is the reference
+      final List<Point> groups = new ArrayList<Point>();
+      int frameNr = 0;
       while (frameNr < nrImages) {
-         estimatedNrTests = nrImages / (frameNr / testNr) + 1;
-         ij.IJ.showStatus("Executing jitter correction..." + testNr
-                 + "/" + estimatedNrTests);
-         ij.IJ.showProgress(testNr, estimatedNrTests);
-         for (int p = 0; p < size; p++) {
-            ipTest.set(p, 0);
-         }
-
+         int spotNr = 0;
          int tmpFrameNr = 0;
-         spotNr = 0;
-
+         int start = frameNr;
          while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
             List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
             if (frameSpots != null) {
-               for (GaussianSpotData spot : frameSpots) {
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixelsTest[index] != -1) {
-                        pixelsTest[index] += 1;
-                     }
-                  }
-                  spotNr++;
-               }
+               spotNr += frameSpots.size();
             }
             tmpFrameNr++;
             frameNr++;
          }
+         groups.add(new Point(start, frameNr - 1));
+      }
+      if (groups.size() < 2) {
+         ij.IJ.showStatus("Not enough frames for jitter correction");
+         return;
+      }
 
-         jd.getJitter(ipTest, com);
-         double x = (fp.x - com.x) / factor;
-         double y = (fp.y - com.y) / factor;
-         if (rowData.timePoints_ != null) {
-            rowData.timePoints_.get(frameNr);
-         }
-         stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                 new Point(frameNr - tmpFrameNr, frameNr - 1)));
-         System.out.println("X: " + x + " Y: " + y);
-         testNr++;
+      final JitterDetector jd = new JitterDetector(
+              renderGroup(rowData, groups.get(0), factor, width, height));
+      final double[][] drift;
+      if (redundant) {
+         drift = redundantDrift(rowData, groups, jd, factor, width, height);
+      } else {
+         drift = referenceDrift(rowData, groups, jd, factor, width, height);
       }
 
+      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
+      for (int i = 1; i < groups.size(); i++) {
+         stagePos.add(new StageMovementData(
+                 new Point2D.Double(drift[i][0], drift[i][1]), groups.get(i)));
+      }
 
       // Assemble stage movement data into a track
       try {
@@ -219,7 +173,7 @@ public class DriftCorrector {
          List<GaussianSpotData> correctedData = new ArrayList<GaussianSpotData>();
          Iterator it = rowData.spotList_.iterator();
 
-         testNr = 0;
+         int testNr = 0;
          StageMovementData smd = stagePos.get(0);
          int counter = 0;
          while (it.hasNext()) {
@@ -275,6 +229,286 @@ public class DriftCorrector {
       }
    }
 
+
+   /**
+    * Makes a 2D scattergram of all spots in the given range of frames
+    */
+   private static ImageProcessor renderGroup(RowData rowData, Point frameRange,
+           double factor, int width, int height) {
+      int size = width * height;
+      byte[] pixels = new byte[size];
+      for (int frameNr = frameRange.x; frameNr <= frameRange.y; frameNr++) {
+         List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
+         if (frameSpots != null) {
+            for (GaussianSpotData spot : frameSpots) {
+               int x = (int) (factor * spot.getXCenter());
+               int y = (int) (factor * spot.getYCenter());
+               int index = (y * width) + x;
+               if (index < size && index > 0) {
+                  if (pixels[index] != -1) {
+                     pixels[index] += 1;
+                  }
+               }
+            }
+         }
+      }
+      return new ByteProcessor(width, height, pixels, null);
+   }
+
+   /**
+    * Correlates each group with the first group (in parallel)
+    * @return drift (in nm) for each group
+    */
+   private static double[][] referenceDrift(final RowData rowData,
+           final List<Point> groups, final JitterDetector jd, final double factor,
+           final int width, final int height) {
+      final int nrGroups = groups.size();
+      final double[][] drift = new double[nrGroups][2];
+      final Point2D.Double fp = new Point2D.Double(0.0, 0.0);
+      jd.getJitter(renderGroup(rowData, groups.get(0), factor, width, height), fp);
+
+      final AtomicInteger done = new AtomicInteger(1);
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 1; i < nrGroups; i++) {
+         final int group = i;
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               Point2D.Double com = new Point2D.Double(0.0, 0.0);
+               jd.getJitter(renderGroup(rowData, groups.get(group), factor,
+                       width, height), com);
+               drift[group][0] = (fp.x - com.x) / factor;
+               drift[group][1] = (fp.y - com.y) / factor;
+               showProgress(done.incrementAndGet(), nrGroups);
+               return null;
+            }
+         });
+      }
+      runAll(tasks);
+      return drift;
+   }
+
+   /**
+    * Runs the tasks on the shared pool, errors (such as running out of 
+    * memory) thrown by a task are re-thrown as they are
+    * @throws RuntimeException when the calling thread is interrupted, so that
+    *    no partial drift is used
+    */
+   private static void runAll(List<Callable<Object>> tasks) {
+      try {
+         ThreadUtils.invokeAll(tasks);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted during jitter correction", ex);
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof Error) {
+            throw (Error) ex.getCause();
+         }
+         if (ex.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ex.getCause();
+         }
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+
+   /**
+    * Redundant cross-correlation: each group is correlated (in parallel) 
+    * with the MAX_PAIR_DISTANCE groups before it, and the drift of each 
+    * group is the least squares solution to all pairwise shifts.  Pairs 
+    * that deviate strongly from the solution are rejected and the drift is 
+    * solved again.  Groups are transformed in blocks of MAX_PAIR_DISTANCE, 
+    * and only the transforms of the last two blocks are kept, so that time 
+    * and memory grow linearly with the number of groups.
+    * 
+    * @return drift (in nm) for each group, relative to the first group
+    */
+   private static double[][] redundantDrift(final RowData rowData,
+           final List<Point> groups, final JitterDetector jd, final double factor,
+           final int width, final int height) {
+      final int nrGroups = groups.size();
+      int nrPairs = 0;
+      for (int j = 1; j < nrGroups; j++) {
+         nrPairs += Math.min(j, MAX_PAIR_DISTANCE);
+      }
+      final int nrSteps = nrGroups + nrPairs;
+      final AtomicInteger done = new AtomicInteger(0);
+
+      // shift[p] is the drift of group j minus the drift of group i
+      final FHT[] transforms = new FHT[nrGroups];
+      final int[][] pairs = new int[nrPairs][2];
+      final double[][] shift = new double[nrPairs][2];
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      int p = 0;
+      for (int first = 0; first < nrGroups; first += MAX_PAIR_DISTANCE) {
+         int last = Math.min(first + MAX_PAIR_DISTANCE, nrGroups);
+         tasks.clear();
+         for (int i = first; i < last; i++) {
+            final int group = i;
+            tasks.add(new Callable<Object>() {
+               @Override
+               public Object call() {
+                  transforms[group] = jd.forward(renderGroup(rowData,
+                          groups.get(group), factor, width, height));
+                  showProgress(done.incrementAndGet(), nrSteps);
+                  return null;
+               }
+            });
+         }
+         runAll(tasks);
+
+         tasks.clear();
+         for (int j = first; j < last; j++) {
+            for (int i = Math.max(0, j - MAX_PAIR_DISTANCE); i < j; i++) {
+               final int pair = p++;
+               pairs[pair][0] = i;
+               pairs[pair][1] = j;
+               tasks.add(new Callable<Object>() {
+                  @Override
+                  public Object call() {
+                     Point2D.Double com = new Point2D.Double(0.0, 0.0);
+                     JitterDetector.correlate(transforms[pairs[pair][0]],
+                             transforms[pairs[pair][1]], com);
+                     shift[pair][0] = (jd.getCenter() - com.x) / factor;
+                     shift[pair][1] = (jd.getCenter() - com.y) / factor;
+                     showProgress(done.incrementAndGet(), nrSteps);
+                     return null;
+                  }
+               });
+            }
+         }
+         runAll(tasks);
+
+         // later blocks only pair with the groups of this block
+         for (int i = Math.max(0, first - MAX_PAIR_DISTANCE); i < first; i++) {
+            transforms[i] = null;
+         }
+      }
+
+      boolean[] use = new boolean[nrPairs];
+      Arrays.fill(use, true);
+      double[][] drift = solveDrift(nrGroups, pairs, shift, use);
+
+      // reject pairs with a residual larger than 3 times the rms residual
+      double sumSqr = 0.0;
+      double[] residual = new double[nrPairs];
+      for (int k = 0; k < nrPairs; k++) {
+         double dx = drift[pairs[k][1]][0] - drift[pairs[k][0]][0] - shift[k][0];
+         double dy = drift[pairs[k][1]][1] - drift[pairs[k][0]][1] - shift[k][1];
+         residual[k] = Math.sqrt(dx * dx + dy * dy);
+         sumSqr += residual[k] * residual[k];
+      }
+      double maxResidual = 3 * Math.sqrt(sumSqr / nrPairs);
+      int nrRejected = 0;
+      for (int k = 0; k < nrPairs; k++) {
+         if (residual[k] > maxResidual) {
+            use[k] = false;
+            nrRejected++;
+         }
+      }
+      if (nrRejected > 0) {
+         try {
+            drift = solveDrift(nrGroups, pairs, shift, use);
+         } catch (SingularMatrixException ex) {
+            // rejection disconnected a group, keep the first solution
+         }
+      }
+      return drift;
+   }
+
+   /**
+    * Least squares solution for the drift of each group given pairwise 
+    * shifts.  The drift of the first group is fixed at 0.
+    * 
+    * Pairs are at most MAX_PAIR_DISTANCE groups apart, so the normal 
+    * equations form a banded matrix, which is stored as its lower band and 
+    * solved by Cholesky decomposition in time linear in the number of groups.
+    * 
+    * @throws SingularMatrixException when the pairs in use do not connect 
+    *    every group to the first one
+    */
+   private static double[][] solveDrift(int nrGroups, int[][] pairs,
+           double[][] shift, boolean[] use) {
+      final int band = MAX_PAIR_DISTANCE;
+      // lower[i][k] is element (i, i - k) of the graph laplacian
+      double[][] lower = new double[nrGroups][band + 1];
+      double[] bx = new double[nrGroups];
+      double[] by = new double[nrGroups];
+      for (int k = 0; k < pairs.length; k++) {
+         if (use[k]) {
+            int i = pairs[k][0];
+            int j = pairs[k][1];
+            lower[i][0] += 1;
+            lower[j][0] += 1;
+            lower[j][j - i] -= 1;
+            bx[j] += shift[k][0];
+            bx[i] -= shift[k][0];
+            by[j] += shift[k][1];
+            by[i] -= shift[k][1];
+         }
+      }
+      // pin the first group: its row and column drop out of the equations
+      Arrays.fill(lower[0], 0.0);
+      lower[0][0] = 1.0;
+      for (int i = 1; i <= band && i < nrGroups; i++) {
+         lower[i][i] = 0.0;
+      }
+      bx[0] = 0.0;
+      by[0] = 0.0;
+
+      // in place Cholesky decomposition of the band
+      for (int i = 0; i < nrGroups; i++) {
+         int first = Math.max(0, i - band);
+         for (int j = first; j <= i; j++) {
+            double sum = lower[i][i - j];
+            for (int m = first; m < j; m++) {
+               sum -= lower[i][i - m] * lower[j][j - m];
+            }
+            if (j < i) {
+               lower[i][i - j] = sum / lower[j][0];
+            } else if (sum > 1e-9) {
+               lower[i][0] = Math.sqrt(sum);
+            } else {
+               throw new SingularMatrixException();
+            }
+         }
+      }
+      double[] x = solveBanded(lower, bx);
+      double[] y = solveBanded(lower, by);
+      double[][] drift = new double[nrGroups][2];
+      for (int i = 0; i < nrGroups; i++) {
+         drift[i][0] = x[i];
+         drift[i][1] = y[i];
+      }
+      return drift;
+   }
+
+   /**
+    * Solves L L^T z = b, with L the banded Cholesky factor made by solveDrift
+    */
+   private static double[] solveBanded(double[][] lower, double[] b) {
+      final int n = b.length;
+      final int band = lower[0].length - 1;
+      double[] z = b.clone();
+      for (int i = 0; i < n; i++) {
+         for (int m = Math.max(0, i - band); m < i; m++) {
+            z[i] -= lower[i][i - m] * z[m];
+         }
+         z[i] /= lower[i][0];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+         for (int m = i + 1; m <= Math.min(n - 1, i + band); m++) {
+            z[i] -= lower[m][m - i] * z[m];
+         }
+         z[i] /= lower[i][0];
+      }
+      return z;
+   }
+
+   private static void showProgress(int done, int total) {
+      ij.IJ.showStatus("Executing jitter correction..." + done + "/" + total);
+      ij.IJ.showProgress(done, total);
+   }
+
   
 
    /**
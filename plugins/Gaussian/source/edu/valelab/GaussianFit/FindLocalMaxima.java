@@ -13,11 +13,12 @@
 package edu.valelab.GaussianFit;
 
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
 import ij.process.ImageProcessor;
-import ij.plugin.filter.GaussianBlur;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+import org.micromanager.utils.ThreadUtils;
 
 
 /**
@@ -25,8 +26,13 @@ import java.awt.Rectangle;
  * @author nico
  */
 public class FindLocalMaxima {
-   private static GaussianBlur filter_ = new GaussianBlur();
-   private static ImageCalculator ic_ = new ImageCalculator();
+   // widths of the Gaussians used by the GAUSSIAN1_5 prefilter
+   private static final double SIGMA_SMALL = 0.4;
+   private static final double SIGMA_LARGE = 2.0;
+   // do not bother to split smaller images over threads
+   private static final int MINROWSPERTHREAD = 128;
+   private static final int MINCOLSPERTHREAD = 128;
+   private static final Map<Double, float[]> kernels_ = new HashMap<Double, float[]>();
    
    public enum FilterType {
       NONE,
@@ -36,10 +42,16 @@ public class FindLocalMaxima {
    /**
     * Static utility function to find local maxima in an Image
     * 
+    * Works directly on a float copy of the pixels in the ROI (plus a margin).
+    * The optional difference of Gaussians prefilter is done with separable 
+    * kernels in a single fused pass. Non-maximum suppression uses a separable
+    * (van Herk/Gil-Werman) max-filter, which takes 3 comparisons per pixel
+    * independent of n.  Large images are split row-wise across threads.
     * 
     * @param iPlus - ImagePlus object in which to look for local maxima
     * @param n - minimum distance to other local maximum
     * @param threshold - value below which a maximum will be rejected
+    * @param filterType - prefilter to apply before detection
     * @return Polygon with maxima 
     */
    public static Polygon FindMax(ImagePlus iPlus, int n, int threshold, FilterType filterType) {
@@ -48,95 +60,286 @@ public class FindLocalMaxima {
       ImageProcessor iProc = iPlus.getProcessor();
       Rectangle roi = iProc.getRoi();
       
+      int kRadius = 0;
+      if (filterType == FilterType.GAUSSIAN1_5) {
+         kRadius = getKernel(SIGMA_LARGE).length - 1;
+      }
+      
+      // area that we work on, includes the pixels needed by the filters, and
+      // the neighborhoods of the ties that are within n of the ROI
+      int margin = 2 * n + kRadius;
+      Rectangle area = new Rectangle(roi.x - margin, roi.y - margin,
+              roi.width + 2 * margin, roi.height + 2 * margin);
+      area = area.intersection(new Rectangle(0, 0, iProc.getWidth(), iProc.getHeight()));
+      if (area.isEmpty()) {
+         return maxima;
+      }
+      final int w = area.width;
+      final int h = area.height;
+      
+      float[] pix = toFloat(iProc, area);
+      
       // Prefilter if needed
       switch (filterType) {
          case GAUSSIAN1_5 : 
-            // TODO: if there is an ROI, we only need to filter_ in the ROI
-            ImageProcessor iProcG1 = iProc.duplicate();
-            ImageProcessor iProcG5 = iProc.duplicate();
-            filter_.blurGaussian(iProcG1, 0.4, 0.4, 0.01); 
-            filter_.blurGaussian(iProcG5, 2.0, 2.0, 0.01);
-            ImagePlus p1 = new ImagePlus("G1", iProcG1);
-            ImagePlus p5 = new ImagePlus("G5", iProcG5);
-            ic_.run("subtract", p1, p5);
-            iProc = p1.getProcessor();
-                      
+            pix = differenceOfGaussians(pix, w, h, 
+                    !(iProc instanceof ij.process.FloatProcessor));
             break;
       }
+      
+      float[] max = maxFilter(pix, w, h, n);
 
+      // pixels that equal the maximum of their neighborhood are candidates
+      int xStart = Math.max(roi.x, n) - area.x;
+      int xEnd = Math.min(roi.x + roi.width, iProc.getWidth() - n) - area.x;
+      int yStart = Math.max(roi.y, n) - area.y;
+      int yEnd = Math.min(roi.y + roi.height, iProc.getHeight() - n) - area.y;
+      for (int y = yStart; y < yEnd; y++) {
+         int offset = y * w;
+         for (int x = xStart; x < xEnd; x++) {
+            float val = pix[offset + x];
+            if (val != max[offset + x] || hasEarlierTie(pix, max, w, x, y, n)) {
+               continue;
+            }
+            if (threshold == 0 || 
+                    val - (pix[offset - n * w + x - n] + pix[offset - n * w + x + n] +
+                    pix[offset + n * w + x - n] + pix[offset + n * w + x + n]) / 4 
+                    > threshold) {
+               maxima.addPoint(x + area.x, y + area.y);
+            }
+         }
+      }
 
-      // divide the image up in blocks of size n and find local maxima
-      int n2 = 2*n + 1;
-      // calculate borders once
-      int xRealEnd = roi.x + roi.width;
-      int xEnd = xRealEnd - n;
-      int yRealEnd = roi.y + roi.height;
-      int yEnd = yRealEnd - n;
-      for (int i=roi.x; i <= xEnd - n - 1; i+=n2) {
-         for (int j=roi.y; j <= yEnd - n - 1; j+=n2) {
-            int mi = i;
-            int mj = j;
-            for (int i2=i; i2 < i + n2 && i2 < xRealEnd; i2++) {
-               for (int j2=j; j2 < j + n2 && j2 < yRealEnd; j2++) {
-                  // revert getPixel to get after debugging
-                  if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj)) {
-                     mi = i2;
-                     mj = j2;
-                  }
-               }
+      return maxima;
+   }
+   
+   /**
+    * Among maxima with the same value in a neighborhood, only the first one 
+    * (in raster order) is reported.  Earlier pixels with the same value that
+    * are not maxima themselves do not count.
+    */
+   private static boolean hasEarlierTie(float[] pix, float[] max, int w, 
+           int x, int y, int n) {
+      float val = pix[y * w + x];
+      for (int y2 = y - n; y2 <= y; y2++) {
+         int xLast = y2 == y ? x - 1 : x + n;
+         for (int x2 = x - n; x2 <= xLast; x2++) {
+            int index = y2 * w + x2;
+            if (pix[index] == val && max[index] == val) {
+               return true;
             }
-            // is the candidate really a local maximum?
-            // check surroundings (except for the pixels that we already checked)
-            boolean stop = false;
-            // columns in block to the left
-            if (mi - n < i && i>0) {
-               for (int i2=mi-n; i2<i; i2++) {
-                  for (int j2=mj-n; j2<=mj+n; j2++) {
-                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj)) {
-                        stop = true;
+         }
+      }
+      return false;
+   }
+   
+   /**
+    * Copies the pixels in area into a new float array
+    */
+   private static float[] toFloat(ImageProcessor iProc, Rectangle area) {
+      final int w = area.width;
+      final int width = iProc.getWidth();
+      float[] result = new float[w * area.height];
+      Object pixels = iProc.getPixels();
+      for (int y = 0; y < area.height; y++) {
+         int src = (y + area.y) * width + area.x;
+         int dest = y * w;
+         if (pixels instanceof short[]) {
+            short[] sp = (short[]) pixels;
+            for (int x = 0; x < w; x++) {
+               result[dest + x] = sp[src + x] & 0xffff;
+            }
+         } else if (pixels instanceof byte[]) {
+            byte[] bp = (byte[]) pixels;
+            for (int x = 0; x < w; x++) {
+               result[dest + x] = bp[src + x] & 0xff;
+            }
+         } else if (pixels instanceof float[]) {
+            System.arraycopy((float[]) pixels, src, result, dest, w);
+         } else {
+            for (int x = 0; x < w; x++) {
+               result[dest + x] = iProc.getf(area.x + x, area.y + y);
+            }
+         }
+      }
+      return result;
+   }
+   
+   /**
+    * Returns one half (center first) of a normalized Gaussian kernel, 
+    * truncated where it drops below the accuracy that was used with ImageJ's
+    * GaussianBlur. Kernels are computed once and kept.
+    */
+   private static synchronized float[] getKernel(double sigma) {
+      float[] kernel = kernels_.get(sigma);
+      if (kernel == null) {
+         int radius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(0.01))) + 1;
+         kernel = new float[radius];
+         double sum = 0.0;
+         for (int i = 0; i < radius; i++) {
+            double val = Math.exp(-0.5 * i * i / sigma / sigma);
+            kernel[i] = (float) val;
+            sum += i == 0 ? val : 2 * val;
+         }
+         for (int i = 0; i < radius; i++) {
+            kernel[i] /= sum;
+         }
+         kernels_.put(sigma, kernel);
+      }
+      return kernel;
+   }
+
+   /**
+    * Blurs the image with a small and a large Gaussian and subtracts the 
+    * two.  Both blurs are done in the same passes over the data: a horizontal
+    * pass into two buffers, followed by a vertical pass that writes the 
+    * difference.  Edge pixels are repeated outside the image.
+    * 
+    * @param clip - set negative values to zero, as the ImageJ subtraction of
+    *             integer images used to do
+    */
+   private static float[] differenceOfGaussians(final float[] pix, final int w, 
+           final int h, final boolean clip) {
+      final float[] k1 = getKernel(SIGMA_SMALL);
+      final float[] k2 = getKernel(SIGMA_LARGE);
+      final float[] h1 = new float[w * h];
+      final float[] h2 = new float[w * h];
+      final float[] result = new float[w * h];
+      
+      ThreadUtils.parallelFor(h, MINROWSPERTHREAD, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            for (int y = start; y < end; y++) {
+               int offset = y * w;
+               for (int x = 0; x < w; x++) {
+                  float s1 = k1[0] * pix[offset + x];
+                  float s2 = k2[0] * pix[offset + x];
+                  for (int k = 1; k < k2.length; k++) {
+                     float v = pix[offset + Math.max(x - k, 0)] 
+                             + pix[offset + Math.min(x + k, w - 1)];
+                     if (k < k1.length) {
+                        s1 += k1[k] * v;
                      }
+                     s2 += k2[k] * v;
                   }
+                  h1[offset + x] = s1;
+                  h2[offset + x] = s2;
                }
             }
-            // columns in block to the right
-            if (!stop && mi + n >= i + n2 ) {
-               for (int i2=i+n2; i2<=mi+n; i2++) {
-                   for (int j2=mj-n; j2<=mj+n; j2++) {
-                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj)) {
-                        stop = true;
+         }
+      });
+      
+      ThreadUtils.parallelFor(h, MINROWSPERTHREAD, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            for (int y = start; y < end; y++) {
+               int offset = y * w;
+               for (int x = 0; x < w; x++) {
+                  result[offset + x] = k1[0] * h1[offset + x] - k2[0] * h2[offset + x];
+               }
+               for (int k = 1; k < k2.length; k++) {
+                  int up = Math.max(y - k, 0) * w;
+                  int down = Math.min(y + k, h - 1) * w;
+                  float c1 = k < k1.length ? k1[k] : 0.0f;
+                  float c2 = k2[k];
+                  for (int x = 0; x < w; x++) {
+                     result[offset + x] += c1 * (h1[up + x] + h1[down + x])
+                             - c2 * (h2[up + x] + h2[down + x]);
+                  }
+               }
+               if (clip) {
+                  for (int x = 0; x < w; x++) {
+                     if (result[offset + x] < 0) {
+                        result[offset + x] = 0;
                      }
                   }
                }
             }
-            // rows on top of the block
-            if (!stop && mj - n < j && j > 0) {
-               for (int j2 = mj - n; j2 < j; j2++) {
-                  for (int i2 = mi - n; i2 <= mi + n; i2++) {
-                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj))
-                        stop = true;
-                  }
+         }
+      });
+      
+      return result;
+   }
+   
+   /**
+    * Calculates for each pixel the maximum in the (2n + 1) * (2n + 1) 
+    * neighborhood, using the van Herk/Gil-Werman algorithm for the 
+    * horizontal and the vertical pass. Pixels outside of the image are
+    * ignored.
+    */
+   private static float[] maxFilter(final float[] pix, final int w, 
+           final int h, final int n) {
+      final int size = 2 * n + 1;
+      final float[] rowMax = new float[w * h];
+      final float[] result = new float[w * h];
+      
+      // horizontal pass
+      ThreadUtils.parallelFor(h, MINROWSPERTHREAD, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            int padded = w + 2 * n;
+            float[] g = new float[padded];
+            float[] hh = new float[padded];
+            for (int y = start; y < end; y++) {
+               int offset = y * w;
+               for (int p = 0; p < padded; p++) {
+                  float val = (p < n || p >= w + n) ? 
+                          Float.NEGATIVE_INFINITY : pix[offset + p - n];
+                  g[p] = (p % size == 0) ? val : Math.max(g[p - 1], val);
+               }
+               for (int p = padded - 1; p >= 0; p--) {
+                  float val = (p < n || p >= w + n) ? 
+                          Float.NEGATIVE_INFINITY : pix[offset + p - n];
+                  hh[p] = (p % size == size - 1 || p == padded - 1) ? 
+                          val : Math.max(hh[p + 1], val);
+               }
+               for (int x = 0; x < w; x++) {
+                  rowMax[offset + x] = Math.max(hh[x], g[x + 2 * n]);
                }
             }
-            // rows below the block
-            if (!stop && mj + n >= j + n2) {
-               for (int j2 = j + n2; j2 <= mj + n; j2++) {
-                  for (int i2 = mi - n; i2 <= mi + n; i2++) {
-                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj))
-                        stop = true;
-                  }
+         }
+      });
+      
+      // vertical pass, columns are split over threads, rows are processed 
+      // in order to keep memory access sequential
+      ThreadUtils.parallelFor(w, MINCOLSPERTHREAD, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            int cols = end - start;
+            int padded = h + 2 * n;
+            float[] g = new float[padded * cols];
+            float[] hh = new float[padded * cols];
+            for (int p = 0; p < padded; p++) {
+               boolean outside = p < n || p >= h + n;
+               int src = (p - n) * w + start;
+               int dest = p * cols;
+               for (int c = 0; c < cols; c++) {
+                  float val = outside ? Float.NEGATIVE_INFINITY : rowMax[src + c];
+                  g[dest + c] = (p % size == 0) ? val : Math.max(g[dest - cols + c], val);
+               }
+            }
+            for (int p = padded - 1; p >= 0; p--) {
+               boolean outside = p < n || p >= h + n;
+               boolean blockEnd = p % size == size - 1 || p == padded - 1;
+               int src = (p - n) * w + start;
+               int dest = p * cols;
+               for (int c = 0; c < cols; c++) {
+                  float val = outside ? Float.NEGATIVE_INFINITY : rowMax[src + c];
+                  hh[dest + c] = blockEnd ? val : Math.max(hh[dest + cols + c], val);
+               }
+            }
+            for (int y = 0; y < h; y++) {
+               int top = y * cols;
+               int bottom = (y + 2 * n) * cols;
+               int dest = y * w + start;
+               for (int c = 0; c < cols; c++) {
+                  result[dest + c] = Math.max(hh[top + c], g[bottom + c]);
                }
             }
-            if (!stop && (threshold == 0 || 
-                    (iProc.getPixel(mi, mj) - 
-                      ( (iProc.getPixel(mi - n , mj - n) + iProc.getPixel(mi -n, mj + n) +
-                       iProc.getPixel(mi + n, mj  - n) + iProc.getPixel(mi + n, mj + n)) / 4) ) 
-                    > threshold))
-               maxima.addPoint(mi, mj);
          }
-      }
-
-
-      return maxima;
+      });
+      
+      return result;
    }
 
 
@@ -14,6 +14,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  *
@@ -26,6 +28,11 @@ public class ImageRenderer {
    
     static int[][] zLut_ = new int[256][];
    
+    // last renderer of each data set.  Data sets are weak keys, so that
+    // the renderers of removed data sets are dropped with them
+    private static final Map<RowData, CachedRenderer> renderers_ =
+            new WeakHashMap<RowData, CachedRenderer>();
+   
       
    /*
     * Renders spotdata using various renderModes
@@ -46,87 +53,34 @@ public class ImageRenderer {
          readLut("icelut.txt");
       }
 
-      //int mag = 1 << renderSize;
-
       if (rect == null) {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
       }
-      final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
-      final int fullWidth = (int) (rowData.width_ * magnification);
-      final int fullHeight = (int) (rowData.height_ * magnification);
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
       final int size = width * height;
-      double factor = magnification / rowData.pixelSizeNm_;
-
 
       try {
+         TiledRenderer renderer = getRenderer(rowData, sf);
          if (method == 0) {
             if (!rowData.hasZ_) {
                ip = new ShortProcessor(width, height);
-               short pixels[] = new short[size];
-               ip.setPixels(pixels);
-               for (GaussianSpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixels[index] != -1) {
-                              pixels[index] += 1;
-                           }
-                        }
-                     }
-                  }
-               }
+               ip.setPixels(renderer.render(TiledRenderer.SCATTER, magnification, rect));
             } else if (rowData.hasZ_) {
-               ShortProcessor[] sp = new ShortProcessor[3];
-               short[][] pixels = new short[3][size];
-               for (int i = 0; i < 3; i++) {
-                  sp[i] = new ShortProcessor(width, height);
-                  sp[i].setPixels(pixels[i]);
-               }
-               double spread = rowData.maxZ_ - rowData.minZ_;
-               for (GaussianSpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                        x -= rect.x;
-                        y -= rect.y;
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
-                           if (zIndex < 0) {
-                              zIndex = 0;
-                           }
-                           if (zIndex > 255) {
-                              zIndex = 255;
-                           }
-                           for (int i = 0; i < 3; i++) {
-                              pixels[i][index] += zLut_[zIndex][i];
-                           }
-                        }
-                     }
-                  }
-               }
-               // we have 3 ShortProcessors.  Combine into a color image:
+               int[][] pixels = renderer.renderZColor(zLut_, magnification, rect);
+               // we have 3 channels.  Combine into a color image:
                ColorProcessor cp = new ColorProcessor(width, height);
                byte[][] colorPixels = new byte[3][];
                for (int i = 0; i < 3; i++) {
                   colorPixels[i] = new byte[size];
                }
-               //ip.setPixels(colorPixels);
-               double max = sp[0].getMax();
-               for (int i = 1; i < 3; i++) {
-                  if (sp[i].getMax() > max) {
-                     max = sp[i].getMax();
+               int max = 1;
+               for (int i = 0; i < 3; i++) {
+                  for (int p = 0; p < size; p++) {
+                     if (pixels[i][p] > max) {
+                        max = pixels[i][p];
+                     }
                   }
                }
                for (int p = 0; p < size; p++) {
@@ -141,110 +95,10 @@ public class ImageRenderer {
 
          } else if (method == 1 || method == 2) {  // Gaussian and normalized Gaussian
 
-
-            // determines whether gaussians should be normalized by their total intensity
-            boolean normalize = false;
-            if (method == 2) {
-               normalize = true;
-            }
-
-            ip = new FloatProcessor(width, height);
-            float pixels[] = new float[size];
-            ip.setPixels(pixels);
-
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
-            int counter = 0;
-            int spotsUsed = 0;
-            for (GaussianSpotData spot : rowData.spotList_) {
-               if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
-               }
-
-
-               if (sf.filter(spot)) {
-
-
-                  // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
-                  if (halfWidth == 0) {
-                     halfWidth = 2;
-                  }
-
-                  /*
-                   * A *  exp(-((x-xc)^2+(y-yc)^2)/(2 sigy^2))+b
-                   * A = params[INT]  (amplitude)
-                   * b = params[BGR]  (background)
-                   * xc = params[XC]
-                   * yc = params[YC]
-                   * sig = params[S]
-                   * 
-                   */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
-                  //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
-                  //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
-
-
-                  if (xc > rect.x + halfWidth && xc < endx - halfWidth
-                          && yc > rect.y + halfWidth && yc < endy - halfWidth) {
-
-                     if (xc > halfWidth && xc < (fullWidth - halfWidth)
-                             && yc > halfWidth && yc < (fullHeight - halfWidth)) {
-                        counter++;
-                        spotsUsed++;
-                        double totalInt = 0.0;
-                        int xStart = xc - halfWidth;
-                        int xEnd = xc + halfWidth;
-                        int yStart = yc - halfWidth;
-                        int yEnd = yc + halfWidth;
-                        float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
-                        for (int x = xStart; x < xEnd; x++) {
-                           for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
-                              double val = GaussianUtils.gaussian(parms, x, y);
-                              totalInt += val;
-                              if (normalize) {
-                                 boxPixels[x - xStart][y - yStart] = (float) val;
-                              } else {
-                                 ip.setf(x, y, ip.getf(x, y) + (float) val);
-                              }
-                           }
-                        }
-                        // normalize if requested
-                        if (normalize && totalInt > 0) {
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 boxPixels[x - xStart][y - yStart] /= totalInt;
-                                 if (boxPixels[x - xStart][y - yStart] != boxPixels[x - xStart][y - yStart]) {
-                                    System.out.println("<0");
-                                 }
-                              }
-                           }
-                           // now add to the image
-                           for (int x = xStart; x < xEnd; x++) {
-                              for (int y = yStart; y < yEnd; y++) {
-                                 try {
-                                    ip.setf(x - rect.x, y - rect.y,
-                                            ip.getf(x - rect.x, y - rect.y) + boxPixels[x - xStart][y - yStart]);
-                                 } catch (Exception ex) {
-                                    System.out.println("Exception");
-                                 }
-                              }
-                           }
-                        }
-
-                     }
-                  }
-               }
-            }
-
-
-            ij.IJ.showProgress(1);
-            ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
+            ip = new FloatProcessor(width, height);
+            ip.setPixels(renderer.render(method, magnification, rect));
+            ij.IJ.showStatus("Rendered image using " + renderer.getNrSpots() + " spots.");
 
          }
       } catch (java.lang.OutOfMemoryError ome) {
@@ -257,13 +111,6 @@ public class ImageRenderer {
       if (ip != null) {
          ip.resetMinAndMax();
       }
-      /*
-         sp = new ImagePlus(title, ip);
-         DisplayUtils.AutoStretch(sp);
-         DisplayUtils.SetCalibration(sp, (float) (rowData.pixelSizeNm_ / magnification));
-      }
-      
-       */
 
       return ip;    
    }
@@ -280,9 +127,6 @@ public class ImageRenderer {
    public static ImageStack renderData3D(final RowData rowData,
            final int method, final double magnification, Rectangle rect, final SpotDataFilter sf) {
    
-      
-      //int mag = 1 << renderSize;
-
       if (rect == null) {
          rect = new Rectangle(0, 0, (int) (rowData.width_ * magnification),
                  (int) (rowData.height_ * magnification));
@@ -290,50 +134,55 @@ public class ImageRenderer {
       final double renderedPixelInNm = rowData.pixelSizeNm_ / magnification;
       final int width = rect.width;
       final int height = rect.height;
-      final int fullWidth = (int) (rowData.width_ * magnification);
-      final int fullHeight = (int) (rowData.height_ * magnification);
       double tmp =  1000.0 * (rowData.maxZ_ - rowData.minZ_ ) / (2* renderedPixelInNm);
       final int nrZs = (int) tmp;
-      int endx = rect.x + rect.width;
-      int endy = rect.y + rect.height;
-      final int size = width * height;
-      double factor = magnification / rowData.pixelSizeNm_;
 
       ImageStack is = new ImageStack(width, height);
-      ImageProcessor[] ip = new ImageProcessor[nrZs];
       
       if (method == 0) {
-         
-         short pixels[][] = new short[nrZs][size];
+         short[][] pixels = getRenderer(rowData, sf).renderScatter3D(
+                 magnification, rect, nrZs);
          for (int i = 0; i < nrZs; i++) {
-            ip[i] = new ShortProcessor(width, height);
-            ip[i].setPixels(pixels[i]);
-            is.addSlice(ip[i]);
-         }
-
-         for (GaussianSpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
-               if (x > rect.x && x < endx && y > rect.y && y < endy) {
-                  x -= rect.x;
-                  y -= rect.y;
-                  int index = (y * width) + x;
-                  if (index < size && index > 0 && z < nrZs && z > 0) {
-                     if (pixels[z][index] != -1) {
-                        pixels[z][index] += 1;
-                     }
-                  }
-               }
-            }
+            ImageProcessor ip = new ShortProcessor(width, height);
+            ip.setPixels(pixels[i]);
+            is.addSlice(ip);
          }
       }
  
-      
       return is;
    }
 
+   /**
+    * A renderer, with the filter and number of spots it was made for
+    */
+   private static class CachedRenderer {
+      final TiledRenderer renderer_;
+      final SpotDataFilter filter_;
+      final int nrSpots_;
+
+      CachedRenderer(TiledRenderer renderer, SpotDataFilter sf, int nrSpots) {
+         renderer_ = renderer;
+         filter_ = sf;
+         nrSpots_ = nrSpots;
+      }
+   }
+
+   /**
+    * Returns a renderer for the given data and filter.  The last one of
+    * each data set is cached, so that repeated renders of the same data 
+    * (i.e. while zooming and panning) do not need to re-index all spots.
+    */
+   private static synchronized TiledRenderer getRenderer(RowData rowData, 
+           SpotDataFilter sf) {
+      int nrSpots = rowData.spotList_.size();
+      CachedRenderer cached = renderers_.get(rowData);
+      if (cached == null || cached.filter_ != sf || cached.nrSpots_ != nrSpots) {
+         cached = new CachedRenderer(new TiledRenderer(rowData, sf), sf, nrSpots);
+         renderers_.put(rowData, cached);
+      }
+      return cached.renderer_;
+   }
+
    /**
     * Reads a file enclosed in this jar that is created by copying the output of
     * the List command in ImageJ (Image>Color>ShowLut).
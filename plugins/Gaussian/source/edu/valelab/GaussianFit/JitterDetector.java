@@ -5,37 +5,96 @@
 package edu.valelab.GaussianFit;
 
 import ij.process.FHT;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 
 /**
+ * Images of arbitrary size are zero-padded to a square with a size that is a
+ * power of 2 before they are Fourier transformed.  The transform of the
+ * reference image is calculated once.  Forward transforms of test images can
+ * be made separately (with forward()) and kept, for instance to correlate
+ * all pairs out of a set of images.
+ *
+ * Methods of this class do not modify shared state, so a single instance
+ * can be used from multiple threads.
  *
  * @author Nico Stuurman
  */
 public class JitterDetector {
    private final FHT ref_;
-   
+   private final int size_;
+
    public JitterDetector(ImageProcessor reference) {
-     ref_ = new FHT(reference);
-     ref_.transform();
-     ref_.resetMinAndMax();
+      size_ = FFTUtils.nextPowerOf2(Math.max(reference.getWidth(),
+              reference.getHeight()));
+      ref_ = forward(reference);
    }
-   
-   public void getJitter(ImageProcessor test, Point2D.Double com) {
-      FHT t = new FHT(test);
+
+   /**
+    * @return edge size of the padded images
+    */
+   public int getSize() {
+      return size_;
+   }
+
+   /**
+    * Position of the correlation peak of two identical images
+    * @return center of the padded image
+    */
+   public double getCenter() {
+      return size_ / 2;
+   }
+
+   /**
+    * Pads the image with zeroes and calculates its Fourier transform
+    * @param ip - image, should not be larger than the reference image
+    * @return transformed image
+    */
+   public FHT forward(ImageProcessor ip) {
+      ImageProcessor padded = ip;
+      if (ip.getWidth() != size_ || ip.getHeight() != size_) {
+         padded = new FloatProcessor(size_, size_);
+         padded.insert(ip.convertToFloat(), 0, 0);
+      }
+      FHT t = new FHT(padded);
       t.transform();
-      t.resetMinAndMax();
-      
-      FHT m = ref_.conjugateMultiply(t);
-            
+      return t;
+   }
+
+   public void getJitter(ImageProcessor test, Point2D.Double com) {
+      getJitter(forward(test), com);
+   }
+
+   /**
+    * Finds the position of the peak of the cross-correlation of the reference
+    * with the given (already transformed) image
+    * @param test - transformed test image
+    * @param com - used to return the sub-pixel position of the peak
+    */
+   public void getJitter(FHT test, Point2D.Double com) {
+      correlate(ref_, test, com);
+   }
+
+   /**
+    * Finds the position of the peak of the cross-correlation between two
+    * transformed images of the same size
+    *
+    * @param first - transformed image
+    * @param second - transformed image
+    * @param com - used to return the sub-pixel position of the peak
+    */
+   public static void correlate(FHT first, FHT second, Point2D.Double com) {
+      FHT m = first.conjugateMultiply(second);
+
       m.inverseTransform();
       m.swapQuadrants();
-      
+
       // return the position of the brightest pixel
       Point brightPix = new Point(0, 0);
-      BrightestPixel(m, brightPix, 32);     
-      
+      BrightestPixel(m, brightPix, 32);
+
       try {
          // Gaussian fit using Nelder Mead and 3D fitting
          GaussianFit gs = new GaussianFit(3, 2);
@@ -48,41 +107,73 @@ public class JitterDetector {
          double[] paramsOut = gs.doGaussianFit(ipc, 100);
          com.x = paramsOut[GaussianFit.XC] - hs + brightPix.x;
          com.y = paramsOut[GaussianFit.YC] - hs + brightPix.y;
+         if (Double.isNaN(com.x) || Double.isNaN(com.y)
+                 || Math.abs(com.x - brightPix.x) > hs
+                 || Math.abs(com.y - brightPix.y) > hs) {
+            parabolicPeak(m, brightPix, com);
+         }
 
-      } catch (Exception ex) { 
+      } catch (Exception ex) {
          // Gaussian fit failed, try second best estimate
-         com.x = brightPix.x;
-         com.y = brightPix.y;
+         parabolicPeak(m, brightPix, com);
+      }
+
+   }
+
+   /**
+    * Sub-pixel peak position from a parabola through the brightest pixel and
+    * its direct neighbors, done separately in x and y
+    */
+   private static void parabolicPeak(FHT m, Point brightPix, Point2D.Double com) {
+      float[] pixels = (float[]) m.getPixels();
+      int width = m.getWidth();
+      int height = m.getHeight();
+      com.x = brightPix.x;
+      com.y = brightPix.y;
+      int index = brightPix.y * width + brightPix.x;
+      if (brightPix.x > 0 && brightPix.x < width - 1) {
+         com.x += parabolicOffset(pixels[index - 1], pixels[index], pixels[index + 1]);
+      }
+      if (brightPix.y > 0 && brightPix.y < height - 1) {
+         com.y += parabolicOffset(pixels[index - width], pixels[index],
+                 pixels[index + width]);
+      }
+   }
+
+   private static double parabolicOffset(double left, double center, double right) {
+      double denominator = left - 2 * center + right;
+      if (denominator >= 0) {
+         return 0.0;
       }
-         
+      return 0.5 * (left - right) / denominator;
    }
-   
+
    /**
     * Finds the brightest pixel in the center of the image m
     * only searches in the center of the image in a square with edge size searchsize
-    * 
+    *
     * @param m image to be searched
     * @param brightPix point use to return coordinates of pixel found
-    * @param searchSize size of edge of center square in which to look for brightest pixel 
+    * @param searchSize size of edge of center square in which to look for brightest pixel
     */
-   private void BrightestPixel(FHT m, Point brightPix, int searchSize) {
+   private static void BrightestPixel(FHT m, Point brightPix, int searchSize) {
       float pixels[] = (float[]) m.getPixels();
-            
+
 
       int height = m.getHeight();
       int width = m.getWidth();
       int halfHeight = (height / 2);
       int halfWidth = (width / 2);
-      int halfSearchSize = (searchSize / 2);
-    
+      int halfSearchSize = Math.min(searchSize / 2, Math.min(halfHeight, halfWidth));
+
       double max = pixels[halfHeight * width + halfWidth];
       brightPix.x = halfWidth;
       brightPix.y = halfHeight;
-      
-      
-      for (int y = halfHeight - halfSearchSize; 
+
+
+      for (int y = halfHeight - halfSearchSize;
               y < halfHeight + halfSearchSize; y++) {
-         for (int x = halfWidth - halfSearchSize; 
+         for (int x = halfWidth - halfSearchSize;
                  x < halfWidth + halfSearchSize; x++) {
             if (pixels[y*width + x] > max) {
                max = pixels[y*width + x];
@@ -91,7 +182,7 @@ public class JitterDetector {
             }
          }
       }
-      
+
    }
-   
+
 }
@@ -7,9 +7,8 @@
  */
 package edu.valelab.GaussianFit;
 
-import ags.utils.KdTree;
-import ags.utils.KdTree.Entry;
-import ags.utils.KdTree.SqrEuclid;
+import edu.valelab.GaussianFit.utils.PointGrid;
+import edu.valelab.GaussianFit.utils.PointKdTree;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -18,7 +17,9 @@ import java.util.List;
 /**
  * Class that finds the closest by point in a point collection given a single point
  * 
- * The method findKDWSE uses a kd tree approach based written by Rednaxela
+ * The method findKDWSE uses a grid hash with cells of size maxDistance
+ * that is built once, on first use.  The hash is not modified by queries, 
+ * so many queries can be run in parallel (see findKDWSE(List)).
  * 
  * 
  * @author nico
@@ -26,48 +27,45 @@ import java.util.List;
 public class NearestPoint2D {
    private ArrayList<Point2D.Double> theList_;
    private final double maxDistance_;
-   private final double maxDistanceSquared_;
-   private KdTree<Integer> we_;
-   
-   //private final ArrayList<Point2D.Double> sortedByX_;
-   //private final ArrayList<Point2D.Double> sortedByY_;
+   private PointGrid grid_;
    
    public NearestPoint2D(ArrayList<Point2D.Double> unsorted, double maxDistance) {
       theList_ = unsorted;
       maxDistance_ = maxDistance;
-      maxDistanceSquared_ = maxDistance * maxDistance;
+   }
+   
+   private synchronized PointGrid getGrid() {
+      if (grid_ == null) {
+         grid_ = new PointGrid(theList_, maxDistance_);
+      }
+      return grid_;
    }
    
    /**
     *  method to find the nearest point in the collection of Points
-    * Uses Squared Euclidian distance method from Rednaxela
     * 
     * @param input - point for which we want to find the nearest neighbor
     * @return point found or null when it was farther away than the cutoff set 
     * in the constructor
     */
    public Point2D.Double findKDWSE(Point2D.Double input) {
-      // construct a new KD tree if needed
-      if (we_ == null) {
-         we_ = new SqrEuclid<Integer>(2, 50 * theList_.size());
-         for (int i = 0; i < theList_.size(); i++) {
-            Point2D.Double p = theList_.get(i);
-            double[] point = {p.x, p.y};
-            we_.addPoint(point, i);
-         }
-      }
-      double[] testPoint = {input.x, input.y};
-      List<Entry<Integer>> result = we_.nearestNeighbor(testPoint, 1, false);
-      
-      Integer index = result.get(0).value;
-      double distance = result.get(0).distance;
-      
-      Point2D.Double ret = (Point2D.Double) theList_.get(index).clone();
-      
-      if (distance < maxDistanceSquared_)
-         return ret;
-      
-      return null;
+      int index = getGrid().nearest(input.x, input.y);
+      if (index < 0)
+         return null;
+      return (Point2D.Double) theList_.get(index).clone();
+   }
+   
+   /**
+    * Finds the nearest point for each of the input points, in parallel
+    * 
+    * @param input - points for which we want to find the nearest neighbor
+    * @return for each input point the index (in the collection given in the
+    *          constructor) of the nearest point, or -1 when it was farther 
+    *          away than the cutoff set in the constructor
+    */
+   public int[] findKDWSE(List<Point2D.Double> input) {
+      return getGrid().nearest(PointKdTree.xArray(input), 
+              PointKdTree.yArray(input));
    }
    
    /**
@@ -6,9 +6,7 @@
  * @copyright UCSF, Dec. 2012
  */
 package edu.valelab.GaussianFit;
-import ags.utils.KdTree;
-import ags.utils.KdTree.Entry;
-import ags.utils.KdTree.SqrEuclid;
+import edu.valelab.GaussianFit.utils.PointGrid;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,7 +16,8 @@ import java.util.List;
 /**
  * Class that finds the closest by point in a point collection given a single point
  * 
- * The method findKDWSE uses a kd tree approach based written by Rednaxela
+ * The method findKDWSE uses a grid hash with cells of size maxDistance
+ * that is built once, on first use, and can be queried from multiple threads.
  * 
  * 
  * @author nico
@@ -26,48 +25,37 @@ import java.util.List;
 public class NearestPointGsSpotPair {
    private ArrayList<GsSpotPair> theList_;
    private final double maxDistance_;
-   private final double maxDistanceSquared_;
-   private KdTree<Integer> we_;
+   private PointGrid grid_;
    
    public NearestPointGsSpotPair(ArrayList<GsSpotPair> unsorted, double maxDistance) {
       theList_ = unsorted;
       maxDistance_ = maxDistance;
-      maxDistanceSquared_ = maxDistance * maxDistance;
+   }
+   
+   private synchronized PointGrid getGrid() {
+      if (grid_ == null) {
+         List<Point2D.Double> points = new ArrayList<Point2D.Double>(theList_.size());
+         for (GsSpotPair pair : theList_) {
+            points.add(pair.getfp());
+         }
+         grid_ = new PointGrid(points, maxDistance_);
+      }
+      return grid_;
    }
    
    /**
     * method to find the nearest point in the collection of Points
-    * Uses Squared Euclidian distance method from Rednaxela
     * 
     * @param input - point for which we want to find the nearest neighbor
     * @return point found or null when it was farther away than the cutoff set 
     * in the constructor
     */
    public GsSpotPair findKDWSE(Point2D.Double input) {
-      // construct a new KD tree if needed
-      if (we_ == null) {
-         we_ = new SqrEuclid<Integer>(2, 50 * theList_.size());
-         for (int i = 0; i < theList_.size(); i++) {
-            Point2D.Double p = theList_.get(i).getfp();
-            double[] point = {p.x, p.y};
-            we_.addPoint(point, i);
-         }
-      }
-      double[] testPoint = {input.x, input.y};
-      List<Entry<Integer>> result = we_.nearestNeighbor(testPoint, 1, false);
-      
-      if (result != null && !result.isEmpty()) {
-         Integer index = result.get(0).value;
-         double distance = result.get(0).distance;
-
-         GsSpotPair ret = theList_.get(index).copy();
-
-         if (distance < maxDistanceSquared_) {
-            return ret;
-         }
+      int index = getGrid().nearest(input.x, input.y);
+      if (index < 0) {
+         return null;
       }
-      
-      return null;
+      return theList_.get(index).copy();
    }
    
    /**
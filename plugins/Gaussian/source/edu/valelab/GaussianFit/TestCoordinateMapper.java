@@ -0,0 +1,144 @@
+/**
+ * Compares the batch transform of CoordinateMapper with the transform of
+ * single points, and with computeTransformation.
+ *
+ * Run as a java application with ij.jar and commons-math on the class path.
+ * Prints the differences and exits with status 1 when there are any.
+ */
+
+package edu.valelab.GaussianFit;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ *
+ * @author nico
+ */
+public class TestCoordinateMapper {
+   private static int nrFailures_ = 0;
+
+   public static void main(String[] args) {
+      Random random = new Random(1);
+      CoordinateMapper.PointMap pointMap = new CoordinateMapper.PointMap();
+      for (int i = 0; i < 400; i++) {
+         Point2D.Double src = new Point2D.Double(1000 * random.nextDouble(),
+                 1000 * random.nextDouble());
+         pointMap.put(src, warp(src));
+      }
+      double[] x = new double[20000];
+      double[] y = new double[x.length];
+      for (int i = 0; i < x.length; i++) {
+         x[i] = 50 + 900 * random.nextDouble();
+         y[i] = 50 + 900 * random.nextDouble();
+      }
+
+      for (int order = 1; order <= 2; order++) {
+         compareLWM(pointMap, order, x, y);
+      }
+      compareAffine(new CoordinateMapper(pointMap, 2, CoordinateMapper.AFFINE),
+              x, y);
+      compareAffine(new CoordinateMapper(pointMap, 2,
+              CoordinateMapper.NONRFEFLECTIVESIMILARITY), x, y);
+
+      if (nrFailures_ == 0) {
+         System.out.println("CoordinateMapper: all tests passed");
+      } else {
+         System.out.println("CoordinateMapper: " + nrFailures_ + " tests failed");
+         System.exit(1);
+      }
+   }
+
+   /**
+    * A smooth distortion, like that between two cameras
+    */
+   private static Point2D.Double warp(Point2D.Double p) {
+      return new Point2D.Double(
+              1.02 * p.x + 0.01 * p.y + 3 + 1e-5 * p.x * p.y + 2 * Math.sin(p.x / 150),
+              -0.01 * p.x + 0.98 * p.y - 4 + 1e-5 * p.x * p.x + Math.cos(p.y / 200));
+   }
+
+   private static void compareLWM(CoordinateMapper.PointMap pointMap, int order,
+           double[] x, double[] y) {
+      String name = "LWM order " + order;
+      CoordinateMapper mapper = new CoordinateMapper(pointMap, order,
+              CoordinateMapper.LWM);
+      // the kd-tree and control points, as the constructor makes them
+      ArrayList<Point2D.Double> keys = new ArrayList<Point2D.Double>(pointMap.keySet());
+      CoordinateMapper.EnhancedKDTree kdTree = new CoordinateMapper.EnhancedKDTree(
+              keys.toArray(new Point2D.Double[]{}));
+      CoordinateMapper.ControlPoints controlPoints =
+              CoordinateMapper.createControlPoints(kdTree, order, pointMap);
+      CoordinateMapper.ExponentPairs exponentPairs =
+              CoordinateMapper.polynomialExponents(order);
+
+      // transform in place, as DataCollectionForm does
+      double[] xOut = x.clone();
+      double[] yOut = y.clone();
+      mapper.transform(xOut, yOut, xOut, yOut);
+      for (int i = 0; i < x.length; i++) {
+         Point2D.Double p = new Point2D.Double(x[i], y[i]);
+         check(name + " single point", p, mapper.transform(p), xOut[i], yOut[i]);
+         check(name + " computeTransformation", p,
+                 CoordinateMapper.computeTransformation(kdTree, p,
+                 controlPoints, exponentPairs), xOut[i], yOut[i]);
+      }
+
+      // the grid is exact at its own points
+      mapper.createLookupGrid(0, 0, 1000, 1000, 10);
+      double[] gx = new double[101 * 101];
+      double[] gy = new double[gx.length];
+      for (int i = 0; i < gx.length; i++) {
+         gx[i] = 10 * (i % 101);
+         gy[i] = 10 * (i / 101);
+      }
+      double[] gxOut = new double[gx.length];
+      double[] gyOut = new double[gx.length];
+      mapper.transform(gx, gy, gxOut, gyOut);
+      mapper.clearLookupGrid();
+      for (int i = 0; i < gx.length; i++) {
+         Point2D.Double p = new Point2D.Double(gx[i], gy[i]);
+         Point2D.Double exact = mapper.transform(p);
+         if (!Double.isNaN(exact.x) && !Double.isNaN(exact.y)) {
+            checkClose(name + " grid", p, exact, gxOut[i], gyOut[i]);
+         }
+      }
+   }
+
+   private static void compareAffine(CoordinateMapper mapper, double[] x,
+           double[] y) {
+      double[] xOut = new double[x.length];
+      double[] yOut = new double[x.length];
+      mapper.transform(x, y, xOut, yOut);
+      for (int i = 0; i < x.length; i++) {
+         Point2D.Double p = new Point2D.Double(x[i], y[i]);
+         check("affine", p, mapper.transform(p), xOut[i], yOut[i]);
+      }
+   }
+
+   private static void check(String name, Point2D.Double p,
+           Point2D.Double expected, double x, double y) {
+      if (Double.compare(expected.x, x) != 0 || Double.compare(expected.y, y) != 0) {
+         fail(name + " at " + p.x + ", " + p.y + ": " + expected.x + ", "
+                 + expected.y + " but batch gives " + x + ", " + y);
+      }
+   }
+
+   private static void checkClose(String name, Point2D.Double p,
+           Point2D.Double expected, double x, double y) {
+      if (!(Math.abs(expected.x - x) < 1e-9 && Math.abs(expected.y - y) < 1e-9)) {
+         fail(name + " at " + p.x + ", " + p.y + ": " + expected.x + ", "
+                 + expected.y + " but batch gives " + x + ", " + y);
+      }
+   }
+
+   private static void fail(String message) {
+      if (nrFailures_ < 20) {
+         System.out.println("FAILED " + message);
+      }
+      nrFailures_++;
+   }
+
+}
@@ -0,0 +1,300 @@
+/**
+ * Compares FindLocalMaxima with the block-wise maxima finder it replaced,
+ * and with a direct search of every neighborhood.
+ *
+ * Run as a java application with ij.jar on the class path.  Prints the
+ * differences and exits with status 1 when there are any.
+ */
+
+package edu.valelab.GaussianFit;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ *
+ * @author nico
+ */
+public class TestFindLocalMaxima {
+   private static int nrFailures_ = 0;
+
+   public static void main(String[] args) {
+      Random random = new Random(42);
+      int[] ns = {1, 2, 3, 5};
+
+      // isolated spots, where the old finder finds all maxima
+      for (int n : ns) {
+         for (int trial = 0; trial < 10; trial++) {
+            ShortProcessor proc = spots(random, 256, 200, n);
+            compare("spots n=" + n, proc, n, 0, true);
+            proc.setRoi(new Rectangle(17, 23, 150, 120));
+            compare("spots in ROI n=" + n, proc, n, 0, true);
+            compare("spots threshold n=" + n, proc, n, 100, true);
+         }
+      }
+
+      // noise with many ties, every maximum of the old finder must be found
+      for (int n : ns) {
+         for (int trial = 0; trial < 10; trial++) {
+            ShortProcessor proc = noise(random, 128, 96, 8);
+            compare("noise n=" + n, proc, n, 0, false);
+            proc.setRoi(new Rectangle(9, 5, 100, 70));
+            compare("noise in ROI n=" + n, proc, n, 0, false);
+         }
+      }
+
+      if (nrFailures_ == 0) {
+         System.out.println("FindLocalMaxima: all tests passed");
+      } else {
+         System.out.println("FindLocalMaxima: " + nrFailures_ + " tests failed");
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Checks FindMax against the direct search, and against the old finder:
+    * each old maximum that is strictly larger than its neighbors has to be
+    * found, and when exact is set, the old finder has to find each such
+    * maximum as well.
+    */
+   private static void compare(String name, ImageProcessor proc, int n,
+           int threshold, boolean exact) {
+      // the ImagePlus sets the ROI of the processor to its own
+      Rectangle roi = proc.getRoi();
+      ImagePlus iPlus = new ImagePlus("", proc);
+      iPlus.setRoi(roi);
+      Set<Point> found = toSet(FindLocalMaxima.FindMax(iPlus, n, threshold,
+              FindLocalMaxima.FilterType.NONE));
+      proc.setRoi(roi);
+      Set<Point> direct = directFindMax(proc, n, threshold);
+      Set<Point> old = toSet(oldFindMax(proc, n, threshold));
+      if (!found.equals(direct)) {
+         fail(name + ": " + found.size() + " maxima, direct search finds "
+                 + direct.size());
+      }
+      // the old finder also reported maxima closer than n to the edge, and 
+      // one pixel of every flat area
+      Rectangle inside = new Rectangle(n, n, proc.getWidth() - 2 * n,
+              proc.getHeight() - 2 * n);
+      for (Point p : old) {
+         if (inside.contains(p) && isStrictMax(proc, p.x, p.y, n)
+                 && !found.contains(p)) {
+            fail(name + ": old maximum at " + p.x + ", " + p.y + " missing");
+         }
+      }
+      if (exact) {
+         // the old finder left out the last 2n + 1 columns and rows
+         int n2 = 2 * n + 1;
+         Rectangle blocks = new Rectangle(roi.x, roi.y,
+                 ((roi.width - 2 * n - 1) / n2 + 1) * n2,
+                 ((roi.height - 2 * n - 1) / n2 + 1) * n2);
+         for (Point p : found) {
+            if (blocks.contains(p) && isStrictMax(proc, p.x, p.y, n)
+                    && !old.contains(p)) {
+               fail(name + ": maximum at " + p.x + ", " + p.y
+                       + " not found by the old finder");
+            }
+         }
+      }
+   }
+
+   private static void fail(String message) {
+      System.out.println("FAILED " + message);
+      nrFailures_++;
+   }
+
+   private static Set<Point> toSet(Polygon polygon) {
+      Set<Point> points = new HashSet<Point>();
+      for (int i = 0; i < polygon.npoints; i++) {
+         points.add(new Point(polygon.xpoints[i], polygon.ypoints[i]));
+      }
+      return points;
+   }
+
+   /**
+    * Gaussian spots with distinct heights on a flat background, further
+    * apart than the block size of the old finder
+    */
+   private static ShortProcessor spots(Random random, int width, int height,
+           int n) {
+      ShortProcessor proc = new ShortProcessor(width, height);
+      short[] pixels = (short[]) proc.getPixels();
+      int spacing = 4 * n + 4;
+      for (int y0 = 2 * n + 2; y0 < height - 2 * n - 2; y0 += spacing) {
+         for (int x0 = 2 * n + 2; x0 < width - 2 * n - 2; x0 += spacing) {
+            int x = x0 + random.nextInt(n + 1);
+            int y = y0 + random.nextInt(n + 1);
+            double amplitude = 200 + random.nextInt(1000);
+            for (int dy = -n; dy <= n; dy++) {
+               for (int dx = -n; dx <= n; dx++) {
+                  double r2 = dx * dx + dy * dy;
+                  int value = 10 + (int) (amplitude * Math.exp(-r2 / 2.0))
+                          - (int) Math.sqrt(r2);
+                  pixels[(y + dy) * width + x + dx] = (short) Math.max(10, value);
+               }
+            }
+         }
+      }
+      for (int i = 0; i < pixels.length; i++) {
+         if (pixels[i] == 0) {
+            pixels[i] = 10;
+         }
+      }
+      return proc;
+   }
+
+   private static ShortProcessor noise(Random random, int width, int height,
+           int levels) {
+      ShortProcessor proc = new ShortProcessor(width, height);
+      short[] pixels = (short[]) proc.getPixels();
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) random.nextInt(levels);
+      }
+      return proc;
+   }
+
+   private static boolean isStrictMax(ImageProcessor proc, int x, int y, int n) {
+      int val = proc.getPixel(x, y);
+      for (int y2 = y - n; y2 <= y + n; y2++) {
+         for (int x2 = x - n; x2 <= x + n; x2++) {
+            if ((x2 != x || y2 != y) && proc.getPixel(x2, y2) >= val) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * A pixel is a maximum when no pixel within n is larger, and no earlier
+    * pixel (in raster order) within n has the same value and is a maximum
+    * as well.
+    */
+   private static Set<Point> directFindMax(ImageProcessor proc, int n,
+           int threshold) {
+      int width = proc.getWidth();
+      int height = proc.getHeight();
+      boolean[] isMax = new boolean[width * height];
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            int val = proc.getPixel(x, y);
+            boolean max = true;
+            for (int y2 = Math.max(0, y - n); max && y2 <= Math.min(height - 1, y + n); y2++) {
+               for (int x2 = Math.max(0, x - n); x2 <= Math.min(width - 1, x + n); x2++) {
+                  if (proc.getPixel(x2, y2) > val) {
+                     max = false;
+                     break;
+                  }
+               }
+            }
+            isMax[y * width + x] = max;
+         }
+      }
+      Set<Point> result = new HashSet<Point>();
+      Rectangle roi = proc.getRoi();
+      for (int y = Math.max(roi.y, n); y < Math.min(roi.y + roi.height, height - n); y++) {
+         for (int x = Math.max(roi.x, n); x < Math.min(roi.x + roi.width, width - n); x++) {
+            if (!isMax[y * width + x]) {
+               continue;
+            }
+            int val = proc.getPixel(x, y);
+            boolean tie = false;
+            for (int y2 = y - n; !tie && y2 <= y; y2++) {
+               int xLast = y2 == y ? x - 1 : x + n;
+               for (int x2 = x - n; x2 <= xLast; x2++) {
+                  if (proc.getPixel(x2, y2) == val && isMax[y2 * width + x2]) {
+                     tie = true;
+                     break;
+                  }
+               }
+            }
+            if (!tie && (threshold == 0 || val - (proc.getPixel(x - n, y - n)
+                    + proc.getPixel(x - n, y + n) + proc.getPixel(x + n, y - n)
+                    + proc.getPixel(x + n, y + n)) / 4.0f > threshold)) {
+               result.add(new Point(x, y));
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * The maxima finder as it was before the separable max-filter: the image
+    * is divided in blocks of 2n + 1, and the largest pixel of each block is
+    * a maximum when no pixel within n of it is larger.
+    */
+   private static Polygon oldFindMax(ImageProcessor iProc, int n, int threshold) {
+      Polygon maxima = new Polygon();
+      Rectangle roi = iProc.getRoi();
+      int n2 = 2*n + 1;
+      int xRealEnd = roi.x + roi.width;
+      int xEnd = xRealEnd - n;
+      int yRealEnd = roi.y + roi.height;
+      int yEnd = yRealEnd - n;
+      for (int i=roi.x; i <= xEnd - n - 1; i+=n2) {
+         for (int j=roi.y; j <= yEnd - n - 1; j+=n2) {
+            int mi = i;
+            int mj = j;
+            for (int i2=i; i2 < i + n2 && i2 < xRealEnd; i2++) {
+               for (int j2=j; j2 < j + n2 && j2 < yRealEnd; j2++) {
+                  if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj)) {
+                     mi = i2;
+                     mj = j2;
+                  }
+               }
+            }
+            boolean stop = false;
+            if (mi - n < i && i>0) {
+               for (int i2=mi-n; i2<i; i2++) {
+                  for (int j2=mj-n; j2<=mj+n; j2++) {
+                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj)) {
+                        stop = true;
+                     }
+                  }
+               }
+            }
+            if (!stop && mi + n >= i + n2 ) {
+               for (int i2=i+n2; i2<=mi+n; i2++) {
+                   for (int j2=mj-n; j2<=mj+n; j2++) {
+                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj)) {
+                        stop = true;
+                     }
+                  }
+               }
+            }
+            if (!stop && mj - n < j && j > 0) {
+               for (int j2 = mj - n; j2 < j; j2++) {
+                  for (int i2 = mi - n; i2 <= mi + n; i2++) {
+                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj))
+                        stop = true;
+                  }
+               }
+            }
+            if (!stop && mj + n >= j + n2) {
+               for (int j2 = j + n2; j2 <= mj + n; j2++) {
+                  for (int i2 = mi - n; i2 <= mi + n; i2++) {
+                     if (iProc.getPixel(i2, j2) > iProc.getPixel(mi, mj))
+                        stop = true;
+                  }
+               }
+            }
+            if (!stop && (threshold == 0 ||
+                    (iProc.getPixel(mi, mj) -
+                      ( (iProc.getPixel(mi - n , mj - n) + iProc.getPixel(mi -n, mj + n) +
+                       iProc.getPixel(mi + n, mj  - n) + iProc.getPixel(mi + n, mj + n)) / 4) )
+                    > threshold))
+               maxima.addPoint(mi, mj);
+         }
+      }
+      return maxima;
+   }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Multi-threaded, tile based renderer for localization microscopy data
+ *
+ * Part of Micro-Manager's Localization Plugin
+ *
+ * Copyright UCSF, 2013.  BSD license
+ */
+package edu.valelab.GaussianFit;
+
+import edu.valelab.GaussianFit.utils.RowData;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.micromanager.utils.ThreadUtils;
+
+/**
+ * Renders spot data in parallel.
+ *
+ * On construction, all spots that pass the filter are copied into primitive
+ * arrays and bucket-sorted into a coarse grid (in nm).  Rendering a viewport
+ * at a given magnification splits the viewport into square tiles that are
+ * rendered concurrently.  Each tile only visits the grid cells it overlaps,
+ * and writes only to its own part of the output, so no locking is needed and
+ * the cost of a render is proportional to the number of visible spots.
+ *
+ * An instance can be kept around (for instance by an ImageCanvas) and re-used
+ * for every pan and zoom, as long as the data and filter do not change.
+ *
+ * @author Nico Stuurman
+ */
+public class TiledRenderer {
+
+   public static final int SCATTER = 0;
+   public static final int GAUSSIAN = 1;
+   public static final int NORMALIZED_GAUSSIAN = 2;
+
+   // size (in rendered pixels) of the tiles that are handed to the threads
+   private static final int TILESIZE = 256;
+   // size (in original camera pixels) of the cells of the spatial index
+   private static final int CELLSIZE = 8;
+
+   // copied from the data set, so that a cached renderer does not keep the
+   // data set itself alive
+   private final float pixelSizeNm_;
+   private final double minZ_;
+   private final double maxZ_;
+   private final int nrSpots_;
+   // spot data, ordered by index cell
+   private final float[] x_;
+   private final float[] y_;
+   private final float[] z_;
+   private final float[] sigma_;
+   // spots of cell c are found at cellStart_[c] to cellStart_[c + 1]
+   private final int[] cellStart_;
+   private final int nrCellsX_;
+   private final int nrCellsY_;
+   private final double cellSizeNm_;
+   private final float maxSigma_;
+
+
+   public TiledRenderer(RowData rowData, SpotDataFilter sf) {
+      pixelSizeNm_ = rowData.pixelSizeNm_;
+      minZ_ = rowData.minZ_;
+      maxZ_ = rowData.maxZ_;
+      cellSizeNm_ = CELLSIZE * rowData.pixelSizeNm_;
+      nrCellsX_ = Math.max(1, (rowData.width_ + CELLSIZE - 1) / CELLSIZE);
+      nrCellsY_ = Math.max(1, (rowData.height_ + CELLSIZE - 1) / CELLSIZE);
+
+      // copy the spots that pass the filter, and count cell occupancy
+      List<GaussianSpotData> spots;
+      synchronized (rowData.spotList_) {
+         spots = new ArrayList<GaussianSpotData>(rowData.spotList_);
+      }
+      int n = spots.size();
+      float[] x = new float[n];
+      float[] y = new float[n];
+      float[] z = new float[n];
+      float[] sigma = new float[n];
+      int[] cell = new int[n];
+      cellStart_ = new int[nrCellsX_ * nrCellsY_ + 1];
+      int counter = 0;
+      float maxSigma = 0.0f;
+      for (GaussianSpotData spot : spots) {
+         if (sf == null || sf.filter(spot)) {
+            x[counter] = (float) spot.getXCenter();
+            y[counter] = (float) spot.getYCenter();
+            z[counter] = (float) spot.getZCenter();
+            sigma[counter] = (float) spot.getSigma();
+            if (sigma[counter] > maxSigma) {
+               maxSigma = sigma[counter];
+            }
+            cell[counter] = cellIndex(x[counter], y[counter]);
+            cellStart_[cell[counter] + 1]++;
+            counter++;
+         }
+      }
+      nrSpots_ = counter;
+      maxSigma_ = maxSigma;
+
+      // counting sort of the spots into their cells
+      for (int c = 0; c < nrCellsX_ * nrCellsY_; c++) {
+         cellStart_[c + 1] += cellStart_[c];
+      }
+      int[] next = new int[nrCellsX_ * nrCellsY_];
+      System.arraycopy(cellStart_, 0, next, 0, next.length);
+      x_ = new float[nrSpots_];
+      y_ = new float[nrSpots_];
+      z_ = new float[nrSpots_];
+      sigma_ = new float[nrSpots_];
+      for (int i = 0; i < nrSpots_; i++) {
+         int j = next[cell[i]]++;
+         x_[j] = x[i];
+         y_[j] = y[i];
+         z_[j] = z[i];
+         sigma_[j] = sigma[i];
+      }
+   }
+
+   /**
+    * @return number of spots that passed the filter
+    */
+   public int getNrSpots() {
+      return nrSpots_;
+   }
+
+   /**
+    * Renders the spots in the given part of the magnified image
+    *
+    * @param method - SCATTER, GAUSSIAN or NORMALIZED_GAUSSIAN
+    * @param magnification - factor x original size
+    * @param rect - roi in the magnified image that should be rendered
+    * @return pixels of the rendered image, short[] for SCATTER, float[] otherwise
+    */
+   public Object render(final int method, final double magnification,
+           final Rectangle rect) {
+      final int size = rect.width * rect.height;
+      if (method == SCATTER) {
+         final short[] pixels = new short[size];
+         runTiles(rect, new TileJob() {
+            @Override
+            public void render(Rectangle tile) {
+               renderScatterTile(pixels, null, magnification, rect, tile);
+            }
+         });
+         return pixels;
+      }
+      final float[] pixels = new float[size];
+      final boolean normalize = method == NORMALIZED_GAUSSIAN;
+      runTiles(rect, new TileJob() {
+         @Override
+         public void render(Rectangle tile) {
+            renderGaussianTile(pixels, normalize, magnification, rect, tile);
+         }
+      });
+      return pixels;
+   }
+
+   /**
+    * Renders a scatter plot in which the z position of each spot is
+    * added as a color taken from the given look up table
+    *
+    * @param zLut - 256 rgb entries
+    * @param magnification - factor x original size
+    * @param rect - roi in the magnified image that should be rendered
+    * @return red, green and blue accumulated values
+    */
+   public int[][] renderZColor(final int[][] zLut, final double magnification,
+           final Rectangle rect) {
+      final int[][] rgb = new int[3][rect.width * rect.height];
+      runTiles(rect, new TileJob() {
+         @Override
+         public void render(Rectangle tile) {
+            renderZColorTile(rgb, zLut, magnification, rect, tile);
+         }
+      });
+      return rgb;
+   }
+
+   /**
+    * Renders a scatter plot into a stack of images, spots are
+    * sorted into slices by their z position
+    *
+    * @param magnification - factor x original size
+    * @param rect - roi in the magnified image that should be rendered
+    * @param nrZs - number of slices in the output
+    * @return pixels for each slice
+    */
+   public short[][] renderScatter3D(final double magnification,
+           final Rectangle rect, int nrZs) {
+      final short[][] pixels = new short[nrZs][rect.width * rect.height];
+      runTiles(rect, new TileJob() {
+         @Override
+         public void render(Rectangle tile) {
+            renderScatterTile(null, pixels, magnification, rect, tile);
+         }
+      });
+      return pixels;
+   }
+
+
+   private interface TileJob {
+      public void render(Rectangle tile);
+   }
+
+   /**
+    * Splits the rect in tiles and hands these to the thread pool
+    */
+   private void runTiles(Rectangle rect, final TileJob job) {
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int ty = rect.y; ty < rect.y + rect.height; ty += TILESIZE) {
+         for (int tx = rect.x; tx < rect.x + rect.width; tx += TILESIZE) {
+            final Rectangle tile = new Rectangle(tx, ty,
+                    Math.min(TILESIZE, rect.x + rect.width - tx),
+                    Math.min(TILESIZE, rect.y + rect.height - ty));
+            tasks.add(new Callable<Object>() {
+               @Override
+               public Object call() {
+                  job.render(tile);
+                  return null;
+               }
+            });
+         }
+      }
+      try {
+         ThreadUtils.invokeAll(tasks);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while rendering", ex);
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ex.getCause();
+         }
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+
+   private int cellIndex(float x, float y) {
+      int cx = clamp((int) (x / cellSizeNm_), nrCellsX_);
+      int cy = clamp((int) (y / cellSizeNm_), nrCellsY_);
+      return cy * nrCellsX_ + cx;
+   }
+
+   private static int clamp(int val, int n) {
+      if (val < 0) {
+         return 0;
+      }
+      if (val >= n) {
+         return n - 1;
+      }
+      return val;
+   }
+
+   /**
+    * Returns the range of index cells {cx0, cy0, cx1, cy1} (inclusive)
+    * that contain spots that can reach the tile
+    *
+    * @param margin - extra border (in rendered pixels) around the tile
+    */
+   private int[] cellRange(Rectangle tile, double factor, int margin) {
+      double f = 1.0 / (factor * cellSizeNm_);
+      return new int[] {
+         clamp((int) Math.floor((tile.x - margin) * f), nrCellsX_),
+         clamp((int) Math.floor((tile.y - margin) * f), nrCellsY_),
+         clamp((int) Math.floor((tile.x + tile.width + margin) * f), nrCellsX_),
+         clamp((int) Math.floor((tile.y + tile.height + margin) * f), nrCellsY_)
+      };
+   }
+
+   /**
+    * Adds one count per spot to either pixels (2D) or pixels3D
+    */
+   private void renderScatterTile(short[] pixels, short[][] pixels3D,
+           double magnification, Rectangle rect, Rectangle tile) {
+      final double factor = magnification / pixelSizeNm_;
+      final int endx = tile.x + tile.width;
+      final int endy = tile.y + tile.height;
+      final int nrZs = pixels3D == null ? 0 : pixels3D.length;
+      int[] cr = cellRange(tile, factor, 1);
+      for (int cy = cr[1]; cy <= cr[3]; cy++) {
+         for (int cx = cr[0]; cx <= cr[2]; cx++) {
+            int c = cy * nrCellsX_ + cx;
+            for (int i = cellStart_[c]; i < cellStart_[c + 1]; i++) {
+               int x = (int) (factor * x_[i]);
+               int y = (int) (factor * y_[i]);
+               if (x < tile.x || x >= endx || y < tile.y || y >= endy) {
+                  continue;
+               }
+               int index = (y - rect.y) * rect.width + (x - rect.x);
+               short[] target = pixels;
+               if (pixels3D != null) {
+                  int z = (int) (factor * (z_[i] - minZ_) * 500.0);
+                  if (z < 0 || z >= nrZs) {
+                     continue;
+                  }
+                  target = pixels3D[z];
+               }
+               // saturate at 65535
+               if (target[index] != -1) {
+                  target[index] += 1;
+               }
+            }
+         }
+      }
+   }
+
+   private void renderZColorTile(int[][] rgb, int[][] zLut,
+           double magnification, Rectangle rect, Rectangle tile) {
+      final double factor = magnification / pixelSizeNm_;
+      final double spread = maxZ_ - minZ_;
+      final int endx = tile.x + tile.width;
+      final int endy = tile.y + tile.height;
+      int[] cr = cellRange(tile, factor, 1);
+      for (int cy = cr[1]; cy <= cr[3]; cy++) {
+         for (int cx = cr[0]; cx <= cr[2]; cx++) {
+            int c = cy * nrCellsX_ + cx;
+            for (int i = cellStart_[c]; i < cellStart_[c + 1]; i++) {
+               int x = (int) (factor * x_[i]);
+               int y = (int) (factor * y_[i]);
+               if (x < tile.x || x >= endx || y < tile.y || y >= endy) {
+                  continue;
+               }
+               int index = (y - rect.y) * rect.width + (x - rect.x);
+               int zIndex = (int) (256 * (z_[i] - minZ_) / spread);
+               zIndex = clamp(zIndex, 256);
+               for (int j = 0; j < 3; j++) {
+                  rgb[j][index] += zLut[zIndex][j];
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Adds a Gaussian for each spot, with a width equal to the localization
+    * precision.  The Gaussian is separable, so it is evaluated as the
+    * product of two one-dimensional profiles.
+    */
+   private void renderGaussianTile(float[] pixels, boolean normalize,
+           double magnification, Rectangle rect, Rectangle tile) {
+      final double renderedPixelInNm = pixelSizeNm_ / magnification;
+      final double factor = magnification / pixelSizeNm_;
+      final int endx = tile.x + tile.width;
+      final int endy = tile.y + tile.height;
+      final int maxHalfWidth = Math.max(2, (int) (2 * maxSigma_ / renderedPixelInNm));
+      double[] xProfile = new double[2 * maxHalfWidth];
+      double[] yProfile = new double[2 * maxHalfWidth];
+      int[] cr = cellRange(tile, factor, maxHalfWidth + 1);
+      for (int cy = cr[1]; cy <= cr[3]; cy++) {
+         for (int cx = cr[0]; cx <= cr[2]; cx++) {
+            int c = cy * nrCellsX_ + cx;
+            for (int i = cellStart_[c]; i < cellStart_[c + 1]; i++) {
+               // cover 2 * precision
+               int halfWidth = (int) (2 * sigma_[i] / renderedPixelInNm);
+               if (halfWidth == 0) {
+                  halfWidth = 2;
+               }
+               int xc = (int) (factor * x_[i]);
+               int yc = (int) (factor * y_[i]);
+               int xStart = xc - halfWidth;
+               int yStart = yc - halfWidth;
+               int xEnd = xc + halfWidth;
+               int yEnd = yc + halfWidth;
+               if (xEnd <= tile.x || xStart >= endx || yEnd <= tile.y || yStart >= endy) {
+                  continue;
+               }
+               double xCenter = x_[i] / renderedPixelInNm;
+               double yCenter = y_[i] / renderedPixelInNm;
+               double s = sigma_[i] / renderedPixelInNm;
+               double twoSigmaSqr = 2 * s * s;
+               double xSum = 0.0;
+               double ySum = 0.0;
+               for (int k = 0; k < 2 * halfWidth; k++) {
+                  double dx = xStart + k - xCenter;
+                  double dy = yStart + k - yCenter;
+                  xProfile[k] = Math.exp(-dx * dx / twoSigmaSqr);
+                  yProfile[k] = Math.exp(-dy * dy / twoSigmaSqr);
+                  xSum += xProfile[k];
+                  ySum += yProfile[k];
+               }
+               double scale = 1.0;
+               if (normalize) {
+                  if (xSum * ySum <= 0.0) {
+                     continue;
+                  }
+                  scale = 1.0 / (xSum * ySum);
+               }
+               int x0 = Math.max(xStart, tile.x);
+               int x1 = Math.min(xEnd, endx);
+               int y0 = Math.max(yStart, tile.y);
+               int y1 = Math.min(yEnd, endy);
+               for (int y = y0; y < y1; y++) {
+                  double yVal = scale * yProfile[y - yStart];
+                  int offset = (y - rect.y) * rect.width - rect.x;
+                  for (int x = x0; x < x1; x++) {
+                     pixels[offset + x] += (float) (yVal * xProfile[x - xStart]);
+                  }
+               }
+            }
+         }
+      }
+   }
+
+}
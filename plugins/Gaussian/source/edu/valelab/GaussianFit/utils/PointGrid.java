@@ -0,0 +1,199 @@
+/**
+ * PointGrid
+ *
+ * Grid hash of 2D points for searches with a fixed radius
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+package edu.valelab.GaussianFit.utils;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+import org.micromanager.utils.ThreadUtils;
+
+/**
+ * Points are sorted into square cells that are at least as large as the
+ * search radius, so that any search only needs to look at the 3x3 cells
+ * around the query point.  Cell contents are stored contiguously in
+ * primitive arrays (counting sort), and queries return indices into the
+ * arrays used to build the grid.  Queries do not modify the grid, so it can
+ * be used from many threads at once.
+ *
+ * When the search radius is fixed, this is faster to build and to query
+ * than a kd-tree.
+ *
+ * @author nico
+ */
+public class PointGrid {
+   private final double radius_;
+   private final double radius2_;
+   private final double cellSize_;
+   private final double minX_;
+   private final double minY_;
+   private final int nrCellsX_;
+   private final int nrCellsY_;
+   // points of cell c are found at cellStart_[c] to cellStart_[c + 1]
+   private final int[] cellStart_;
+   // coordinates and original indices, in cell order
+   private final double[] x_;
+   private final double[] y_;
+   private final int[] ids_;
+
+   /**
+    * @param x - x coordinates of the points
+    * @param y - y coordinates of the points
+    * @param radius - search radius that will be used in all queries
+    */
+   public PointGrid(double[] x, double[] y, double radius) {
+      int n = x.length;
+      radius_ = radius;
+      radius2_ = radius * radius;
+      double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+         minX = Math.min(minX, x[i]);
+         maxX = Math.max(maxX, x[i]);
+         minY = Math.min(minY, y[i]);
+         maxY = Math.max(maxY, y[i]);
+      }
+      if (n == 0) {
+         minX = maxX = minY = maxY = 0.0;
+      }
+      minX_ = minX;
+      minY_ = minY;
+      // do not use (many) more cells than points
+      double cellSize = Math.max(radius, Double.MIN_NORMAL);
+      double area = Math.max(maxX - minX, cellSize) * Math.max(maxY - minY, cellSize);
+      double minCellSize = Math.sqrt(area / Math.max(1, 2 * n));
+      if (cellSize < minCellSize) {
+         cellSize = minCellSize;
+      }
+      cellSize_ = cellSize;
+      nrCellsX_ = (int) ((maxX - minX) / cellSize) + 1;
+      nrCellsY_ = (int) ((maxY - minY) / cellSize) + 1;
+
+      int[] cell = new int[n];
+      cellStart_ = new int[nrCellsX_ * nrCellsY_ + 1];
+      for (int i = 0; i < n; i++) {
+         cell[i] = cellY(y[i]) * nrCellsX_ + cellX(x[i]);
+         cellStart_[cell[i] + 1]++;
+      }
+      for (int c = 0; c < nrCellsX_ * nrCellsY_; c++) {
+         cellStart_[c + 1] += cellStart_[c];
+      }
+      int[] next = new int[nrCellsX_ * nrCellsY_];
+      System.arraycopy(cellStart_, 0, next, 0, next.length);
+      x_ = new double[n];
+      y_ = new double[n];
+      ids_ = new int[n];
+      for (int i = 0; i < n; i++) {
+         int j = next[cell[i]]++;
+         x_[j] = x[i];
+         y_[j] = y[i];
+         ids_[j] = i;
+      }
+   }
+
+   public PointGrid(List<Point2D.Double> points, double radius) {
+      this(PointKdTree.xArray(points), PointKdTree.yArray(points), radius);
+   }
+
+   public double getRadius() {
+      return radius_;
+   }
+
+   private int cellX(double x) {
+      int cx = (int) ((x - minX_) / cellSize_);
+      return cx < 0 ? 0 : (cx >= nrCellsX_ ? nrCellsX_ - 1 : cx);
+   }
+
+   private int cellY(double y) {
+      int cy = (int) ((y - minY_) / cellSize_);
+      return cy < 0 ? 0 : (cy >= nrCellsY_ ? nrCellsY_ - 1 : cy);
+   }
+
+   /**
+    * Finds the point nearest to the query point, within the search radius
+    * @return index of the nearest point, or -1 if there is none
+    */
+   public int nearest(double qx, double qy) {
+      double qcx = (qx - minX_) / cellSize_;
+      double qcy = (qy - minY_) / cellSize_;
+      // query points far outside of the grid can not have neighbors
+      if (qcx < -1 || qcy < -1 || qcx > nrCellsX_ + 1 || qcy > nrCellsY_ + 1) {
+         return -1;
+      }
+      int cx = cellX(qx);
+      int cy = cellY(qy);
+      double best = radius2_;
+      int bestIndex = -1;
+      for (int y = Math.max(cy - 1, 0); y <= Math.min(cy + 1, nrCellsY_ - 1); y++) {
+         for (int x = Math.max(cx - 1, 0); x <= Math.min(cx + 1, nrCellsX_ - 1); x++) {
+            int c = y * nrCellsX_ + x;
+            for (int i = cellStart_[c]; i < cellStart_[c + 1]; i++) {
+               double dx = x_[i] - qx;
+               double dy = y_[i] - qy;
+               double d2 = dx * dx + dy * dy;
+               if (d2 < best) {
+                  best = d2;
+                  bestIndex = ids_[i];
+               }
+            }
+         }
+      }
+      return bestIndex;
+   }
+
+   /**
+    * Finds all points within the search radius of the query point
+    * @return indices of the points found, in no particular order
+    */
+   public int[] withinRadius(double qx, double qy) {
+      PointKdTree.IntList result = new PointKdTree.IntList();
+      double qcx = (qx - minX_) / cellSize_;
+      double qcy = (qy - minY_) / cellSize_;
+      if (qcx < -1 || qcy < -1 || qcx > nrCellsX_ + 1 || qcy > nrCellsY_ + 1) {
+         return result.toArray();
+      }
+      int cx = cellX(qx);
+      int cy = cellY(qy);
+      for (int y = Math.max(cy - 1, 0); y <= Math.min(cy + 1, nrCellsY_ - 1); y++) {
+         for (int x = Math.max(cx - 1, 0); x <= Math.min(cx + 1, nrCellsX_ - 1); x++) {
+            int c = y * nrCellsX_ + x;
+            for (int i = cellStart_[c]; i < cellStart_[c + 1]; i++) {
+               double dx = x_[i] - qx;
+               double dy = y_[i] - qy;
+               if (dx * dx + dy * dy <= radius2_) {
+                  result.add(ids_[i]);
+               }
+            }
+         }
+      }
+      return result.toArray();
+   }
+
+   /**
+    * Nearest point within the search radius for each of the query points,
+    * calculated in parallel
+    *
+    * @param qx - x coordinates of the query points
+    * @param qy - y coordinates of the query points
+    * @return for each query point the index of the nearest point, or -1
+    */
+   public int[] nearest(final double[] qx, final double[] qy) {
+      final int[] result = new int[qx.length];
+      ThreadUtils.parallelFor(qx.length, 1024, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+               result[i] = nearest(qx[i], qy[i]);
+            }
+         }
+      });
+      return result;
+   }
+
+}
@@ -0,0 +1,341 @@
+/**
+ * PointKdTree
+ *
+ * Static 2D kd-tree stored in flat, primitive arrays
+ *
+ * Copyright UCSF, 2013
+ *
+ * Licensed under BSD version 2.0
+ *
+ */
+package edu.valelab.GaussianFit.utils;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.List;
+import org.micromanager.utils.ThreadUtils;
+
+/**
+ * Balanced kd-tree for 2D points that is built once and then only queried.
+ *
+ * The tree is implicit: the points are reordered so that the node of a range
+ * is its middle element, with the smaller half on the left and the larger
+ * half on the right.  Queries return indices into the arrays that were used to
+ * build the tree, and do not allocate (apart from their result arrays).
+ * The tree is not modified by queries, so it can be used from many threads
+ * at once.
+ *
+ * @author nico
+ */
+public class PointKdTree {
+   private final int n_;
+   // coordinates in tree order
+   private final double[] x_;
+   private final double[] y_;
+   // original index of the point at each tree position
+   private final int[] ids_;
+   // split dimension of the node at each tree position, 0 = x, 1 = y
+   private final byte[] dim_;
+
+   public PointKdTree(double[] x, double[] y) {
+      n_ = x.length;
+      x_ = x.clone();
+      y_ = y.clone();
+      ids_ = new int[n_];
+      for (int i = 0; i < n_; i++) {
+         ids_[i] = i;
+      }
+      dim_ = new byte[n_];
+      build(0, n_);
+   }
+
+   public PointKdTree(List<Point2D.Double> points) {
+      this(xArray(points), yArray(points));
+   }
+
+   public static double[] xArray(List<Point2D.Double> points) {
+      double[] result = new double[points.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = points.get(i).x;
+      }
+      return result;
+   }
+
+   public static double[] yArray(List<Point2D.Double> points) {
+      double[] result = new double[points.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = points.get(i).y;
+      }
+      return result;
+   }
+
+   public int size() {
+      return n_;
+   }
+
+   private void build(int lo, int hi) {
+      while (hi - lo > 1) {
+         // split along the dimension with the largest spread
+         double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+         double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+         for (int i = lo; i < hi; i++) {
+            minX = Math.min(minX, x_[i]);
+            maxX = Math.max(maxX, x_[i]);
+            minY = Math.min(minY, y_[i]);
+            maxY = Math.max(maxY, y_[i]);
+         }
+         byte dim = (maxX - minX >= maxY - minY) ? (byte) 0 : (byte) 1;
+         int mid = (lo + hi) >>> 1;
+         select(lo, hi - 1, mid, dim == 0 ? x_ : y_);
+         dim_[mid] = dim;
+         build(lo, mid);
+         lo = mid + 1;
+      }
+   }
+
+   /**
+    * Quickselect: reorders the range so that position k holds the element
+    * that would be there if the range was sorted on key
+    */
+   private void select(int lo, int hi, int k, double[] key) {
+      while (hi > lo) {
+         double pivot = key[(lo + hi) >>> 1];
+         int i = lo;
+         int j = hi;
+         while (i <= j) {
+            while (key[i] < pivot) {
+               i++;
+            }
+            while (key[j] > pivot) {
+               j--;
+            }
+            if (i <= j) {
+               swap(i, j);
+               i++;
+               j--;
+            }
+         }
+         if (k <= j) {
+            hi = j;
+         } else if (k >= i) {
+            lo = i;
+         } else {
+            return;
+         }
+      }
+   }
+
+   private void swap(int i, int j) {
+      double t = x_[i];
+      x_[i] = x_[j];
+      x_[j] = t;
+      t = y_[i];
+      y_[i] = y_[j];
+      y_[j] = t;
+      int id = ids_[i];
+      ids_[i] = ids_[j];
+      ids_[j] = id;
+   }
+
+   /**
+    * Finds the point nearest to the query point
+    * @param qx - x coordinate of query point
+    * @param qy - y coordinate of query point
+    * @param maxDistance - only points closer than this are considered
+    * @return index of the nearest point, or -1 if there is none within
+    *          maxDistance
+    */
+   public int nearest(double qx, double qy, double maxDistance) {
+      double[] best = {maxDistance * maxDistance, -1};
+      nearest(0, n_, qx, qy, best);
+      return (int) best[1];
+   }
+
+   private void nearest(int lo, int hi, double qx, double qy, double[] best) {
+      while (hi > lo) {
+         int mid = (lo + hi) >>> 1;
+         double dx = x_[mid] - qx;
+         double dy = y_[mid] - qy;
+         double d2 = dx * dx + dy * dy;
+         if (d2 < best[0]) {
+            best[0] = d2;
+            best[1] = ids_[mid];
+         }
+         double diff = dim_[mid] == 0 ? qx - x_[mid] : qy - y_[mid];
+         // descend the near side first, then the far side if it can be closer
+         if (diff < 0) {
+            nearest(lo, mid, qx, qy, best);
+            if (diff * diff >= best[0]) {
+               return;
+            }
+            lo = mid + 1;
+         } else {
+            nearest(mid + 1, hi, qx, qy, best);
+            if (diff * diff >= best[0]) {
+               return;
+            }
+            hi = mid;
+         }
+      }
+   }
+
+   /**
+    * Finds the k points nearest to the query point
+    *
+    * @param qx - x coordinate of query point
+    * @param qy - y coordinate of query point
+    * @param k - number of points requested
+    * @param indices - receives the indices of the points found, nearest first
+    * @param distances2 - receives the squared distances of the points found
+    * @return number of points found, can be smaller than k for small trees
+    */
+   public int kNearest(double qx, double qy, int k, int[] indices,
+           double[] distances2) {
+      k = Math.min(k, n_);
+      // max-heap on distance, with the furthest of the current set on top
+      Arrays.fill(distances2, 0, k, Double.POSITIVE_INFINITY);
+      Arrays.fill(indices, 0, k, -1);
+      kNearest(0, n_, qx, qy, k, indices, distances2);
+      // heapsort in place, giving ascending order
+      for (int end = k - 1; end > 0; end--) {
+         swapHeap(indices, distances2, 0, end);
+         siftDown(indices, distances2, 0, end);
+      }
+      return k;
+   }
+
+   private void kNearest(int lo, int hi, double qx, double qy, int k,
+           int[] indices, double[] heap) {
+      while (hi > lo) {
+         int mid = (lo + hi) >>> 1;
+         double dx = x_[mid] - qx;
+         double dy = y_[mid] - qy;
+         double d2 = dx * dx + dy * dy;
+         if (d2 < heap[0]) {
+            heap[0] = d2;
+            indices[0] = ids_[mid];
+            siftDown(indices, heap, 0, k);
+         }
+         double diff = dim_[mid] == 0 ? qx - x_[mid] : qy - y_[mid];
+         if (diff < 0) {
+            kNearest(lo, mid, qx, qy, k, indices, heap);
+            if (diff * diff >= heap[0]) {
+               return;
+            }
+            lo = mid + 1;
+         } else {
+            kNearest(mid + 1, hi, qx, qy, k, indices, heap);
+            if (diff * diff >= heap[0]) {
+               return;
+            }
+            hi = mid;
+         }
+      }
+   }
+
+   private static void siftDown(int[] indices, double[] heap, int i, int size) {
+      while (true) {
+         int largest = i;
+         int left = 2 * i + 1;
+         int right = left + 1;
+         if (left < size && heap[left] > heap[largest]) {
+            largest = left;
+         }
+         if (right < size && heap[right] > heap[largest]) {
+            largest = right;
+         }
+         if (largest == i) {
+            return;
+         }
+         swapHeap(indices, heap, i, largest);
+         i = largest;
+      }
+   }
+
+   private static void swapHeap(int[] indices, double[] heap, int i, int j) {
+      double t = heap[i];
+      heap[i] = heap[j];
+      heap[j] = t;
+      int id = indices[i];
+      indices[i] = indices[j];
+      indices[j] = id;
+   }
+
+   /**
+    * Finds all points within the given distance of the query point
+    * @return indices of the points found, in no particular order
+    */
+   public int[] withinRadius(double qx, double qy, double radius) {
+      IntList result = new IntList();
+      withinRadius(0, n_, qx, qy, radius * radius, result);
+      return result.toArray();
+   }
+
+   private void withinRadius(int lo, int hi, double qx, double qy,
+           double r2, IntList result) {
+      while (hi > lo) {
+         int mid = (lo + hi) >>> 1;
+         double dx = x_[mid] - qx;
+         double dy = y_[mid] - qy;
+         if (dx * dx + dy * dy <= r2) {
+            result.add(ids_[mid]);
+         }
+         double diff = dim_[mid] == 0 ? qx - x_[mid] : qy - y_[mid];
+         if (diff < 0) {
+            withinRadius(lo, mid, qx, qy, r2, result);
+            if (diff * diff > r2) {
+               return;
+            }
+            lo = mid + 1;
+         } else {
+            withinRadius(mid + 1, hi, qx, qy, r2, result);
+            if (diff * diff > r2) {
+               return;
+            }
+            hi = mid;
+         }
+      }
+   }
+
+   /**
+    * Nearest point for each of the query points, calculated in parallel
+    *
+    * @param qx - x coordinates of the query points
+    * @param qy - y coordinates of the query points
+    * @param maxDistance - only points closer than this are considered
+    * @return for each query point the index of the nearest point, or -1
+    */
+   public int[] nearest(final double[] qx, final double[] qy,
+           final double maxDistance) {
+      final int[] result = new int[qx.length];
+      ThreadUtils.parallelFor(qx.length, 1024, new ThreadUtils.RangeTask() {
+         @Override
+         public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+               result[i] = nearest(qx[i], qy[i], maxDistance);
+            }
+         }
+      });
+      return result;
+   }
+
+   /**
+    * Minimal growable int array
+    */
+   static class IntList {
+      private int[] data_ = new int[16];
+      private int size_ = 0;
+
+      void add(int val) {
+         if (size_ == data_.length) {
+            data_ = Arrays.copyOf(data_, 2 * size_);
+         }
+         data_[size_++] = val;
+      }
+
+      int[] toArray() {
+         return Arrays.copyOf(data_, size_);
+      }
+   }
+
+}
@@ -32,10 +32,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
 import org.apache.commons.math.linear.DecompositionSolver;
 import org.apache.commons.math.linear.LUDecompositionImpl;
 import org.apache.commons.math.linear.RealMatrix;
+import org.micromanager.utils.ThreadUtils;
 
 public class LocalWeightedMean {
    final private ExponentPairs exponentPairs_;
@@ -43,6 +46,19 @@ public class LocalWeightedMean {
    final private EnhancedKDTree kdTree_;
    final private int order_;
    final private PointMap pointMap_;
+   final private Point2D.Double[] keyArray_;
+   // flat copies of exponents and control points (in keyArray_ order), 
+   // used by the batch transform
+   final private int[] xExp_;
+   final private int[] yExp_;
+   final private double[] cpR_;
+   final private double[] coeffX_;
+   final private double[] coeffY_;
+   // KdTree queries modify the tree, so every thread gets its own copy
+   final private ThreadLocal<EnhancedKDTree> localTree_;
+   private volatile LookupGrid grid_;
+   
+   final private static int NRNEIGHBORS = 20;
 
    public static class PointMap extends HashMap<Point2D.Double, Point2D.Double> {}
 
@@ -162,9 +178,10 @@ public class LocalWeightedMean {
 
    public static double evaluatePolynomial(double x, double y, double[] coeffs,
            ExponentPairs exponentPairs) {
+      final double[] terms = powerTerms(x, y, exponentPairs);
       double result = 0;
       for (int i=0;i<coeffs.length;++i) {
-           result += coeffs[i] * powerTerms(x, y, exponentPairs)[i];
+           result += coeffs[i] * terms[i];
       }
       return result;
    }
@@ -198,7 +215,204 @@ public class LocalWeightedMean {
    }
 
    public Point2D.Double transform(Point2D.Double srcTestPoint) {
-      return computeTransformation(kdTree_, srcTestPoint, controlPoints_, exponentPairs_);
+      final double[] result = new double[2];
+      final LookupGrid grid = grid_;
+      if (grid == null || !grid.interpolate(srcTestPoint.x, srcTestPoint.y, result)) {
+         transform(srcTestPoint.x, srcTestPoint.y, new Scratch(), result);
+      }
+      return new Point2D.Double(result[0], result[1]);
+   }
+
+   /**
+    * Transforms many points at once, split over all available processors.
+    * The power terms of each point are calculated only once, and the
+    * polynomial coefficients of the control points are read from flat 
+    * arrays.  Points inside the lookup grid (if any, see createLookupGrid)
+    * are interpolated.
+    * 
+    * @param x - x coordinates of the source points
+    * @param y - y coordinates of the source points
+    * @param xOut - receives the transformed x coordinates (can be x)
+    * @param yOut - receives the transformed y coordinates (can be y)
+    */
+   public void transform(final double[] x, final double[] y, 
+           final double[] xOut, final double[] yOut) {
+      final LookupGrid grid = grid_;
+      final int nrChunks = nrChunks(x.length, 4096);
+      final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(nrChunks);
+      for (int c = 0; c < nrChunks; c++) {
+         final int start = (int) ((long) x.length * c / nrChunks);
+         final int end = (int) ((long) x.length * (c + 1) / nrChunks);
+         tasks.add(new Callable<Object>() {
+            public Object call() {
+               final Scratch scratch = new Scratch();
+               final double[] result = new double[2];
+               for (int i = start; i < end; i++) {
+                  if (grid == null || !grid.interpolate(x[i], y[i], result)) {
+                     transform(x[i], y[i], scratch, result);
+                  }
+                  xOut[i] = result[0];
+                  yOut[i] = result[1];
+               }
+               return null;
+            }
+         });
+      }
+      // points may be transformed in place, so all chunks have to finish
+      try {
+         ThreadUtils.invokeAllUninterruptibly(tasks);
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+
+   /**
+    * Evaluates the transform on a regular grid, after which points within
+    * the grid are transformed by bilinear interpolation between the grid 
+    * points.  This is much faster, the error depends on the grid spacing 
+    * relative to the density of the control points.
+    * 
+    * @param minX - left edge of the area to cover
+    * @param minY - top edge of the area to cover
+    * @param maxX - right edge of the area to cover
+    * @param maxY - bottom edge of the area to cover
+    * @param spacing - distance between grid points
+    */
+   public void createLookupGrid(double minX, double minY, double maxX, 
+           double maxY, double spacing) {
+      final int nx = (int) Math.ceil((maxX - minX) / spacing) + 1;
+      final int ny = (int) Math.ceil((maxY - minY) / spacing) + 1;
+      final LookupGrid grid = new LookupGrid(minX, minY, spacing, nx, ny);
+      // an incomplete grid is never installed, parallelFor throws when 
+      // interrupted
+      ThreadUtils.parallelFor(ny, 1, new ThreadUtils.RangeTask() {
+         public void run(int start, int end) {
+            final Scratch scratch = new Scratch();
+            final double[] result = new double[2];
+            for (int j = start; j < end; j++) {
+               for (int i = 0; i < nx; i++) {
+                  transform(grid.minX_ + i * grid.spacing_, 
+                          grid.minY_ + j * grid.spacing_, scratch, result);
+                  grid.x_[j * nx + i] = result[0];
+                  grid.y_[j * nx + i] = result[1];
+               }
+            }
+         }
+      });
+      grid_ = grid;
+   }
+
+   /**
+    * Removes the lookup grid, transforms will be exact again
+    */
+   public void clearLookupGrid() {
+      grid_ = null;
+   }
+
+   /**
+    * Transforms a single point using the flat arrays and the given buffers
+    */
+   private void transform(double x, double y, Scratch s, double[] result) {
+      final int nrTerms = xExp_.length;
+      final List<Entry<Integer>> neighbors = localTree_.get().nearestNeighbor(
+              new double[] {x, y}, NRNEIGHBORS, false);
+      s.xPow[0] = 1.0;
+      s.yPow[0] = 1.0;
+      for (int k = 1; k <= order_; k++) {
+         s.xPow[k] = s.xPow[k - 1] * x;
+         s.yPow[k] = s.yPow[k - 1] * y;
+      }
+      for (int t = 0; t < nrTerms; t++) {
+         s.terms[t] = s.xPow[xExp_[t]] * s.yPow[yExp_[t]];
+      }
+      double sumWeights = 0;
+      double sumWeightedPolyX = 0;
+      double sumWeightedPolyY = 0;
+      for (int n = 0; n < neighbors.size(); n++) {
+         final int cp = neighbors.get(n).value;
+         final double weight = weightFunction(
+                 Math.sqrt(neighbors.get(n).distance) / cpR_[cp]);
+         double polyX = 0;
+         double polyY = 0;
+         final int offset = cp * nrTerms;
+         for (int t = 0; t < nrTerms; t++) {
+            polyX += coeffX_[offset + t] * s.terms[t];
+            polyY += coeffY_[offset + t] * s.terms[t];
+         }
+         sumWeights += weight;
+         sumWeightedPolyX += weight * polyX;
+         sumWeightedPolyY += weight * polyY;
+      }
+      result[0] = sumWeightedPolyX / sumWeights;
+      result[1] = sumWeightedPolyY / sumWeights;
+   }
+
+   /**
+    * Per-thread buffers for the batch transform
+    */
+   private class Scratch {
+      final double[] terms = new double[xExp_.length];
+      final double[] xPow = new double[order_ + 1];
+      final double[] yPow = new double[order_ + 1];
+   }
+
+   /**
+    * Transformed coordinates at regularly spaced points
+    */
+   private static class LookupGrid {
+      final double minX_;
+      final double minY_;
+      final double spacing_;
+      final int nx_;
+      final int ny_;
+      final double[] x_;
+      final double[] y_;
+
+      LookupGrid(double minX, double minY, double spacing, int nx, int ny) {
+         minX_ = minX;
+         minY_ = minY;
+         spacing_ = spacing;
+         nx_ = nx;
+         ny_ = ny;
+         x_ = new double[nx * ny];
+         y_ = new double[nx * ny];
+      }
+
+      /**
+       * @return false when the point is outside of the grid
+       */
+      boolean interpolate(double x, double y, double[] result) {
+         final double gx = (x - minX_) / spacing_;
+         final double gy = (y - minY_) / spacing_;
+         if (!(gx >= 0 && gy >= 0 && gx <= nx_ - 1 && gy <= ny_ - 1)
+                 || nx_ < 2 || ny_ < 2) {
+            return false;
+         }
+         final int i = Math.min((int) gx, nx_ - 2);
+         final int j = Math.min((int) gy, ny_ - 2);
+         final double fx = gx - i;
+         final double fy = gy - j;
+         final int index = j * nx_ + i;
+         result[0] = bilinear(x_, index, fx, fy);
+         result[1] = bilinear(y_, index, fx, fy);
+         return true;
+      }
+
+      private double bilinear(double[] v, int index, double fx, double fy) {
+         final double top = v[index] + fx * (v[index + 1] - v[index]);
+         final double bottom = v[index + nx_] 
+                 + fx * (v[index + nx_ + 1] - v[index + nx_]);
+         return top + fy * (bottom - top);
+      }
+   }
+
+   /**
+    * @return number of chunks to split n items in, one per processor but 
+    * with at least minChunk items in each
+    */
+   private static int nrChunks(int n, int minChunk) {
+      return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+              n / Math.max(1, minChunk)));
    }
 
    public LocalWeightedMean(int order, PointMap pointMap) {
@@ -207,8 +421,33 @@ public class LocalWeightedMean {
       exponentPairs_ = polynomialExponents(order);
       final ArrayList<Point2D.Double> keys = new ArrayList<Point2D.Double>();
       keys.addAll(pointMap.keySet());
-      final Point2D.Double[] keyArray = keys.toArray(new Point2D.Double[]{});
-      kdTree_ = new EnhancedKDTree(keyArray);
+      keyArray_ = keys.toArray(new Point2D.Double[]{});
+      kdTree_ = new EnhancedKDTree(keyArray_);
       controlPoints_ = createControlPoints(kdTree_, order_, pointMap_);
+
+      final int nrTerms = exponentPairs_.size();
+      xExp_ = new int[nrTerms];
+      yExp_ = new int[nrTerms];
+      for (int t = 0; t < nrTerms; t++) {
+         xExp_[t] = exponentPairs_.get(t).xExponent;
+         yExp_[t] = exponentPairs_.get(t).yExponent;
+      }
+      cpR_ = new double[keyArray_.length];
+      coeffX_ = new double[keyArray_.length * nrTerms];
+      coeffY_ = new double[keyArray_.length * nrTerms];
+      for (int cp = 0; cp < keyArray_.length; cp++) {
+         final ControlPoint controlPoint = controlPoints_.get(keyArray_[cp]);
+         cpR_[cp] = controlPoint.Rnormalized;
+         System.arraycopy(controlPoint.polynomialCoefficients.polyX, 0, 
+                 coeffX_, cp * nrTerms, nrTerms);
+         System.arraycopy(controlPoint.polynomialCoefficients.polyY, 0, 
+                 coeffY_, cp * nrTerms, nrTerms);
+      }
+      localTree_ = new ThreadLocal<EnhancedKDTree>() {
+         @Override
+         protected EnhancedKDTree initialValue() {
+            return new EnhancedKDTree(keyArray_);
+         }
+      };
    }   
 }
\ No newline at end of file
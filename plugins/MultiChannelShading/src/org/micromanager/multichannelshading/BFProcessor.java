@@ -11,14 +11,13 @@
 package org.micromanager.multichannelshading;
 
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.FlatFieldUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -34,7 +33,9 @@ class BFProcessor extends DataProcessor<TaggedImage> {
    private int flatFieldWidth_;
    private int flatFieldHeight_;
    private int flatFieldType_;
-   private ImagePlus background_;
+   private float[] background_;
+   private int backgroundWidth_;
+   private int backgroundHeight_;
    private final CMMCore mmc_;
    
    public BFProcessor(CMMCore core){
@@ -55,8 +56,20 @@ class BFProcessor extends DataProcessor<TaggedImage> {
        flatFieldImages.setChannelName(channel, channelName);
    }
    
-   public void setBackground(ImagePlus background){
-      background_ = background;
+   /**
+    * Set the background (dark) image that will be subtracted before
+    * flatfielding.  Set to null if no background subtraction is desired
+    * 
+    * @param background ImagePlus object representing the background image
+    */
+   public synchronized void setBackground(ImagePlus background){
+      if (background != null) {
+         backgroundWidth_ = background.getWidth();
+         backgroundHeight_ = background.getHeight();
+         background_ = FlatFieldUtils.offsetMap(background.getProcessor());
+      } else {
+         background_ = null;
+      }
    }  
    
    public void setChannelGroup(String channelGroup){
@@ -105,8 +118,7 @@ class BFProcessor extends DataProcessor<TaggedImage> {
    public  TaggedImage processTaggedImage(TaggedImage nextImage) throws JSONException, MMScriptException, Exception {     
       int width = MDUtils.getWidth(nextImage.tags);
       int height = MDUtils.getHeight(nextImage.tags);
-      TaggedImage newImage;
-      Float [] flatFieldImage_;
+      float[] flatFieldImage_;
       String type = MDUtils.getPixelType(nextImage.tags);
       String imageChannel;
       String CHANNELNAME = "Channel"; //name of Channel tag
@@ -139,51 +151,34 @@ class BFProcessor extends DataProcessor<TaggedImage> {
       flatFieldHeight_ = flatFieldImages.getImageHeight(imageChannel);
       flatFieldWidth_ = flatFieldImages.getImageWidth(imageChannel);
       
-      // subtract background
-      if (background_ != null) {
-         ImageProcessor differenceProcessor =
-                 ImageUtils.subtractImageProcessors(ImageUtils.makeProcessor(nextImage),
-                 background_.getProcessor());        
-         nextImage = new TaggedImage(differenceProcessor.getPixels(), newTags);
+      float[] background;
+      synchronized (this) {
+         background = background_;
+         if (background != null && (width != backgroundWidth_ ||
+                 height != backgroundHeight_)) {
+            ReportingUtils.logError
+               ("Background dimensions do not match image dimensions");
+            background = null;
+         }
       }
       
       //do not calculate flat field if we don't have a matching channel
-      if (flatFieldImage_ == null) {
-         return nextImage;
-      }      
       // do not calculate if image size differs
-      if (width != flatFieldWidth_ || height != flatFieldHeight_) {
+      if (flatFieldImage_ != null && 
+              (width != flatFieldWidth_ || height != flatFieldHeight_)) {
          ReportingUtils.logError
             ("FlatField dimensions do not match image dimensions");
-         return nextImage;
+         flatFieldImage_ = null;
       }      
       
-      if (ijType == ImagePlus.GRAY8) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) nextImage.pix;
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++){
-            newPixels[index] = (byte) ( (float) oldPixels[index] 
-                * flatFieldImage_[index]);
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-         return newImage;
-       
-      } else if (ijType == ImagePlus.GRAY16) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) nextImage.pix;
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++){
-            //shorts are signed in java so have to do this conversion to get the right value
-            float oldPixel = (float)((int)(oldPixels[index]) & 0x0000ffff);
-            newPixels[index] = (short) ((oldPixel * flatFieldImage_[index]) + 0.5f);
-         }
-         newImage = new TaggedImage(newPixels, newTags);
-         return newImage;         
-         
-      } else {
-          return nextImage;
+      if (flatFieldImage_ == null && background == null) {
+         return nextImage;
       }
-
+      
+      // background subtraction and flatfielding in a single pass, in place:
+      // the pixels of the incoming image are not used anywhere else
+      FlatFieldUtils.correct(nextImage.pix, nextImage.pix, flatFieldImage_, 
+              background, width, height);
+      return nextImage;
    }   
 }
\ No newline at end of file
@@ -7,8 +7,8 @@
 package org.micromanager.multichannelshading;
 
 import ij.ImagePlus;
-import ij.process.ImageStatistics;
 import java.util.HashMap;
+import org.micromanager.utils.FlatFieldUtils;
 
 
 /**
@@ -17,37 +17,36 @@ import java.util.HashMap;
  */
 public class FlatFieldCollection {
    private static final int nFlatFields_ = 5;
-   private final HashMap<Integer, Float[]> flatFieldList_;
-   private final HashMap<Integer, Float[]> normalizedFlatFieldList_;
+   private final HashMap<Integer, float[]> flatFieldList_;
+   private final HashMap<Integer, float[]> normalizedFlatFieldList_;
    private final String[] channelList_ = new String[nFlatFields_];
    private final boolean[] normalizeList_ = new boolean[nFlatFields_];
    private final int[] flatFieldWidths_ = new int [nFlatFields_];
    private final int[] flatFieldHeights_ = new int [nFlatFields_];
-   private ImageStatistics flatFieldStats_;
    private int flatFieldWidth_;
    private int flatFieldHeight_;
    private Integer index_;
 
     public FlatFieldCollection() {
-        this.normalizedFlatFieldList_ = new HashMap<Integer, Float[]>(nFlatFields_);
-        this.flatFieldList_ = new HashMap<Integer, Float[]>(nFlatFields_);
+        this.normalizedFlatFieldList_ = new HashMap<Integer, float[]>(nFlatFields_);
+        this.flatFieldList_ = new HashMap<Integer, float[]>(nFlatFields_);
     }
    
-   public Float[] getFlatField(String channelName){
+   public float[] getFlatField(String channelName){
        index_ = getIndex(channelName);
        if (index_ == -1){
            return null;
        } else {       
-           return (Float[]) flatFieldList_.get(index_);
+           return flatFieldList_.get(index_);
        }
    }
    
-   public Float[] getNormalizedFlatField(String channelName){
+   public float[] getNormalizedFlatField(String channelName){
        index_ = getIndex(channelName);
        if (index_ == -1){
            return null;
        } else {       
-           return (Float[]) normalizedFlatFieldList_.get(index_);
+           return normalizedFlatFieldList_.get(index_);
        }
    }
    
@@ -91,29 +90,18 @@ public class FlatFieldCollection {
    
    public void setFlatField(int index, ImagePlus flatField){
        if (flatField != null) {       
-         flatFieldStats_ = ImageStatistics.getStatistics(flatField.getProcessor(),
-                 ImageStatistics.MEAN + ImageStatistics.MIN_MAX, null);
          flatFieldWidth_ = flatField.getWidth();
          flatFieldHeight_ = flatField.getHeight();
-         Float[] normalizedFlatField_ = new Float[flatFieldWidth_ * flatFieldHeight_];
-         Float[] flatField_ = new Float[flatFieldWidth_ * flatFieldHeight_];
-         float mean = (float) flatFieldStats_.mean;
          float maxval = (float) Math.pow(2, flatField.getBitDepth()) - 1;         
         
-         /* store images as reciprocals to speed up flat fielding later
+         /* store images as reciprocals (gain maps) to speed up flat fielding later
             normalized image is normalized so mean = 1
             un-normalized flatfield is divided by 2^bitdepth - 1 to put it on a 0 - 1 scale
          */
-         for (int x = 0; x < flatFieldWidth_; x++) {
-            for (int y = 0; y < flatFieldHeight_; y++) {
-               int pixelindex = (y * flatFieldWidth_) + x;
-               normalizedFlatField_[pixelindex] =  
-                  mean / flatField.getProcessor().getf(pixelindex);
-               
-               flatField_[pixelindex] = 
-                  maxval / flatField.getProcessor().getf(pixelindex);
-            }
-         }
+         float[] normalizedFlatField_ = FlatFieldUtils.gainMap(
+                 flatField.getProcessor(), true, maxval);
+         float[] flatField_ = FlatFieldUtils.gainMap(
+                 flatField.getProcessor(), false, maxval);
 
          flatFieldList_.put(index, flatField_);
          normalizedFlatFieldList_.put(index, normalizedFlatField_);
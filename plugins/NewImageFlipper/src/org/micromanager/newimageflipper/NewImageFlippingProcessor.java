@@ -20,14 +20,11 @@
 //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 package org.micromanager.newimageflipper;
 
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
 import org.micromanager.api.DataProcessor;
-import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
@@ -38,7 +35,12 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
 
       R0, R90, R180, R270
    }
+   // edge size of the square blocks used when transposing, chosen so that 
+   // source and destination blocks of 16-bit pixels fit in the L1 cache
+   private static final int BLOCKSIZE = 64;
    NewImageFlipperControls controls_;
+   // pixels of the previous input image, used as output for the next one
+   private Object spare_;
 
    public NewImageFlippingProcessor(NewImageFlipperControls controls) {
       this.controls_ = controls;
@@ -67,8 +69,12 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
 
                }
 
-               produce(proccessTaggedImage(nextImage, controls_.getMirror(),
-                       controls_.getRotate()));
+               // The pixels of an incoming image are not used anywhere else,
+               // so once transformed they can hold the result for the next one
+               TaggedImage result = proccessTaggedImage(nextImage, 
+                       controls_.getMirror(), controls_.getRotate(), spare_);
+               spare_ = result.pix != nextImage.pix ? nextImage.pix : null;
+               produce(result);
 
             } catch (Exception ex) {
                produce(nextImage);
@@ -96,6 +102,18 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
     */
    public static TaggedImage proccessTaggedImage(TaggedImage nextImage,
            boolean mirror, Rotation rotation) throws JSONException, MMScriptException {
+      return proccessTaggedImage(nextImage, mirror, rotation, null);
+   }
+
+   /**
+    * Executes image transformation, as above
+    * 
+    * @param output - pixel array that will be used for the result when it 
+    * has the right type and size, a new array will be allocated otherwise
+    */
+   public static TaggedImage proccessTaggedImage(TaggedImage nextImage,
+           boolean mirror, Rotation rotation, Object output) 
+           throws JSONException, MMScriptException {
 
       int width = MDUtils.getWidth(nextImage.tags);
       int height = MDUtils.getHeight(nextImage.tags);
@@ -108,45 +126,124 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
                  + " image of different size which can not be handled by Micro-Manager");
       }
       
-      
       String type = MDUtils.getPixelType(nextImage.tags);
-      int ijType = ImagePlus.GRAY8;
-      if (type.equals("GRAY16")) {
-         ijType = ImagePlus.GRAY16;
+      if (!type.equals("GRAY8") && !type.equals("GRAY16")) {
+         throw new MMScriptException("NewImageFlipper: Can only handle"
+                 + " 8 and 16 bit grayscale images");
       }
 
-      ImageProcessor proc = ImageUtils.makeProcessor(ijType, width, height, nextImage.pix);
-
-      if (mirror) {
-         proc.flipHorizontal();
-      }
       int rotationTag = 0;
       if (rotation == Rotation.R90) {
-         proc = proc.rotateRight();
          rotationTag = 90;
       }
       if (rotation == Rotation.R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
          rotationTag = 180;
       }
       if (rotation == Rotation.R270) {
-         proc = proc.rotateLeft();
          rotationTag = 270;
       }
       JSONObject newTags = nextImage.tags;
       newTags.put("ImageFlipper-Rotation", rotationTag);
       newTags.put("ImageFlipper-Mirror", mirror ? "On" : "Off");
       
-      // make sure that the produced image has the same width and height as the 
-      // original.
-      if ( (width != proc.getWidth()) || (height != proc.getHeight()) ) { 
-         throw new MMScriptException("NewImageFlipper: Flipping would produce"
-                 + " image of different size which can not be handled by Micro-Manager");
+      if (!mirror && rotation == Rotation.R0) {
+         return nextImage;
       }
-      MDUtils.setWidth(newTags, proc.getWidth()); 
-      MDUtils.setHeight(newTags, proc.getHeight());
+      
+      Object pixels = transform(nextImage.pix, width, height, mirror, 
+              rotation, output);
 
-      return new TaggedImage(proc.getPixels(), newTags);
+      return new TaggedImage(pixels, newTags);
+   }
+
+   /**
+    * Mirrors (around the vertical axis) and then rotates (clockwise) the
+    * image in a single pass.  The image is processed in square blocks, 
+    * so that rotations by 90 and 270 degrees read and write whole cache 
+    * lines even though they transpose the image.
+    * 
+    * @param pix - byte[] or short[] pixels
+    * @param width - width of the image
+    * @param height - height of the image
+    * @param mirror - whether or not to mirror
+    * @param rotation - clockwise rotation
+    * @param output - used for the result when of the right type and size 
+    * (should not be pix), can be null
+    * @return transformed pixels, the width and height of the result are 
+    * swapped for 90 and 270 degree rotations
+    */
+   public static Object transform(Object pix, int width, int height, 
+           boolean mirror, Rotation rotation, Object output) {
+      // source pixel (x, y) ends up at offset + x * xStep + y * yStep
+      int a = mirror ? width - 1 : 0;
+      int b = mirror ? -1 : 1;
+      int offset, xStep, yStep;
+      if (rotation == Rotation.R90) {
+         offset = height - 1 + height * a;
+         xStep = height * b;
+         yStep = -1;
+      } else if (rotation == Rotation.R180) {
+         offset = width - 1 - a + width * (height - 1);
+         xStep = -b;
+         yStep = -width;
+      } else if (rotation == Rotation.R270) {
+         offset = height * (width - 1 - a);
+         xStep = -height * b;
+         yStep = 1;
+      } else {
+         offset = a;
+         xStep = b;
+         yStep = width;
+      }
+      
+      int length = width * height;
+      if (pix instanceof byte[]) {
+         byte[] src = (byte[]) pix;
+         byte[] dest;
+         if (output instanceof byte[] && ((byte[]) output).length == length 
+                 && output != pix) {
+            dest = (byte[]) output;
+         } else {
+            dest = new byte[length];
+         }
+         for (int by = 0; by < height; by += BLOCKSIZE) {
+            int endY = Math.min(by + BLOCKSIZE, height);
+            for (int bx = 0; bx < width; bx += BLOCKSIZE) {
+               int endX = Math.min(bx + BLOCKSIZE, width);
+               for (int y = by; y < endY; y++) {
+                  int d = offset + bx * xStep + y * yStep;
+                  for (int s = y * width + bx; s < y * width + endX; s++) {
+                     dest[d] = src[s];
+                     d += xStep;
+                  }
+               }
+            }
+         }
+         return dest;
+      } else if (pix instanceof short[]) {
+         short[] src = (short[]) pix;
+         short[] dest;
+         if (output instanceof short[] && ((short[]) output).length == length 
+                 && output != pix) {
+            dest = (short[]) output;
+         } else {
+            dest = new short[length];
+         }
+         for (int by = 0; by < height; by += BLOCKSIZE) {
+            int endY = Math.min(by + BLOCKSIZE, height);
+            for (int bx = 0; bx < width; bx += BLOCKSIZE) {
+               int endX = Math.min(bx + BLOCKSIZE, width);
+               for (int y = by; y < endY; y++) {
+                  int d = offset + bx * xStep + y * yStep;
+                  for (int s = y * width + bx; s < y * width + endX; s++) {
+                     dest[d] = src[s];
+                     d += xStep;
+                  }
+               }
+            }
+         }
+         return dest;
+      }
+      throw new IllegalArgumentException("Unsupported pixel type");
    }
 }
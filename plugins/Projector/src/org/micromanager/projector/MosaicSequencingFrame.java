@@ -58,6 +58,8 @@ public class MosaicSequencingFrame extends javax.swing.JFrame {
    private final String mosaic_;
    private final int mosaicWidth_;
    private final int mosaicHeight_;
+   // Masks of the ROIs, shared by all frames of a sequence.
+   private final PolygonMasks polygonMasks_;
    private final ProjectorController projectorController_;
    private final DefaultTableModel sequenceTableModel_;
    private final Vector<String> headerNames = new Vector(Arrays.asList(         
@@ -240,8 +242,7 @@ public class MosaicSequencingFrame extends javax.swing.JFrame {
       for (int roiIndex : roiIndexList) {
          selectedRoiPolygons.add(availableRoiPolygons[roiIndex]);
       }
-      sequenceEvent.framePixels = SLM.roisToPixels(mosaicWidth_, mosaicHeight_,
-                                                   selectedRoiPolygons.toArray(new Polygon[0]));
+      sequenceEvent.framePixels = polygonMasks_.getPixels(selectedRoiPolygons.toArray(new Polygon[0]));
       sequenceEvent.onDurationMs = integerAt(rowIndex, 2);
       sequenceEvent.offDurationMs = integerAt(rowIndex, 3);
       sequenceEvent.loopCount = integerAt(rowIndex, 4);
@@ -519,6 +520,7 @@ public class MosaicSequencingFrame extends javax.swing.JFrame {
       mosaic_ = getMosaicDevices(core_).get(0);
       mosaicWidth_ = (int) core_.getSLMWidth(mosaic_);
       mosaicHeight_ = (int) core.getSLMHeight(mosaic_);
+      polygonMasks_ = new PolygonMasks(mosaicWidth_, mosaicHeight_);
       sequenceTableModel_ = (DefaultTableModel) sequenceTable_.getModel();
       
       GUIUtils.recallPosition(this);
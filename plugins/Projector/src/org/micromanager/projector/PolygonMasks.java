@@ -0,0 +1,264 @@
+package org.micromanager.projector;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns polygons (in projection device coordinates) into device images.
+ *
+ * Every polygon is rasterized once, with a scanline fill, into a packed
+ * mask of one bit per pixel that only covers the polygon's bounding box.
+ * Pixels are set the same way as ImageJ's PolygonFiller sets them (even-odd
+ * rule, edges crossed at the centers of rows), so images are the same as
+ * those of filling PolygonRois. Masks of polygons and images of polygon
+ * sets are cached, least recently used first out, so that loading the same
+ * ROIs again, or a sequence of frames that share ROIs, only combines masks.
+ */
+public class PolygonMasks {
+   // Bytes of masks and of images that are kept for reuse.
+   private static final long MASK_CACHE_BYTES = 16 << 20;
+   private static final long IMAGE_CACHE_BYTES = 32 << 20;
+
+   private final int width_;
+   private final int height_;
+   private final int wordsPerRow_;
+   private final LinkedHashMap<PolygonKey, Mask> masks_;
+   private final LinkedHashMap<List<PolygonKey>, byte[]> images_;
+   private long maskBytes_ = 0;
+
+   // The bits of a polygon: rows top to top + rows - 1, and in each row the
+   // words firstWord to firstWord + words - 1 of a full image row. Bit b of
+   // word w is pixel x = 64 * w + b.
+   private static class Mask {
+      int top, rows, firstWord, words;
+      long[] bits;
+   }
+
+   // A copy of the vertices of a polygon, to compare polygons by value.
+   private static class PolygonKey {
+      final int[] xpoints;
+      final int[] ypoints;
+      final int hash;
+
+      PolygonKey(Polygon polygon) {
+         xpoints = Arrays.copyOf(polygon.xpoints, polygon.npoints);
+         ypoints = Arrays.copyOf(polygon.ypoints, polygon.npoints);
+         hash = 31 * Arrays.hashCode(xpoints) + Arrays.hashCode(ypoints);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof PolygonKey)) {
+            return false;
+         }
+         PolygonKey other = (PolygonKey) o;
+         return Arrays.equals(xpoints, other.xpoints) && Arrays.equals(ypoints, other.ypoints);
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+   }
+
+   public PolygonMasks(int width, int height) {
+      width_ = width;
+      height_ = height;
+      wordsPerRow_ = (width + 63) >> 6;
+      masks_ = new LinkedHashMap<PolygonKey, Mask>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<PolygonKey, Mask> eldest) {
+            if (maskBytes_ > MASK_CACHE_BYTES && size() > 1) {
+               maskBytes_ -= 8L * eldest.getValue().bits.length;
+               return true;
+            }
+            return false;
+         }
+      };
+      final int maxImages = (int) Math.max(2, IMAGE_CACHE_BYTES / Math.max(1, (long) width * height));
+      images_ = new LinkedHashMap<List<PolygonKey>, byte[]>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<List<PolygonKey>, byte[]> eldest) {
+            return size() > maxImages;
+         }
+      };
+   }
+
+   /**
+    * Returns the image (0 outside, 255 inside) of a set of polygons. The
+    * array may be shared with earlier and later calls, so it must not be
+    * changed.
+    */
+   public synchronized byte[] getPixels(Polygon[] polygons) {
+      List<PolygonKey> key = new ArrayList<PolygonKey>(polygons.length);
+      for (Polygon polygon : polygons) {
+         key.add(new PolygonKey(polygon));
+      }
+      byte[] pixels = images_.get(key);
+      if (pixels == null) {
+         long[] bits = new long[height_ * wordsPerRow_];
+         for (PolygonKey polygon : key) {
+            or(getMask(polygon), bits);
+         }
+         pixels = toPixels(bits);
+         images_.put(key, pixels);
+      }
+      return pixels;
+   }
+
+   private Mask getMask(PolygonKey polygon) {
+      Mask mask = masks_.get(polygon);
+      if (mask == null) {
+         mask = rasterize(polygon.xpoints, polygon.ypoints, polygon.xpoints.length);
+         maskBytes_ += 8L * mask.bits.length;
+         masks_.put(polygon, mask);
+      }
+      return mask;
+   }
+
+   // Scanline fill of a polygon, with the arithmetic of ImageJ's
+   // PolygonFiller: coordinates are relative to the bounding box, each edge
+   // is crossed at x1 + slope / 2 in its first row and moves by slope in
+   // every following row, and in each row the pixels from every odd
+   // crossing (rounded) up to the next one (rounded) are set.
+   private Mask rasterize(int[] xs, int[] ys, int n) {
+      Mask mask = new Mask();
+      if (n == 0) {
+         mask.bits = new long[0];
+         return mask;
+      }
+      int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+      int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+      for (int i = 0; i < n; i++) {
+         minX = Math.min(minX, xs[i]);
+         maxX = Math.max(maxX, xs[i]);
+         minY = Math.min(minY, ys[i]);
+         maxY = Math.max(maxY, ys[i]);
+      }
+      int left = Math.max(minX, 0);
+      int right = Math.min(maxX, width_);
+      int top = Math.max(minY, 0);
+      int bottom = Math.min(maxY, height_);
+      if (left >= right || top >= bottom) {
+         mask.bits = new long[0];
+         return mask;
+      }
+      mask.top = top;
+      mask.rows = bottom - top;
+      mask.firstWord = left >> 6;
+      mask.words = ((right - 1) >> 6) - mask.firstWord + 1;
+      mask.bits = new long[mask.rows * mask.words];
+
+      // count the crossings in every row, then record them row by row
+      int[] start = new int[mask.rows + 1];
+      for (int i = 0; i < n; i++) {
+         int j = i == n - 1 ? 0 : i + 1;
+         int y1 = Math.min(ys[i], ys[j]);
+         int y2 = Math.max(ys[i], ys[j]);
+         for (int y = Math.max(y1, top); y < Math.min(y2, bottom); y++) {
+            start[y - top + 1]++;
+         }
+      }
+      for (int r = 0; r < mask.rows; r++) {
+         start[r + 1] += start[r];
+      }
+      int[] next = Arrays.copyOf(start, mask.rows);
+      int[] crossings = new int[start[mask.rows]];
+      int maxRelX = right - minX;
+      int minRelX = left - minX;
+      for (int i = 0; i < n; i++) {
+         int j = i == n - 1 ? 0 : i + 1;
+         int y1 = ys[i], y2 = ys[j], x1 = xs[i] - minX, x2 = xs[j] - minX;
+         if (y1 == y2) {
+            continue;
+         }
+         if (y1 > y2) {
+            int t = y1;
+            y1 = y2;
+            y2 = t;
+            t = x1;
+            x1 = x2;
+            x2 = t;
+         }
+         double slope = (double) (x2 - x1) / (y2 - y1);
+         double ex = x1 + slope / 2.0;
+         int end = Math.min(y2, bottom);
+         for (int y = y1; y < end; y++) {
+            if (y >= top) {
+               int x = (int) (ex + 0.5);
+               x = x < minRelX ? minRelX : (x > maxRelX ? maxRelX : x);
+               crossings[next[y - top]++] = x + minX;
+            }
+            ex += slope;
+         }
+      }
+
+      int offset = mask.firstWord << 6;
+      for (int r = 0; r < mask.rows; r++) {
+         Arrays.sort(crossings, start[r], start[r + 1]);
+         for (int c = start[r]; c + 1 < start[r + 1]; c += 2) {
+            setBits(mask.bits, r * mask.words, crossings[c] - offset, crossings[c + 1] - offset);
+         }
+      }
+      return mask;
+   }
+
+   // Sets bits from to to - 1 of the row that starts at word rowStart.
+   private static void setBits(long[] bits, int rowStart, int from, int to) {
+      if (from >= to) {
+         return;
+      }
+      int w0 = from >> 6;
+      int w1 = (to - 1) >> 6;
+      long first = -1L << (from & 63);
+      long last = -1L >>> (63 - ((to - 1) & 63));
+      if (w0 == w1) {
+         bits[rowStart + w0] |= first & last;
+      } else {
+         bits[rowStart + w0] |= first;
+         for (int w = w0 + 1; w < w1; w++) {
+            bits[rowStart + w] = -1L;
+         }
+         bits[rowStart + w1] |= last;
+      }
+   }
+
+   private void or(Mask mask, long[] bits) {
+      for (int r = 0; r < mask.rows; r++) {
+         int in = r * mask.words;
+         int out = (mask.top + r) * wordsPerRow_ + mask.firstWord;
+         for (int w = 0; w < mask.words; w++) {
+            bits[out + w] |= mask.bits[in + w];
+         }
+      }
+   }
+
+   private byte[] toPixels(long[] bits) {
+      byte[] pixels = new byte[width_ * height_];
+      for (int y = 0; y < height_; y++) {
+         for (int w = 0; w < wordsPerRow_; w++) {
+            long word = bits[y * wordsPerRow_ + w];
+            if (word == 0) {
+               continue;
+            }
+            int x0 = w << 6;
+            int offset = y * width_ + x0;
+            int count = Math.min(64, width_ - x0);
+            if (word == -1L) {
+               Arrays.fill(pixels, offset, offset + count, (byte) 255);
+               continue;
+            }
+            for (int b = 0; b < count; b++) {
+               if ((word & (1L << b)) != 0) {
+                  pixels[offset + b] = (byte) 255;
+               }
+            }
+         }
+      }
+      return pixels;
+   }
+}
@@ -26,6 +26,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.BufferedOutputStream;
@@ -33,6 +34,8 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 import java.util.zip.ZipEntry;
@@ -51,6 +54,7 @@ import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MathFunctions;
 import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.ThreadUtils;
 
 /**
  *
@@ -64,7 +68,11 @@ public class ProjectorController {
    private final MouseListener pointAndShootMouseListener;
    private final Set<OnStateListener> listeners_ = new HashSet<OnStateListener>();
    private final AtomicBoolean pointAndShooteModeOn_ = new AtomicBoolean(false);
-   private double pointAndShootInterval;
+   private volatile double pointAndShootInterval;
+   // Points (in device coordinates) that were clicked in point-and-shoot
+   // mode and have not been fired yet, and the thread that fires them.
+   private final Queue<Point> pointAndShootQueue_ = new ConcurrentLinkedQueue<Point>();
+   private final Executor pointAndShootExecutor_;
    private Roi[] individualRois_ = {};
    private int reps_ = 1;
    private long interval_us_ = 500000;
@@ -74,6 +82,9 @@ public class ProjectorController {
    AtomicBoolean stopRequested_ = new AtomicBoolean(false);
    AtomicBoolean isRunning_ = new AtomicBoolean(false);
    private MosaicSequencingFrame mosaicSequencingFrame_;
+   // During calibration with an SLM, spots this many lattice points apart
+   // are illuminated together in one camera image.
+   private static final int CALIBRATION_SPOT_STRIDE = 2;
 
    // ### ProjectorController constructor.
    
@@ -93,6 +104,7 @@ public class ProjectorController {
 
       loadMapping();
       pointAndShootMouseListener = setupPointAndShootMouseListener();
+      pointAndShootExecutor_ = ThreadUtils.newSerialExecutor();
 
       Toolkit.getDefaultToolkit().addAWTEventListener(new AWTEventListener() {
          @Override
@@ -123,15 +135,24 @@ public class ProjectorController {
      
    // ### Methods for generating a calibration mapping.
    
-   // Find the peak in an ImageProcessor. The image is first blurred
-   // to avoid finding a peak in noise.
-   private Point findPeak(ImageProcessor proc) {
-      ImageProcessor blurImage = proc.duplicate();
-      blurImage.setRoi((Roi) null);
-      GaussianBlur blur = new GaussianBlur();
-      blur.blurGaussian(blurImage, 10, 10, 0.01);
-      //showProcessor("findPeak",proc);
-      Point x = ImageUtils.findMaxPixel(blurImage);
+   // Find the peak within an area of a blurred (float) image, or null if
+   // the area is outside the image.
+   private static Point findPeak(ImageProcessor blurImage, Rectangle area) {
+      int width = blurImage.getWidth();
+      Rectangle r = area.intersection(new Rectangle(0, 0, width, blurImage.getHeight()));
+      if (r.isEmpty()) {
+         return null;
+      }
+      float[] pixels = (float[]) blurImage.getPixels();
+      int imax = r.y * width + r.x;
+      for (int y = r.y; y < r.y + r.height; ++y) {
+         for (int i = y * width + r.x; i < y * width + r.x + r.width; ++i) {
+            if (pixels[i] > pixels[imax]) {
+               imax = i;
+            }
+         }
+      }
+      Point x = new Point(imax % width, imax / width);
       x.translate(1, 1);
       return x;
    }
@@ -139,6 +160,16 @@ public class ProjectorController {
    // Display a spot using the projection device, and return its current
    // location on the camera.
    private Point measureSpot(Point projectionPoint) {
+      Point[] spots = measureSpots(new Point[] {projectionPoint}, null, 0);
+      return spots == null ? null : spots[0];
+   }
+
+   // Display one spot, or several spots at once using the SLM, and return
+   // their current locations on the camera. Each spot is looked for within
+   // searchRadius of where it is expected on the camera, or in the whole
+   // image if expected is null. The difference image is blurred once for all
+   // of the spots, to avoid finding peaks in noise.
+   private Point[] measureSpots(Point[] projectionPoints, Point2D.Double[] expected, double searchRadius) {
       if (stopRequested_.get()) {
          return null;
       }
@@ -149,7 +180,11 @@ public class ProjectorController {
          mmc.snapImage();
          TaggedImage image = mmc.getTaggedImage();
          ImageProcessor proc1 = ImageUtils.makeMonochromeProcessor(image);
-         displaySpot(projectionPoint.x, projectionPoint.y, 500000);
+         if (projectionPoints.length == 1) {
+            displaySpot(projectionPoints[0].x, projectionPoints[0].y, 500000);
+         } else {
+            ((SLM) dev).displaySpots(projectionPoints, 500000);
+         }
          Thread.sleep(300);
 
          mmc.snapImage();
@@ -158,11 +193,32 @@ public class ProjectorController {
          gui.displayImage(taggedImage2);
 
          ImageProcessor diffImage = ImageUtils.subtractImageProcessors(proc2.convertToFloatProcessor(), proc1.convertToFloatProcessor());
-         Point peak = findPeak(diffImage);
-         Point maxPt = peak;
-         IJ.getImage().setRoi(new PointRoi(maxPt.x, maxPt.y));
+         ImageProcessor blurImage = diffImage.duplicate();
+         blurImage.setRoi((Roi) null);
+         GaussianBlur blur = new GaussianBlur();
+         blur.blurGaussian(blurImage, 10, 10, 0.01);
+
+         int r = (int) Math.ceil(searchRadius);
+         Point[] peaks = new Point[projectionPoints.length];
+         Polygon found = new Polygon();
+         for (int k = 0; k < projectionPoints.length; ++k) {
+            Rectangle area;
+            if (expected == null) {
+               area = new Rectangle(0, 0, blurImage.getWidth(), blurImage.getHeight());
+            } else {
+               Point center = toIntPoint(expected[k]);
+               area = new Rectangle(center.x - r, center.y - r, 2 * r + 1, 2 * r + 1);
+            }
+            peaks[k] = findPeak(blurImage, area);
+            if (peaks[k] != null) {
+               addVertex(found, peaks[k]);
+            }
+         }
+         if (found.npoints > 0) {
+            IJ.getImage().setRoi(new PointRoi(found));
+         }
          mmc.sleep(500);
-         return maxPt;
+         return peaks;
       } catch (Exception e) {
          ReportingUtils.showError(e);
          return null;
@@ -208,10 +264,61 @@ public class ProjectorController {
       return MathFunctions.generateAffineTransformFromPointPairs(spotMap);
    }
 
+   // Measure the camera locations of a lattice of points on the SLM, many
+   // points per camera image: an image lights up every
+   // CALIBRATION_SPOT_STRIDE-th point in each direction, so that its spots
+   // are far apart on the camera, and each spot is looked for around where
+   // the first approximation puts it. Returns false if the first
+   // approximation can't be used to predict the spots.
+   private boolean measureLattice(AffineTransform firstApprox,
+         Point2D.Double[][] dmdPoint, Point2D.Double[][] resultPoint) {
+      AffineTransform toCamera;
+      try {
+         toCamera = firstApprox.createInverse();
+      } catch (NoninvertibleTransformException e) {
+         ReportingUtils.logError(e);
+         return false;
+      }
+      int n = dmdPoint.length - 1;
+      int stride = Math.min(CALIBRATION_SPOT_STRIDE, n);
+      // Spots in one image are at least this far apart on the camera.
+      double separation = Math.min(
+            toCamera.deltaTransform(new Point2D.Double(dmdPoint[stride][0].x - dmdPoint[0][0].x, 0), null).distance(0, 0),
+            toCamera.deltaTransform(new Point2D.Double(0, dmdPoint[0][stride].y - dmdPoint[0][0].y), null).distance(0, 0));
+      for (int phaseI = 0; phaseI < stride; ++phaseI) {
+         for (int phaseJ = 0; phaseJ < stride; ++phaseJ) {
+            List<Point> points = new ArrayList<Point>();
+            List<Point2D.Double> expected = new ArrayList<Point2D.Double>();
+            for (int i = phaseI; i <= n; i += stride) {
+               for (int j = phaseJ; j <= n; j += stride) {
+                  points.add(toIntPoint(dmdPoint[i][j]));
+                  expected.add((Point2D.Double) toCamera.transform(dmdPoint[i][j], null));
+               }
+            }
+            Point[] spots = measureSpots(points.toArray(new Point[0]),
+                  expected.toArray(new Point2D.Double[0]), separation / 2);
+            if (spots == null) {
+               return true;
+            }
+            int k = 0;
+            for (int i = phaseI; i <= n; i += stride) {
+               for (int j = phaseJ; j <= n; j += stride) {
+                  if (spots[k] != null) {
+                     resultPoint[i][j] = toDoublePoint(spots[k]);
+                  }
+                  ++k;
+               }
+            }
+         }
+      }
+      return true;
+   }
+
    // Generate a calibration mapping for the current device settings.
-   // A rectangular lattice of points is illuminated one-by-one on the
-   // projection device, and locations in camera pixels of corresponding
-   // spots on the camera image are recorded. For each rectangular
+   // A rectangular lattice of points is illuminated on the projection
+   // device (one-by-one, or with an SLM many at a time), and locations in
+   // camera pixels of corresponding spots on the camera image are
+   // recorded. For each rectangular
    // cell in the grid, we take the four point mappings (camera to projector)
    // and generate a local AffineTransform using linear least squares.
    // Cells with suspect measured corner positions are discarded.
@@ -243,9 +350,15 @@ public class ProjectorController {
             int xoffset = (int) ((i + 0.5) * width / (n + 1.0));
             int yoffset = (int) ((j + 0.5) * height / (n + 1.0));
             dmdPoint[i][j] = new Point2D.Double(left + xoffset, top + yoffset);
-            Point spot = measureSpot(toIntPoint(dmdPoint[i][j]));
-            if (spot != null) {
-               resultPoint[i][j] = toDoublePoint(spot);
+         }
+      }
+      if (!(isSLM() && measureLattice(firstApprox, dmdPoint, resultPoint))) {
+         for (int i = 0; i <= n; ++i) {
+            for (int j = 0; j <= n; ++j) {
+               Point spot = measureSpot(toIntPoint(dmdPoint[i][j]));
+               if (spot != null) {
+                  resultPoint[i][j] = toDoublePoint(spot);
+               }
             }
          }
       }
@@ -586,20 +699,46 @@ public class ProjectorController {
       return new MouseAdapter() {
          public void mouseClicked(MouseEvent e) {
             if (e.isControlDown()) {
-               Configuration originalConfig = prepareChannel();
                Point p = e.getPoint();
                ImageCanvas canvas = (ImageCanvas) e.getSource();
                Point pOffscreen = new Point(canvas.offScreenX(p.x), canvas.offScreenY(p.y));
                Point devP = transformAndFlip((Map<Polygon, AffineTransform>) loadMapping(), canvas.getImage(), new Point(pOffscreen.x, pOffscreen.y));
                if (devP != null) {
-                  displaySpot(devP.x, devP.y, thisController.getPointAndShootInterval());
+                  thisController.queuePointAndShoot(devP);
                }
-               returnChannel(originalConfig);
             }
          }
       };
    }
 
+   // Queue a spot to be fired in the background, one firing at a time, so
+   // that clicks never wait for the devices. Spots that are clicked while others are
+   // being fired are fired in turn, with the targeting channel set once
+   // for all of them.
+   private void queuePointAndShoot(Point devP) {
+      pointAndShootQueue_.add(devP);
+      pointAndShootExecutor_.execute(new Runnable() {
+         @Override
+         public void run() {
+            if (pointAndShootQueue_.isEmpty()) {
+               return;
+            }
+            Configuration originalConfig = prepareChannel();
+            try {
+               Point next;
+               while ((next = pointAndShootQueue_.poll()) != null) {
+                  displaySpot(next.x, next.y, getPointAndShootInterval());
+                  dev.waitForDevice();
+               }
+            } catch (Exception e) {
+               ReportingUtils.logError(e);
+            } finally {
+               returnChannel(originalConfig);
+            }
+         }
+      });
+   }
+
    public void enablePointAndShootMode(boolean on) {
       pointAndShooteModeOn_.set(on);
       ImageWindow window = WindowManager.getCurrentWindow();
@@ -6,14 +6,15 @@
 package org.micromanager.projector;
 
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
-import ij.gui.Roi;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Color;
+import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.geom.AffineTransform;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import mmcorej.CMMCore;
@@ -31,6 +32,16 @@ public class SLM implements ProjectionDevice {
    private double spotDiameter_;
    private boolean imageOn_ = false;   
    HashSet<OnStateListener> onStateListeners_ = new HashSet<OnStateListener>();
+   // Bytes of spot patterns that are kept for reuse.
+   private static final int PATTERN_CACHE_BYTES = 32 << 20;
+   // A single spot at the origin, as drawn by fillOval, and its size.
+   private final byte[] spotMask_;
+   private final int spotSize_;
+   // Patterns of recently displayed single spots, by spot position,
+   // least recently used first.
+   private final LinkedHashMap<Point, byte[]> spotPatterns_;
+   // Images of ROIs.
+   private final PolygonMasks polygonMasks_;
 
    public SLM(CMMCore mmc, double spotDiameter) {
       mmc_ = mmc;
@@ -38,28 +49,74 @@ public class SLM implements ProjectionDevice {
       spotDiameter_ = spotDiameter;
       slmWidth_ = (int) mmc.getSLMWidth(slm_);
       slmHeight_ = (int) mmc.getSLMHeight(slm_);
+      polygonMasks_ = new PolygonMasks(slmWidth_, slmHeight_);
+      spotSize_ = (int) spotDiameter_;
+      ImageProcessor spot = new ByteProcessor(Math.max(1, spotSize_), Math.max(1, spotSize_));
+      spot.setColor(Color.white);
+      spot.fillOval(0, 0, spotSize_, spotSize_);
+      spotMask_ = (byte[]) spot.getPixels();
+      final int maxPatterns = Math.max(4, PATTERN_CACHE_BYTES / Math.max(1, slmWidth_ * slmHeight_));
+      spotPatterns_ = new LinkedHashMap<Point, byte[]>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Point, byte[]> eldest) {
+            return size() > maxPatterns;
+         }
+      };
    }
 
    public String getName() {
        return slm_;
    }
    
-   private void displaySpot(int x, int y) {
-      ImageProcessor proc = new ByteProcessor(slmWidth_, slmHeight_);
-      proc.setColor(Color.black);
-      proc.fill();
-      proc.setColor(Color.white);
-      addSpot(proc, x, y, spotDiameter_);
+   private synchronized void displaySpot(int x, int y) {
+      Point key = new Point(x, y);
+      byte[] pattern = spotPatterns_.get(key);
+      if (pattern == null) {
+         pattern = new byte[slmWidth_ * slmHeight_];
+         addSpot(pattern, x, y);
+         spotPatterns_.put(key, pattern);
+      }
+      displayPattern(pattern);
+   }
+
+   // Displays spots at all of the given points at once, for example to
+   // calibrate with many spots per camera image.
+   public synchronized void displaySpots(Point[] points, double interval_us) {
+      setDwellTime((long) interval_us);
+      byte[] pattern = new byte[slmWidth_ * slmHeight_];
+      for (Point point : points) {
+         addSpot(pattern, point.x, point.y);
+      }
+      displayPattern(pattern);
+   }
+
+   // Sends a pattern to the SLM and displays it. Patterns are always sent,
+   // since sequences and scripts can change the SLM image through the core.
+   private void displayPattern(byte[] pattern) {
       try {
-         mmc_.setSLMImage(slm_, (byte []) proc.getPixels());
+         mmc_.setSLMImage(slm_, pattern);
          mmc_.displaySLMImage(slm_);
       } catch (Throwable e) {
          ReportingUtils.showError("SLM not connecting properly.");
       }
    }
 
-   private void addSpot(ImageProcessor proc, int x, int y, double dia) {
-      proc.fillOval((int) (x-dia/2), (int) (y-dia/2), (int) dia, (int) dia);
+   // Draws a spot centered at x, y into a pattern, the same way that
+   // fillOval would, by copying the rows of the spot mask.
+   private void addSpot(byte[] pattern, int x, int y) {
+      int left = (int) (x - spotDiameter_ / 2);
+      int top = (int) (y - spotDiameter_ / 2);
+      int fromX = Math.max(0, -left);
+      int toX = Math.min(spotSize_, slmWidth_ - left);
+      for (int j = Math.max(0, -top); j < Math.min(spotSize_, slmHeight_ - top); j++) {
+         int row = j * spotSize_;
+         int out = (top + j) * slmWidth_ + left;
+         for (int i = fromX; i < toX; i++) {
+            if (spotMask_[row + i] != 0) {
+               pattern[out + i] = spotMask_[row + i];
+            }
+         }
+      }
    }
 
    public void displaySpot(double x, double y) {
@@ -103,20 +160,14 @@ public class SLM implements ProjectionDevice {
 
    // Convert an array of polygonal ROIs to a single pixel image.
    public static byte[] roisToPixels(int width, int height, Polygon[] roiPolygons) {
-      ByteProcessor processor = new ByteProcessor(width, height);
-      processor.setColor(Color.black);
-      processor.fill();
-      processor.setColor(Color.white);
-      for (Polygon roiPolygon : roiPolygons) {
-         Roi roi = new PolygonRoi(roiPolygon, Roi.POLYGON);
-         processor.fill(roi);
-      }
-      return (byte[]) processor.getPixels();
+      return new PolygonMasks(width, height).getPixels(roiPolygons);
    }
    
+   // Send the image of the ROIs to the SLM. Images of recently loaded
+   // ROIs are reused.
    public void loadRois(Polygon[] roiPolygons) {
       try {
-         mmc_.setSLMImage(slm_, roisToPixels(slmWidth_, slmHeight_, roiPolygons));
+         mmc_.setSLMImage(slm_, polygonMasks_.getPixels(roiPolygons));
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
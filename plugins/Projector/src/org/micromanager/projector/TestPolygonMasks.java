@@ -0,0 +1,90 @@
+package org.micromanager.projector;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import java.awt.Color;
+import java.awt.Polygon;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the images of PolygonMasks with those of filling PolygonRois
+ * with ImageJ, for random polygons that are partly outside of the image,
+ * and for ovals. Run as a java application with ij.jar on the class path;
+ * exits with status 1 when an image differs.
+ */
+public class TestPolygonMasks {
+
+   // The image of a set of polygons, as SLM.roisToPixels used to make it.
+   private static byte[] fillWithImageJ(int width, int height, Polygon[] polygons) {
+      ByteProcessor proc = new ByteProcessor(width, height);
+      proc.setColor(Color.black);
+      proc.fill();
+      proc.setColor(Color.white);
+      for (Polygon polygon : polygons) {
+         proc.fill(new PolygonRoi(polygon, Roi.POLYGON));
+      }
+      return (byte[]) proc.getPixels();
+   }
+
+   private static int compare(int width, int height, Polygon[] polygons,
+         PolygonMasks masks, String name) {
+      byte[] expected = fillWithImageJ(width, height, polygons);
+      byte[] pixels = masks.getPixels(polygons);
+      if (Arrays.equals(expected, pixels)) {
+         return 0;
+      }
+      int count = 0;
+      for (int i = 0; i < expected.length; ++i) {
+         if (expected[i] != pixels[i]) {
+            ++count;
+         }
+      }
+      System.out.println("FAILED " + name + " " + width + "x" + height + ": "
+            + count + " pixels differ");
+      return 1;
+   }
+
+   public static void main(String[] args) {
+      Random random = new Random(3);
+      int[][] sizes = {{300, 200}, {1024, 768}, {65, 64}};
+      int failures = 0;
+      int tests = 0;
+      for (int[] size : sizes) {
+         int width = size[0];
+         int height = size[1];
+         PolygonMasks masks = new PolygonMasks(width, height);
+         for (int t = 0; t < 400; ++t) {
+            Polygon[] polygons = new Polygon[1 + random.nextInt(3)];
+            for (int k = 0; k < polygons.length; ++k) {
+               polygons[k] = new Polygon();
+               int vertices = 1 + random.nextInt(t % 3 == 0 ? 40 : 6);
+               int cx = random.nextInt(width + 100) - 50;
+               int cy = random.nextInt(height + 100) - 50;
+               int radius = 1 + random.nextInt(width / 2);
+               for (int v = 0; v < vertices; ++v) {
+                  polygons[k].addPoint(cx + (int) (radius * (2 * random.nextDouble() - 1)),
+                        cy + (int) (radius * (2 * random.nextDouble() - 1)));
+               }
+            }
+            failures += compare(width, height, polygons, masks, "polygons " + t);
+            // the same polygons again, from the cache
+            failures += compare(width, height, polygons, masks, "cached polygons " + t);
+            tests += 2;
+         }
+         Polygon[] ovals = new Polygon[50];
+         for (int k = 0; k < ovals.length; ++k) {
+            ovals[k] = new OvalRoi(random.nextInt(width) - 10, random.nextInt(height) - 10,
+                  1 + random.nextInt(80), 1 + random.nextInt(60)).getPolygon();
+         }
+         failures += compare(width, height, ovals, masks, "ovals");
+         ++tests;
+      }
+      System.out.println(failures + " of " + tests + " images differ");
+      if (failures > 0) {
+         System.exit(1);
+      }
+   }
+}
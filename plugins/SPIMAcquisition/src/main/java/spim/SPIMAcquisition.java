@@ -85,7 +85,7 @@ import spim.progacq.AcqParams;
 import spim.progacq.AcqRow;
 import spim.progacq.AntiDrift;
 import spim.progacq.AsyncOutputWrapper;
-import spim.progacq.OMETIFFHandler;
+import spim.progacq.MultipageTiffHandler;
 import spim.progacq.ProgrammaticAcquisitor;
 import spim.progacq.ProjDiffAntiDrift;
 import spim.progacq.RangeSlider;
@@ -1732,7 +1732,7 @@ public class SPIMAcquisition implements MMPlugin, ItemListener, ActionListener {
 						File[] list = output.listFiles(new FilenameFilter() {
 							@Override
 							public boolean accept(File dir, String name) {
-								return (name.endsWith(".ome.tiff"));
+								return (name.endsWith(".ome.tiff") || name.endsWith(".ome.tif"));
 							}
 						});
 
@@ -1742,12 +1742,11 @@ public class SPIMAcquisition implements MMPlugin, ItemListener, ActionListener {
 									return;
 					}
 
-					AcqOutputHandler handler = new OMETIFFHandler(
-						mmc, output, null, null, null, "t",
-						acqRows, timeSeqs, timeStep
+					AcqOutputHandler handler = new MultipageTiffHandler(
+						mmc, output, acqRows, timeSeqs, timeStep
 					);
 					if(asyncCheckbox.isSelected())
-						handler = new AsyncOutputWrapper(handler, (ij.IJ.maxMemory() - ij.IJ.currentMemory())/(mmc.getImageWidth()*mmc.getImageHeight()*mmc.getBytesPerPixel()*2), asyncMonitorCheckbox.isSelected());
+						handler = new AsyncOutputWrapper(handler, (ij.IJ.maxMemory() - ij.IJ.currentMemory())/2, asyncMonitorCheckbox.isSelected());
 
 					params.setOutputHandler(handler);
 				} else {
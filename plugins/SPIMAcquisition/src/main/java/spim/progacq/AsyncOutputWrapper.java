@@ -1,5 +1,7 @@
 package spim.progacq;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -13,39 +15,35 @@ import org.micromanager.utils.ReportingUtils;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
-import mmcorej.TaggedImage;
-
+/**
+ * Hands the calls of the acquisition to another output handler on a writer
+ * thread, so that acquisition does not wait for the disk.
+ *
+ * The writer blocks until something is queued, then takes everything that is
+ * queued (up to MAX_BATCH calls) and passes it to the handler in one go. The
+ * queue is bounded by the bytes of the queued slices rather than by their
+ * number; acquisition only waits when that much data is waiting to be
+ * written. Queue depth, latency and throughput can be read at any time.
+ */
 public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHandler {
-	private static class IPC {
-		public static enum Type {
-			StartStack,
-			Slice,
-			EndStack,
-		}
-
-		public IPC(Type type, ImageProcessor ip, double x, double y, double z, double t, double dt) {
-			this.type = type;
-			this.ip = ip;
-			this.x = x;
-			this.y = y;
-			this.z = z;
-			this.t = t;
-			this.dt = dt;
-		}
-
-		public ImageProcessor ip;
-		public double x, y, z, t, dt;
-		public Type type;
-	}
+	private static final int MAX_BATCH = 64;
 
 	private AcqOutputHandler handler;
 	private Thread writerThread, monitorThread;
 	private BlockingQueue<IPC> queue;
-	private Exception rethrow;
+	private volatile Exception rethrow;
 
-	private volatile boolean finishing;
 	private volatile boolean writing = false;
 
+	// Guarded by sizeLock.
+	private final Object sizeLock = new Object();
+	private final long capBytes;
+	private long queuedBytes, peakQueuedBytes;
+	private int pending;
+	private long slicesWritten, bytesWritten, batches;
+	private long latencySum, latencyMax, writeTime;
+	private long firstQueued = -1, lastWritten = -1;
+
 	private Runnable monitorOp = new Runnable() {
 		@Override
 		public void run() {
@@ -57,11 +55,11 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 			imp.show();
 
 			while(!Thread.interrupted()) {
-				int n = AsyncOutputWrapper.this.queue.size();
-				int m = AsyncOutputWrapper.this.queue.remainingCapacity();
-				String statStr = n + "/" + (n + m) + (AsyncOutputWrapper.this.writing ? " (Writing)" : " (Idle)");
+				long n = getQueuedBytes();
+				String statStr = String.format("%d MB/%d MB, %.1f MB/s", n >> 20, capBytes >> 20, getThroughput() / (1 << 20)) +
+						(AsyncOutputWrapper.this.writing ? " (Writing)" : " (Idle)");
 
-				int y = 16 + (int) (((double)m / (double)(n + m)) * (statusImg.getHeight() - 16));
+				int y = 16 + (int) ((1 - (double)n / (double)capBytes) * (statusImg.getHeight() - 16));
 
 				statusImg.setColor(Color.WHITE);
 				statusImg.copyBits(statusImg, -1, 0, ij.process.Blitter.COPY);
@@ -73,7 +71,7 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 					statusImg.drawPixel(statusImg.getWidth() - 1, statusImg.getHeight() - 1);
 				}
 				statusImg.setColor(Color.BLACK);
-				statusImg.drawPixel(statusImg.getWidth() - 1, y);
+				statusImg.drawPixel(statusImg.getWidth() - 1, Math.max(16, y));
 				statusImg.drawString(statStr, 4, 16, Color.WHITE);
 				imp.updateAndDraw();
 
@@ -91,22 +89,24 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 	private Runnable writerOp = new Runnable() {
 		@Override
 		public void run() {
+			List<IPC> batch = new ArrayList<IPC>(MAX_BATCH);
 			try {
-				while(!Thread.interrupted() && !AsyncOutputWrapper.this.finishing)
+				boolean done = false;
+				while(!done)
 				{
-					Thread.sleep(100);
-					handleNext();
+					batch.add(queue.take());
+					queue.drainTo(batch, MAX_BATCH - 1);
+					done = handleBatch(batch);
+					batch.clear();
 				}
-
-				handleAll();
 			} catch (InterruptedException ie) {
-				// Something under writeNext noticed the thread was being interrupted and whined.
+				// Something under handleBatch noticed the thread was being interrupted and whined.
 				// Log a message/stack trace, but we're too mellow to actually throw a fit.
 				ReportingUtils.logError(ie);
 			} catch (ClosedByInterruptException cbie) {
 				// The writing to disk was interrupted. This can be a serious problem; the last slice in queue probably wasn't
-				// written correctly... May need to catch this earlier on; see writeNext?
-				ij.IJ.log("Warning: asynchronous writer may have been cancelled before completing. (" + queue.size() + ")");
+				// written correctly... May need to catch this earlier on; see handleBatch?
+				ij.IJ.log("Warning: asynchronous writer may have been cancelled before completing. (" + (queue.size() + batch.size()) + ")");
 				ReportingUtils.logError(cbie);
 			} catch (Exception e) {
 				ij.IJ.log("Async writer failed!");
@@ -115,10 +115,15 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		}
 	};
 
+	/**
+	 * @param handlerRef the handler that does the actual writing
+	 * @param cap the most bytes of slices that may wait to be written
+	 * @param monitor show the "Async Status" window
+	 */
 	public AsyncOutputWrapper(AcqOutputHandler handlerRef, long cap, boolean monitor) {
-		finishing = false;
 		handler = handlerRef;
-		queue = new LinkedBlockingQueue<IPC>((int) cap);
+		capBytes = Math.max(1, cap);
+		queue = new LinkedBlockingQueue<IPC>();
 		writerThread = new Thread(writerOp, "Async Output Handler Thread");
 		writerThread.setPriority(Thread.MIN_PRIORITY);
 		writerThread.setUncaughtExceptionHandler(this);
@@ -140,7 +145,7 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		if(rethrow != null)
 			throw rethrow;
 
-		handleAll();
+		flush();
 
 		synchronized(handler) {
 			return handler.getImagePlus();
@@ -149,47 +154,24 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 
 	@Override
 	public void beginStack(int axis) throws Exception {
-		if(rethrow != null)
-			throw rethrow;
-
-		IPC store = new IPC(IPC.Type.StartStack, null, 0, 0, 0, 0, (double) axis);
-		if(!queue.offer(store)) {
-			handleNext();
-			queue.put(store);
-		}
+		enqueue(new IPC(IPC.Type.StartStack, null, 0, 0, 0, 0, (double) axis));
 	}
 
 	@Override
 	public void processSlice(ImageProcessor ip, double X, double Y, double Z,
 			double theta, double deltaT) throws Exception {
-		if(rethrow != null)
-			throw rethrow;
-
-		IPC store = new IPC(IPC.Type.Slice, ip, X, Y, Z, theta, deltaT);
-		if(!queue.offer(store)) {
-			handleNext();
-			queue.put(store);
-		}
+		enqueue(new IPC(IPC.Type.Slice, ip, X, Y, Z, theta, deltaT));
 	}
 
 	@Override
 	public void finalizeStack(int depth) throws Exception {
-		if(rethrow != null)
-			throw rethrow;
-
-		IPC store = new IPC(IPC.Type.EndStack, null, 0, 0, 0, 0, (double) depth);
-		if(!queue.offer(store)) {
-			handleNext();
-			queue.put(store);
-		}
+		enqueue(new IPC(IPC.Type.EndStack, null, 0, 0, 0, 0, (double) depth));
 	}
 
 	@Override
 	public void finalizeAcquisition() throws Exception {
-		if(rethrow != null)
-			throw rethrow;
-
-		finishing = true; // Tell the writer thread to finish up...
+		if(writerThread.isAlive())
+			enqueue(new IPC(IPC.Type.Finish, null, 0, 0, 0, 0, 0)); // Tell the writer thread to finish up...
 		writerThread.setPriority(Thread.MAX_PRIORITY); // ...and give it more CPU time.
 
 		try {
@@ -202,8 +184,8 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 			if(writerThread.isAlive()) {
 				writerThread.interrupt();
 				writerThread.join();
-				handleAll();
 			}
+			handleRemaining();
 
 			if(monitorThread != null && monitorThread.isAlive()) {
 				monitorThread.interrupt();
@@ -211,37 +193,222 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 			}
 		}
 
+		ReportingUtils.logMessage(String.format("Async output: %d slices, %.1f MB in %d batches; %.1f MB/s overall, " +
+				"%.1f MB/s while writing; latency %.1f ms mean, %.1f ms max; peak queue %.1f MB of %.1f MB",
+				getSlicesWritten(), getBytesWritten() / 1048576.0, getBatchCount(), getThroughput() / 1048576.0,
+				getWriteRate() / 1048576.0, getMeanLatencyMs(), getMaxLatencyMs(), getPeakQueuedBytes() / 1048576.0,
+				capBytes / 1048576.0));
+
 		synchronized(handler) {
 			handler.finalizeAcquisition();
 		}
 	}
 
-	private synchronized void handleNext() throws Exception {
+	/**
+	 * @return the number of calls waiting to be handed to the handler
+	 */
+	public int getQueueDepth() {
+		synchronized(sizeLock) {
+			return pending;
+		}
+	}
+
+	/**
+	 * @return the bytes of slices waiting to be written
+	 */
+	public long getQueuedBytes() {
+		synchronized(sizeLock) {
+			return queuedBytes;
+		}
+	}
+
+	/**
+	 * @return the most bytes of slices that were waiting at any one time
+	 */
+	public long getPeakQueuedBytes() {
+		synchronized(sizeLock) {
+			return peakQueuedBytes;
+		}
+	}
+
+	public long getCapacityBytes() {
+		return capBytes;
+	}
+
+	public long getSlicesWritten() {
+		synchronized(sizeLock) {
+			return slicesWritten;
+		}
+	}
+
+	public long getBytesWritten() {
+		synchronized(sizeLock) {
+			return bytesWritten;
+		}
+	}
+
+	public long getBatchCount() {
+		synchronized(sizeLock) {
+			return batches;
+		}
+	}
+
+	/**
+	 * @return mean time, in ms, from queueing a slice until it was written
+	 */
+	public double getMeanLatencyMs() {
+		synchronized(sizeLock) {
+			return slicesWritten == 0 ? 0 : latencySum / 1e6 / slicesWritten;
+		}
+	}
+
+	/**
+	 * @return longest time, in ms, from queueing a slice until it was written
+	 */
+	public double getMaxLatencyMs() {
+		synchronized(sizeLock) {
+			return latencyMax / 1e6;
+		}
+	}
+
+	/**
+	 * @return bytes written per second, from the first queued slice until the
+	 *         last written one
+	 */
+	public double getThroughput() {
+		synchronized(sizeLock) {
+			if(firstQueued < 0 || lastWritten <= firstQueued)
+				return 0;
+
+			return bytesWritten / ((lastWritten - firstQueued) / 1e9);
+		}
+	}
+
+	/**
+	 * @return bytes written per second spent in the handler; what the handler
+	 *         could sustain if it never had to wait for slices
+	 */
+	public double getWriteRate() {
+		synchronized(sizeLock) {
+			return writeTime == 0 ? 0 : bytesWritten / (writeTime / 1e9);
+		}
+	}
+
+	public boolean isWriting() {
+		return writing;
+	}
+
+	private void enqueue(IPC store) throws Exception {
+		synchronized(sizeLock) {
+			// A single slice bigger than the cap is still let through on its own.
+			while(queuedBytes > 0 && queuedBytes + store.bytes > capBytes) {
+				checkWriter();
+				sizeLock.wait(100);
+			}
+			checkWriter();
+
+			store.queuedAt = System.nanoTime();
+			if(firstQueued < 0 && store.type == IPC.Type.Slice)
+				firstQueued = store.queuedAt;
+
+			queuedBytes += store.bytes;
+			peakQueuedBytes = Math.max(peakQueuedBytes, queuedBytes);
+			++pending;
+		}
+
+		queue.put(store);
+	}
+
+	private void checkWriter() throws Exception {
 		if(rethrow != null)
 			throw rethrow;
 
-		IPC write = queue.peek();
-		if(write != null) {
-			synchronized(handler) {
-				writing = true;
-				switch(write.type){
-				case StartStack:
-					handler.beginStack((int) write.dt);
-					break;
-				case Slice:
-					handler.processSlice(write.ip, write.x, write.y, write.z, write.t, write.dt);
-					break;
-				case EndStack:
-					handler.finalizeStack((int) write.dt);
-					break;
+		if(!writerThread.isAlive())
+			throw new IllegalStateException("Async writer is not running.");
+	}
+
+	/**
+	 * Waits until everything queued so far has been handed to the handler.
+	 */
+	private void flush() throws Exception {
+		synchronized(sizeLock) {
+			while(pending > 0 && writerThread.isAlive()) {
+				if(rethrow != null)
+					throw rethrow;
+
+				sizeLock.wait(100);
+			}
+		}
+
+		handleRemaining();
+	}
+
+	/**
+	 * Hands a batch of calls to the handler, holding its lock once for the
+	 * whole batch.
+	 *
+	 * @return true if the batch ended with the finish marker
+	 */
+	private boolean handleBatch(List<IPC> batch) throws Exception {
+		boolean done = false;
+		long bytes = 0, latency = 0, maxLatency = 0;
+		int slices = 0;
+
+		long began = System.nanoTime();
+		synchronized(handler) {
+			writing = true;
+			try {
+				for(IPC write : batch) {
+					switch(write.type){
+					case StartStack:
+						handler.beginStack((int) write.dt);
+						break;
+					case Slice:
+						handler.processSlice(write.ip, write.x, write.y, write.z, write.t, write.dt);
+						long waited = System.nanoTime() - write.queuedAt;
+						latency += waited;
+						maxLatency = Math.max(maxLatency, waited);
+						bytes += write.bytes;
+						++slices;
+						break;
+					case EndStack:
+						handler.finalizeStack((int) write.dt);
+						break;
+					case Finish:
+						done = true;
+						break;
+					}
 				}
+			} finally {
 				writing = false;
 			}
-			queue.remove(write);
 		}
+		long ended = System.nanoTime();
+
+		synchronized(sizeLock) {
+			queuedBytes -= bytes;
+			pending -= batch.size();
+			slicesWritten += slices;
+			bytesWritten += bytes;
+			++batches;
+			latencySum += latency;
+			latencyMax = Math.max(latencyMax, maxLatency);
+			writeTime += ended - began;
+			if(slices > 0)
+				lastWritten = ended;
+			sizeLock.notifyAll();
+		}
+
+		return done;
 	}
 
-	private void handleAll() throws Exception {
+	/**
+	 * Writes whatever the writer thread left behind, on the calling thread.
+	 */
+	private void handleRemaining() throws Exception {
+		if(writerThread.isAlive() || queue.isEmpty())
+			return;
+
 		if(rethrow != null) {
 			if(Thread.currentThread() != writerThread)
 				throw rethrow;
@@ -249,8 +416,9 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 				return;
 		};
 
-		while(!queue.isEmpty())
-			handleNext();
+		List<IPC> rest = new ArrayList<IPC>(queue.size());
+		queue.drainTo(rest);
+		handleBatch(rest);
 	}
 
 	@Override
@@ -265,5 +433,9 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		};
 
 		rethrow = (Exception)exc;
+
+		synchronized(sizeLock) {
+			sizeLock.notifyAll();
+		}
 	}
 }
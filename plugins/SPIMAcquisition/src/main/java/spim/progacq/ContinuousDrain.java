@@ -0,0 +1,335 @@
+package spim.progacq;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.micromanager.MMStudioMainFrame;
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+import spim.setup.SPIMSetup;
+
+/**
+ * Drains the circular buffer during a continuous acquisition.
+ *
+ * Two threads are involved: the drain thread waits (about half an exposure
+ * at a time) until the core has images, pops everything that is
+ * available in one batch, and queues the images; the processing thread turns
+ * them into ImageProcessors and hands them to the output handler. A slow
+ * handler therefore backs up the bounded queue first, not the circular buffer.
+ *
+ * Stack boundaries travel through the same queue as the images, so the output
+ * handler sees every call from the processing thread and in order. When the
+ * processing thread ends a stack, it logs the number of frames of the stack,
+ * and the high-water marks of the circular buffer and the queue and the
+ * number of frames the camera dropped since the previous stack.
+ */
+public class ContinuousDrain {
+	// Counted by the drain thread between two stack ends.
+	private static class Stats {
+		public int batches, bufferHighWater, queueHighWater, dropped, overflows;
+		public long stalledNs;
+	}
+
+	private final CMMCore core;
+	private final SPIMSetup setup;
+	private final AcqOutputHandler handler;
+	private final MMStudioMainFrame liveFrame;
+	private final double acqBegan;
+	private final BlockingQueue<IPC> queue;
+	private final int capacity;
+	private final Thread drainThread, processThread;
+
+	private volatile boolean draining;
+	private volatile Throwable failure;
+	// Signalled when draining stops, so that the drain does not wait out its poll.
+	private final Object wakeup = new Object();
+
+	// Guarded by this.
+	private Stats stats;
+
+	private Runnable drainOp = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				if(setup.getLaser() != null)
+					setup.getLaser().setPoweredOn(true);
+
+				core.clearCircularBuffer();
+				core.startContinuousSequenceAcquisition(0);
+
+				long pollMs = Math.max(1, Math.min(10, (long) (core.getExposure() / 2)));
+				long lastNumber = -1;
+
+				while(draining) {
+					int available = core.getRemainingImageCount();
+					if(available > 0)
+						lastNumber = popBatch(available, lastNumber);
+
+					if(core.isBufferOverflowed()) {
+						recordOverflow();
+						core.clearCircularBuffer();
+						if(!core.isSequenceRunning())
+							core.startContinuousSequenceAcquisition(0);
+						lastNumber = -1;
+					}
+
+					// The core can not block until an image arrives, so wait
+					// for the next poll unless draining stops first.
+					if(available == 0) {
+						synchronized(wakeup) {
+							if(draining)
+								wakeup.wait(pollMs);
+						}
+					}
+				}
+
+				core.stopSequenceAcquisition();
+
+				if(setup.getLaser() != null)
+					setup.getLaser().setPoweredOn(false);
+
+				// Whatever reached the buffer before the camera stopped is still kept.
+				int available;
+				while((available = core.getRemainingImageCount()) > 0)
+					lastNumber = popBatch(available, lastNumber);
+
+				enqueue(new IPC(IPC.Type.Finish, null, 0, 0, 0, 0, 0));
+			} catch(InterruptedException ie) {
+				// Aborted; the processing thread is interrupted as well.
+			} catch(Throwable t) {
+				fail(t);
+			} finally {
+				try {
+					if(core.isSequenceRunning())
+						core.stopSequenceAcquisition();
+				} catch(Exception e) {
+					ReportingUtils.logError(e);
+				}
+			}
+		}
+	};
+
+	private Runnable processOp = new Runnable() {
+		@Override
+		public void run() {
+			int stackCount = 0, frames = 0;
+			try {
+				while(true) {
+					IPC next = queue.take();
+					switch(next.type) {
+					case StartStack:
+						++stackCount;
+						frames = 0;
+						handler.beginStack((int) next.dt);
+						break;
+					case Slice:
+						++frames;
+						handler.processSlice(ImageUtils.makeProcessor(next.ti), next.x, next.y, next.z, next.t, next.dt);
+						if(liveFrame != null)
+							ProgrammaticAcquisitor.updateLiveImage(liveFrame, next.ti);
+						break;
+					case EndStack:
+						handler.finalizeStack((int) next.dt);
+						logStack(stackCount, frames);
+						break;
+					case Finish:
+						return;
+					}
+				}
+			} catch(InterruptedException ie) {
+				// Aborted.
+			} catch(Throwable t) {
+				fail(t);
+			}
+		}
+	};
+
+	/**
+	 * @param core the core running the camera
+	 * @param setup the setup, for the laser and the stage positions
+	 * @param handler receives the stacks; only called from the processing thread
+	 * @param acqBegan acquisition start, in seconds (System.nanoTime() / 1e9)
+	 * @param liveFrame frame whose live window shows every image, or null
+	 */
+	public ContinuousDrain(CMMCore core, SPIMSetup setup, AcqOutputHandler handler, double acqBegan, MMStudioMainFrame liveFrame) {
+		this.core = core;
+		this.setup = setup;
+		this.handler = handler;
+		this.acqBegan = acqBegan;
+		this.liveFrame = liveFrame;
+
+		capacity = defaultCapacity(core);
+		queue = new ArrayBlockingQueue<IPC>(capacity);
+		stats = new Stats();
+
+		drainThread = new Thread(drainOp, "Continuous Acquisition Drain");
+		drainThread.setPriority(Thread.MAX_PRIORITY);
+		processThread = new Thread(processOp, "Continuous Acquisition Processor");
+	}
+
+	/**
+	 * Room for half the free heap worth of images, like the asynchronous
+	 * output handler, but never fewer than 16 or more than 4096.
+	 */
+	private static int defaultCapacity(CMMCore core) {
+		long bytes = core.getImageWidth() * core.getImageHeight() * core.getBytesPerPixel();
+		long free = Runtime.getRuntime().maxMemory() - (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+		return (int) Math.max(16, Math.min(4096, free / Math.max(1, bytes * 2)));
+	}
+
+	/**
+	 * Turns the laser on and starts the camera and both threads.
+	 */
+	public void start() {
+		draining = true;
+		processThread.start();
+		drainThread.start();
+	}
+
+	public boolean isAlive() {
+		return failure == null && drainThread.isAlive() && processThread.isAlive();
+	}
+
+	/**
+	 * @return the message of the first error either thread ran into, or null
+	 */
+	public String getFailure() {
+		if(failure == null)
+			return null;
+
+		return failure.getMessage() != null ? failure.getMessage() : failure.toString();
+	}
+
+	/**
+	 * Queues the start of a stack.
+	 */
+	public void beginStack(int axis) throws InterruptedException {
+		enqueue(new IPC(IPC.Type.StartStack, null, 0, 0, 0, 0, (double) axis));
+	}
+
+	/**
+	 * Queues the end of a stack. The statistics of the stack are logged once
+	 * the processing thread has handed all of its frames to the output handler.
+	 */
+	public void finalizeStack(int depth) throws InterruptedException {
+		enqueue(new IPC(IPC.Type.EndStack, null, 0, 0, 0, 0, (double) depth));
+	}
+
+	/**
+	 * Logs the frames of a stack, and what the drain counted since the end of
+	 * the previous stack; called from the processing thread.
+	 */
+	private void logStack(int stackCount, int frames) {
+		Stats last;
+		synchronized(this) {
+			last = stats;
+			stats = new Stats();
+		}
+
+		String msg = String.format("Continuous stack %d: %d frames; %d batches, circular buffer high-water %d/%d, " +
+				"queue high-water %d/%d, drain stalled %.1f ms, %d frames dropped (%d overflows) since the previous stack",
+				stackCount, frames, last.batches, last.bufferHighWater, core.getBufferTotalCapacity(),
+				last.queueHighWater, capacity, last.stalledNs / 1e6, last.dropped, last.overflows);
+
+		ReportingUtils.logMessage(msg);
+		if(last.dropped > 0 || last.overflows > 0)
+			ij.IJ.log("Warning: " + msg);
+	}
+
+	/**
+	 * Stops the camera, waits until every image still in the circular buffer
+	 * and in the queue has been handed to the output handler, then turns the
+	 * laser off.
+	 */
+	public void stop() throws InterruptedException {
+		stopDraining();
+		drainThread.join();
+
+		// The drain queues the finish marker, unless it failed.
+		if(failure != null)
+			processThread.interrupt();
+
+		processThread.join();
+	}
+
+	/**
+	 * Stops both threads immediately; queued images are lost.
+	 */
+	public void abort() throws InterruptedException {
+		stopDraining();
+		drainThread.interrupt();
+		processThread.interrupt();
+		drainThread.join();
+		processThread.join();
+	}
+
+	private void stopDraining() {
+		synchronized(wakeup) {
+			draining = false;
+			wakeup.notifyAll();
+		}
+	}
+
+	private long popBatch(int available, long lastNumber) throws Exception {
+		double x = setup.getXStage().getPosition();
+		double y = setup.getYStage().getPosition();
+		double z = setup.getZStage().getPosition();
+		double theta = setup.getAngle();
+
+		int dropped = 0;
+		long stalled = 0;
+		for(int i = 0; i < available; ++i) {
+			TaggedImage ti = core.popNextTaggedImage();
+			double t = System.nanoTime() / 1e9 - acqBegan;
+
+			if(ti.tags != null && ti.tags.has("ImageNumber")) {
+				long number = ti.tags.getLong("ImageNumber");
+				if(lastNumber >= 0 && number > lastNumber + 1)
+					dropped += (int) (number - lastNumber - 1);
+				lastNumber = number;
+			}
+
+			long before = System.nanoTime();
+			enqueue(new IPC(ti, x, y, z, theta, t));
+			stalled += System.nanoTime() - before;
+		}
+
+		synchronized(this) {
+			stats.batches++;
+			stats.bufferHighWater = Math.max(stats.bufferHighWater, available);
+			stats.dropped += dropped;
+			stats.stalledNs += stalled;
+		}
+
+		return lastNumber;
+	}
+
+	private synchronized void recordOverflow() {
+		stats.overflows++;
+	}
+
+	private void enqueue(IPC ipc) throws InterruptedException {
+		while(!queue.offer(ipc, 100, TimeUnit.MILLISECONDS)) {
+			if(!processThread.isAlive())
+				throw new IllegalStateException("Continuous acquisition processor stopped: " + getFailure());
+		}
+
+		int queued = queue.size();
+		synchronized(this) {
+			stats.queueHighWater = Math.max(stats.queueHighWater, queued);
+		}
+	}
+
+	private void fail(Throwable t) {
+		ReportingUtils.logError(t);
+		synchronized(this) {
+			if(failure == null)
+				failure = t;
+		}
+	}
+}
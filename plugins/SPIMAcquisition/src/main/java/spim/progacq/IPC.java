@@ -0,0 +1,56 @@
+package spim.progacq;
+
+import ij.process.ImageProcessor;
+
+import mmcorej.TaggedImage;
+
+/**
+ * One call of an acquisition to an output handler, queued to be made on
+ * another thread. Slices carry either an ImageProcessor or, when they come
+ * straight from the circular buffer, the TaggedImage it is to be made from.
+ */
+class IPC {
+	public static enum Type {
+		StartStack,
+		Slice,
+		EndStack,
+		Finish,
+	}
+
+	public IPC(Type type, ImageProcessor ip, double x, double y, double z, double t, double dt) {
+		this.type = type;
+		this.ip = ip;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.t = t;
+		this.dt = dt;
+		this.bytes = bytesOf(ip);
+	}
+
+	public IPC(TaggedImage ti, double x, double y, double z, double t, double dt) {
+		this(Type.Slice, null, x, y, z, t, dt);
+		this.ti = ti;
+	}
+
+	public ImageProcessor ip;
+	public TaggedImage ti;
+	public double x, y, z, t, dt;
+	public Type type;
+	public long bytes;
+	public long queuedAt;
+
+	private static long bytesOf(ImageProcessor ip) {
+		if(ip == null)
+			return 0;
+
+		Object pixels = ip.getPixels();
+		long n = (long) ip.getWidth() * ip.getHeight();
+		if(pixels instanceof byte[])
+			return n;
+		else if(pixels instanceof short[])
+			return n * 2;
+		else
+			return n * 4;
+	}
+}
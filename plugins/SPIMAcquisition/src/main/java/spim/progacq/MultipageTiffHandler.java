@@ -0,0 +1,142 @@
+package spim.progacq;
+
+import java.io.File;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Writes an acquisition through Micro-Manager's own multipage TIFF storage
+ * rather than through Bio-Formats.
+ *
+ * Every view (row of the acquisition table) is stored as a separate position,
+ * and so goes to its own set of files; time points are frames, planes are
+ * slices. Pixels are written as they are (no conversion to bytes), on the
+ * storage's writing thread, and the OME-XML is generated once, when the
+ * acquisition is finalized, instead of being updated for every plane.
+ */
+public class MultipageTiffHandler implements AcqOutputHandler {
+	private File outputDirectory;
+	private CMMCore core;
+	private AcqRow[] acqRows;
+	private int stacks, timesteps;
+	private double deltat;
+
+	private TaggedImageStorageMultipageTiff storage;
+	private int imageCounter, sliceCounter;
+
+	public MultipageTiffHandler(CMMCore iCore, File outDir, AcqRow[] acqRows,
+			int iTimeSteps, double iDeltaT) {
+
+		if(outDir == null || !outDir.exists() || !outDir.isDirectory())
+			throw new IllegalArgumentException("Null path specified: " + outDir);
+
+		core = iCore;
+		outputDirectory = outDir;
+		this.acqRows = acqRows;
+		stacks = acqRows.length;
+		timesteps = iTimeSteps;
+		deltat = iDeltaT;
+
+		imageCounter = -1;
+		sliceCounter = 0;
+	}
+
+	private JSONObject makeSummary() throws Exception {
+		int depth = 1;
+		for(AcqRow row : acqRows)
+			depth = Math.max(depth, row.getDepth());
+
+		int bytes = (int) core.getBytesPerPixel();
+		int bitDepth = (int) core.getImageBitDepth();
+
+		JSONObject summary = new JSONObject();
+		summary.put("Prefix", "spim");
+		summary.put("Comment", "SPIM acquisition, " + stacks + " view(s)");
+		summary.put("Width", (int) core.getImageWidth());
+		summary.put("Height", (int) core.getImageHeight());
+		summary.put("PixelType", bytes == 1 ? "GRAY8" : "GRAY16");
+		summary.put("IJType", bytes == 1 ? ImagePlus.GRAY8 : ImagePlus.GRAY16);
+		summary.put("BitDepth", bitDepth);
+		summary.put("Channels", 1);
+		summary.put("ChNames", new JSONArray().put("Default"));
+		summary.put("ChColors", new JSONArray().put(java.awt.Color.white.getRGB()));
+		summary.put("ChMins", new JSONArray().put(0));
+		summary.put("ChMaxes", new JSONArray().put((1 << bitDepth) - 1));
+		summary.put("Slices", depth);
+		summary.put("Frames", timesteps);
+		summary.put("Positions", stacks);
+		summary.put("SlicesFirst", true);
+		summary.put("TimeFirst", false);
+		summary.put("PixelSize_um", core.getPixelSizeUm());
+		summary.put("z-step_um", Math.max(acqRows[0].getZStepSize(), 1.0D));
+		summary.put("Interval_ms", deltat * 1000);
+		summary.put("StartTime", MDUtils.getCurrentTime());
+
+		return summary;
+	}
+
+	@Override
+	public ImagePlus getImagePlus() throws Exception {
+		return null;
+	}
+
+	@Override
+	public void beginStack(int axis) throws Exception {
+		ReportingUtils.logMessage("Beginning stack along dimension " + axis);
+
+		if(storage == null)
+			storage = new TaggedImageStorageMultipageTiff(outputDirectory.getAbsolutePath(), true,
+					makeSummary(), false, true, true);
+
+		++imageCounter;
+		sliceCounter = 0;
+	}
+
+	@Override
+	public void processSlice(ImageProcessor ip, double X, double Y, double Z, double theta, double deltaT)
+			throws Exception {
+		int image = imageCounter % stacks;
+		int timePoint = imageCounter / stacks;
+
+		JSONObject tags = new JSONObject();
+		MDUtils.setChannelIndex(tags, 0);
+		MDUtils.setSliceIndex(tags, sliceCounter);
+		MDUtils.setFrameIndex(tags, timePoint);
+		MDUtils.setPositionIndex(tags, image);
+		MDUtils.setPositionName(tags, "Angle" + image);
+		tags.put("XPositionUm", X);
+		tags.put("YPositionUm", Y);
+		tags.put("ZPositionUm", Z);
+		tags.put("Theta", theta);
+		tags.put("ElapsedTime-ms", deltaT * 1000);
+
+		storage.putImage(new TaggedImage(ip.getPixels(), tags));
+
+		++sliceCounter;
+	}
+
+	@Override
+	public void finalizeStack(int depth) throws Exception {
+		ReportingUtils.logMessage("Finished stack along dimension " + depth);
+	}
+
+	@Override
+	public void finalizeAcquisition() throws Exception {
+		// Closing finishes the files, and writes the OME-XML.
+		if(storage != null)
+			storage.close();
+
+		storage = null;
+		imageCounter = -1;
+	}
+}
@@ -200,7 +200,7 @@ public class ProgrammaticAcquisitor {
 		core.waitForSystem();
 	}
 	
-	private static void updateLiveImage(MMStudioMainFrame f, TaggedImage ti)
+	static void updateLiveImage(MMStudioMainFrame f, TaggedImage ti)
 	{
 		try {
 			MDUtils.setChannelIndex(ti.tags, 0);
@@ -215,15 +215,13 @@ public class ProgrammaticAcquisitor {
 		}
 	}
 
-	private static ImagePlus cleanAbort(AcqParams p, boolean live, boolean as, Thread ct) {
+	private static ImagePlus cleanAbort(AcqParams p, boolean live, boolean as, ContinuousDrain drain) {
 		p.getCore().setAutoShutter(as);
 		p.getProgressListener().reportProgress(p.getTimeSeqCount() - 1, p.getRows().length - 1, 100.0D);
 
 		try {
-			if(ct != null && ct.isAlive()) {
-				ct.interrupt();
-				ct.join();
-			}
+			if(drain != null)
+				drain.abort();
 
 			// TEMPORARY: Don't re-enable live mode. This keeps our laser off.
 //			MMStudioMainFrame.getInstance().enableLiveMode(live);
@@ -306,52 +304,10 @@ public class ProgrammaticAcquisitor {
 			prof.get("Setup").stop();
 
 		for(int timeSeq = 0; timeSeq < params.getTimeSeqCount(); ++timeSeq) {
-			Thread continuousThread = null;
+			ContinuousDrain drain = null;
 			if (params.isContinuous()) {
-				continuousThread = new Thread() {
-					private Throwable lastExc;
-
-					@Override
-					public void run() {
-						try {
-							if(setup.getLaser() != null)
-								setup.getLaser().setPoweredOn(true);
-
-							core.clearCircularBuffer();
-							core.startContinuousSequenceAcquisition(0);
-
-							while (!Thread.interrupted()) {
-								if (core.getRemainingImageCount() == 0) {
-									Thread.yield();
-									continue;
-								};
-
-								TaggedImage ti = core.popNextTaggedImage();
-								handleSlice(core, setup, metaDevs, acqBegan, ImageUtils.makeProcessor(ti), handler);
-
-								if(params.isUpdateLive())
-									updateLiveImage(frame, ti);
-							}
-
-							core.stopSequenceAcquisition();
-
-							if(setup.getLaser() != null)
-								setup.getLaser().setPoweredOn(false);
-						} catch (Throwable e) {
-							lastExc = e;
-						}
-					}
-
-					@Override
-					public String toString() {
-						if (lastExc == null)
-							return super.toString();
-						else
-							return lastExc.getMessage();
-					}
-				};
-
-				continuousThread.start();
+				drain = new ContinuousDrain(core, setup, handler, acqBegan, params.isUpdateLive() ? frame : null);
+				drain.start();
 			}
 
 			int step = 0;
@@ -390,7 +346,10 @@ public class ProgrammaticAcquisitor {
 				if(params.doProfiling())
 					prof.get("Output").start();
 
-				handler.beginStack(0);
+				if(drain != null)
+					drain.beginStack(0);
+				else
+					handler.beginStack(0);
 
 				if(params.doProfiling())
 					prof.get("Output").stop();
@@ -422,7 +381,7 @@ public class ProgrammaticAcquisitor {
 						try {
 							Thread.sleep(params.getSettleDelay());
 						} catch(InterruptedException ie) {
-							return cleanAbort(params, liveOn, autoShutter, continuousThread);
+							return cleanAbort(params, liveOn, autoShutter, drain);
 						}
 
 						if(params.doProfiling())
@@ -477,7 +436,10 @@ public class ProgrammaticAcquisitor {
 				if(params.doProfiling())
 					prof.get("Output").start();
 
-				handler.finalizeStack(0);
+				if(drain != null)
+					drain.finalizeStack(0);
+				else
+					handler.finalizeStack(0);
 
 				if(params.doProfiling())
 					prof.get("Output").stop();
@@ -492,11 +454,11 @@ public class ProgrammaticAcquisitor {
 				}
 
 				if(Thread.interrupted())
-					return cleanAbort(params, liveOn, autoShutter, continuousThread);
+					return cleanAbort(params, liveOn, autoShutter, drain);
 
-				if(params.isContinuous() && !continuousThread.isAlive()) {
-					cleanAbort(params, liveOn, autoShutter, continuousThread);
-					throw new Exception(continuousThread.toString());
+				if(drain != null && !drain.isAlive()) {
+					cleanAbort(params, liveOn, autoShutter, drain);
+					throw new Exception(drain.getFailure());
 				}
 
 				final Double progress = (double) (params.getRows().length * timeSeq + step + 1)
@@ -512,10 +474,8 @@ public class ProgrammaticAcquisitor {
 				++step;
 			}
 
-			if (params.isContinuous()) {
-				continuousThread.interrupt();
-				continuousThread.join();
-			}
+			if (drain != null)
+				drain.stop();
 
 			if(timeSeq + 1 < params.getTimeSeqCount()) {
 				double wait = (params.getTimeStepSeconds() * (timeSeq + 1)) -
@@ -525,7 +485,7 @@ public class ProgrammaticAcquisitor {
 					try {
 						Thread.sleep((long)(wait * 1e3));
 					} catch(InterruptedException ie) {
-						return cleanAbort(params, liveOn, autoShutter, continuousThread);
+						return cleanAbort(params, liveOn, autoShutter, drain);
 					}
 				else
 					core.logMessage("Behind schedule! (next seq in "
@@ -6,6 +6,10 @@ import java.awt.Image;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -15,7 +19,6 @@ import ij.ImageStack;
 import ij.process.Blitter;
 import ij.process.ColorBlitter;
 import ij.process.ColorProcessor;
-import ij.process.FloatBlitter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
@@ -26,60 +29,132 @@ import net.imglib2.img.Img;
 import net.imglib2.type.numeric.real.FloatType;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.ThreadUtils;
 
 public class ProjDiffAntiDrift extends AntiDrift {
+	/**
+	 * Mean projections of a stack along z (xy), y (xz) and x (zy).
+	 *
+	 * Slices are accumulated in place, in buffers allocated once for the
+	 * expected depth (and grown if more slices arrive), straight from the 8 or
+	 * 16 bit pixels: one pass per slice adds the slice to the xy sum and takes
+	 * its row and column sums. The projection processors are only built by
+	 * finish(), once the stack is complete.
+	 */
 	private static class Projections {
 		private FloatProcessor xy, xz, zy;
 
-		public void addXYSlice(ImageProcessor ip) {
-			if (!(ip instanceof FloatProcessor)) {
-				ip = (FloatProcessor)ip.convertToFloat();
-			}
+		private int w, h, d, capacity;
+		private int[] xySum;
+		private float[] xyFloatSum;
+		private float[] xzRows, zyRows;
+		private double[] colSums;
 
-			final int w = ip.getWidth();
-			final int h = ip.getHeight();
-			final int d;
-			final float[] pixels = (float[])ip.getPixels();
+		// Estimate against a reference stack, computed ahead of time.
+		private Projections estimatedAgainst;
+		private Vector3D estimate;
 
-			if (xy == null) {
-				d = 1;
-				xy = (FloatProcessor)ip.duplicate();
-				xz = new FloatProcessor(xy.getWidth(), 1);
-				zy = new FloatProcessor(1, xy.getHeight());
-			} else {
-				if (w != xy.getWidth() || h != xy.getHeight()) {
-					new IllegalArgumentException("" + w + "x" + h
-						+ " is incompatible with previously recorded "
-						+ xy.getWidth() + "x" + xy.getHeight());
-				}
+		public Projections(int expectedDepth) {
+			d = 0;
+			capacity = Math.max(1, expectedDepth);
+		}
 
-				xz = extend(xz, 0, 1);
-				zy = extend(zy, 1, 0);
-				d = xz.getHeight();
+		public int getDepth() {
+			return d;
+		}
 
-				final float[] xyPixels = (float[])xy.getPixels();
-				for (int i = 0; i < w * h; i++) {
-					xyPixels[i] = (xyPixels[i] * (d - 1) + pixels[i]) / d;
-				}
+		public void addXYSlice(ImageProcessor ip) {
+			Object pixels = ip.getPixels();
+			if (!(pixels instanceof byte[]) && !(pixels instanceof short[]) && !(pixels instanceof float[])) {
+				pixels = ip.convertToFloat().getPixels();
 			}
 
-			final float[] xzPixels = (float[])xz.getPixels();
-			for (int x = 0; x < w; x++) {
-				float sum = 0;
-				for (int y = 0; y < h; y++) {
-					sum += pixels[x + y * w];
-				}
-				xzPixels[x + (d - 1) * w] = sum / h;
+			if (xySum == null && xyFloatSum == null) {
+				w = ip.getWidth();
+				h = ip.getHeight();
+				if (pixels instanceof float[])
+					xyFloatSum = new float[w * h];
+				else
+					xySum = new int[w * h];
+				colSums = new double[w];
+				xzRows = new float[w * capacity];
+				zyRows = new float[h * capacity];
+			} else if (w != ip.getWidth() || h != ip.getHeight()) {
+				throw new IllegalArgumentException("" + ip.getWidth() + "x" + ip.getHeight()
+					+ " is incompatible with previously recorded " + w + "x" + h);
 			}
 
-			final float[] zyPixels = (float[])zy.getPixels();
+			if (d == capacity) {
+				capacity *= 2;
+				xzRows = java.util.Arrays.copyOf(xzRows, w * capacity);
+				zyRows = java.util.Arrays.copyOf(zyRows, h * capacity);
+			}
+
+			java.util.Arrays.fill(colSums, 0);
+			final int zyOffset = d * h;
 			for (int y = 0; y < h; y++) {
-				float sum = 0;
-				for (int x = 0; x < w; x++) {
-					sum += pixels[x + y * w];
+				final int offset = y * w;
+				double rowSum = 0;
+				if (pixels instanceof short[]) {
+					final short[] in = (short[]) pixels;
+					for (int x = 0; x < w; x++) {
+						final int v = in[offset + x] & 0xffff;
+						xySum[offset + x] += v;
+						colSums[x] += v;
+						rowSum += v;
+					}
+				} else if (pixels instanceof byte[]) {
+					final byte[] in = (byte[]) pixels;
+					for (int x = 0; x < w; x++) {
+						final int v = in[offset + x] & 0xff;
+						xySum[offset + x] += v;
+						colSums[x] += v;
+						rowSum += v;
+					}
+				} else {
+					final float[] in = (float[]) pixels;
+					for (int x = 0; x < w; x++) {
+						final float v = in[offset + x];
+						if (xyFloatSum != null)
+							xyFloatSum[offset + x] += v;
+						else
+							xySum[offset + x] += (int) v;
+						colSums[x] += v;
+						rowSum += v;
+					}
 				}
-				zyPixels[(d - 1) + y * d] = sum / w;
+				zyRows[zyOffset + y] = (float) (rowSum / w);
 			}
+
+			final int xzOffset = d * w;
+			for (int x = 0; x < w; x++)
+				xzRows[xzOffset + x] = (float) (colSums[x] / h);
+
+			++d;
+			xy = xz = zy = null;
+			estimatedAgainst = null;
+		}
+
+		/**
+		 * Builds the projection processors from the sums.
+		 */
+		public void finish() {
+			if (xy != null || d == 0)
+				return;
+
+			final float[] xyPixels = new float[w * h];
+			for (int i = 0; i < w * h; i++)
+				xyPixels[i] = (xyFloatSum != null ? xyFloatSum[i] : xySum[i]) / (float) d;
+			xy = new FloatProcessor(w, h, xyPixels, null);
+
+			xz = new FloatProcessor(w, d, java.util.Arrays.copyOf(xzRows, w * d), null);
+
+			final float[] zyPixels = new float[d * h];
+			for (int z = 0; z < d; z++)
+				for (int y = 0; y < h; y++)
+					zyPixels[z + y * d] = zyRows[z * h + y];
+			zy = new FloatProcessor(d, h, zyPixels, null);
 		}
 
 		public double largestDimension() {
@@ -210,15 +285,24 @@ public class ProjDiffAntiDrift extends AntiDrift {
 		}
 
 		public Vector3D correlateAndAverage(final Projections other) {
+			if(other == estimatedAgainst)
+				return estimate;
+
+			finish();
+			other.finish();
+
 			long[] xyc = correlate(xy, other.xy);
 			long[] xzc = correlate(xz, other.xz);
 			long[] zyc = correlate(zy, other.zy);
 
 			if(xyc == null || xzc == null || zyc == null)
-				return Vector3D.ZERO;
+				estimate = Vector3D.ZERO;
+			else
+				estimate = new Vector3D(xyc[0] + xzc[0], xyc[1] + zyc[1],
+					xzc[1] + zyc[0]).scalarMultiply(0.5D);
 
-			return new Vector3D(xyc[0] + xzc[0], xyc[1] + zyc[1],
-				xzc[1] + zyc[0]).scalarMultiply(0.5D);
+			estimatedAgainst = other;
+			return estimate;
 		}
 
 		private static int normalize(float value, double min, double max) {
@@ -227,19 +311,14 @@ public class ProjDiffAntiDrift extends AntiDrift {
 			return (int)((value - min) * 256 / (max - min));
 		}
 
-		private static FloatProcessor extend(final FloatProcessor fp, int dx, int dy) {
-			final FloatProcessor result = new FloatProcessor(fp.getWidth() + dx, fp.getHeight() + dy);
-			new FloatBlitter(result).copyBits(fp, 0, 0, Blitter.COPY);
-			return result;
-		}
-
 		public static Projections get(final ImagePlus imp) {
 			final ImageStack stack = imp.getStack();
-			final Projections p = new Projections();
+			final Projections p = new Projections(stack.getSize());
 
 			for (int i = 1; i <= stack.getSize(); i++)
 				p.addXYSlice(stack.getProcessor(i));
 
+			p.finish();
 			return p;
 		}
 
@@ -379,6 +458,11 @@ public class ProjDiffAntiDrift extends AntiDrift {
 
 	private File outputDir;
 	private double zratio;
+	private int expectedDepth;
+
+	// Projections are accumulated, and correlated, off the acquisition thread,
+	// one task at a time.
+	private static final Executor worker = ThreadUtils.newSerialExecutor();
 
 	public ProjDiffAntiDrift(File outDir, AcqParams p, AcqRow r) {
 		lastCorrection = Vector3D.ZERO;
@@ -389,6 +473,7 @@ public class ProjDiffAntiDrift extends AntiDrift {
 		tp = 1;
 		zstep = r.getZStepSize();
 		zratio = zstep/p.getCore().getPixelSizeUm();
+		expectedDepth = r.getDepth();
 
 		if(outDir != null) {
 			String xyz = String.format("XYZ%.2fx%.2fx%.2f_Theta%.2f", loc.getX(), loc.getY(), loc.getZ(), theta);
@@ -412,12 +497,28 @@ public class ProjDiffAntiDrift extends AntiDrift {
 			gui = null;
 		}
 
-		latest = new Projections();
+		latest = new Projections(expectedDepth);
 	}
 
 	@Override
-	public void tallySlice(Vector3D center, ImageProcessor ip) {
-		latest.addXYSlice(ip);
+	public void tallySlice(Vector3D center, final ImageProcessor ip) {
+		final Projections stack = latest;
+		final Projections reference = first;
+
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stack.addXYSlice(ip);
+
+					// Last slice: have the estimate ready before the stack is finished.
+					if(reference != null && stack.getDepth() == expectedDepth)
+						stack.correlateAndAverage(reference);
+				} catch(Throwable t) {
+					ReportingUtils.logError(t, "Anti-drift could not tally a slice");
+				}
+			}
+		});
 	}
 
 	@Override
@@ -436,14 +537,35 @@ public class ProjDiffAntiDrift extends AntiDrift {
 	public void finishStack(boolean initial) {
 		if(initial)
 			first = latest;
-		
+
+		final Projections stack = latest;
+		final Projections reference = first;
+
+		// Waits for the slices still queued; usually the estimate is ready by now.
+		Vector3D init;
+		try {
+			FutureTask<Vector3D> estimate = new FutureTask<Vector3D>(new Callable<Vector3D>() {
+				@Override
+				public Vector3D call() {
+					stack.finish();
+					return stack.correlateAndAverage(reference);
+				}
+			});
+			worker.execute(estimate);
+			init = estimate.get();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch(ExecutionException ee) {
+			ReportingUtils.logError(ee.getCause(), "Anti-drift could not correlate projections");
+			init = Vector3D.ZERO;
+		}
+
 		final Vector3D center = lastCorrection.add(latest.getCenter());
 
 		if(outputDir != null)
 			latest.writeDiff(first, zratio, lastCorrection, center, getOutFile("initial"));
 
-		Vector3D init = latest.correlateAndAverage(first);
-
 		if(outputDir != null)
 			latest.writeDiff(first, zratio, init, center, getOutFile("suggested"));
 
@@ -8,6 +8,7 @@ import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.util.ArrayList;
+import java.util.HashSet;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.ReportingUtils;
 
@@ -200,6 +201,20 @@ public class Coordinates {
                 viewDimensionsOffScreen_.width, viewDimensionsOffScreen_.height));
     }
 
+    /*
+     * Multitiles in a ring, one multitile wide, around the off screen view.
+     * These are not drawn, but will be as soon as the user pans.
+     */
+    public ArrayList<Point3D> getMultiTilesAroundOffScreen() {
+        // a multitile is as large off screen as a tile is on the map
+        ArrayList<Point3D> multiTiles = getMultiTilesInRegion(new Rectangle(
+                -tileDimensions_.width, -tileDimensions_.height,
+                viewDimensionsOffScreen_.width + 2 * tileDimensions_.width,
+                viewDimensionsOffScreen_.height + 2 * tileDimensions_.height));
+        multiTiles.removeAll(new HashSet<Point3D>(getMultiTilesOffScreen()));
+        return multiTiles;
+    }
+
     public ArrayList<Point3D> getMultiTilesOnScreen() {
         return getMultiTilesInRegion(new Rectangle( viewDimensionsOnScreen_.width,
                                                     viewDimensionsOnScreen_.height,
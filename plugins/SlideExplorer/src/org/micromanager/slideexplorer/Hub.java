@@ -87,6 +87,14 @@ public class Hub {
       tileDimensions_ = controller_.getTileDimensions();
 
       cache_ = new MultiTileCache(numZoomLevels_, tileDimensions_);
+      cache_.setPropagationListener(new Runnable() {
+         public void run() {
+            // zoomed out views show the parents that were just updated
+            if (zoomLevel_ < 0) {
+               SwingUtilities.invokeLater(new GUIUpdater());
+            }
+         }
+      });
 
       blackImg_ = ImageUtils.makeProcessor(type, tileDimensions_.width, tileDimensions_.height);
 
@@ -600,10 +608,13 @@ public class Hub {
        */
       public void regenerateView() {
          ArrayList<Point3D> onScreenMultiTiles = coords_.getMultiTilesOnScreen();
+         ArrayList<Point3D> offScreenMultiTiles = coords_.getMultiTilesOffScreen();
+         // everything off screen is drawn below, so load the multitiles just
+         // outside it in the background, ready for panning
+         cache_.prefetch(coords_.getMultiTilesAroundOffScreen());
          for (Point3D multiTile : onScreenMultiTiles) {
             drawMultiTile(multiTile);
          }
-         ArrayList<Point3D> offScreenMultiTiles = coords_.getMultiTilesOffScreen();
          for (Point3D multiTile : offScreenMultiTiles) {
             if (!onScreenMultiTiles.contains(multiTile)) {
                drawMultiTile(multiTile);
@@ -1,26 +1,24 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
 
 public class MultiTile {
 
+    final TileStore store_;
     ImageProcessor proc_;
     int type_;
     int width_;
     int height_;
-    String fileName_ = null;
-    boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
+    // slot in the scratch file of the store, -1 if never written
+    long slot_ = -1;
+    // true when the image in memory differs from the one on disk
+    boolean dirty_ = false;
 
-    MultiTile(int type, int width, int height) {
+    MultiTile(TileStore store, int type, int width, int height) {
+        store_ = store;
         type_ = type;
         width_ = width;
         height_ = height;
@@ -33,10 +31,10 @@ public class MultiTile {
 
     public synchronized void getImageReady() {
         if (proc_ == null) {
-            if (cached_ == false) {
+            if (slot_ < 0) {
                 createCleanImage();
             } else {
-                loadFromCache();
+                proc_ = store_.read(slot_);
             }
         }
         proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
@@ -45,70 +43,85 @@ public class MultiTile {
     public synchronized void setImage(ImageProcessor proc) {
         getImageReady();
         proc_.insert(proc, 0, 0);
+        dirty_ = true;
     }
 
     private void createCleanImage() {
         proc_ = ImageUtils.makeProcessor(type_, width_, height_);
     }
 
+    /*
+     * Shrinks the image 2x (by averaging 2x2 blocks) into the given quadrant,
+     * in a single pass over the pixels.
+     */
     public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-        // TODO: rewrite this as a fast algorithm. Should require only a single copy.
         getImageReady();
-        inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-        ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-        proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-        cached_ = false;
+        int w = width_ / 2;
+        int h = height_ / 2;
+        downsample(inProc.getPixels(), inProc.getWidth(), inProc.getHeight(),
+                proc_.getPixels(), width_, quad.x * w, quad.y * h, w, h);
+        dirty_ = true;
     }
 
-    public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
-        }
-
-        proc_ = null;
-    }
-
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+    /*
+     * Averages 2x2 blocks of src into a w x h region of dest, starting at
+     * (x0, y0).  The last row or column of an odd sized source is repeated.
+     */
+    static void downsample(Object src, int srcWidth, int srcHeight,
+            Object dest, int destWidth, int x0, int y0, int w, int h) {
+        for (int y = 0; y < h; y++) {
+            int row0 = Math.min(2 * y, srcHeight - 1) * srcWidth;
+            int row1 = Math.min(2 * y + 1, srcHeight - 1) * srcWidth;
+            int d = (y0 + y) * destWidth + x0;
+            if (src instanceof byte[]) {
+                byte[] in = (byte[]) src;
+                byte[] out = (byte[]) dest;
+                for (int x = 0; x < w; x++, d++) {
+                    int c0 = Math.min(2 * x, srcWidth - 1);
+                    int c1 = Math.min(2 * x + 1, srcWidth - 1);
+                    out[d] = (byte) (((in[row0 + c0] & 0xff) + (in[row0 + c1] & 0xff)
+                            + (in[row1 + c0] & 0xff) + (in[row1 + c1] & 0xff) + 2) >> 2);
+                }
+            } else if (src instanceof short[]) {
+                short[] in = (short[]) src;
+                short[] out = (short[]) dest;
+                for (int x = 0; x < w; x++, d++) {
+                    int c0 = Math.min(2 * x, srcWidth - 1);
+                    int c1 = Math.min(2 * x + 1, srcWidth - 1);
+                    out[d] = (short) (((in[row0 + c0] & 0xffff) + (in[row0 + c1] & 0xffff)
+                            + (in[row1 + c0] & 0xffff) + (in[row1 + c1] & 0xffff) + 2) >> 2);
+                }
+            } else if (src instanceof float[]) {
+                float[] in = (float[]) src;
+                float[] out = (float[]) dest;
+                for (int x = 0; x < w; x++, d++) {
+                    int c0 = Math.min(2 * x, srcWidth - 1);
+                    int c1 = Math.min(2 * x + 1, srcWidth - 1);
+                    out[d] = 0.25f * (in[row0 + c0] + in[row0 + c1]
+                            + in[row1 + c0] + in[row1 + c1]);
+                }
+            } else {
+                int[] in = (int[]) src;
+                int[] out = (int[]) dest;
+                for (int x = 0; x < w; x++, d++) {
+                    int c0 = Math.min(2 * x, srcWidth - 1);
+                    int c1 = Math.min(2 * x + 1, srcWidth - 1);
+                    int a = in[row0 + c0];
+                    int b = in[row0 + c1];
+                    int c = in[row1 + c0];
+                    int e = in[row1 + c1];
+                    int r = (((a >> 16) & 0xff) + ((b >> 16) & 0xff)
+                            + ((c >> 16) & 0xff) + ((e >> 16) & 0xff) + 2) >> 2;
+                    int g = (((a >> 8) & 0xff) + ((b >> 8) & 0xff)
+                            + ((c >> 8) & 0xff) + ((e >> 8) & 0xff) + 2) >> 2;
+                    int bl = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (e & 0xff) + 2) >> 2;
+                    out[d] = 0xff000000 | (r << 16) | (g << 8) | bl;
+                }
             }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
-        }
-    }
-
-    private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
         }
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
-
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
-
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
-        }
-    }
 }
@@ -4,39 +4,80 @@ import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.ThreadUtils;
 
+/*
+ * Pyramid of multitiles.  Tile images live in a TileStore, which keeps the 
+ * recently used ones in memory and the others in a scratch file.
+ * 
+ * New tiles are propagated up the pyramid on a background thread.  Tiles
+ * that arrive while a propagation is running are handled together in the 
+ * next batch, so that a parent is updated once per batch, and the parents 
+ * at each level are updated in parallel.
+ */
 public class MultiTileCache {
 	
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
-	
-	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
+	private TileStore store_ = null;
+	private final Set<Point3D> pendingTiles_ = new LinkedHashSet<Point3D>();
+	private boolean propagating_ = false;
+	private FutureTask<Object> propagation_ = null;
+	private Runnable propagationListener_ = null;
 	
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
 	}
 	
 	public void addImage(Point idx, ImageProcessor proc) {
-		if (type_ == -1) {
-			type_ = ImageUtils.getImageProcessorType(proc);
+		TileStore store;
+		synchronized (this) {
+			if (type_ == -1) {
+				type_ = ImageUtils.getImageProcessorType(proc);
+				try {
+					// keep up to a quarter of the heap in memory
+					store_ = new TileStore(type_, width_, height_, 
+							Runtime.getRuntime().maxMemory() / 4);
+				} catch (IOException ex) {
+					ReportingUtils.showError(ex, "Failed to create the tile store");
+					type_ = -1;
+					return;
+				}
+			}
+			store = store_;
 		}
 		
-		MultiTile tile = getTile(idx);
+		// the tile may have to be read from disk, which is not done while 
+		// the cache is locked
+		MultiTile tile = store.get(new Point3D(idx, 0));
 		tile.setImage(proc);
-		propagateTile(idx, tile);
+		schedulePropagation(new Point3D(idx, 0));
+	}
+	
+	/*
+	 * The listener is run (on the propagation thread) after each batch of
+	 * tiles has been propagated up the pyramid.
+	 */
+	public synchronized void setPropagationListener(Runnable listener) {
+		propagationListener_ = listener;
 	}
 	
 	public ImageProcessor getImage(Point3D multiTileIndex) {
@@ -44,29 +85,102 @@ public class MultiTileCache {
 	}
 	
 	public boolean hasImage(Point p) {
-		return allTiles_.containsKey(new Point3D(p,0));
+		return hasImage(new Point3D(p,0));
+	}
+	
+	public synchronized boolean hasImage(Point3D p) {
+		return store_ != null && store_.contains(p);
 	}
 	
-	public boolean hasImage(Point3D p) {
-		return allTiles_.containsKey(p);
+	/*
+	 * Starts loading the given multitiles in the background, so that they 
+	 * are in memory when needed.
+	 */
+	public synchronized void prefetch(List<Point3D> multiTileIndices) {
+		if (store_ != null) {
+			store_.prefetch(multiTileIndices);
+		}
 	}
 		
-	protected void propagateTile(Point idx, MultiTile multiTile) {
-		propagateTile(new Point3D(idx, 0), multiTile);
+	private synchronized void schedulePropagation(Point3D idx) {
+		pendingTiles_.add(idx);
+		if (!propagating_) {
+			propagating_ = true;
+			propagation_ = new FutureTask<Object>(new Runnable() {
+				public void run() {
+					propagatePending();
+				}
+			}, null);
+			ThreadUtils.getExecutor().execute(propagation_);
+		}
 	}
 	
-	protected void propagateTile(Point3D idx, MultiTile multiTile) {
-		if (idx.k>minZoomLevel_) {
-			Point3D pidx = getParentIndex(idx);
-			Point pquad = getParentQuadrant(idx);
-			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+	private void propagatePending() {
+		while (true) {
+			Set<Point3D> batch;
+			Runnable listener;
+			synchronized (this) {
+				if (pendingTiles_.isEmpty() || store_ == null) {
+					pendingTiles_.clear();
+					propagating_ = false;
+					return;
+				}
+				batch = new LinkedHashSet<Point3D>(pendingTiles_);
+				pendingTiles_.clear();
+				listener = propagationListener_;
+			}
+			try {
+				propagateTiles(batch);
+			} catch (Exception ex) {
+				ReportingUtils.logError(ex, "Failed to update the tile pyramid");
+			}
+			if (listener != null) {
+				listener.run();
+			}
 		}
 	}
-		
+	
+	/*
+	 * Updates all parents of the given tiles, one level at a time.
+	 */
+	protected void propagateTiles(Set<Point3D> tiles) throws Exception {
+		Set<Point3D> level = tiles;
+		while (!level.isEmpty()) {
+			// children of each parent at this level
+			Map<Point3D, List<Point3D>> parents = new LinkedHashMap<Point3D, List<Point3D>>();
+			for (Point3D idx : level) {
+				if (idx.k > minZoomLevel_) {
+					Point3D pidx = getParentIndex(idx);
+					List<Point3D> children = parents.get(pidx);
+					if (children == null) {
+						children = new ArrayList<Point3D>(4);
+						parents.put(pidx, children);
+					}
+					children.add(idx);
+				}
+			}
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(parents.size());
+			for (final Map.Entry<Point3D, List<Point3D>> entry : parents.entrySet()) {
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						MultiTile parentTile = getMultiTile(entry.getKey());
+						for (Point3D child : entry.getValue()) {
+							parentTile.insertQuadrantImage(getParentQuadrant(child), 
+									getMultiTile(child).getImage());
+						}
+						return null;
+					}
+				});
+			}
+			try {
+				ThreadUtils.invokeAll(tasks);
+			} catch (ExecutionException ex) {
+				throw (Exception) ex.getCause();
+			}
+			level = parents.keySet();
+		}
+	}
+			
 	protected MultiTile getMultiTile(int i, int j, int z) {
 		return getMultiTile(new Point3D(i,j,z));
 	}
@@ -75,24 +189,12 @@ public class MultiTileCache {
 		return getMultiTile(new Point3D(idx.x, idx.y, 0));
 	}
 	
-	protected synchronized MultiTile getMultiTile(Point3D idx) {
-
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
-			}
-		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
+	protected MultiTile getMultiTile(Point3D idx) {
+		TileStore store;
+		synchronized (this) {
+			store = store_;
 		}
+		return store.get(idx);
 	}
 		
 	protected Point3D getParentIndex(Point3D idx) {
@@ -108,11 +210,30 @@ public class MultiTileCache {
 	}
 
 	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+		FutureTask<Object> propagation;
+		synchronized (this) {
+			pendingTiles_.clear();
+			propagation = propagation_;
+			propagation_ = null;
+		}
+		// let a running batch finish before the store goes away
+		if (propagation != null) {
+			try {
+				propagation.get(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (Exception ex) {
+				ReportingUtils.logError(ex, "Failed to finish updating the tile pyramid");
+			}
+		}
+		synchronized (this) {
+			if (store_ != null) {
+				store_.close();
+				store_ = null;
+			}
+			type_ = -1;
+			propagating_ = false;
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
 	}
 	
 	
@@ -32,6 +32,7 @@ public class Point3D {
 	}
 	
 	public int hashCode() {
-		return 10000*i + 100*j + k;
+		// the pyramid has many more tiles than 100 in each direction
+		return (i * 73856093) ^ (j * 19349663) ^ (k * 83492791);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,298 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.ThreadUtils;
+
+/**
+ * Storage for the multitiles of the pyramid, keyed by (i, j, zoom level).
+ *
+ * Images of recently used tiles are kept in memory, up to a budget in bytes
+ * (least recently used tiles are dropped first).  Tiles that are dropped are
+ * written to a single scratch file, in which every tile has a fixed size
+ * slot, so that a tile can be read back with one positional read.  Writes of
+ * dropped tiles and prefetches of tiles that will be needed soon are done in
+ * the background, one at a time.
+ *
+ * Locks are always taken in the order store, then tile.  Tiles are read from
+ * the scratch file with only the tile locked, so that a read does not hold
+ * up the use of other tiles.
+ */
+public class TileStore {
+
+    private final int type_;
+    private final int width_;
+    private final int height_;
+    private final int tileBytes_;
+    private final int maxTilesInMemory_;
+    // all tiles, and the tiles that have their image in memory (in LRU order)
+    private final HashMap<Point3D, MultiTile> tiles_ = new HashMap<Point3D, MultiTile>();
+    private final LinkedHashMap<Point3D, MultiTile> inMemory_ =
+            new LinkedHashMap<Point3D, MultiTile>(16, 0.75f, true);
+    private final File file_;
+    private final RandomAccessFile raf_;
+    private final FileChannel channel_;
+    // only used by io tasks, which run one at a time
+    private long nextSlot_ = 0;
+    private final ByteBuffer writeBuffer_;
+    private final Executor io_ = ThreadUtils.newSerialExecutor();
+    private FutureTask<Object> lastIo_ = null;
+    private volatile boolean closed_ = false;
+
+    /**
+     * @param type - ImageJ image type of the tiles
+     * @param width - tile width
+     * @param height - tile height
+     * @param memoryBudget - bytes of tile images that are kept in memory
+     */
+    public TileStore(int type, int width, int height, long memoryBudget) throws IOException {
+        type_ = type;
+        width_ = width;
+        height_ = height;
+        tileBytes_ = width * height * bytesPerPixel(type);
+        maxTilesInMemory_ = (int) Math.max(16, memoryBudget / tileBytes_);
+        file_ = File.createTempFile("SlideExplorer", ".tiles");
+        file_.deleteOnExit();
+        raf_ = new RandomAccessFile(file_, "rw");
+        channel_ = raf_.getChannel();
+        writeBuffer_ = ByteBuffer.allocateDirect(tileBytes_).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Queues a read or write of the scratch file.  Tasks that did not start
+     * before the store is closed are skipped.
+     */
+    private synchronized void submitIo(final Runnable task) {
+        lastIo_ = new FutureTask<Object>(new Runnable() {
+            public void run() {
+                if (!closed_) {
+                    task.run();
+                }
+            }
+        }, null);
+        io_.execute(lastIo_);
+    }
+
+    private static int bytesPerPixel(int type) {
+        switch (type) {
+            case ImagePlus.GRAY8:
+                return 1;
+            case ImagePlus.GRAY16:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    public synchronized boolean contains(Point3D idx) {
+        return tiles_.containsKey(idx);
+    }
+
+    /**
+     * Returns the tile, with its image in memory.  Creates an empty tile when
+     * it does not exist yet.
+     */
+    public MultiTile get(Point3D idx) {
+        MultiTile tile;
+        synchronized (this) {
+            tile = tiles_.get(idx);
+            if (tile == null) {
+                tile = new MultiTile(this, type_, width_, height_);
+                tiles_.put(idx, tile);
+            }
+            // in memory from now on, so that a pending write can not drop it
+            inMemory_.put(idx, tile);
+            evict();
+        }
+        tile.getImageReady();
+        return tile;
+    }
+
+    /**
+     * Loads the images of the given tiles in the background, when they are
+     * not in memory
+     */
+    public void prefetch(List<Point3D> indices) {
+        for (final Point3D idx : indices) {
+            final MultiTile tile;
+            synchronized (this) {
+                tile = tiles_.get(idx);
+                if (tile == null || inMemory_.containsKey(idx)) {
+                    continue;
+                }
+            }
+            submitIo(new Runnable() {
+                public void run() {
+                    tile.getImageReady();
+                    synchronized (TileStore.this) {
+                        if (tiles_.get(idx) == tile && !inMemory_.containsKey(idx)) {
+                            inMemory_.put(idx, tile);
+                            evict();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops least recently used tiles from memory until the budget is met.
+     * Tiles that changed are written to disk first (in the background).
+     */
+    private void evict() {
+        Iterator<Map.Entry<Point3D, MultiTile>> it = inMemory_.entrySet().iterator();
+        while (inMemory_.size() > maxTilesInMemory_ && it.hasNext()) {
+            final Map.Entry<Point3D, MultiTile> entry = it.next();
+            it.remove();
+            final MultiTile tile = entry.getValue();
+            synchronized (tile) {
+                if (!tile.dirty_) {
+                    // empty tiles are recreated, others are read back
+                    tile.proc_ = null;
+                    continue;
+                }
+            }
+            submitIo(new Runnable() {
+                public void run() {
+                    synchronized (tile) {
+                        if (tile.dirty_ && tile.proc_ != null) {
+                            write(tile);
+                        }
+                    }
+                    synchronized (TileStore.this) {
+                        synchronized (tile) {
+                            if (!inMemory_.containsKey(entry.getKey()) && !tile.dirty_) {
+                                tile.proc_ = null;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // called by an io task, with the tile locked
+    private void write(MultiTile tile) {
+        if (tile.slot_ < 0) {
+            tile.slot_ = nextSlot_++;
+        }
+        writeBuffer_.clear();
+        Object pixels = tile.proc_.getPixels();
+        switch (type_) {
+            case ImagePlus.GRAY8:
+                writeBuffer_.put((byte[]) pixels);
+                break;
+            case ImagePlus.GRAY16:
+                writeBuffer_.asShortBuffer().put((short[]) pixels);
+                break;
+            case ImagePlus.GRAY32:
+                writeBuffer_.asFloatBuffer().put((float[]) pixels);
+                break;
+            default:
+                writeBuffer_.asIntBuffer().put((int[]) pixels);
+        }
+        writeBuffer_.clear();
+        try {
+            long position = tile.slot_ * tileBytes_;
+            while (writeBuffer_.hasRemaining()) {
+                position += channel_.write(writeBuffer_, position);
+            }
+            tile.dirty_ = false;
+        } catch (IOException ex) {
+            // the tile stays in memory
+            ReportingUtils.logError(ex, "SlideExplorer failed to write a tile");
+        }
+    }
+
+    /**
+     * Reads the image in the given slot of the scratch file
+     */
+    ImageProcessor read(long slot) {
+        ByteBuffer buffer = ByteBuffer.allocate(tileBytes_).order(ByteOrder.nativeOrder());
+        try {
+            long position = slot * tileBytes_;
+            while (buffer.hasRemaining()) {
+                int n = channel_.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+        } catch (IOException ex) {
+            ReportingUtils.logError(ex, "SlideExplorer failed to read a tile");
+        }
+        buffer.clear();
+        int n = width_ * height_;
+        Object pixels;
+        switch (type_) {
+            case ImagePlus.GRAY8:
+                pixels = buffer.array();
+                break;
+            case ImagePlus.GRAY16:
+                short[] shorts = new short[n];
+                buffer.asShortBuffer().get(shorts);
+                pixels = shorts;
+                break;
+            case ImagePlus.GRAY32:
+                float[] floats = new float[n];
+                buffer.asFloatBuffer().get(floats);
+                pixels = floats;
+                break;
+            default:
+                int[] ints = new int[n];
+                buffer.asIntBuffer().get(ints);
+                pixels = ints;
+        }
+        return ImageUtils.makeProcessor(type_, width_, height_, pixels);
+    }
+
+    /**
+     * Forgets all tiles and deletes the scratch file
+     */
+    public void close() {
+        closed_ = true;
+        FutureTask<Object> lastIo;
+        synchronized (this) {
+            lastIo = lastIo_;
+        }
+        // io tasks run in order, so all are done when the last one is
+        if (lastIo != null) {
+            try {
+                lastIo.get(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                ReportingUtils.logError(ex);
+            }
+        }
+        synchronized (this) {
+            tiles_.clear();
+            inMemory_.clear();
+        }
+        try {
+            channel_.close();
+            raf_.close();
+        } catch (IOException ex) {
+            ReportingUtils.logError(ex);
+        }
+        file_.delete();
+    }
+}
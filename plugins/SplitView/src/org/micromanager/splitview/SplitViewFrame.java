@@ -87,12 +87,14 @@ public class SplitViewFrame extends javax.swing.JFrame {
    private static final String TOPLEFTCOLOR = "TopLeftColor";
    private static final String BOTTOMRIGHTCOLOR = "BottomRightColor";
    private static final String ORIENTATION = "Orientation";
+   private static final String QUADVIEW = "QuadView";
    private static final String FRAMEXPOS = "FRAMEXPOS";
    private static final String FRAMEYPOS = "FRAMEYPOS";
    private boolean autoShutterOrg_;
    private String shutterLabel_;
    private boolean shutterOrg_;
    private boolean appliedToMDA_ = false;
+   private boolean quadView_;
    private SplitViewProcessor mmImageProcessor_;
 
    
@@ -106,6 +108,7 @@ public class SplitViewFrame extends javax.swing.JFrame {
       col1_ = new Color(prefs_.getInt(TOPLEFTCOLOR, Color.red.getRGB()));
       col2_ = new Color(prefs_.getInt(BOTTOMRIGHTCOLOR, Color.green.getRGB()));
       orientation_ = prefs_.get(ORIENTATION, LR);
+      quadView_ = prefs_.getBoolean(QUADVIEW, false);
 
       // initialize timer
       // TODO: Replace with Sequence-based live mode
@@ -145,6 +148,7 @@ public class SplitViewFrame extends javax.swing.JFrame {
          topLeftColorButton.setText("Top Color");
          bottomRightColorButton.setText("Bottom Color");
       }
+      quadViewCheckBox_.setSelected(quadView_);
 
       topLeftColorButton.setForeground(col1_);
       topLeftColorButton.setPreferredSize(buttonSize);
@@ -244,6 +248,24 @@ public class SplitViewFrame extends javax.swing.JFrame {
 
       newWidth_ = calculateWidth(width_);
       newHeight_ = calculateHeight(height_);
+      updateRegions();
+   }
+
+   /**
+    * Hands the quadrants of the current camera image to the acquisition
+    * processor when quad-view is selected, otherwise lets it split in two
+    */
+   private void updateRegions() {
+      if (mmImageProcessor_ == null) {
+         return;
+      }
+      if (quadView_) {
+         mmImageProcessor_.setRegions(SplitViewProcessor.quadRegions(
+                 (int) core_.getImageWidth(), (int) core_.getImageHeight()),
+                 SplitViewProcessor.QUADSUFFIXES);
+      } else {
+         mmImageProcessor_.clearRegions();
+      }
    }
 
    public int calculateWidth(int width) {
@@ -370,6 +392,7 @@ public class SplitViewFrame extends javax.swing.JFrame {
         snapButton = new javax.swing.JButton();
         liveButton = new javax.swing.JButton();
         applyToMDACheckBox_ = new javax.swing.JCheckBox();
+        quadViewCheckBox_ = new javax.swing.JCheckBox();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("SplitView");
@@ -430,6 +453,14 @@ public class SplitViewFrame extends javax.swing.JFrame {
             }
         });
 
+        quadViewCheckBox_.setText("Quad-View in Acquisition");
+        quadViewCheckBox_.setToolTipText("Split images acquired with Multi-D acquisition in four quadrants");
+        quadViewCheckBox_.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                quadViewCheckBox_ActionPerformed(evt);
+            }
+        });
+
         org.jdesktop.layout.GroupLayout layout = new org.jdesktop.layout.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -438,6 +469,10 @@ public class SplitViewFrame extends javax.swing.JFrame {
                 .addContainerGap()
                 .add(applyToMDACheckBox_)
                 .addContainerGap(135, Short.MAX_VALUE))
+            .add(layout.createSequentialGroup()
+                .addContainerGap()
+                .add(quadViewCheckBox_)
+                .addContainerGap(org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
             .add(layout.createSequentialGroup()
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.TRAILING)
                     .add(org.jdesktop.layout.GroupLayout.LEADING, layout.createSequentialGroup()
@@ -480,6 +515,8 @@ public class SplitViewFrame extends javax.swing.JFrame {
                     .add(snapButton))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.UNRELATED)
                 .add(applyToMDACheckBox_)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(quadViewCheckBox_)
                 .addContainerGap(org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
@@ -563,6 +600,7 @@ public class SplitViewFrame extends javax.swing.JFrame {
       if (applyToMDACheckBox_.isSelected() && !appliedToMDA_) {
          mmImageProcessor_ = new SplitViewProcessor(this);
          mmImageProcessor_.setName("SplitView");
+         updateRegions();
          gui_.addImageProcessor(mmImageProcessor_);
          appliedToMDA_ = true;
       } else if (!applyToMDACheckBox_.isSelected() && appliedToMDA_) {
@@ -571,6 +609,12 @@ public class SplitViewFrame extends javax.swing.JFrame {
          appliedToMDA_ = false;
       }
    }//GEN-LAST:event_applyToMDACheckBox_StateChanged
+
+    private void quadViewCheckBox_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quadViewCheckBox_ActionPerformed
+       quadView_ = quadViewCheckBox_.isSelected();
+       prefs_.putBoolean(QUADVIEW, quadView_);
+       updateRegions();
+    }//GEN-LAST:event_quadViewCheckBox_ActionPerformed
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JCheckBox applyToMDACheckBox_;
     private javax.swing.JButton bottomRightColorButton;
@@ -579,6 +623,7 @@ public class SplitViewFrame extends javax.swing.JFrame {
     private javax.swing.ButtonGroup buttonGroup3;
     private javax.swing.JButton liveButton;
     private javax.swing.JRadioButton lrRadioButton;
+    private javax.swing.JCheckBox quadViewCheckBox_;
     private javax.swing.JButton snapButton;
     private javax.swing.JRadioButton tbRadioButton;
     private javax.swing.JButton topLeftColorButton;
@@ -23,9 +23,8 @@
 
 package org.micromanager.splitview;
 
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.Iterator;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -37,17 +36,63 @@ import org.micromanager.utils.ReportingUtils;
 
 /**
  * DataProcessor that splits images as instructed in SplitViewFrame
+ * 
+ * By default, images are split in two halves using the orientation set in
+ * SplitViewFrame.  Arbitrary sub-images (for instance the four quadrants of
+ * a quad-view) can be set with setRegions().  All sub-images are copied
+ * out of the original in a single pass over its rows.
  *
  * @author nico
  */
 public class SplitViewProcessor extends DataProcessor<TaggedImage> {
 
+   public static final String[] QUADSUFFIXES = 
+         {"TopLeft", "TopRight", "BottomLeft", "BottomRight"};
+   
    private SplitViewFrame parent_;
+   private Rectangle[] regions_;
+   private String[] suffixes_;
 
    public SplitViewProcessor(SplitViewFrame frame) {
       parent_ = frame;
    }
 
+   /**
+    * Sets the sub-images that each incoming image will be split into.
+    * Sub-image n of channel c becomes channel c * regions.length + n.
+    * 
+    * @param regions - sub-images, all need to lie within the camera image
+    * @param suffixes - added to the channel name of each sub-image
+    */
+   public synchronized void setRegions(Rectangle[] regions, String[] suffixes) {
+      if (regions != null && regions.length != suffixes.length) {
+         throw new IllegalArgumentException(
+                 "Need one channel suffix for each region");
+      }
+      regions_ = regions;
+      suffixes_ = suffixes;
+   }
+
+   /**
+    * Go back to splitting in two halves, as set in SplitViewFrame
+    */
+   public synchronized void clearRegions() {
+      regions_ = null;
+      suffixes_ = null;
+   }
+
+   /**
+    * Convenience function for quad-view cameras, use with QUADSUFFIXES
+    * @return the four quadrants of an image of the given size
+    */
+   public static Rectangle[] quadRegions(int width, int height) {
+      int w = width / 2;
+      int h = height / 2;
+      return new Rectangle[] {new Rectangle(0, 0, w, h), 
+         new Rectangle(w, 0, w, h), new Rectangle(0, h, w, h), 
+         new Rectangle(w, h, w, h)};
+   }
+
    private String getChannelSuffix(int channelIndex) {
       String token;
       if (parent_.getOrientation().equals(SplitViewFrame.LR)) {
@@ -67,6 +112,62 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
       return token;
    }
 
+   /**
+    * Copies the sub-images out of the pixels of the original image, walking
+    * once through its rows, with one arraycopy per row of each sub-image.
+    * 
+    * @param pix - byte[] or short[] pixels of the original
+    * @param width - width of the original
+    * @param height - height of the original
+    * @param regions - sub-images to copy
+    * @return one pixel array per region, of the same type as pix
+    */
+   public static Object[] split(Object pix, int width, int height, 
+           Rectangle[] regions) {
+      Object[] result = new Object[regions.length];
+      for (int r = 0; r < regions.length; r++) {
+         int size = regions[r].width * regions[r].height;
+         if (pix instanceof byte[]) {
+            result[r] = new byte[size];
+         } else if (pix instanceof short[]) {
+            result[r] = new short[size];
+         } else {
+            throw new IllegalArgumentException("Unsupported pixel type");
+         }
+         if (regions[r].x < 0 || regions[r].y < 0 || 
+                 regions[r].x + regions[r].width > width ||
+                 regions[r].y + regions[r].height > height) {
+            throw new IllegalArgumentException("Region outside of image");
+         }
+      }
+      for (int y = 0; y < height; y++) {
+         for (int r = 0; r < regions.length; r++) {
+            Rectangle region = regions[r];
+            int row = y - region.y;
+            if (row >= 0 && row < region.height) {
+               System.arraycopy(pix, y * width + region.x, 
+                       result[r], row * region.width, region.width);
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Copies the top level of the tags, which is all we modify.  Much cheaper
+    * than a copy through the String representation, but nested objects 
+    * (such as the Summary) are shared between the copies.
+    */
+   private static JSONObject copyTags(JSONObject tags) throws JSONException {
+      JSONObject copy = new JSONObject();
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         copy.put(key, tags.get(key));
+      }
+      return copy;
+   }
+
    @Override
    public void process() {
 
@@ -80,61 +181,52 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
          }
 
          if (taggedImage != null && taggedImage.tags != null) {
-            ImageProcessor tmpImg;
             int imgDepth = MDUtils.getDepth(taggedImage.tags);
             int width = MDUtils.getWidth(taggedImage.tags);
             int height = MDUtils.getHeight(taggedImage.tags);
             int channelIndex = MDUtils.getChannelIndex(taggedImage.tags);
 
-            //System.out.println("Processed one");
-
-            if (imgDepth == 1) {
-               tmpImg = new ByteProcessor(width, height);
-            } else if (imgDepth == 2) {
-               tmpImg = new ShortProcessor(width, height);
-            } else // TODO throw error
-            {
+            if (imgDepth != 1 && imgDepth != 2) {
+               // TODO throw error
                produce(taggedImage);
                return;
             }
 
-            tmpImg.setPixels(taggedImage.pix);
-
-            height = parent_.calculateHeight(height);
-            width = parent_.calculateWidth(width);
-
-            tmpImg.setRoi(0, 0, width, height);
-            
-            
-            // first channel
-
-            // Weird way of copying a JSONObject
-            JSONObject tags = new JSONObject(taggedImage.tags.toString());
-            MDUtils.setWidth(tags, width);
-            MDUtils.setHeight(tags, height);
-            MDUtils.setChannelIndex(tags, channelIndex * 2);
-
-            tags.put("Channel", MDUtils.getChannelName(taggedImage.tags) + getChannelSuffix(channelIndex*2));
-            
-            TaggedImage firstIm = new TaggedImage(tmpImg.crop().getPixels(), tags);
-
-            // second channel
-            JSONObject tags2 = new JSONObject(tags.toString());
-            tags2.put("Channel", MDUtils.getChannelName(taggedImage.tags)  + getChannelSuffix(channelIndex*2+1));
-
-            if (parent_.getOrientation().equals(SplitViewFrame.LR)) {
-               tmpImg.setRoi(width, 0, width, height);
-            } else if (parent_.getOrientation().equals(SplitViewFrame.TB)) {
-               tmpImg.setRoi(0, height, width, height);
+            Rectangle[] regions;
+            String[] suffixes;
+            synchronized (this) {
+               regions = regions_;
+               suffixes = suffixes_;
+            }
+            if (regions == null) {
+               int newWidth = parent_.calculateWidth(width);
+               int newHeight = parent_.calculateHeight(height);
+               regions = new Rectangle[2];
+               regions[0] = new Rectangle(0, 0, newWidth, newHeight);
+               if (parent_.getOrientation().equals(SplitViewFrame.TB)) {
+                  regions[1] = new Rectangle(0, newHeight, newWidth, newHeight);
+               } else {
+                  regions[1] = new Rectangle(newWidth, 0, newWidth, newHeight);
+               }
+               suffixes = new String[] {getChannelSuffix(0), getChannelSuffix(1)};
             }
-            MDUtils.setWidth(tags2, width);
-            MDUtils.setHeight(tags2, height);
-            MDUtils.setChannelIndex(tags2, channelIndex * 2 + 1);
 
-            TaggedImage secondIm = new TaggedImage(tmpImg.crop().getPixels(), tags2);
+            Object[] pixels = split(taggedImage.pix, width, height, regions);
+            String channelName = MDUtils.getChannelName(taggedImage.tags);
+            int n = regions.length;
+            TaggedImage[] images = new TaggedImage[n];
+            for (int r = 0; r < n; r++) {
+               JSONObject tags = copyTags(taggedImage.tags);
+               MDUtils.setWidth(tags, regions[r].width);
+               MDUtils.setHeight(tags, regions[r].height);
+               MDUtils.setChannelIndex(tags, channelIndex * n + r);
+               tags.put("Channel", channelName + suffixes[r]);
+               images[r] = new TaggedImage(pixels[r], tags);
+            }
 
-            produce(secondIm);
-            produce(firstIm);
+            for (int r = n - 1; r >= 0; r--) {
+               produce(images[r]);
+            }
          }
       } catch (MMScriptException ex) {
          ReportingUtils.logError(ex);
@@ -142,6 +234,9 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
       } catch (JSONException ex) {
          ReportingUtils.logError(ex);
          produce(taggedImage);
+      } catch (IllegalArgumentException ex) {
+         ReportingUtils.logError(ex);
+         produce(taggedImage);
       }
    }
 }
@@ -0,0 +1,311 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           FFTTracker.java
+//PROJECT:        Micro-Manager-100X
+//SUBSYSTEM:      100X Imaging Inc micro-manager extentsions
+//-----------------------------------------------------------------------------
+//
+//AUTHOR:         Nico Stuurman, 2014
+//
+//COPYRIGHT:      University of California, San Francisco, 2014
+//
+//LICENSE:        This file is distributed under the GPL license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package com.imaging100x.tracker;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+
+/**
+ * Measures the movement between consecutive frames by (partially whitened)
+ * phase correlation.
+ *
+ * A window around the region of interest (grown by the maximum shift on
+ * each side, and clipped to the image) is taken from both frames, the mean
+ * is subtracted, a Hann window is applied, and the result is zero padded to
+ * a square with a size that is a power of 2.  The peak of the inverse
+ * transform of the cross-power spectrum gives the shift, which is refined to
+ * sub-pixel precision with a parabola through the peak and its neighbors.
+ * The cross-power spectrum is divided by the square root of its magnitude
+ * rather than by the magnitude itself: full whitening amplifies the noise
+ * at frequencies where the sample has no signal, and gives wrong peaks on
+ * noisy images.
+ *
+ * Twiddle factors, bit-reversal tables and all work buffers are allocated
+ * once for a given window size and reused for every frame.  The transform
+ * of each frame is kept, and used as the reference for the next frame when
+ * the window has not moved, so that a frame costs one forward and one
+ * inverse transform.
+ *
+ * Not thread safe.
+ */
+public class FFTTracker {
+   private final int maxShift_;
+   private int size_ = 0;
+   private Rectangle window_ = null;
+   // Hann window over the (unpadded) window
+   private double[] hann_;
+   // transform of the reference frame, and of the current frame
+   private double[] refRe_, refIm_;
+   private double[] re_, im_;
+   private Object refPixels_ = null;
+   // FFT tables
+   private int[] bitReverse_;
+   private double[] cos_, sin_;
+   // column buffers
+   private double[] colRe_, colIm_;
+
+   /**
+    * @param maxShift - largest shift (in pixels, in x and y) that will be
+    * detected
+    */
+   public FFTTracker(int maxShift) {
+      maxShift_ = maxShift;
+   }
+
+   /**
+    * Finds the shift of the current frame relative to the previous frame, in
+    * the neighborhood of roi.  A feature at (x, y) in the previous frame is
+    * found at (x + shift.x, y + shift.y) in the current frame.
+    *
+    * @param previous - pixels (byte[] or short[]) of the previous frame
+    * @param current - pixels of the current frame
+    * @param width - image width
+    * @param height - image height
+    * @param roi - region to be tracked
+    * @return shift in pixels, or null when the window is empty
+    */
+   public Point2D.Double getShift(Object previous, Object current, int width,
+           int height, Rectangle roi) {
+      Rectangle window = new Rectangle(roi.x - maxShift_, roi.y - maxShift_,
+              roi.width + 2 * maxShift_, roi.height + 2 * maxShift_);
+      window = window.intersection(new Rectangle(0, 0, width, height));
+      if (window.isEmpty()) {
+         return null;
+      }
+      if (!window.equals(window_)) {
+         setup(window);
+         refPixels_ = null;
+      }
+      if (refPixels_ != previous) {
+         transform(previous, width, refRe_, refIm_);
+      }
+      transform(current, width, re_, im_);
+
+      // cross-power spectrum, in the buffers of the current frame
+      int n = size_ * size_;
+      for (int i = 0; i < n; i++) {
+         double cr = refRe_[i] * re_[i] + refIm_[i] * im_[i];
+         double ci = refRe_[i] * im_[i] - refIm_[i] * re_[i];
+         double mag = Math.sqrt(Math.sqrt(cr * cr + ci * ci));
+         if (mag > 1e-12) {
+            cr /= mag;
+            ci /= mag;
+         } else {
+            cr = 0.0;
+            ci = 0.0;
+         }
+         // keep the transform of the current frame as the next reference
+         double tRe = re_[i];
+         double tIm = im_[i];
+         re_[i] = cr;
+         im_[i] = ci;
+         refRe_[i] = tRe;
+         refIm_[i] = tIm;
+      }
+      refPixels_ = current;
+      // only the columns around the origin are needed
+      int range = Math.min(maxShift_, size_ / 2 - 1);
+      fft2D(re_, im_, true, size_, range + 1);
+
+      // peak within +/- maxShift
+      int bestX = 0, bestY = 0;
+      double best = -Double.MAX_VALUE;
+      for (int dy = -range; dy <= range; dy++) {
+         int row = ((dy + size_) % size_) * size_;
+         for (int dx = -range; dx <= range; dx++) {
+            double v = re_[row + (dx + size_) % size_];
+            if (v > best) {
+               best = v;
+               bestX = dx;
+               bestY = dy;
+            }
+         }
+      }
+      return new Point2D.Double(
+              bestX + parabolicOffset(value(bestX - 1, bestY), best,
+                 value(bestX + 1, bestY)),
+              bestY + parabolicOffset(value(bestX, bestY - 1), best,
+                 value(bestX, bestY + 1)));
+   }
+
+   private double value(int dx, int dy) {
+      return re_[((dy + size_) % size_) * size_ + (dx + size_) % size_];
+   }
+
+   private static double parabolicOffset(double left, double center, double right) {
+      double denominator = left - 2 * center + right;
+      if (denominator >= 0) {
+         return 0.0;
+      }
+      return 0.5 * (left - right) / denominator;
+   }
+
+   /**
+    * (Re)allocates tables and buffers for a new window
+    */
+   private void setup(Rectangle window) {
+      window_ = window;
+      int size = 1;
+      while (size < Math.max(window.width, window.height)) {
+         size *= 2;
+      }
+      hann_ = new double[window.width * window.height];
+      for (int y = 0; y < window.height; y++) {
+         double hy = hann(y, window.height);
+         for (int x = 0; x < window.width; x++) {
+            hann_[y * window.width + x] = hy * hann(x, window.width);
+         }
+      }
+      if (size == size_) {
+         return;
+      }
+      size_ = size;
+      int n = size * size;
+      refRe_ = new double[n];
+      refIm_ = new double[n];
+      re_ = new double[n];
+      im_ = new double[n];
+      colRe_ = new double[size];
+      colIm_ = new double[size];
+      cos_ = new double[size / 2];
+      sin_ = new double[size / 2];
+      for (int i = 0; i < size / 2; i++) {
+         cos_[i] = Math.cos(2 * Math.PI * i / size);
+         sin_[i] = Math.sin(2 * Math.PI * i / size);
+      }
+      bitReverse_ = new int[size];
+      int bits = Integer.numberOfTrailingZeros(size);
+      for (int i = 0; i < size; i++) {
+         bitReverse_[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+      }
+   }
+
+   private static double hann(int i, int n) {
+      if (n <= 1) {
+         return 1.0;
+      }
+      return 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (n - 1));
+   }
+
+   /**
+    * Copies the window out of the image (mean subtracted, apodized and zero
+    * padded) and transforms it
+    */
+   private void transform(Object pixels, int width, double[] re, double[] im) {
+      int w = window_.width;
+      int h = window_.height;
+      double sum = 0.0;
+      for (int y = 0; y < h; y++) {
+         int offset = (window_.y + y) * width + window_.x;
+         for (int x = 0; x < w; x++) {
+            sum += pixel(pixels, offset + x);
+         }
+      }
+      double mean = sum / (w * h);
+      java.util.Arrays.fill(re, 0.0);
+      java.util.Arrays.fill(im, 0.0);
+      for (int y = 0; y < h; y++) {
+         int offset = (window_.y + y) * width + window_.x;
+         for (int x = 0; x < w; x++) {
+            re[y * size_ + x] = (pixel(pixels, offset + x) - mean) * hann_[y * w + x];
+         }
+      }
+      fft2D(re, im, false, h, size_ / 2);
+   }
+
+   private static int pixel(Object pixels, int index) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels)[index] & 0xff;
+      }
+      if (pixels instanceof short[]) {
+         return ((short[]) pixels)[index] & 0xffff;
+      }
+      throw new IllegalArgumentException("Only 8 and 16 bit images can be tracked");
+   }
+
+   /**
+    * 2D transform.  Rows from nrRows on must be zero, and are skipped in the
+    * row pass.  The column pass only transforms the columns within 
+    * halfWidth of column 0 (with wrap around), the other columns are left
+    * half done.
+    */
+   private void fft2D(double[] re, double[] im, boolean inverse, int nrRows,
+           int halfWidth) {
+      for (int y = 0; y < nrRows; y++) {
+         fft(re, im, y * size_, inverse);
+      }
+      for (int x = 0; x < size_; x++) {
+         if (x > halfWidth && x < size_ - halfWidth) {
+            continue;
+         }
+         for (int y = 0; y < size_; y++) {
+            colRe_[y] = re[y * size_ + x];
+            colIm_[y] = im[y * size_ + x];
+         }
+         fft(colRe_, colIm_, 0, inverse);
+         for (int y = 0; y < size_; y++) {
+            re[y * size_ + x] = colRe_[y];
+            im[y * size_ + x] = colIm_[y];
+         }
+      }
+   }
+
+   /**
+    * In place iterative radix-2 FFT of size_ elements starting at offset.
+    * The inverse transform is not scaled.
+    */
+   private void fft(double[] re, double[] im, int offset, boolean inverse) {
+      int n = size_;
+      for (int i = 0; i < n; i++) {
+         int j = bitReverse_[i];
+         if (j > i) {
+            int a = offset + i;
+            int b = offset + j;
+            double t = re[a];
+            re[a] = re[b];
+            re[b] = t;
+            t = im[a];
+            im[a] = im[b];
+            im[b] = t;
+         }
+      }
+      double sign = inverse ? 1.0 : -1.0;
+      for (int len = 2; len <= n; len *= 2) {
+         int half = len / 2;
+         int step = n / len;
+         for (int start = 0; start < n; start += len) {
+            for (int k = 0; k < half; k++) {
+               double wr = cos_[k * step];
+               double wi = sign * sin_[k * step];
+               int a = offset + start + k;
+               int b = a + half;
+               double xr = re[b] * wr - im[b] * wi;
+               double xi = re[b] * wi + im[b] * wr;
+               re[b] = re[a] - xr;
+               im[b] = im[a] - xi;
+               re[a] += xr;
+               im[a] += xi;
+            }
+         }
+      }
+   }
+}
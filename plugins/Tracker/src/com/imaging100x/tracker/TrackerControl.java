@@ -30,9 +30,9 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.ImageWindow;
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
 
 import java.awt.Rectangle;
+import java.awt.geom.Point2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
@@ -40,6 +40,10 @@ import java.awt.event.WindowEvent;
 import java.awt.Insets;
 import java.io.File;
 import java.util.GregorianCalendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 
 import javax.swing.ButtonGroup;
@@ -47,7 +51,7 @@ import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
-import javax.swing.Timer;
+import javax.swing.SwingUtilities;
 import javax.swing.border.BevelBorder;
 
 import mmcorej.MMCoreJ;
@@ -62,6 +66,7 @@ import org.micromanager.utils.MMFrame;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 import org.micromanager.utils.TextUtils;
+import org.micromanager.utils.ThreadUtils;
 
 public class TrackerControl extends MMFrame implements MMPlugin {
    private JTextField nameField_;
@@ -75,13 +80,23 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private ScriptInterface app_;
    private int intervalMs_ = 1000;
    private double pixelSizeUm_ = 1.0;
-   private int resolutionPix_ = 5;
+   private int resolutionPix_ = 1;
    private int offsetPix_ = 100;
-   private Timer timer_;
-   private ImageProcessor ipPrevious_ = null;
-   private ImageProcessor ipCurrent_ = null;
+   // snaps and processes frames, on its own thread
+   private ScheduledExecutorService timer_;
+   private Runnable frameTask_;
+   private final StageMover stageMover_ = new StageMover();
+   private final AlphaBetaFilter filter_ = new AlphaBetaFilter();
+   // cumulative image offset of the tracked object, in um along the stage axes
+   private double cumXUm_;
+   private double cumYUm_;
+   // part of the roi shift that is smaller than a pixel, not yet applied
+   private double roiDx_;
+   private double roiDy_;
+   private FFTTracker tracker_ = null;
+   private Object pixPrevious_ = null;
    private String stage_ = "XYStage";
-   private Roi roi_;
+   private volatile Roi roi_;
    private ImageStack stack_;
    private boolean mirrorX_ = false;
    private boolean mirrorY_ = false;
@@ -105,6 +120,11 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    private static final String D = "STEP_UM";
    private static final String V = "VELOCITY_UMPS";
    private static final String L = "TOTAL_TRAVEL_UM";
+   private static final String LATENCY = "TRACK_LATENCY_MS";
+   private static final String PRED_DX = "TRACK_PRED_DX_UM";
+   private static final String PRED_DY = "TRACK_PRED_DY_UM";
+   private static final String MEAS_DX = "TRACK_MEAS_DX_UM";
+   private static final String MEAS_DY = "TRACK_MEAS_DY_UM";
    private static final String RECT_X = "RECT_X";
    private static final String RECT_Y = "RECT_Y";
    private static final String RECT_W = "RECT_W";
@@ -167,6 +187,100 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       }
    };
 
+   /**
+    * Moves the XY stage in the background, so that stage moves do not hold
+    * up the acquisition and processing of frames.  Only the latest target 
+    * matters: targets that arrive while the stage is moving replace 
+    * earlier ones.
+    */
+   private class StageMover implements Runnable {
+      private double[] target_ = null;
+      private boolean running_ = false;
+
+      public synchronized void moveTo(double x, double y) {
+         target_ = new double[] {x, y};
+         if (!running_) {
+            running_ = true;
+            ThreadUtils.getExecutor().execute(this);
+         }
+      }
+
+      public void run() {
+         while (true) {
+            double[] target;
+            synchronized (this) {
+               target = target_;
+               target_ = null;
+               if (target == null) {
+                  running_ = false;
+                  return;
+               }
+            }
+            try {
+               app_.getMMCore().setXYPosition(stage_, target[0], target[1]);
+               app_.getMMCore().waitForDevice(stage_);
+            } catch (Exception e) {
+               ReportingUtils.logError(e, "Tracker failed to move the stage");
+            }
+         }
+      }
+   }
+
+   /**
+    * Alpha-beta filter on the position of the tracked object (in stage 
+    * coordinates), used to predict where the object will be when the next 
+    * frame is taken
+    */
+   private static class AlphaBetaFilter {
+      private static final double ALPHA = 0.7;
+      private static final double BETA = 0.2;
+      private double x_, y_, vx_, vy_;
+      private long lastMs_;
+      private boolean initialized_ = false;
+
+      public void reset() {
+         initialized_ = false;
+      }
+
+      /**
+       * @return predicted position at time tMs, or null before the first 
+       * measurement
+       */
+      public double[] predict(long tMs) {
+         if (!initialized_) {
+            return null;
+         }
+         double dt = (tMs - lastMs_) / 1000.0;
+         return new double[] {x_ + vx_ * dt, y_ + vy_ * dt};
+      }
+
+      /**
+       * Corrects the estimate with the position measured at time tMs
+       */
+      public void update(double x, double y, long tMs) {
+         if (!initialized_) {
+            x_ = x;
+            y_ = y;
+            vx_ = 0.0;
+            vy_ = 0.0;
+            lastMs_ = tMs;
+            initialized_ = true;
+            return;
+         }
+         double dt = (tMs - lastMs_) / 1000.0;
+         double[] p = predict(tMs);
+         double rx = x - p[0];
+         double ry = y - p[1];
+         x_ = p[0] + ALPHA * rx;
+         y_ = p[1] + ALPHA * ry;
+         if (dt > 0) {
+            vx_ += BETA * rx / dt;
+            vy_ += BETA * ry / dt;
+         }
+         lastMs_ = tMs;
+      }
+   }
+
    /**
     * Create the dialog
     */
@@ -225,10 +339,8 @@ public class TrackerControl extends MMFrame implements MMPlugin {
             pixelSizeUm_ = Double.parseDouble(pixelSizeField_.getText());
             offsetPix_ = Integer.parseInt(offsetField_.getText());
             resolutionPix_ = Integer.parseInt(resField_.getText());
-            ipPrevious_ = null;
-            ipCurrent_ = null;
+            pixPrevious_ = null;
             stack_ = null;
-            timer_.setDelay(intervalMs_);
             track(); 
          }
       });
@@ -367,17 +479,20 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       fileLocationsLabel.setBounds(10, 241, 143, 16);
       getContentPane().add(fileLocationsLabel);
 
-      // Setup timer
-      ActionListener timerHandler = new ActionListener() {
-         public void actionPerformed(ActionEvent evt) {
-            TaggedImage img = snapSingleImage();
-            if (img != null) {
-               processOneFrame(img, true);
+      // Setup frame task, started by track()
+      frameTask_ = new Runnable() {
+         public void run() {
+            // an exception would silently cancel the repeating task
+            try {
+               Frame frame = snapSingleImage();
+               if (frame != null) {
+                  processOneFrame(frame, true);
+               }
+            } catch (Throwable t) {
+               ReportingUtils.logError(t, "Tracker failed to process a frame");
             }
          }
       };
-      timer_ = new Timer(intervalMs_, timerHandler);
-      timer_.stop();
 
    }
 
@@ -397,6 +512,12 @@ public class TrackerControl extends MMFrame implements MMPlugin {
    public void track() {
       imageCounter_ = 0;
       distUm_ = 0.0;
+      tracker_ = new FFTTracker(offsetPix_);
+      cumXUm_ = 0.0;
+      cumYUm_ = 0.0;
+      roiDx_ = 0.0;
+      roiDy_ = 0.0;
+      filter_.reset();
      
       // Detect desired ROI in Snap/Live Window
       ImagePlus implus = null;
@@ -429,91 +550,122 @@ public class TrackerControl extends MMFrame implements MMPlugin {
          } catch (MMScriptException ex) {
             ReportingUtils.showError(ex, "Problem while tracking");
          }
-      timer_.start();
+      if (timer_ != null) {
+         timer_.shutdown();
+      }
+      timer_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Tracker");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      timer_.scheduleAtFixedRate(frameTask_, 0, intervalMs_, TimeUnit.MILLISECONDS);
    }
    
    
    public void stopTracking() {
 
       ReportingUtils.logMessage("Tracking stopped at " + GregorianCalendar.getInstance().getTime());
-      timer_.stop();
+      if (timer_ != null) {
+         timer_.shutdown();
+         // let a frame that is being processed finish before the roi goes
+         try {
+            if (!timer_.awaitTermination(10, TimeUnit.SECONDS)) {
+               ReportingUtils.logMessage("Tracker frame still running after stop");
+            }
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+      }
       roi_ = null;
    }
 
-   private TaggedImage snapSingleImage() {
+   /**
+    * An image, with the stage position and the time at which it was snapped
+    */
+   private static class Frame {
+      TaggedImage img;
+      double xUm, yUm;
+      long ms;
+   }
+
+   private Frame snapSingleImage() {
       try {
+         Frame frame = new Frame();
+         // NOTE: due to Java parameter passing convention, x and y parameters must be arrays
+         double[] xCur = new double[1];
+         double[] yCur = new double[1];
+         app_.getMMCore().getXYPosition(stage_, xCur, yCur);
+         frame.xUm = xCur[0];
+         frame.yUm = yCur[0];
+         frame.ms = System.currentTimeMillis();
          app_.getMMCore().snapImage();
          TaggedImage img = app_.getMMCore().getTaggedImage();
         
          if (acqName_ != null) {
             MDUtils.setFrameIndex(img.tags, imageCounter_);
             app_.addImageToAcquisition(acqName_, imageCounter_, 0, 0, 0, img);
-            ipCurrent_ = app_.getAcquisition(acqName_).getAcquisitionWindow().
-                    getImagePlus().getProcessor();
          }
-         return img;
+         frame.img = img;
+         return frame;
       } catch (Exception e) {
          IJ.error(e.getMessage());
-         timer_.stop();
+         timer_.shutdown();
          return null;
       }
    }
    
 
-   private void processOneFrame(TaggedImage img, boolean moveStage) {
-      if (ipPrevious_ == null) {
-         ipPrevious_ = ipCurrent_;
+   /**
+    * Finds the shift of the roi relative to the previous frame (by FFT 
+    * based cross-correlation, with sub-pixel precision), and moves the stage 
+    * (or the roi) to compensate.  Every measured shift is tracked, also
+    * when it is smaller than a pixel; the stage is only moved when the move
+    * is at least the resolution.
+    */
+   private void processOneFrame(Frame frame, boolean moveStage) {
+      long startNs = System.nanoTime();
+      TaggedImage img = frame.img;
+      long frameMs = frame.ms;
+      Roi roi = roi_;
+      if (roi == null) {
+         return;
+      }
+      int width, height;
+      try {
+         width = MDUtils.getWidth(img.tags);
+         height = MDUtils.getHeight(img.tags);
+      } catch (JSONException ex) {
+         ReportingUtils.showError(ex, "Image lacks width and height tags");
+         return;
+      }
+      if (pixPrevious_ == null) {
+         pixPrevious_ = img.pix;
          return;
       }
 
-      // iterate on all offsets
-      int kMax = 0;
-      int lMax = 0;
-
-      Rectangle r = roi_.getBounds();
+      Rectangle r = roi.getBounds();
       try {
          app_.getAcquisition(acqName_).getAcquisitionWindow().
-                 getImagePlus().setRoi(roi_, true);
+                 getImagePlus().setRoi(roi, true);
       } catch (MMScriptException mex) {
          ReportingUtils.showError("Failed to set new ROI");
       }
       //IJ.write("ROI pos: " + r.x + "," + r.y);
 
-      double corScale = r.width * r.height;
-
-      double maxCor = 0; // <<<
-      for (int k=-offsetPix_; k<offsetPix_; k += resolutionPix_) {
-         for (int l=-offsetPix_; l<offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i=0; i<r.height; i++) {
-               for (int j=0; j<r.width; j++) {
-                  int pixPrev = ipPrevious_.getPixel(r.x + j + l, r.y + i + k);
-                  int pixCur = ipCurrent_.getPixel(r.x + j + l, r.y + i + k);
-                  sum += (double)pixPrev*pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
-            }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev*meanCur;
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
-            }
-         }
+      Point2D.Double shift = tracker_.getShift(pixPrevious_, img.pix, 
+              width, height, r);
+      double lMax = 0.0;
+      double kMax = 0.0;
+      if (shift != null) {
+         lMax = shift.x;
+         kMax = shift.y;
       }
+      double latencyMs = (System.nanoTime() - startNs) / 1000000.0;
 
-      //IJ.write("maxc=" + maxCor + ", offset=(" + lMax + "," + kMax + ")");
-      ipPrevious_ = ipCurrent_;
+      //IJ.write("offset=(" + lMax + "," + kMax + ")");
+      pixPrevious_ = img.pix;
       // offset in um
 
       double x = lMax * pixelSizeUm_;
@@ -522,13 +674,11 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       if (moveStage) {
 
          try {
-            // obtain current XY stage position
-            // NOTE: due to Java parameter passing convention, x and y parameters must be arrays
-            double[] xCur = new double[1];
-            double[] yCur = new double[1];            
-            app_.getMMCore().getXYPosition(stage_, xCur, yCur);
-            img.tags.put(TRACK_X, xCur[0]);
-            img.tags.put(TRACK_Y, yCur[0]);
+            // XY stage position when the frame was snapped
+            double xCur = frame.xUm;
+            double yCur = frame.yUm;
+            img.tags.put(TRACK_X, xCur);
+            img.tags.put(TRACK_Y, yCur);
             img.tags.put(TRACK_DX, lMax);
             img.tags.put(TRACK_DY, kMax);
             img.tags.put(RECT_X, r.x);
@@ -547,29 +697,59 @@ public class TrackerControl extends MMFrame implements MMPlugin {
                y = tmp; 
             }
 
-            // update the XY position based on the offset
-            double newX = xCur[0]-x;
-            double newY = yCur[0]-y;
-
-            if ((limits_.isValid() && limits_.isWithin(newX, newY)) || (!limits_.isValid())) {
-               app_.getMMCore().setXYPosition(stage_, newX, newY);
-               app_.getMMCore().waitForDevice(stage_);
-               app_.getMMCore().getXYPosition(stage_, xCur, yCur);
-               ReportingUtils.logMessage(xCur[0] + "," + yCur[0]);
+            // position of the object in stage coordinates: stage moves shift
+            // the image by the same amount as the stage, object movement 
+            // does not move the stage
+            double[] predicted = filter_.predict(frameMs);
+            if (predicted != null) {
+               img.tags.put(PRED_DX, xCur - predicted[0] - cumXUm_);
+               img.tags.put(PRED_DY, yCur - predicted[1] - cumYUm_);
+            }
+            img.tags.put(MEAS_DX, x);
+            img.tags.put(MEAS_DY, y);
+            cumXUm_ += x;
+            cumYUm_ += y;
+            filter_.update(xCur - cumXUm_, yCur - cumYUm_, frameMs);
+
+            // move the stage to where the object is expected to be at the
+            // next frame, without waiting for the move to finish
+            double[] next = filter_.predict(frameMs + intervalMs_);
+            double newX = next[0];
+            double newY = next[1];
+
+            // moves smaller than the resolution are not made; the shifts
+            // they leave are still measured, and corrected later
+            boolean worthMoving = Math.hypot(newX - xCur, newY - yCur)
+                    >= resolutionPix_ * pixelSizeUm_;
+            if (!worthMoving) {
+               ReportingUtils.logMessage("Skipped. Move below resolution.");
+            } else if ((limits_.isValid() && limits_.isWithin(newX, newY)) || (!limits_.isValid())) {
+               stageMover_.moveTo(newX, newY);
+               ReportingUtils.logMessage(newX + "," + newY);
             } else {
                ReportingUtils.logMessage("Skipped. Stage limits reached.");
             }
          } catch (Exception e) {
             IJ.error(e.getMessage());
-            timer_.stop();
+            timer_.shutdown();
          } // relative motion
       } else {
-         // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         // move the roi by whole pixels, and keep the rest for later frames
+         roiDx_ += lMax;
+         roiDy_ += kMax;
+         int dx = 0;
+         int dy = 0;
+         if (Math.hypot(roiDx_, roiDy_) >= resolutionPix_) {
+            dx = (int) Math.round(roiDx_);
+            dy = (int) Math.round(roiDy_);
+         }
+         roiDx_ -= dx;
+         roiDy_ -= dy;
+         roi.setLocation(r.x + dx, r.y + dy);
 
          try {
             app_.getAcquisition(acqName_).getAcquisitionWindow().
-                    getImagePlus().setRoi(roi_, true);
+                    getImagePlus().setRoi(roi, true);
          } catch (MMScriptException mex) {
             ReportingUtils.showError("Failed to set new ROI");
          }
@@ -579,12 +759,19 @@ public class TrackerControl extends MMFrame implements MMPlugin {
       double d = Math.sqrt(x * x + y * y);
       distUm_ += d;
       double v = d / intervalMs_ * 1000.0;
-      speedLabel_.setText("n=" + imageCounter_ + ", t=" + TextUtils.FMT2.format(((double) imageCounter_ * intervalMs_) / 1000.0)
-              +     " s, d=" + TextUtils.FMT2.format(d) + " um, l=" + TextUtils.FMT2.format(distUm_) + " um, v=" + TextUtils.FMT2.format(v) + " um/s");
+      final String status = "n=" + imageCounter_ + ", t=" + TextUtils.FMT2.format(((double) imageCounter_ * intervalMs_) / 1000.0)
+              +     " s, d=" + TextUtils.FMT2.format(d) + " um, l=" + TextUtils.FMT2.format(distUm_) + " um, v=" + TextUtils.FMT2.format(v) + " um/s"
+              + ", lag=" + TextUtils.FMT2.format(latencyMs) + " ms";
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            speedLabel_.setText(status);
+         }
+      });
       try {
          img.tags.put(D, d);
          img.tags.put(V, v);
          img.tags.put(L, distUm_);
+         img.tags.put(LATENCY, latencyMs);
       } catch (JSONException ex) {
          ReportingUtils.showError(ex, "Problem adding tags to image");
       }
@@ -36,6 +36,12 @@ public class HDFUtils {
    
    public static int[] createCompressedDataSet(int locationID, String name, long[] size, int type, long[] chunk)
            throws HDF5LibraryException, HDF5Exception {
+      return createCompressedDataSet(locationID, name, size, type, chunk, 0);
+   }
+   
+   //cacheBytes is the size of the chunk cache of the dataset, 0 for the library default
+   public static int[] createCompressedDataSet(int locationID, String name, long[] size, int type, long[] chunk,
+           long cacheBytes) throws HDF5LibraryException, HDF5Exception {
       
       //1) Create and initialize a dataspace for the dataset
       // number of dimensions, array with size of each dimension, array with max size of each dimension
@@ -50,13 +56,40 @@ public class HDFUtils {
       H5.H5Pset_deflate(propListID, 2);
       H5.H5Pset_chunk(propListID, chunk.length, chunk);
               
+      //Chunk cache: the number of slots should be a prime about 100 times the number of
+      //chunks that fit; chunks that have been written completely are evicted first
+      int accessListID = HDF5Constants.H5P_DEFAULT;
+      if (cacheBytes > 0) {
+         long chunkBytes = H5.H5Tget_size(dataTypeID);
+         for (long c : chunk) {
+            chunkBytes *= c;
+         }
+         accessListID = H5.H5Pcreate(HDF5Constants.H5P_DATASET_ACCESS);
+         H5.H5Pset_chunk_cache(accessListID, nextPrime(100 * (cacheBytes / chunkBytes + 1)), cacheBytes, 1.0);
+      }
+              
       //3) Create and initialize the dataset
       int dataSetID = H5.H5Dcreate(locationID, name, dataTypeID, dataSpaceID,
-              HDF5Constants.H5P_DEFAULT, propListID, HDF5Constants.H5P_DEFAULT);
+              HDF5Constants.H5P_DEFAULT, propListID, accessListID);
+      if (cacheBytes > 0) {
+         H5.H5Pclose(accessListID);
+      }
       
       return new int[]{dataSpaceID, dataTypeID, dataSetID, propListID};
    }
         
+   private static long nextPrime(long n) {
+      for (;; n++) {
+         boolean prime = n > 1;
+         for (long d = 2; d * d <= n && prime; d++) {
+            prime = n % d != 0;
+         }
+         if (prime) {
+            return n;
+         }
+      }
+   }
+        
    public static void writeStringAttribute(int objectID, String name, String value) throws HDF5LibraryException, HDF5Exception {
       //Create dataspace for attribute
       int dataspaceID = H5.H5Screate_simple(1, new long[]{value.length()}, null);
@@ -41,10 +41,27 @@ public class HDFWriter {
    private Color[] channelColors_;
    private boolean initialized_ = false;
    private boolean finished_ = false;
+   //collect slices into whole chunks before writing them
+   private final boolean aggregateSlices_;
+   //pixel bytes and time spent writing, for the current time point and in total
+   private long timePointBytes_, totalBytes_, timePointNanos_, totalNanos_, timePointStart_, start_;
 
    public HDFWriter(String directory, String filename, int numChannels,
            int numFrames, int numSlices, double pixelSize, double pixelSizeZ, Color[] channelColors,
            int width, int height, ResolutionLevel[] resLevels) {
+      this(directory, filename, numChannels, numFrames, numSlices, pixelSize, pixelSizeZ, channelColors,
+              width, height, resLevels, false);
+   }
+
+   /**
+    * @param aggregateSlices - collect the slices of every z block of chunks in memory and write
+    * them together, so that every chunk is compressed and written once. This takes a block of
+    * slices per channel and resolution level; see getAggregationBytes
+    */
+   public HDFWriter(String directory, String filename, int numChannels,
+           int numFrames, int numSlices, double pixelSize, double pixelSizeZ, Color[] channelColors,
+           int width, int height, ResolutionLevel[] resLevels, boolean aggregateSlices) {
+      aggregateSlices_ = aggregateSlices;
       compressImageData_ = true;
       directory_ = directory;
       filename_ = filename;
@@ -66,6 +83,25 @@ public class HDFWriter {
       slicesPerWrite_ = resLevels_[resLevels_.length - 1].getReductionFactorZ();
    }
 
+   /**
+    * @return memory needed to aggregate slices into whole chunks
+    */
+   public static long getAggregationBytes(ResolutionLevel[] resLevels, int numChannels) {
+      long bytes = 0;
+      for (ResolutionLevel level : resLevels) {
+         bytes += (long) level.getImageSizeX() * level.getImageSizeY() * level.getZBlockSize()
+                 * level.getImageByteDepth();
+      }
+      return bytes * numChannels;
+   }
+
+   /**
+    * @return MB of pixels per second spent writing, so far
+    */
+   public double getWriteRate() {
+      return totalNanos_ == 0 ? 0 : totalBytes_ / 1048576.0 / (totalNanos_ / 1e9);
+   }
+
    public boolean isFinished() {
       return finished_;
    }
@@ -75,6 +111,8 @@ public class HDFWriter {
          //if canceled
          if (currentTimePoint_ != null) {
             currentTimePoint_.closeTimePoint();
+            totalBytes_ += timePointBytes_;
+            totalNanos_ += timePointNanos_;
          }
 
          H5.H5Gclose(timeInfoID_);
@@ -95,24 +133,45 @@ public class HDFWriter {
       } catch (Exception e) {
          e.printStackTrace();
       }
+      if (initialized_) {
+         double seconds = (System.nanoTime() - start_) / 1e9;
+         ReportingUtils.logMessage(String.format("Imaris file %s: %.1f MB of pixels in %.1f s, "
+                 + "%.1f MB/s writing, %.1f MB/s sustained, %.1f MB on disk", filename_,
+                 totalBytes_ / 1048576.0, seconds, getWriteRate(), totalBytes_ / 1048576.0 / seconds,
+                 new File(directory_ + filename_).length() / 1048576.0));
+      }
    }
 
    //this function is not writing one image, but rather the minimum number of slices needed to 
    //write one image at the lowest resolution level
    public void writeImage(PipelineImage img) throws Exception {
+      long startTime = System.nanoTime();
       if (!initialized_) {
          acqDate_ = img.acqDate;
          createFile();
          initialized_ = true;
+         start_ = startTime;
       }
       //if new timepoint
       if (timePointImageCount_ == 0) {
          currentTimePoint_ = new TimePoint(resLevels_, resLevelIDs_, numChannels_, img.frame,
-                 bitDepth_, compressImageData_);
+                 bitDepth_, compressImageData_, aggregateSlices_);
          HDFUtils.writeStringAttribute(timeInfoID_, "TimePoint" + (1 + img.frame), img.time);
+         timePointStart_ = startTime;
+         timePointBytes_ = 0;
+         timePointNanos_ = 0;
       }
 
       currentTimePoint_.writePixels(img);
+      for (Object[] level : (Object[][]) img.pixels) {
+         for (Object pix : level) {
+            if (pix instanceof byte[]) {
+               timePointBytes_ += ((byte[]) pix).length;
+            } else if (pix instanceof short[]) {
+               timePointBytes_ += 2 * ((short[]) pix).length;
+            }
+         }
+      }
 
 
       if (numSlices_ % slicesPerWrite_ != 0 && img.slice + slicesPerWrite_ - 1 >= numSlices_) {
@@ -131,6 +190,15 @@ public class HDFWriter {
          currentTimePoint_.closeTimePoint();
          currentTimePoint_ = null;
          timePointImageCount_ = 0;
+         timePointNanos_ += System.nanoTime() - startTime;
+         totalBytes_ += timePointBytes_;
+         totalNanos_ += timePointNanos_;
+         double mb = timePointBytes_ / 1048576.0;
+         ReportingUtils.logMessage(String.format("Imaris time point %d: %.1f MB, %.1f MB/s writing, "
+                 + "%.1f MB/s sustained", img.frame, mb, mb / (timePointNanos_ / 1e9),
+                 mb / ((System.nanoTime() - timePointStart_) / 1e9)));
+      } else {
+         timePointNanos_ += System.nanoTime() - startTime;
       }
    }
 
@@ -0,0 +1,291 @@
+package HDF;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.micromanager.utils.ThreadUtils;
+
+/**
+ * Computes the lower resolution levels and the histograms of a chunk of
+ * full resolution slices, for the Imaris file.
+ *
+ * Every level is computed from an earlier level (the closest one whose
+ * reduction factors divide its own) rather than from full resolution, by
+ * adding up blocks of that level's sums; the sums are only divided into
+ * averages at the end, so the result is the same as averaging the full
+ * resolution pixels directly.  Pixels of blocks that are not complete (at
+ * the right and bottom edges, and at the end of the chunk) are left 0, and
+ * pixels beyond a level's size are cropped off, as before.
+ *
+ * Histogram bins of 16 bit pixels are looked up in a table.  Work is split
+ * over slices and bands of rows, on the shared Micro-Manager worker pool.
+ *
+ * @author Henry
+ */
+public class PyramidBuilder {
+
+   private final ResolutionLevel[] resLevels_;
+   private final int width_, height_;
+   private final int bitDepth_;
+   // index of the level that each level is computed from
+   private final int[] sources_;
+   // histogram bin of every 16 bit value
+   private final int[] bins_;
+
+   public PyramidBuilder(int width, int height, ResolutionLevel[] resLevels, int bitDepth) {
+      width_ = width;
+      height_ = height;
+      resLevels_ = resLevels;
+      bitDepth_ = bitDepth;
+      sources_ = new int[resLevels.length];
+      for (int r = 1; r < resLevels.length; r++) {
+         for (int s = r - 1; s >= 0; s--) {
+            if (resLevels[r].getReductionFactorX() % resLevels[s].getReductionFactorX() == 0
+                    && resLevels[r].getReductionFactorY() % resLevels[s].getReductionFactorY() == 0
+                    && resLevels[r].getReductionFactorZ() % resLevels[s].getReductionFactorZ() == 0) {
+               sources_[r] = s;
+               break;
+            }
+         }
+      }
+      if (bitDepth > 8) {
+         bins_ = new int[65536];
+         double range = Math.pow(2, bitDepth);
+         for (int v = 0; v < bins_.length; v++) {
+            bins_[v] = Math.min(255, (int) (255 * (v / range)));
+         }
+      } else {
+         bins_ = null;
+      }
+   }
+
+   /**
+    * @param slices - full resolution pixels (byte[], or short[] when the bit
+    * depth is over 8) of the slices in the chunk; trailing slices may be null
+    * to fill out the chunk, these are replaced by the first slice
+    * @param histograms - [level][256] histograms that the pixels are added to
+    * @return pixels by level and slice index; level 0 holds the slices, the
+    * lower levels hold an array at every slice index that is a multiple of
+    * their z reduction factor
+    */
+   public Object[][] build(final Object[] slices, final long[][] histograms) throws Exception {
+      final int numSlices = slices.length;
+      Object[][] pixels = new Object[resLevels_.length][numSlices];
+      final long[][][] sums = new long[resLevels_.length][][];
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+      for (int i = 0; i < numSlices; i++) {
+         pixels[0][i] = slices[i];
+         if (slices[i] == null) {
+            break;
+         }
+         final Object slice = slices[i];
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               addToHistograms(slice, histograms);
+               return null;
+            }
+         });
+      }
+      runAll(tasks);
+
+      final Object[] source = new Object[numSlices];
+      for (int i = 0; i < numSlices; i++) {
+         source[i] = slices[i] != null ? slices[i] : slices[0];
+      }
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      for (int r = 1; r < resLevels_.length; r++) {
+         final int level = r;
+         int zFactor = resLevels_[r].getReductionFactorZ();
+         int numBlocks = (numSlices + zFactor - 1) / zFactor;
+         int sizeX = resLevels_[r].getImageSizeX();
+         int sizeY = resLevels_[r].getImageSizeY();
+         sums[r] = new long[numBlocks][sizeX * sizeY];
+         for (int k = 0; k < numBlocks; k++) {
+            pixels[r][k * zFactor] = bitDepth_ > 8 ? new short[sizeX * sizeY] : new byte[sizeX * sizeY];
+         }
+         int bands = Math.min(sizeY, Math.max(1, 2 * nrThreads / numBlocks));
+         tasks.clear();
+         for (int k = 0; k < numBlocks; k++) {
+            final int block = k;
+            final Object dest = pixels[r][k * zFactor];
+            for (int b = 0; b < bands; b++) {
+               final int startRow = sizeY * b / bands;
+               final int endRow = sizeY * (b + 1) / bands;
+               tasks.add(new Callable<Object>() {
+                  @Override
+                  public Object call() {
+                     reduce(level, block, startRow, endRow, source, sums, dest);
+                     return null;
+                  }
+               });
+            }
+         }
+         runAll(tasks);
+      }
+      return pixels;
+   }
+
+   /**
+    * Adds the pixels of one slice to the histogram of every level.  Lower
+    * levels only count the pixels that are not cropped off at that level.
+    */
+   private void addToHistograms(Object slice, long[][] histograms) {
+      long[] histogram = new long[256];
+      addToHistogram(slice, 0, width_, 0, height_, histogram);
+      long[][] levels = new long[resLevels_.length][];
+      levels[0] = histogram;
+      for (int r = 1; r < resLevels_.length; r++) {
+         int cropX = Math.min(width_, resLevels_[r].getImageSizeX() * resLevels_[r].getReductionFactorX());
+         int cropY = Math.min(height_, resLevels_[r].getImageSizeY() * resLevels_[r].getReductionFactorY());
+         levels[r] = histogram.clone();
+         if (cropX < width_ || cropY < height_) {
+            long[] cropped = new long[256];
+            addToHistogram(slice, cropX, width_, 0, cropY, cropped);
+            addToHistogram(slice, 0, width_, cropY, height_, cropped);
+            for (int bin = 0; bin < 256; bin++) {
+               levels[r][bin] -= cropped[bin];
+            }
+         }
+      }
+      synchronized (histograms) {
+         for (int r = 0; r < resLevels_.length; r++) {
+            for (int bin = 0; bin < 256; bin++) {
+               histograms[r][bin] += levels[r][bin];
+            }
+         }
+      }
+   }
+
+   private void addToHistogram(Object slice, int x0, int x1, int y0, int y1, long[] histogram) {
+      if (x0 >= x1) {
+         return;
+      }
+      if (bitDepth_ > 8) {
+         short[] pix = (short[]) slice;
+         for (int y = y0; y < y1; y++) {
+            for (int i = y * width_ + x0; i < y * width_ + x1; i++) {
+               histogram[bins_[pix[i] & 0xffff]]++;
+            }
+         }
+      } else {
+         byte[] pix = (byte[]) slice;
+         for (int y = y0; y < y1; y++) {
+            for (int i = y * width_ + x0; i < y * width_ + x1; i++) {
+               histogram[pix[i] & 0xff]++;
+            }
+         }
+      }
+   }
+
+   /**
+    * Sums the source blocks of rows startRow to endRow of one z block of a
+    * level, and averages the complete ones into dest
+    */
+   private void reduce(int level, int block, int startRow, int endRow,
+           Object[] slices, long[][][] sums, Object dest) {
+      ResolutionLevel res = resLevels_[level];
+      int src = sources_[level];
+      int sizeX = res.getImageSizeX();
+      int rx = res.getReductionFactorX() / resLevels_[src].getReductionFactorX();
+      int ry = res.getReductionFactorY() / resLevels_[src].getReductionFactorY();
+      int rz = res.getReductionFactorZ() / resLevels_[src].getReductionFactorZ();
+      int srcWidth = src == 0 ? width_ : resLevels_[src].getImageSizeX();
+      int srcHeight = src == 0 ? height_ : resLevels_[src].getImageSizeY();
+      int srcDepth = src == 0 ? slices.length : sums[src].length;
+      long[] sum = sums[level][block];
+
+      for (int dz = 0; dz < rz && block * rz + dz < srcDepth; dz++) {
+         int z = block * rz + dz;
+         for (int y = startRow; y < endRow; y++) {
+            int out = y * sizeX;
+            for (int dy = 0; dy < ry && y * ry + dy < srcHeight; dy++) {
+               int row = (y * ry + dy) * srcWidth;
+               if (src != 0) {
+                  addRow(sums[src][z], row, srcWidth, rx, sum, out, sizeX);
+               } else if (bitDepth_ > 8) {
+                  addRow((short[]) slices[z], row, srcWidth, rx, sum, out, sizeX);
+               } else {
+                  addRow((byte[]) slices[z], row, srcWidth, rx, sum, out, sizeX);
+               }
+            }
+         }
+      }
+
+      // only blocks that are complete at full resolution get a value
+      int fx = res.getReductionFactorX(), fy = res.getReductionFactorY(), fz = res.getReductionFactorZ();
+      if ((block + 1) * fz > slices.length) {
+         return;
+      }
+      int completeX = Math.min(sizeX, width_ / fx);
+      int completeY = Math.min(endRow, height_ / fy);
+      long n = (long) fx * fy * fz;
+      for (int y = startRow; y < completeY; y++) {
+         for (int x = 0; x < completeX; x++) {
+            int i = y * sizeX + x;
+            if (bitDepth_ > 8) {
+               ((short[]) dest)[i] = (short) (sum[i] / n);
+            } else {
+               ((byte[]) dest)[i] = (byte) (sum[i] / n);
+            }
+         }
+      }
+   }
+
+   private static void addRow(byte[] src, int offset, int srcWidth, int rx,
+           long[] sum, int out, int sizeX) {
+      for (int x = 0; x < sizeX; x++) {
+         int start = offset + x * rx;
+         int end = Math.min(start + rx, offset + srcWidth);
+         long acc = 0;
+         for (int i = start; i < end; i++) {
+            acc += src[i] & 0xff;
+         }
+         sum[out + x] += acc;
+      }
+   }
+
+   private static void addRow(short[] src, int offset, int srcWidth, int rx,
+           long[] sum, int out, int sizeX) {
+      for (int x = 0; x < sizeX; x++) {
+         int start = offset + x * rx;
+         int end = Math.min(start + rx, offset + srcWidth);
+         long acc = 0;
+         for (int i = start; i < end; i++) {
+            acc += src[i] & 0xffff;
+         }
+         sum[out + x] += acc;
+      }
+   }
+
+   private static void addRow(long[] src, int offset, int srcWidth, int rx,
+           long[] sum, int out, int sizeX) {
+      for (int x = 0; x < sizeX; x++) {
+         int start = offset + x * rx;
+         int end = Math.min(start + rx, offset + srcWidth);
+         long acc = 0;
+         for (int i = start; i < end; i++) {
+            acc += src[i];
+         }
+         sum[out + x] += acc;
+      }
+   }
+
+   private static void runAll(List<Callable<Object>> tasks) throws Exception {
+      if (tasks.size() == 1) {
+         tasks.get(0).call();
+         return;
+      }
+      try {
+         ThreadUtils.invokeAll(tasks);
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof Exception) {
+            throw (Exception) ex.getCause();
+         }
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+}
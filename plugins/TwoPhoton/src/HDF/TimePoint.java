@@ -16,11 +16,19 @@ public class TimePoint {
    //res index, channel index array of channel Groups
    private ChannelGroup[][] channelGroups_;
    private final boolean compressImageData_;
+   //collect slices into whole chunks (z blocks) before writing
+   private final boolean aggregateSlices_;
 
    //Constructor creates all data structures that are populated later
    public TimePoint(ResolutionLevel[] resLevels, int[] resLevelIDs, int numChannels, int frameIndex,
            int bitDepth, boolean compressImageData) throws HDF5LibraryException, HDF5Exception {
+      this(resLevels, resLevelIDs, numChannels, frameIndex, bitDepth, compressImageData, false);
+   }
+
+   public TimePoint(ResolutionLevel[] resLevels, int[] resLevelIDs, int numChannels, int frameIndex,
+           int bitDepth, boolean compressImageData, boolean aggregateSlices) throws HDF5LibraryException, HDF5Exception {
       compressImageData_ = compressImageData;
+      aggregateSlices_ = aggregateSlices;
       resLevels_ = resLevels;
       channelGroups_ = new ChannelGroup[resLevels.length][numChannels];
 
@@ -80,6 +88,11 @@ public class TimePoint {
       private ResolutionLevel resLevel_;
       private int[] histogramIDs_;
       private int[] imageDataIDs_;
+      //slices of the z block being collected, the block index, which slices of it were received
+      //and how many
+      private Object slab_;
+      private boolean[] slabReceived_;
+      private int slabIndex_ = -1, slabCount_;
 
       public ChannelGroup(int timePointID, int channelIndex, ResolutionLevel resLevel, int bitDepth) throws HDF5LibraryException, HDF5Exception {
          resLevel_ = resLevel;
@@ -102,10 +115,17 @@ public class TimePoint {
 
          //Create image datasets
          if (compressImageData_) {
+            //Whole z blocks are written at once when slices are aggregated, so a chunk is complete
+            //after one write and the cache only has to take one. Otherwise the library default is
+            //kept: a cache for a whole layer of chunks of every dataset would take the memory
+            //that aggregation was turned down for
+            long chunkBytes = aggregateSlices_ ? (long) resLevel.getZBlockSize() * resLevel.getImageByteDepth()
+                    * resLevel.getYBlockSize() * resLevel.getXBlockSize() : 0;
             imageDataIDs_ = HDFUtils.createCompressedDataSet(id, "Data", new long[]{resLevel.getContainerSizeZ(),
                        resLevel.getContainerSizeY(), resLevel.getContainerSizeX()}, 
                     resLevel.getImageByteDepth() == 1 ? HDF5Constants.H5T_NATIVE_UCHAR : HDF5Constants.H5T_NATIVE_UINT16,
-                    new long[]{resLevel.getZBlockSize(), resLevel.getYBlockSize(), resLevel.getXBlockSize()});
+                    new long[]{resLevel.getZBlockSize(), resLevel.getYBlockSize(), resLevel.getXBlockSize()},
+                    chunkBytes);
          } else {
             imageDataIDs_ = HDFUtils.createDataSet(id, "Data", new long[]{resLevel.getContainerSizeZ(),
                        resLevel.getContainerSizeY(), resLevel.getContainerSizeX()}, 
@@ -138,6 +158,8 @@ public class TimePoint {
       }
 
       private void close() throws HDF5LibraryException, HDF5Exception {
+         //write what is left of an incomplete z block
+         writeSlab();
          if (histogramIDs_ != null) {
             //if writing cancelled
             closeHistograms();
@@ -155,15 +177,68 @@ public class TimePoint {
       }
 
       private void writeSlice(int width, int height, int dataSlice, Object pixels) {
+         if (!aggregateSlices_) {
+            write(width, height, dataSlice, 1, pixels, 0);
+            return;
+         }
+         int zBlock = resLevel_.getZBlockSize();
+         if (dataSlice / zBlock != slabIndex_) {
+            writeSlab();
+            slabIndex_ = dataSlice / zBlock;
+            slabCount_ = 0;
+         }
+         if (slab_ == null) {
+            slab_ = pixels instanceof byte[] ? new byte[zBlock * width * height] : new short[zBlock * width * height];
+            slabReceived_ = new boolean[zBlock];
+         }
+         int z = dataSlice % zBlock;
+         System.arraycopy(pixels, 0, slab_, z * width * height, width * height);
+         if (!slabReceived_[z]) {
+            slabReceived_[z] = true;
+            slabCount_++;
+         }
+         if (slabCount_ >= Math.min(zBlock, resLevel_.getImageSizeZ() - slabIndex_ * zBlock)) {
+            //every slice of the block is there
+            writeSlab();
+         }
+      }
+
+      private void writeSlab() {
+         if (slabIndex_ < 0) {
+            return;
+         }
+         int zBlock = resLevel_.getZBlockSize();
+         int width = resLevel_.getImageSizeX(), height = resLevel_.getImageSizeY();
+         //the slab is reused, so only runs of slices received for this block are written
+         int z = 0;
+         while (z < zBlock) {
+            if (!slabReceived_[z]) {
+               z++;
+               continue;
+            }
+            int first = z;
+            while (z < zBlock && slabReceived_[z]) {
+               slabReceived_[z] = false;
+               z++;
+            }
+            write(width, height, slabIndex_ * zBlock + first, z - first, slab_, first * width * height);
+         }
+         slabIndex_ = -1;
+      }
+
+      //writes numSlices slices starting at dataSlice, from pixels starting at offset
+      private void write(int width, int height, int dataSlice, int numSlices, Object pixels, int offset) {
          try {
             long[] start = new long[]{dataSlice, 0, 0};
             //count is total number of points in each dimension
-            long[] count = new long[]{1, height, width};
+            long[] count = new long[]{numSlices, height, width};
             int ret = H5.H5Sselect_hyperslab(imageDataIDs_[0], HDF5Constants.H5S_SELECT_SET, start, null, count, null);
 
             //Create dataspace in memory to copy from
-            int memDataSpaceID = H5.H5Screate_simple(1, new long[]{width * height}, null);
-            ret = H5.H5Sselect_all(memDataSpaceID);
+            int length = pixels instanceof byte[] ? ((byte[]) pixels).length : ((short[]) pixels).length;
+            int memDataSpaceID = H5.H5Screate_simple(1, new long[]{length}, null);
+            ret = H5.H5Sselect_hyperslab(memDataSpaceID, HDF5Constants.H5S_SELECT_SET, new long[]{offset}, null,
+                    new long[]{(long) numSlices * width * height}, null);
 
             ret = H5.H5Dwrite(imageDataIDs_[2], pixels instanceof byte[] ? HDF5Constants.H5T_NATIVE_UCHAR
                     : HDF5Constants.H5T_NATIVE_UINT16, memDataSpaceID, imageDataIDs_[0],
@@ -29,7 +29,6 @@ import org.micromanager.acquisition.MMImageCache;
 import org.micromanager.api.IAcquisitionEngine2010;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.SequenceSettings;
-import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -156,7 +155,7 @@ public class AcquisitionWrapperEngineAdapter extends AcquisitionWrapperEngine {
         // BlockingQueue<TaggedImage> procStackOutputQueue = ProcessorStack.run(engineOutputQueue, imageProcessors);
 
         // create storage
-        TaggedImageStorage storage;
+        DoubleTaggedImageStorage storage;
         try {
             if (settings.save) {
                 //MPTiff storage
@@ -210,7 +209,7 @@ public class AcquisitionWrapperEngineAdapter extends AcquisitionWrapperEngine {
             imageCache.setSummaryMetadata(summaryMetadata);
 
 
-            DisplayPlus stitchedDisplay = new DisplayPlus(imageCache, this, summaryMetadata);
+            DisplayPlus stitchedDisplay = new DisplayPlus(imageCache, storage, this, summaryMetadata);
 
             DefaultTaggedImageSink sink = new DefaultTaggedImageSink(engineOutputQueue, imageCache);
             sink.start();
@@ -6,7 +6,9 @@ package MMCustomization;
 import com.imaging100x.twophoton.SettingsDialog;
 import com.imaging100x.twophoton.TwoPhotonControl;
 import ij.IJ;
+import ij.ImagePlus;
 import ij.gui.*;
+import ij.process.ImageProcessor;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.AffineTransform;
@@ -40,6 +42,10 @@ public class DisplayPlus implements ImageCacheListener {
     private static final Color TRANSPARENT_BLUE = new Color(0, 0, 255, 60);
     //VirtualAcquisitionDisplay on top of which this display is built
     private VirtualAcquisitionDisplay vad_;
+    //storage of the stitched images, to show parts of them
+    private DoubleTaggedImageStorage storage_;
+    //full resolution view of the selected tile
+    private ImagePlus tileView_;
     private Controls controls_;
     private AcquisitionEngine eng_;
     private JSpinner gridXSpinner_, gridYSpinner_;
@@ -54,7 +60,9 @@ public class DisplayPlus implements ImageCacheListener {
     private int mouseRowIndex_ = -1, mouseColIndex_ = -1, selectedRowIndex_ = -1, selectedColIndex_ = -1;
     private ScrollbarWithLabel tSelector_;
 
-    public DisplayPlus(final ImageCache stitchedCache, AcquisitionEngine eng, JSONObject summaryMD) {
+    public DisplayPlus(final ImageCache stitchedCache, DoubleTaggedImageStorage storage,
+            AcquisitionEngine eng, JSONObject summaryMD) {
+        storage_ = storage;
         yOverlap_ = SettingsDialog.getYOverlap();
         xOverlap_ = SettingsDialog.getXOverlap();
         eng_ = eng;
@@ -258,6 +266,7 @@ public class DisplayPlus implements ImageCacheListener {
                     int i = getPosIndex(selectedRowIndex_, selectedColIndex_);
                     try {
                         controls_.updateSelectedPosition(positionList_.getJSONObject(i).getString("Label"));
+                        showSelectedTile(positionList_.getJSONObject(i).getString("Label"));
                     } catch (JSONException ex) {
                         ReportingUtils.showError("couldnt update dpeth list offset");
                     }
@@ -321,6 +330,33 @@ public class DisplayPlus implements ImageCacheListener {
         });
     }
 
+    /**
+     * Shows the selected tile of the displayed channel, slice and frame at full
+     * resolution, stitched from only the tiles that overlap it
+     */
+    private void showSelectedTile(String posName) {
+        if (selectedRowIndex_ == -1 || selectedColIndex_ == -1) {
+            return;
+        }
+        ImagePlus overview = vad_.getHyperImage();
+        Rectangle tile = makeROIRect(selectedRowIndex_, selectedColIndex_).getBounds();
+        TaggedImage image = storage_.getImage(overview.getChannel() - 1, overview.getSlice() - 1,
+                overview.getFrame() - 1, tile, 0);
+        if (image == null) {
+            return;
+        }
+        ImageProcessor proc = ImageUtils.makeProcessor(image);
+        if (proc == null) {
+            return;
+        }
+        if (tileView_ == null || tileView_.getWindow() == null) {
+            tileView_ = new ImagePlus(posName, proc);
+            tileView_.show();
+        } else {
+            tileView_.setProcessor(posName, proc);
+        }
+    }
+
     public int getPosIndex(int row, int col) {
         for (int i = 0; i < positionList_.length(); i++) {
             try {
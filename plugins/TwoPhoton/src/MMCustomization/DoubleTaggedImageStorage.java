@@ -11,6 +11,7 @@ import ij.IJ;
 import ij.plugin.filter.GaussianBlur;
 import ij.process.ByteProcessor;
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.io.File;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -46,7 +47,7 @@ public class DoubleTaggedImageStorage implements TaggedImageStorage {
    private boolean finished_ = false;
    private boolean preprocessFinished_ = false;
    private ByteProcessor imageProcessor_;
-   private SingleThreadedGaussianFilter filter_;
+   private MultiThreadedGaussianFilter filter_;
    private Preferences prefs_;
 
    public DoubleTaggedImageStorage(JSONObject summaryMetadata, String savingDir, Preferences prefs) {
@@ -95,10 +96,13 @@ public class DoubleTaggedImageStorage implements TaggedImageStorage {
                  MDUtils.getNumSlices(summaryMetadata), MDUtils.getNumFrames(summaryMetadata), 1);
          hdfPreprocessor_ = new HDFPreprocessor(width, height, resLevels, MDUtils.getNumChannels(summaryMetadata));
 
+         //write whole chunks at once if a block of slices of every channel fits in a quarter of the heap
+         boolean aggregateSlices = HDFWriter.getAggregationBytes(resLevels, MDUtils.getNumChannels(summaryMetadata))
+                 < Runtime.getRuntime().maxMemory() / 4;
          hdfWriter_ = new HDFWriter(newDir.getAbsolutePath(), prefix + ".ims", MDUtils.getNumChannels(summaryMetadata),
                  MDUtils.getNumFrames(summaryMetadata), MDUtils.getNumSlices(summaryMetadata),
                  summaryMetadata.getDouble("PixelSize_um"), Math.abs(summaryMetadata.getDouble("z-step_um")),
-                 channelColors, width, height, resLevels);
+                 channelColors, width, height, resLevels, aggregateSlices);
          slicesPerWrite_ = resLevels[resLevels.length - 1].getReductionFactorZ();
       } catch (JSONException ex) {
          Logger.getLogger(DoubleTaggedImageStorage.class.getName()).log(Level.SEVERE, null, ex);
@@ -192,14 +196,25 @@ public class DoubleTaggedImageStorage implements TaggedImageStorage {
             //Filter
             if (gaussianFilter_) {
                if (filter_ == null) {
-                  filter_ = new SingleThreadedGaussianFilter(MDUtils.getWidth(batch.getFirst().tags),
+                  filter_ = new MultiThreadedGaussianFilter(MDUtils.getWidth(batch.getFirst().tags),
                              MDUtils.getHeight(batch.getFirst().tags), filterWidth_);
                } 
+               //filter all images that aren't dummies at once, in x and y only
+               LinkedList<Integer> real = new LinkedList<Integer>();
                for (int i = 0; i < batch.size(); i++) {
                   if (batch.get(i).pix != null) {
-                     //filter if it's not a dummy image
-                     batch.add(i, new TaggedImage(filter_.gaussianFilter(batch.get(i).pix), batch.get(i).tags));
-                     batch.remove(i + 1);
+                     real.add(i);
+                  }
+               }
+               if (!real.isEmpty()) {
+                  Object[] pixels = new Object[real.size()];
+                  for (int j = 0; j < pixels.length; j++) {
+                     pixels[j] = batch.get(real.get(j)).pix;
+                  }
+                  Object[] filtered = filter_.gaussianFilter(pixels, 0);
+                  for (int j = 0; j < pixels.length; j++) {
+                     int i = real.get(j);
+                     batch.set(i, new TaggedImage(filtered[j], batch.get(i).tags));
                   }
                }
             }
@@ -297,6 +312,14 @@ public class DoubleTaggedImageStorage implements TaggedImageStorage {
       return storage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
    }
 
+   /**
+    * Stitches the part of an image within viewport at a resolution level,
+    * see DynamicStitchingImageStorage
+    */
+   public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, Rectangle viewport, int resLevel) {
+      return storage_.getImage(channelIndex, sliceIndex, frameIndex, viewport, resLevel);
+   }
+
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
       return storage_.getImageTags(channelIndex, sliceIndex, frameIndex, positionIndex);
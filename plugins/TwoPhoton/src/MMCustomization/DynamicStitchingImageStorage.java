@@ -5,9 +5,17 @@
 package MMCustomization;
 
 import com.imaging100x.twophoton.SettingsDialog;
+import java.awt.Rectangle;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -18,8 +26,14 @@ import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.ThreadUtils;
 
 /**
+ * Holds the tiles of an acquisition, and stitches them into one image on
+ * request.  Parts of the image can be stitched at reduced resolution, for
+ * display.  Whole stitched images are cached until a new tile for them
+ * arrives, and parts are taken from the cache when it holds the image.
+ * 8 and 16 bit tiles are supported.
  *
  * @author Henry
  */
@@ -33,6 +47,15 @@ public class DynamicStitchingImageStorage {
     private TreeSet<String> imageKeys_;
     private JSONArray positionList_;
     private int xOverlap_, yOverlap_, numRows_, numCols_;
+    //grid column and row of each position
+    private int[] tileCols_, tileRows_;
+    //stitched images by label (position 0), in least recently used order
+    private final LinkedHashMap<String, TaggedImage> cache_ =
+            new LinkedHashMap<String, TaggedImage>(16, 0.75f, true);
+    //number of tiles that arrived for each label, to not cache images stitched from an old set
+    private final HashMap<String, Long> versions_ = new HashMap<String, Long>();
+    private long cachedBytes_ = 0;
+    private final long cacheBudget_ = Runtime.getRuntime().maxMemory() / 8;
 
    public DynamicStitchingImageStorage(JSONObject summaryMetadata, String savingDir) {
       xOverlap_ = SettingsDialog.getXOverlap();
@@ -59,11 +82,17 @@ public class DynamicStitchingImageStorage {
        try {
            numRows_ = 1;
            numCols_ = 1;
+           tileCols_ = new int[1];
+           tileRows_ = new int[1];
            if (summaryMetadata.has("InitialPositionList") && !summaryMetadata.isNull("InitialPositionList")) {
                positionList_ = summaryMetadata.getJSONArray("InitialPositionList");
+               tileCols_ = new int[positionList_.length()];
+               tileRows_ = new int[positionList_.length()];
                for (int i = 0; i < positionList_.length(); i++) {
                    long colInd = positionList_.getJSONObject(i).getLong("GridColumnIndex");
                    long rowInd = positionList_.getJSONObject(i).getLong("GridRowIndex");
+                   tileCols_[i] = (int) colInd;
+                   tileRows_[i] = (int) rowInd;
                    if (colInd >= numCols_) {
                        numCols_ = (int) (colInd + 1);
                    }
@@ -75,8 +104,8 @@ public class DynamicStitchingImageStorage {
 
            tileHeight_ = MDUtils.getHeight(summaryMetadata);
            tileWidth_ = MDUtils.getWidth(summaryMetadata);
-           height_ = numRows_ * tileHeight_ - (numRows_ - 1) * xOverlap_;
-           width_ = numCols_ * tileWidth_ - (numCols_ - 1) * yOverlap_;
+           height_ = numRows_ * tileHeight_ - (numRows_ - 1) * yOverlap_;
+           width_ = numCols_ * tileWidth_ - (numCols_ - 1) * xOverlap_;
            //change summary metadata fields
            summaryMetadata_.put("Positions", 1);
            summaryMetadata_.put("Width", width_);
@@ -94,71 +123,239 @@ public class DynamicStitchingImageStorage {
       return height_;
    }
 
+   /**
+    * Returns the full stitched image, as far as its tiles have been acquired.
+    * The stitched image is kept until a new tile of the same channel, slice
+    * and frame arrives.  The pixels are shared with the cache and must not
+    * be changed; the tags are a copy.
+    */
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int p) {
       if (width_ == tileWidth_ && height_ == tileHeight_) {
           //one position, no stitching
           return storage_.getImage(channelIndex, sliceIndex, frameIndex, 0);
       }
-       //read as many tiles from underlying storage as available, fill in the rest blank      
-      JSONObject tags = null;
-      byte[] pixels = new byte[width_*height_];
-      for (int positionIndex = 0; positionIndex < positionList_.length(); positionIndex++) {
-         TaggedImage tile = storage_.getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
-         if (tile != null) {
-            tags = tile.tags;
-            JSONObject posInfo;
-            int xTileIndex = 0, yTileIndex = 0;
-            //Get indices in stitched image 
-            try {
-                 posInfo = positionList_.getJSONObject(positionIndex);
-                 xTileIndex = (int) posInfo.getLong("GridColumnIndex");
-                 yTileIndex = (int) posInfo.getLong("GridRowIndex");
-             } catch (JSONException ex) {
-                 ReportingUtils.showError("Couldnt find tile indices");
-             }
-             //do stitching
-            int startLine = 0, endLine = tileHeight_;
-            if (yTileIndex > 0 ) {
-               startLine = yOverlap_ / 2;
-            }
-            if (yTileIndex < numRows_ - 1) {
-               endLine = tileHeight_ - (yOverlap_ + 1) / 2;
-            }
-            int startPix = 0, endPix = tileWidth_;
-            if (xTileIndex > 0 ) {
-               startPix = xOverlap_ / 2;
-            }
-            if (xTileIndex < numCols_ - 1) {
-               endPix = tileWidth_ - (xOverlap_ + 1) / 2;
-            }
-            int pixPerLine = endPix - startPix;
-            
-            for (int y = startLine; y < endLine; y++) {
- 
-               int destIndex = ((tileHeight_ - yOverlap_) * yTileIndex + y) * width_ + 
-                       ((tileWidth_ - xOverlap_) * xTileIndex + startPix);             
-               System.arraycopy(tile.pix, y * tileWidth_ + startPix, pixels, destIndex, pixPerLine);
-            }
+      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, 0);
+      TaggedImage image;
+      long version;
+      synchronized (cache_) {
+         image = cache_.get(label);
+         version = versions_.containsKey(label) ? versions_.get(label) : 0;
+      }
+      if (image == null) {
+         image = stitch(channelIndex, sliceIndex, frameIndex, new Rectangle(0, 0, width_, height_), 0);
+         if (image == null) {
+            return null;
          }
+         addToCache(label, image, version);
+      }
+      try {
+         return new TaggedImage(image.pix, new JSONObject(image.tags.toString()));
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Couldn't copy image tags");
+         return null;
+      }
+   }
+
+   /**
+    * Stitches the part of the image within viewport (in pixels of the full
+    * stitched image) at a resolution level: at level n, every 2^n th pixel of
+    * every 2^n th line is taken.  When the whole stitched image is cached,
+    * the part is copied out of it.  Otherwise only the tiles that overlap the
+    * viewport are read, in parallel, and the part is not cached.
+    *
+    * @return image of ceil(width / 2^n) by ceil(height / 2^n) pixels of the
+    * viewport (clipped to the image), or null if none of its tiles have been
+    * acquired
+    */
+   public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, Rectangle viewport, int resLevel) {
+      Rectangle view = viewport.intersection(new Rectangle(0, 0, width_, height_));
+      if (view.isEmpty()) {
+         return null;
+      }
+      if (resLevel == 0 && view.width == width_ && view.height == height_) {
+         return getImage(channelIndex, sliceIndex, frameIndex, 0);
+      }
+      TaggedImage image;
+      synchronized (cache_) {
+         image = cache_.get(MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, 0));
+      }
+      if (image == null) {
+         return stitch(channelIndex, sliceIndex, frameIndex, view, resLevel);
       }
-      if (tags == null) {
+
+      int step = 1 << resLevel;
+      int outWidth = (view.width + step - 1) / step;
+      int outHeight = (view.height + step - 1) / step;
+      Object pixels = image.pix instanceof short[]
+              ? new short[outWidth * outHeight] : new byte[outWidth * outHeight];
+      for (int y = 0; y < outHeight; y++) {
+         copyPixels(image.pix, (view.y + y * step) * width_ + view.x, pixels, y * outWidth,
+                 outWidth, step);
+      }
+      try {
+         JSONObject tags = new JSONObject(image.tags.toString());
+         tags.put("Width", outWidth);
+         tags.put("Height", outHeight);
+         return new TaggedImage(pixels, tags);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex, "Couldn't copy image tags");
+         return null;
+      }
+   }
+
+   private TaggedImage stitch(final int channelIndex, final int sliceIndex, final int frameIndex,
+           final Rectangle view, int resLevel) {
+      final int step = 1 << resLevel;
+      final int outWidth = (view.width + step - 1) / step;
+      final int outHeight = (view.height + step - 1) / step;
+      //pixels and tags of the stitched image, created from the first tile read
+      final Object[] pixels = new Object[1];
+      final JSONObject[] tags = new JSONObject[1];
+
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int positionIndex = 0; positionIndex < tileRows_.length; positionIndex++) {
+         final int xTileIndex = tileCols_[positionIndex], yTileIndex = tileRows_[positionIndex];
+         //part of the stitched image that comes from this tile
+         int startLine = 0, endLine = tileHeight_;
+         if (yTileIndex > 0) {
+            startLine = yOverlap_ / 2;
+         }
+         if (yTileIndex < numRows_ - 1) {
+            endLine = tileHeight_ - (yOverlap_ + 1) / 2;
+         }
+         int startPix = 0, endPix = tileWidth_;
+         if (xTileIndex > 0) {
+            startPix = xOverlap_ / 2;
+         }
+         if (xTileIndex < numCols_ - 1) {
+            endPix = tileWidth_ - (xOverlap_ + 1) / 2;
+         }
+         final int tileX = (tileWidth_ - xOverlap_) * xTileIndex;
+         final int tileY = (tileHeight_ - yOverlap_) * yTileIndex;
+         //output pixels that fall within that part
+         final int outX0 = firstSample(Math.max(tileX + startPix, view.x) - view.x, step);
+         final int outX1 = firstSample(Math.min(tileX + endPix, view.x + view.width) - view.x, step);
+         final int outY0 = firstSample(Math.max(tileY + startLine, view.y) - view.y, step);
+         final int outY1 = firstSample(Math.min(tileY + endLine, view.y + view.height) - view.y, step);
+         if (outX0 >= outX1 || outY0 >= outY1) {
+            continue;
+         }
+         final int position = positionIndex;
+         tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() {
+               TaggedImage tile = storage_.getImage(channelIndex, sliceIndex, frameIndex, position);
+               if (tile == null || tile.pix == null) {
+                  return null;
+               }
+               Object dest;
+               synchronized (pixels) {
+                  if (pixels[0] == null) {
+                     pixels[0] = tile.pix instanceof short[]
+                             ? new short[outWidth * outHeight] : new byte[outWidth * outHeight];
+                     tags[0] = tile.tags;
+                  }
+                  dest = pixels[0];
+               }
+               int srcX = view.x + outX0 * step - tileX;
+               for (int y = outY0; y < outY1; y++) {
+                  int srcY = view.y + y * step - tileY;
+                  copyPixels(tile.pix, srcY * tileWidth_ + srcX, dest, y * outWidth + outX0,
+                          outX1 - outX0, step);
+               }
+               return null;
+            }
+         });
+      }
+
+      try {
+         ThreadUtils.invokeAll(tasks);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause(), "Couldn't stitch tiles");
+         return null;
+      }
+      if (tags[0] == null) {
          //if no tiles present
          return null;
       }
-      
+
+      JSONObject stitchedTags = tags[0];
       try {
          if (storage_ instanceof TaggedImageStorageRam) {
             //make copy so original image tags are unaffected
-            tags = new JSONObject(tags.toString()); 
+            stitchedTags = new JSONObject(stitchedTags.toString());
          }
-         tags.put("Width", width_);
-         tags.put("Height", height_);
-         tags.put("PositionIndex", 0);         
-         tags.put("PositionName", "Stitched");
+         stitchedTags.put("Width", outWidth);
+         stitchedTags.put("Height", outHeight);
+         stitchedTags.put("PositionIndex", 0);
+         stitchedTags.put("PositionName", "Stitched");
       } catch (JSONException ex) {
          ReportingUtils.showError("Problem manipulating Image tags");
       }
-      return new TaggedImage(pixels, tags);
+      return new TaggedImage(pixels[0], stitchedTags);
+   }
+
+   //index of the first output pixel at or after the given offset into the viewport
+   private static int firstSample(int offset, int step) {
+      return offset <= 0 ? 0 : (offset + step - 1) / step;
+   }
+
+   private static void copyPixels(Object src, int srcIndex, Object dest, int destIndex, int count, int step) {
+      if (step == 1) {
+         System.arraycopy(src, srcIndex, dest, destIndex, count);
+      } else if (src instanceof short[]) {
+         short[] s = (short[]) src, d = (short[]) dest;
+         for (int i = 0; i < count; i++) {
+            d[destIndex + i] = s[srcIndex + i * step];
+         }
+      } else {
+         byte[] s = (byte[]) src, d = (byte[]) dest;
+         for (int i = 0; i < count; i++) {
+            d[destIndex + i] = s[srcIndex + i * step];
+         }
+      }
+   }
+
+   private void addToCache(String label, TaggedImage image, long version) {
+      synchronized (cache_) {
+         long current = versions_.containsKey(label) ? versions_.get(label) : 0;
+         if (current != version) {
+            //a tile arrived while stitching
+            return;
+         }
+         TaggedImage old = cache_.put(label, image);
+         if (old != null) {
+            cachedBytes_ -= numBytes(old);
+         }
+         cachedBytes_ += numBytes(image);
+         //drop least recently used images until within budget, the new one
+         //included if it does not fit by itself
+         Iterator<TaggedImage> it = cache_.values().iterator();
+         while (cachedBytes_ > cacheBudget_ && it.hasNext()) {
+            cachedBytes_ -= numBytes(it.next());
+            it.remove();
+         }
+      }
+   }
+
+   private void invalidate(String label) {
+      synchronized (cache_) {
+         versions_.put(label, (versions_.containsKey(label) ? versions_.get(label) : 0) + 1);
+         TaggedImage image = cache_.remove(label);
+         if (image != null) {
+            cachedBytes_ -= numBytes(image);
+         }
+      }
+   }
+
+   private static long numBytes(TaggedImage image) {
+      if (image.pix instanceof short[]) {
+         return 2L * ((short[]) image.pix).length;
+      }
+      return ((byte[]) image.pix).length;
    }
 
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
@@ -173,6 +370,12 @@ public class DynamicStitchingImageStorage {
          ReportingUtils.showError("Indices missing from image tags");
       }
       storage_.putImage(taggedImage);
+      try {
+         invalidate(MDUtils.generateLabel(MDUtils.getChannelIndex(taggedImage.tags),
+                 MDUtils.getSliceIndex(taggedImage.tags), MDUtils.getFrameIndex(taggedImage.tags), 0));
+      } catch (JSONException ex) {
+         ReportingUtils.showError("Indices missing from image tags");
+      }
    }
 
    public Set<String> imageKeys() {
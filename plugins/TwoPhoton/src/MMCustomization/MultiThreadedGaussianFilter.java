@@ -0,0 +1,360 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package MMCustomization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.micromanager.utils.ThreadUtils;
+
+/**
+ * Separable Gaussian filter for 8 bit (byte[]) and 16 bit (short[]) images,
+ * and for stacks of them.
+ *
+ * Rows are convolved into float rows, then columns are convolved a row at a
+ * time (and, for stacks, slices a row at a time), so that every pass reads
+ * memory in order.  Kernels and edge handling are those of ImageJ's
+ * GaussianBlur, except that large sigmas are not handled by downscaling.
+ * Results are rounded and clipped to the pixel type.  Work is split into
+ * bands of rows over the shared Micro-Manager worker pool.
+ *
+ * The float buffers are kept between calls, so an instance should only be
+ * used by one thread at a time.
+ *
+ * @author Henry
+ */
+public class MultiThreadedGaussianFilter {
+
+   private static final double ACCURACY_8_BIT = 0.002;
+   private static final double ACCURACY_16_BIT = 0.0002;
+   //line buffers of the threads that filter
+   private static final ThreadLocal<float[][]> lines_ = new ThreadLocal<float[][]>();
+   private final int width_, height_;
+   private final double sigma_;
+   //kernels, for the accuracy they were made for
+   private double accuracy_ = 0;
+   private float[][] kernelX_, kernelY_;
+   //after the row pass and after the column pass, by slice and row
+   private float[][][] rowPass_, columnPass_;
+
+   public MultiThreadedGaussianFilter(int width, int height, double filterWidth) {
+      width_ = width;
+      height_ = height;
+      sigma_ = filterWidth;
+   }
+
+   /**
+    * @return filtered copy of pixels (byte[] or short[])
+    */
+   public Object gaussianFilter(Object pixels) {
+      return gaussianFilter(new Object[]{pixels}, 0)[0];
+   }
+
+   /**
+    * Filters a stack of slices in x and y, and in z when sigmaZ > 0
+    *
+    * @param slices - pixels (all byte[] or all short[]) of every slice
+    * @param sigmaZ - sigma in z, in slices
+    * @return filtered copies of the slices
+    */
+   public Object[] gaussianFilter(final Object[] slices, double sigmaZ) {
+      final int depth = slices.length;
+      final boolean shorts = slices[0] instanceof short[];
+      double accuracy = shorts ? ACCURACY_16_BIT : ACCURACY_8_BIT;
+      if (accuracy != accuracy_) {
+         kernelX_ = makeGaussianKernel(sigma_, accuracy, width_);
+         kernelY_ = makeGaussianKernel(sigma_, accuracy, height_);
+         accuracy_ = accuracy;
+      }
+      final boolean filterZ = sigmaZ > 0 && depth > 1;
+      final float[][] kernelZ = filterZ ? makeGaussianKernel(sigmaZ, accuracy, depth) : null;
+      rowPass_ = buffers(rowPass_, depth);
+      if (filterZ) {
+         columnPass_ = buffers(columnPass_, depth);
+      }
+      final Object[] filtered = new Object[depth];
+      for (int s = 0; s < depth; s++) {
+         filtered[s] = shorts ? new short[width_ * height_] : new byte[width_ * height_];
+      }
+
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      int bands = Math.min(height_, Math.max(1, (2 * nrThreads + depth - 1) / depth));
+      List<Callable<Object>> rowTasks = new ArrayList<Callable<Object>>();
+      List<Callable<Object>> columnTasks = new ArrayList<Callable<Object>>();
+      List<Callable<Object>> sliceTasks = new ArrayList<Callable<Object>>();
+      for (int s = 0; s < depth; s++) {
+         final int slice = s;
+         for (int b = 0; b < bands; b++) {
+            final int startRow = height_ * b / bands;
+            final int endRow = height_ * (b + 1) / bands;
+            rowTasks.add(new Callable<Object>() {
+               @Override
+               public Object call() {
+                  float[] line = lines()[0];
+                  for (int y = startRow; y < endRow; y++) {
+                     toFloat(slices[slice], y * width_, line, width_);
+                     convolveLine(line, width_, rowPass_[slice][y], kernelX_);
+                  }
+                  return null;
+               }
+            });
+            columnTasks.add(new Callable<Object>() {
+               @Override
+               public Object call() {
+                  float[] line = lines()[0];
+                  for (int y = startRow; y < endRow; y++) {
+                     if (filterZ) {
+                        convolveAcross(rowPass_[slice], height_, y, kernelY_, columnPass_[slice][y], width_);
+                     } else {
+                        convolveAcross(rowPass_[slice], height_, y, kernelY_, line, width_);
+                        fromFloat(line, filtered[slice], y * width_, width_);
+                     }
+                  }
+                  return null;
+               }
+            });
+            sliceTasks.add(new Callable<Object>() {
+               @Override
+               public Object call() {
+                  float[][] lines = lines();
+                  float[][] column = new float[columnPass_.length][];
+                  for (int y = startRow; y < endRow; y++) {
+                     for (int z = 0; z < column.length; z++) {
+                        column[z] = columnPass_[z][y];
+                     }
+                     convolveAcross(column, column.length, slice, kernelZ, lines[0], width_);
+                     fromFloat(lines[0], filtered[slice], y * width_, width_);
+                  }
+                  return null;
+               }
+            });
+         }
+      }
+      runAll(rowTasks);
+      runAll(columnTasks);
+      if (filterZ) {
+         runAll(sliceTasks);
+      }
+      return filtered;
+   }
+
+   private float[][][] buffers(float[][][] current, int depth) {
+      if (current != null && current.length == depth) {
+         return current;
+      }
+      float[][][] buffers = new float[depth][height_][];
+      for (int s = 0; s < depth; s++) {
+         if (current != null && s < current.length) {
+            buffers[s] = current[s];
+         } else {
+            buffers[s] = new float[height_][width_];
+         }
+      }
+      return buffers;
+   }
+
+   private float[][] lines() {
+      float[][] lines = lines_.get();
+      if (lines == null || lines[0].length < width_) {
+         lines = new float[][]{new float[width_]};
+         lines_.set(lines);
+      }
+      return lines;
+   }
+
+   private static void toFloat(Object pixels, int offset, float[] line, int length) {
+      if (pixels instanceof short[]) {
+         short[] pix = (short[]) pixels;
+         for (int i = 0; i < length; i++) {
+            line[i] = pix[offset + i] & 0xffff;
+         }
+      } else {
+         byte[] pix = (byte[]) pixels;
+         for (int i = 0; i < length; i++) {
+            line[i] = pix[offset + i] & 0xff;
+         }
+      }
+   }
+
+   private static void fromFloat(float[] line, Object pixels, int offset, int length) {
+      if (pixels instanceof short[]) {
+         short[] pix = (short[]) pixels;
+         for (int i = 0; i < length; i++) {
+            float value = line[i] + 0.5f;
+            pix[offset + i] = (short) (value < 0f ? 0 : (value > 65535f ? 65535 : (int) value));
+         }
+      } else {
+         byte[] pix = (byte[]) pixels;
+         for (int i = 0; i < length; i++) {
+            float value = line[i] + 0.5f;
+            pix[offset + i] = (byte) (value < 0f ? 0 : (value > 255f ? 255 : (int) value));
+         }
+      }
+   }
+
+   /**
+    * Convolves one line; points beyond the ends are taken to be equal to the
+    * end points (as in ImageJ)
+    */
+   private static void convolveLine(float[] input, int length, float[] output, float[][] kernel) {
+      final float first = input[0];
+      final float last = input[length - 1];
+      final float[] kern = kernel[0];
+      final float kern0 = kern[0];
+      final float[] kernSum = kernel[1];
+      final int kRadius = kern.length;
+      final int firstPart = kRadius < length ? kRadius : length;
+      int i = 0;
+      for (; i < firstPart; i++) {
+         float result = input[i] * kern0;
+         result += kernSum[i] * first;
+         if (i + kRadius > length) {
+            result += kernSum[length - i - 1] * last;
+         }
+         for (int k = 1; k < kRadius; k++) {
+            float v = 0;
+            if (i - k >= 0) {
+               v += input[i - k];
+            }
+            if (i + k < length) {
+               v += input[i + k];
+            }
+            result += kern[k] * v;
+         }
+         output[i] = result;
+      }
+      final int iEndInside = length - kRadius;
+      for (; i < iEndInside; i++) {
+         float result = input[i] * kern0;
+         for (int k = 1; k < kRadius; k++) {
+            result += kern[k] * (input[i - k] + input[i + k]);
+         }
+         output[i] = result;
+      }
+      for (; i < length; i++) {
+         float result = input[i] * kern0;
+         if (i + kRadius >= length) {
+            result += kernSum[length - i - 1] * last;
+         }
+         for (int k = 1; k < kRadius; k++) {
+            float v = 0;
+            if (i - k >= 0) {
+               v += input[i - k];
+            }
+            if (i + k < length) {
+               v += input[i + k];
+            }
+            result += kern[k] * v;
+         }
+         output[i] = result;
+      }
+   }
+
+   /**
+    * Convolves across lines: computes line index of the result, point by
+    * point, from lines index - kRadius to index + kRadius.  Does the same
+    * arithmetic as convolveLine does along a line.
+    */
+   private static void convolveAcross(float[][] lines, int numLines, int index, float[][] kernel,
+           float[] output, int width) {
+      final float[] kern = kernel[0];
+      final float[] kernSum = kernel[1];
+      final int kRadius = kern.length;
+      final float[] center = lines[index];
+      final float kern0 = kern[0];
+      for (int x = 0; x < width; x++) {
+         output[x] = center[x] * kern0;
+      }
+      boolean firstPart = index < Math.min(kRadius, numLines);
+      if (firstPart) {
+         addScaled(kernSum[index], lines[0], output, width);
+      }
+      if (firstPart ? index + kRadius > numLines : index + kRadius >= numLines) {
+         addScaled(kernSum[numLines - index - 1], lines[numLines - 1], output, width);
+      }
+      for (int k = 1; k < kRadius; k++) {
+         float w = kern[k];
+         if (index - k >= 0 && index + k < numLines) {
+            float[] below = lines[index - k];
+            float[] above = lines[index + k];
+            for (int x = 0; x < width; x++) {
+               output[x] += w * (below[x] + above[x]);
+            }
+         } else if (index - k >= 0) {
+            addScaled(w, lines[index - k], output, width);
+         } else if (index + k < numLines) {
+            addScaled(w, lines[index + k], output, width);
+         }
+      }
+   }
+
+   private static void addScaled(float w, float[] line, float[] output, int width) {
+      for (int x = 0; x < width; x++) {
+         output[x] += w * line[x];
+      }
+   }
+
+   //ImageJ's Gaussian kernel: [0] the kernel from its center, [1] the running sum over its tail
+   private static float[][] makeGaussianKernel(final double sigma, final double accuracy, int maxRadius) {
+      int kRadius = (int) Math.ceil(sigma * Math.sqrt(-2 * Math.log(accuracy))) + 1;
+      if (maxRadius < 50) {
+         maxRadius = 50;         // too small maxRadius would result in inaccurate sum.
+      }
+      if (kRadius > maxRadius) {
+         kRadius = maxRadius;
+      }
+      float[][] kernel = new float[2][kRadius];
+      for (int i = 0; i < kRadius; i++) {               // Gaussian function
+         kernel[0][i] = (float) (Math.exp(-0.5 * i * i / sigma / sigma));
+      }
+      if (kRadius < maxRadius && kRadius > 3) {   // edge correction
+         double sqrtSlope = Double.MAX_VALUE;
+         int r = kRadius;
+         while (r > kRadius / 2) {
+            r--;
+            double a = Math.sqrt(kernel[0][r]) / (kRadius - r);
+            if (a < sqrtSlope) {
+               sqrtSlope = a;
+            } else {
+               break;
+            }
+         }
+         for (int r1 = r + 2; r1 < kRadius; r1++) {
+            kernel[0][r1] = (float) ((kRadius - r1) * (kRadius - r1) * sqrtSlope * sqrtSlope);
+         }
+      }
+      double sum;                                 // sum over all kernel elements for normalization
+      if (kRadius < maxRadius) {
+         sum = kernel[0][0];
+         for (int i = 1; i < kRadius; i++) {
+            sum += 2 * kernel[0][i];
+         }
+      } else {
+         sum = sigma * Math.sqrt(2 * Math.PI);
+      }
+
+      double rsum = 0.5 + 0.5 * kernel[0][0] / sum;
+      for (int i = 0; i < kRadius; i++) {
+         double v = (kernel[0][i] / sum);
+         kernel[0][i] = (float) v;
+         rsum -= v;
+         kernel[1][i] = (float) rsum;
+      }
+      return kernel;
+   }
+
+   private static void runAll(List<Callable<Object>> tasks) {
+      try {
+         ThreadUtils.invokeAll(tasks);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(ex);
+      } catch (ExecutionException ex) {
+         throw new RuntimeException(ex.getCause());
+      }
+   }
+}